@@ -0,0 +1,398 @@
+package algo;
+
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.utils.KmerUtils;
+import structures.BatchLookup;
+import structures.ExtensionIndex;
+import structures.KmerCounts;
+import structures.LongIntOpenMap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import static utils.StringUtils.kmerToString;
+
+/**
+ * Backward and forward searches of {@link KmerBfs} as one traversal, k <= 31.<br></br>
+ * <br></br>
+ *
+ * Both searches share one table of k-mers, every k-mer keeps its distance for each direction.
+ * Seeds are looked up once, a k-mer which is already in the table is known to be solid, so the search in the other
+ * direction doesn't look it up again, and solid extensions given by an extension index are kept for both directions.
+ * Each direction gives exactly the same k-mers in the same order as a separate <code>KmerBfs</code>,
+ * the searches are advanced by turns, so restrictions on time, lookups and memory are shared between them.
+ */
+public class BidirectionalKmerBfs {
+    private static final int BACKWARD = 0;
+    private static final int FORWARD = 1;
+    private static final byte UNKNOWN = -1;
+    /**
+     * Approximate memory of k-mer in the table, its distances, masks and positions in the queues
+     */
+    private static final int BYTES_PER_KMER = 56;
+    private static final int CHUNK = 1 << 10;
+
+    private final int k;
+    private final long kMask;
+    private final int highShift;
+    private final KmerCounts table;
+    private final int threshold;
+    private final ExtensionIndex edgeMasks;
+    private final TerminationMode termMode;
+    private int parallelFrontier = KmerBfs.PARALLEL_FRONTIER;
+    private int frontierPeak;
+    private TerminationMode.Budget budget;
+
+    private final LongIntOpenMap nodeByKmer = new LongIntOpenMap();
+    private long[] kmers = new long[16];
+    private int nodes;
+
+    // per direction state: distances (-1 - not visited), masks of solid neighbours, queues and last k-mers
+    private final int[][] distance = new int[2][16];
+    private final byte[][] solid = new byte[2][16];
+    private final int[][] queue = new int[2][16];
+    private final int[] added = new int[2];
+    private final int[] head = new int[2];
+    private final int[] visited = new int[2];
+    private final BitSet[] last = {new BitSet(), new BitSet()};
+    private BitSet[] retained;
+
+    private final LongAdder lookups = new LongAdder();
+
+    /**
+     * @param threshold minimal count of solid k-mer
+     * @param edgeMasks extension index built for the same threshold or null
+     */
+    public BidirectionalKmerBfs(int k, KmerCounts table, int threshold, ExtensionIndex edgeMasks,
+                                TerminationMode termMode) {
+        this.k = k;
+        this.kMask = (1L << (2 * k)) - 1;
+        this.highShift = 2 * (k - 1);
+        this.table = table;
+        this.threshold = threshold;
+        this.edgeMasks = edgeMasks;
+        this.termMode = termMode;
+        for (int d = 0; d < 2; d++) {
+            Arrays.fill(distance[d], -1);
+            Arrays.fill(solid[d], UNKNOWN);
+        }
+    }
+
+    /**
+     * Adds all solid k-mers of the sequence as starting ones of both searches
+     */
+    public void addSeeds(String sequence) {
+        int n = Math.max(sequence.length() - k + 1, 0);
+        long[] windows = new long[n];
+        long kmer = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            kmer = ((kmer << 2) | DnaTools.fromChar(sequence.charAt(i))) & kMask;
+            if (i >= k - 1) {
+                windows[i - k + 1] = kmer;
+            }
+        }
+        addSeeds(windows, n);
+    }
+
+    /**
+     * Adds solid k-mers among first n k-mers in 2-bit encoding as starting ones of both searches, in their order
+     */
+    public void addSeeds(long[] windows, int n) {
+        long[] keys = new long[n];
+        boolean[] known = new boolean[n];
+        int unknown = 0;
+        for (int i = 0; i < n; i++) {
+            // taken before nodes of these windows are created, so every unknown window keeps its own lookup
+            known[i] = nodeByKmer.containsKey(windows[i]);
+            if (!known[i]) {
+                keys[unknown++] = KmerUtils.getKmerKey(windows[i], k);
+            }
+        }
+        short[] occs = new short[unknown];
+        BatchLookup.getMany(table, keys, unknown, occs);
+        lookups.add(unknown);
+
+        for (int i = 0, j = 0; i < n; i++) {
+            boolean isSolid = known[i] || occs[j++] >= threshold;
+            if (isSolid) {
+                int node = nodeOf(windows[i]);
+                for (int d = 0; d < 2; d++) {
+                    // repeated seeds are queued again, as KmerBfs does it
+                    if (distance[d][node] < 0) {
+                        visited[d]++;
+                    }
+                    push(d, node);
+                    distance[d][node] = 0;
+                }
+            }
+        }
+    }
+
+    public boolean hasSeeds() {
+        return added[BACKWARD] > 0;
+    }
+
+    /**
+     * @param parallelFrontier frontier size starting from which it is expanded in parallel,
+     *                         <code>Integer.MAX_VALUE</code> disables parallel expansion
+     */
+    public void setParallelFrontier(int parallelFrontier) {
+        this.parallelFrontier = parallelFrontier;
+    }
+
+    /**
+     * @param budget restrictions on time, lookups and memory of both searches
+     */
+    public void setBudget(TerminationMode.Budget budget) {
+        this.budget = budget;
+    }
+
+    public void run() {
+        long[] neighbors = new long[4];
+        long counted = lookups.sum();
+        while (pending(BACKWARD) > 0 || pending(FORWARD) > 0) {
+            frontierPeak = Math.max(frontierPeak, pending(BACKWARD) + pending(FORWARD));
+            if (budget != null) {
+                long done = lookups.sum();
+                if (budget.isExceeded(done - counted, (long) nodes * BYTES_PER_KMER)) {
+                    stopByBudget();
+                    break;
+                }
+                counted = done;
+            }
+            if (pending(BACKWARD) + pending(FORWARD) >= parallelFrontier) {
+                expandFrontiers(neighbors);
+                continue;
+            }
+            for (int d = 0; d < 2; d++) {
+                if (pending(d) > 0) {
+                    int node = queue[d][head[d]++];
+                    visitNeighbors(d, node, solidNeighbors(node, d, neighbors), neighbors);
+                }
+            }
+        }
+    }
+
+    private int pending(int d) {
+        return added[d] - head[d];
+    }
+
+    /**
+     * Leaves k-mers in the queues unexpanded, they are the last ones, as the searches could go on from them
+     */
+    private void stopByBudget() {
+        for (int d = 0; d < 2; d++) {
+            while (head[d] < added[d]) {
+                last[d].set(queue[d][head[d]++]);
+            }
+        }
+    }
+
+    /**
+     * Expands all k-mers in both queues, solid neighbours are found in parallel
+     */
+    private void expandFrontiers(long[] neighbors) {
+        int[] start = head.clone();
+        int backward = pending(BACKWARD);
+        int size = backward + pending(FORWARD);
+        byte[] masks = new byte[size];
+        IntStream.range(0, (size + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            long[] buffer = new long[4];
+            for (int i = chunk * CHUNK, end = Math.min(i + CHUNK, size); i < end; i++) {
+                int d = i < backward ? BACKWARD : FORWARD;
+                int node = queue[d][start[d] + (d == BACKWARD ? i : i - backward)];
+                masks[i] = solid[d][node] != UNKNOWN ? solid[d][node] : (byte) lookupNeighbors(node, d, buffer);
+            }
+        });
+        for (int i = 0; i < size; i++) {
+            int d = i < backward ? BACKWARD : FORWARD;
+            int node = queue[d][head[d]++];
+            solid[d][node] = masks[i];
+            neighbors(node, d, neighbors);
+            visitNeighbors(d, node, masks[i], neighbors);
+        }
+    }
+
+    /**
+     * @return mask of solid neighbours of node in direction d, it is found once for every node and direction
+     */
+    private int solidNeighbors(int node, int d, long[] neighbors) {
+        if (solid[d][node] == UNKNOWN) {
+            if (edgeMasks != null) {
+                int mask = edgeMasks.maskOf(kmers[node]);
+                lookups.increment();
+                solid[BACKWARD][node] = (byte) (mask & 15);
+                solid[FORWARD][node] = (byte) ((mask >>> 4) & 15);
+            } else {
+                solid[d][node] = (byte) lookupNeighbors(node, d, neighbors);
+            }
+        }
+        neighbors(node, d, neighbors);
+        return solid[d][node];
+    }
+
+    /**
+     * Only reads the table of k-mers, so it can be called in parallel
+     */
+    private int lookupNeighbors(int node, int d, long[] neighbors) {
+        if (edgeMasks != null) {
+            lookups.increment();
+            int mask = edgeMasks.maskOf(kmers[node]);
+            return d == BACKWARD ? mask & 15 : (mask >>> 4) & 15;
+        }
+        neighbors(node, d, neighbors);
+        int result = 0;
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+            boolean isSolid = nodeByKmer.containsKey(neighbors[i]);
+            if (!isSolid) {
+                count++;
+                isSolid = table.get(KmerUtils.getKmerKey(neighbors[i], k)) >= threshold;
+            }
+            if (isSolid) {
+                result |= 1 << i;
+            }
+        }
+        lookups.add(count);
+        return result;
+    }
+
+    private void visitNeighbors(int d, int node, int mask, long[] neighbors) {
+        int dist = distance[d][node];
+        for (int i = 0; i < 4; i++) {
+            if ((mask & (1 << i)) != 0) {
+                int neighbor = nodeOf(neighbors[i]);
+                if (termMode.allowsAddition(distance[d][neighbor] >= 0, visited[d], dist + 1)) {
+                    push(d, neighbor);
+                    distance[d][neighbor] = dist + 1;
+                    visited[d]++;
+                } else {
+                    last[d].set(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leaves in each direction only k-mers from which some k-mer that stopped its search is reachable
+     */
+    public void trimPaths() {
+        retained = new BitSet[2];
+        long[] neighbors = new long[4];
+        for (int d = 0; d < 2; d++) {
+            BitSet kept = (BitSet) last[d].clone();
+            int[] trimQueue = kept.stream().toArray();
+            int tail = trimQueue.length;
+            for (int h = 0; h < tail; h++) {
+                // going back along the search
+                neighbors(trimQueue[h], 1 - d, neighbors);
+                for (long kmer : neighbors) {
+                    int neighbor = nodeByKmer.get(kmer, -1);
+                    if (neighbor >= 0 && distance[d][neighbor] >= 0 && !kept.get(neighbor)) {
+                        kept.set(neighbor);
+                        if (tail == trimQueue.length) {
+                            trimQueue = Arrays.copyOf(trimQueue, Math.max(trimQueue.length * 2, 16));
+                        }
+                        trimQueue[tail++] = neighbor;
+                    }
+                }
+            }
+            retained[d] = kept;
+        }
+    }
+
+    private void push(int d, int node) {
+        if (added[d] == queue[d].length) {
+            queue[d] = Arrays.copyOf(queue[d], queue[d].length * 2);
+        }
+        queue[d][added[d]++] = node;
+    }
+
+    /**
+     * @return node of solid k-mer, it is created if absent
+     */
+    private int nodeOf(long kmer) {
+        int node = nodeByKmer.get(kmer, -1);
+        if (node >= 0) {
+            return node;
+        }
+        if (nodes == kmers.length) {
+            int capacity = nodes * 2;
+            kmers = Arrays.copyOf(kmers, capacity);
+            for (int d = 0; d < 2; d++) {
+                distance[d] = Arrays.copyOf(distance[d], capacity);
+                Arrays.fill(distance[d], nodes, capacity, -1);
+                solid[d] = Arrays.copyOf(solid[d], capacity);
+                Arrays.fill(solid[d], nodes, capacity, UNKNOWN);
+            }
+        }
+        node = nodes++;
+        kmers[node] = kmer;
+        nodeByKmer.put(kmer, node);
+        return node;
+    }
+
+    private void neighbors(int node, int d, long[] out) {
+        KmerBfs.neighbors(kmers[node], d == BACKWARD ? -1 : 1, kMask, highShift, out);
+    }
+
+    /**
+     * Found k-mers of the search in direction dir as strings, in the same order as {@link KmerBfs#foundKmers()}
+     * gives them.
+     *
+     * @param dir -1 - backward, +1 - forward
+     * @return map from k-mer to its node for {@link #keyOf(int)}
+     */
+    public Map<String, Integer> foundKmers(int dir) {
+        int d = dir < 0 ? BACKWARD : FORWARD;
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (int i = 0; i < added[d]; i++) {
+            int node = queue[d][i];
+            result.put(kmerToString(kmers[node], k), node);
+        }
+        if (retained != null) {
+            BitSet kept = retained[d];
+            result.values().removeIf(node -> !kept.get(node));
+        }
+        return result;
+    }
+
+    /**
+     * @return table key of k-mer of the node
+     */
+    public long keyOf(int node) {
+        return KmerUtils.getKmerKey(kmers[node], k);
+    }
+
+    /**
+     * @return number of k-mers in the shared table
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * @return number of k-mers visited by the backward and the forward searches, before trimming
+     */
+    public int visited() {
+        return visited[BACKWARD] + visited[FORWARD];
+    }
+
+    /**
+     * @return the largest number of k-mers in both queues during the search
+     */
+    public int frontierPeak() {
+        return frontierPeak;
+    }
+
+    /**
+     * @return number of table lookups done by both searches
+     */
+    public long lookups() {
+        return lookups.sum();
+    }
+}
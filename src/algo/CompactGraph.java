@@ -0,0 +1,424 @@
+package algo;
+
+import ru.ifmo.genetics.dna.DnaTools;
+import structures.LongIntOpenMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * De Bruijn graph of k-mers in both orientations, kept in flat arrays.<br></br>
+ * <br></br>
+ *
+ * Node 2i is the i-th given k-mer, node 2i + 1 is its reverse complement, nodes are identified by int ids.
+ * Neighbours of node v are nodes u with edge rc(v) -> u, i.e. the ones adjacent to the start of v,
+ * they are kept in CSR arrays in increasing order of ids.
+ * Labels are packed 2 bits per nucleotide into one pool, gene and deletion flags are kept in bitsets
+ * and colours in a byte per node.<br></br>
+ * <br></br>
+ *
+ * When non-branching paths are merged, labels of merged nodes are appended to the pool,
+ * the pool is compacted when it grows twice as large as all current labels.
+ */
+public class CompactGraph {
+    private static final int CHARS_PER_WORD = 32;
+    /** lexicographic rank of 2-bit code, i.e. order of chars in labels */
+    private static final int[] CHAR_RANK = {0, 2, 1, 3};
+    private static final SingleNode.Color[] COLORS = SingleNode.Color.values();
+
+    private final int k;
+    private final int size;
+    private final int[] rc;
+
+    private final int[] adjStart;
+    private final int[] degree;
+    private final int[] adj;
+
+    private final long[] deleted;
+    private final long[] gene;
+    private final byte[] colors;
+
+    private long[] pool;
+    private long poolSize;
+    private long liveChars;
+    private final long[] labelStart;
+    private final int[] labelLength;
+
+    /**
+     * Creates graph of given k-mers, neighbours are found by hashing encoded (k-1)-prefixes of nodes
+     */
+    public CompactGraph(int k, Collection<String> kmers) {
+        this.k = k;
+        this.size = kmers.size() * 2;
+        this.rc = new int[size];
+        this.deleted = new long[(size + 63) >>> 6];
+        this.gene = new long[deleted.length];
+        this.colors = new byte[size];
+        this.labelStart = new long[size];
+        this.labelLength = new int[size];
+        this.pool = new long[(int) (((long) size * k + CHARS_PER_WORD - 1) / CHARS_PER_WORD) + 1];
+
+        int id = 0;
+        for (String seq : kmers) {
+            appendLabel(id, seq);
+            appendLabel(id + 1, DnaTools.reverseComplement(seq));
+            rc[id] = id + 1;
+            rc[id + 1] = id;
+            id += 2;
+        }
+
+        // node lists with equal (k-1)-prefix, in increasing order of ids
+        LongIntOpenMap heads = new LongIntOpenMap(size);
+        int[] next = new int[size];
+        for (int v = size - 1; v >= 0; v--) {
+            long key = rangeKey(v, 0);
+            next[v] = heads.get(key, -1);
+            heads.put(key, v);
+        }
+        int[] head = new int[size];
+        this.degree = new int[size];
+        for (int v = 0; v < size; v++) {
+            head[v] = heads.get(rangeKey(v, 1), -1);
+            for (int u = head[v]; u != -1; u = next[u]) {
+                if (sameRange(v, 1, u, 0)) {
+                    degree[rc[v]]++;
+                }
+            }
+        }
+        this.adjStart = new int[size + 1];
+        for (int v = 0; v < size; v++) {
+            adjStart[v + 1] = adjStart[v] + degree[v];
+        }
+        this.adj = new int[adjStart[size]];
+        for (int v = 0; v < size; v++) {
+            int pos = adjStart[rc[v]];
+            for (int u = head[v]; u != -1; u = next[u]) {
+                if (sameRange(v, 1, u, 0)) {
+                    adj[pos++] = u;
+                }
+            }
+        }
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int rc(int node) {
+        return rc[node];
+    }
+
+    public int degree(int node) {
+        return degree[node];
+    }
+
+    public int neighbor(int node, int i) {
+        return adj[adjStart[node] + i];
+    }
+
+    public boolean isDeleted(int node) {
+        return (deleted[node >>> 6] & (1L << node)) != 0;
+    }
+
+    public boolean isGene(int node) {
+        return (gene[node >>> 6] & (1L << node)) != 0;
+    }
+
+    public SingleNode.Color color(int node) {
+        return colors[node] == 0 ? null : COLORS[colors[node] - 1];
+    }
+
+    /**
+     * Sets flags of i-th k-mer, both its nodes get them
+     */
+    public void setAttributes(int kmerIndex, boolean isGene, SingleNode.Color color) {
+        for (int node = 2 * kmerIndex; node <= 2 * kmerIndex + 1; node++) {
+            if (isGene) {
+                gene[node >>> 6] |= 1L << node;
+            }
+            colors[node] = (byte) (color == null ? 0 : color.ordinal() + 1);
+        }
+    }
+
+    /**
+     * Removes the first occurrence of neighbour from the list of node's neighbours
+     */
+    public boolean removeNeighbor(int node, int neighbor) {
+        int start = adjStart[node];
+        for (int i = 0; i < degree[node]; i++) {
+            if (adj[start + i] == neighbor) {
+                System.arraycopy(adj, start + i + 1, adj, start + i, degree[node] - i - 1);
+                degree[node]--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return ids (from 1) of unitigs adjacent to this one from both sides
+     */
+    public Set<Integer> neighborIds(int node) {
+        Set<Integer> result = new TreeSet<Integer>();
+        for (int i = 0; i < degree[node]; i++) {
+            int neighbor = neighbor(node, i);
+            result.add(Math.min(neighbor, rc[neighbor]) + 1);
+        }
+        for (int i = 0; i < degree[rc[node]]; i++) {
+            int neighbor = neighbor(rc[node], i);
+            result.add(Math.min(neighbor, rc[neighbor]) + 1);
+        }
+        result.remove(Math.min(node, rc[node]) + 1);
+        return result;
+    }
+
+
+    // --------------  Labels  ---------------
+
+    private int code(long pos) {
+        return (int) (pool[(int) (pos / CHARS_PER_WORD)] >>> (2 * (pos % CHARS_PER_WORD))) & 3;
+    }
+
+    private void append(int code) {
+        int word = (int) (poolSize / CHARS_PER_WORD);
+        if (word == pool.length) {
+            pool = Arrays.copyOf(pool, pool.length + (pool.length >> 1) + 1);
+        }
+        pool[word] |= (long) code << (2 * (poolSize % CHARS_PER_WORD));
+        poolSize++;
+    }
+
+    private void appendLabel(int node, String seq) {
+        labelStart[node] = poolSize;
+        labelLength[node] = seq.length();
+        for (int i = 0; i < seq.length(); i++) {
+            append(DnaTools.fromChar(seq.charAt(i)));
+        }
+        liveChars += seq.length();
+    }
+
+    public int labelLength(int node) {
+        return labelLength[node];
+    }
+
+    public char labelChar(int node, int i) {
+        return DnaTools.NUCLEOTIDES[code(labelStart[node] + i)];
+    }
+
+    public String label(int node) {
+        char[] s = new char[labelLength[node]];
+        long start = labelStart[node];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = DnaTools.NUCLEOTIDES[code(start + i)];
+        }
+        return new String(s);
+    }
+
+    /**
+     * Compares labels as strings
+     */
+    public int compareLabels(int a, int b) {
+        int len = Math.min(labelLength[a], labelLength[b]);
+        long sa = labelStart[a], sb = labelStart[b];
+        for (int i = 0; i < len; i++) {
+            int ca = CHAR_RANK[code(sa + i)], cb = CHAR_RANK[code(sb + i)];
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return labelLength[a] - labelLength[b];
+    }
+
+    /**
+     * Key of k-1 chars of node's label starting from <code>from</code>: exact encoding for k <= 32, hash otherwise
+     */
+    private long rangeKey(int node, int from) {
+        long start = labelStart[node] + from;
+        long key = 0;
+        if (k - 1 <= 31) {
+            for (int i = 0; i < k - 1; i++) {
+                key = (key << 2) | code(start + i);
+            }
+            return key;
+        }
+        for (int i = 0; i < k - 1; i++) {
+            key = key * 0x9E3779B97F4A7C15L + code(start + i) + 1;
+        }
+        return key & Long.MAX_VALUE;
+    }
+
+    private boolean sameRange(int a, int fromA, int b, int fromB) {
+        if (k - 1 <= 31) {
+            return true;
+        }
+        long sa = labelStart[a] + fromA, sb = labelStart[b] + fromB;
+        for (int i = 0; i < k - 1; i++) {
+            if (code(sa + i) != code(sb + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // --------------  Compaction  ---------------
+
+    /**
+     * Merges nodes of non-branching paths, see {@link Unitigs}.
+     * Nodes with different colours or gene flags aren't merged.
+     */
+    public void compact() {
+        Unitigs.compact(new Unitigs.Graph() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public int rc(int node) {
+                return rc[node];
+            }
+
+            @Override
+            public boolean isDeleted(int node) {
+                return CompactGraph.this.isDeleted(node);
+            }
+
+            @Override
+            public int degree(int node) {
+                return degree[node];
+            }
+
+            @Override
+            public int neighbor(int node, int i) {
+                return CompactGraph.this.neighbor(node, i);
+            }
+
+            @Override
+            public boolean canBeMerged(int first, int second) {
+                return colors[first] == colors[second] && isGene(first) == isGene(second);
+            }
+
+            @Override
+            public void mergePath(int[] path, int length) {
+                CompactGraph.this.mergePath(path, length);
+            }
+
+            @Override
+            public void mergeNodes(int firstPlus, int secondMinus) {
+                CompactGraph.this.mergeNodes(firstPlus, secondMinus);
+            }
+        });
+        if (poolSize - liveChars > liveChars + CHARS_PER_WORD) {
+            compactPool();
+        }
+    }
+
+    private void mergePath(int[] path, int length) {
+        int first = path[0], last = rc[path[length - 1]];
+        long newSeq = poolSize;
+        int newSeqLength = appendPath(path, length, false);
+        long newSeqRC = poolSize;
+        int newSeqRCLength = appendPath(path, length, true);
+
+        liveChars += newSeqLength - labelLength[first];
+        labelStart[first] = newSeq;
+        labelLength[first] = newSeqLength;
+        liveChars += newSeqRCLength - labelLength[last];
+        labelStart[last] = newSeqRC;
+        labelLength[last] = newSeqRCLength;
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                deleted[path[i] >>> 6] |= 1L << path[i];
+            }
+            if (i < length - 1) {
+                deleted[rc[path[i]] >>> 6] |= 1L << rc[path[i]];
+            }
+        }
+        rc[first] = last;
+        rc[last] = first;
+    }
+
+    /**
+     * Appends labels of the path nodes (or of their reverse complements in backward order) overlapping by k-1
+     *
+     * @return length of the appended label
+     */
+    private int appendPath(int[] path, int length, boolean backward) {
+        int total = 0;
+        for (int i = 0; i < length; i++) {
+            int node = backward ? rc[path[length - 1 - i]] : path[i];
+            int from = i == 0 ? 0 : k - 1;
+            for (long pos = labelStart[node] + from, end = labelStart[node] + labelLength[node]; pos < end; pos++) {
+                append(code(pos));
+            }
+            total += labelLength[node] - from;
+        }
+        return total;
+    }
+
+    private void mergeNodes(int firstPlus, int secondMinus) {
+        // first k-1 symbols of firstPlus coincide with complement of first k-1 symbols of secondMinus
+        if (poolSize - liveChars > liveChars + CHARS_PER_WORD) {
+            compactPool();
+        }
+        int firstMinus = rc[firstPlus], secondPlus = rc[secondMinus];
+        long newSeq = mergeLabels(secondPlus, firstPlus);
+        int newSeqLength = labelLength[secondPlus] + labelLength[firstPlus] - (k - 1);
+        long newSeqRC = mergeLabels(firstMinus, secondMinus);
+        int newSeqRCLength = labelLength[firstMinus] + labelLength[secondMinus] - (k - 1);
+
+        liveChars += newSeqLength - labelLength[secondPlus];
+        labelStart[secondPlus] = newSeq;
+        labelLength[secondPlus] = newSeqLength;
+        liveChars += newSeqRCLength - labelLength[firstMinus];
+        labelStart[firstMinus] = newSeqRC;
+        labelLength[firstMinus] = newSeqRCLength;
+        rc[secondPlus] = firstMinus;
+        rc[firstMinus] = secondPlus;
+
+        deleted[firstPlus >>> 6] |= 1L << firstPlus;
+        deleted[secondMinus >>> 6] |= 1L << secondMinus;
+    }
+
+    /**
+     * Appends label <code>a + b[k-1..]</code> to the pool
+     *
+     * @return its start
+     */
+    private long mergeLabels(int a, int b) {
+        long sa = labelStart[a] + labelLength[a] - (k - 1), sb = labelStart[b];
+        for (int i = 0; i < k - 1; i++) {
+            if (code(sa + i) != code(sb + i)) {
+                throw new AssertionError("Labels should be merged, but can not: " + label(a) + " and " + label(b));
+            }
+        }
+        long start = poolSize;
+        for (long i = labelStart[a], end = labelStart[a] + labelLength[a]; i < end; i++) {
+            append(code(i));
+        }
+        for (long i = labelStart[b] + k - 1, end = labelStart[b] + labelLength[b]; i < end; i++) {
+            append(code(i));
+        }
+        return start;
+    }
+
+    private void compactPool() {
+        long[] oldPool = pool;
+        long[] oldStart = labelStart.clone();
+        pool = new long[(int) (liveChars / CHARS_PER_WORD) + 2];
+        poolSize = 0;
+        for (int v = 0; v < size; v++) {
+            labelStart[v] = poolSize;
+            for (long pos = oldStart[v], end = oldStart[v] + labelLength[v]; pos < end; pos++) {
+                append((int) (oldPool[(int) (pos / CHARS_PER_WORD)] >>> (2 * (pos % CHARS_PER_WORD))) & 3);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package algo;
+
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.utils.KmerUtils;
+import structures.EdgeMasks;
+import structures.ExtensionIndex;
+import structures.KmerCounts;
+import structures.LongIntOpenMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import static utils.StringUtils.allNeighbors;
+import static utils.StringUtils.kmerToString;
+import static utils.StringUtils.normalizeDna;
+
+/**
+ * Extension of environment endings along non-branching paths.<br></br>
+ * <br></br>
+ *
+ * A boundary k-mer of the environment has solid neighbours outside of it. When there is exactly one such neighbour,
+ * the path is followed from it while the current k-mer has exactly one solid neighbour which is neither
+ * in the environment nor on the path. Neighbours are checked in the environment first, so interior k-mers
+ * cost no table lookups. The environment isn't changed until all walks end, so boundaries are walked in parallel,
+ * and new k-mers are given in the order of boundaries whatever the number of threads is.<br></br>
+ * <br></br>
+ *
+ * Walks obey the restrictions of the search: every walk is at most max radius k-mers long, the environment grows
+ * at most to max k-mers, and lookups of all walks are charged to the budget of the search, they stop when it is
+ * exceeded.
+ */
+class EnvironmentExtension {
+    private static final long NONE = -1;
+    private static final long BRANCH = -2;
+
+    private EnvironmentExtension() {
+    }
+
+    /**
+     * Extension on k-mers in 2-bit encoding, k <= 31
+     *
+     * @param threshold minimal count of solid k-mer
+     * @param edgeMasks extension index built for the same k and threshold or null
+     * @param budget    budget of the search which found the environment
+     * @return new k-mers in the order of addition
+     */
+    static List<String> extend(Collection<String> environment, int k, KmerCounts table, int threshold,
+                               ExtensionIndex edgeMasks, TerminationMode termMode, TerminationMode.Budget budget) {
+        long maxAdditions = maxAdditions(environment, termMode);
+        long maxLength = Math.min(termMode.limit(TerminationMode.TerminationModeType.MAX_RADIUS), maxAdditions);
+        if (maxLength <= 0) {
+            return new ArrayList<String>();
+        }
+        long kMask = (1L << (2 * k)) - 1;
+        int highShift = 2 * (k - 1);
+        long[] kmers = new long[environment.size()];
+        LongIntOpenMap contained = new LongIntOpenMap(environment.size());
+        int n = 0;
+        for (String kmer : environment) {
+            kmers[n] = DnaTools.toLong(new Dna(kmer));
+            contained.add(KmerUtils.getKmerKey(kmers[n], k));
+            n++;
+        }
+
+        long[][] paths = IntStream.range(0, n).parallel().mapToObj(i -> {
+            long[] neighbors = new long[8];
+            int[] lookups = new int[1];
+            long next = single(kmers[i], k, kMask, highShift, table, threshold, edgeMasks, contained, null,
+                    neighbors, lookups);
+            if (next < 0 || exceeded(budget, lookups)) {
+                return null;
+            }
+            long[] path = new long[16];
+            int length = 0;
+            LongIntOpenMap onPath = new LongIntOpenMap();
+            while (next >= 0 && length < maxLength) {
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, path.length * 2);
+                }
+                path[length++] = next;
+                onPath.add(KmerUtils.getKmerKey(next, k));
+                next = single(next, k, kMask, highShift, table, threshold, edgeMasks, contained, onPath,
+                        neighbors, lookups);
+                if (exceeded(budget, lookups)) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(path, length);
+        }).toArray(long[][]::new);
+
+        List<String> additions = new ArrayList<String>();
+        LongIntOpenMap added = new LongIntOpenMap();
+        for (long[] path : paths) {
+            if (path == null) {
+                continue;
+            }
+            for (long kmer : path) {
+                if (additions.size() == maxAdditions) {
+                    return additions;
+                }
+                if (added.add(KmerUtils.getKmerKey(kmer, k))) {
+                    additions.add(kmerToString(kmer, k));
+                }
+            }
+        }
+        return additions;
+    }
+
+    private static long maxAdditions(Collection<String> environment, TerminationMode termMode) {
+        return Math.max(termMode.limit(TerminationMode.TerminationModeType.MAX_KMERS) - environment.size(), 0);
+    }
+
+    /**
+     * Charges lookups made since the previous call to the budget, which is shared by all walks
+     *
+     * @return whether the budget is exceeded
+     */
+    private static boolean exceeded(TerminationMode.Budget budget, int[] lookups) {
+        if (lookups[0] == 0) {
+            return false;
+        }
+        synchronized (budget) {
+            boolean result = budget.isExceeded(lookups[0], 0);
+            lookups[0] = 0;
+            return result;
+        }
+    }
+
+    /**
+     * @return the only solid neighbour of kmer which is neither contained nor on the path,
+     *         {@link #NONE} if there are no such neighbours and {@link #BRANCH} if there are several of them
+     */
+    private static long single(long kmer, int k, long kMask, int highShift, KmerCounts table,
+                               int threshold, ExtensionIndex edgeMasks, LongIntOpenMap contained,
+                               LongIntOpenMap onPath, long[] neighbors, int[] lookups) {
+        KmerBfs.neighbors(kmer, 0, kMask, highShift, neighbors);
+        int mask = -1;
+        long result = NONE;
+        for (int i = 0; i < neighbors.length; i++) {
+            long key = KmerUtils.getKmerKey(neighbors[i], k);
+            if (contained.containsKey(key) || (onPath != null && onPath.containsKey(key))) {
+                continue;
+            }
+            boolean solid;
+            if (edgeMasks != null) {
+                if (mask < 0) {
+                    mask = edgeMasks.maskOf(kmer);
+                    lookups[0]++;
+                }
+                solid = (mask & EdgeMasks.neighborBit(0, i)) != 0;
+            } else {
+                solid = table.get(key) >= threshold;
+                lookups[0]++;
+            }
+            if (solid) {
+                if (result != NONE) {
+                    return BRANCH;
+                }
+                result = neighbors[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The same extension on k-mers as strings, for hashed tables
+     *
+     * @param isSolid whether k-mer is solid, it is called in parallel
+     * @return new k-mers in the order of addition
+     */
+    static List<String> extend(Collection<String> environment, Predicate<String> isSolid,
+                               TerminationMode termMode, TerminationMode.Budget budget) {
+        long maxAdditions = maxAdditions(environment, termMode);
+        long maxLength = Math.min(termMode.limit(TerminationMode.TerminationModeType.MAX_RADIUS), maxAdditions);
+        if (maxLength <= 0) {
+            return new ArrayList<String>();
+        }
+        Set<String> contained = new HashSet<String>();
+        for (String kmer : environment) {
+            contained.add(normalizeDna(kmer));
+        }
+        String[] kmers = environment.toArray(new String[0]);
+
+        @SuppressWarnings("unchecked")
+        List<String>[] paths = IntStream.range(0, kmers.length).parallel().mapToObj(i -> {
+            List<String> path = new ArrayList<String>();
+            Set<String> onPath = new HashSet<String>();
+            int[] lookups = new int[1];
+            String next = single(kmers[i], isSolid, contained, onPath, lookups);
+            if (exceeded(budget, lookups)) {
+                return path;
+            }
+            while (next != null && path.size() < maxLength) {
+                path.add(next);
+                onPath.add(normalizeDna(next));
+                next = single(next, isSolid, contained, onPath, lookups);
+                if (exceeded(budget, lookups)) {
+                    break;
+                }
+            }
+            return path;
+        }).toArray(List[]::new);
+
+        Set<String> additions = new LinkedHashSet<String>();
+        for (List<String> path : paths) {
+            for (String kmer : path) {
+                if (additions.size() == maxAdditions) {
+                    return new ArrayList<String>(additions);
+                }
+                additions.add(normalizeDna(kmer));
+            }
+        }
+        return new ArrayList<String>(additions);
+    }
+
+    /**
+     * @return the only solid neighbour of kmer which is neither contained nor on the path or null
+     */
+    private static String single(String kmer, Predicate<String> isSolid, Set<String> contained, Set<String> onPath,
+                                 int[] lookups) {
+        String result = null;
+        for (String neighbor : allNeighbors(kmer)) {
+            String normalized = normalizeDna(neighbor);
+            if (contained.contains(normalized) || onPath.contains(normalized)) {
+                continue;
+            }
+            lookups[0]++;
+            if (!isSolid.test(neighbor)) {
+                continue;
+            }
+            if (result != null) {
+                return null;
+            }
+            result = neighbor;
+        }
+        return result;
+    }
+}
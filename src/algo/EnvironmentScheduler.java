@@ -0,0 +1,158 @@
+package algo;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs calculators of separate sequences on a fixed number of threads.<br></br>
+ * <br></br>
+ *
+ * Calculators are started in the order of decreasing expected cost, so the largest environments don't extend
+ * the total time being started last. Each calculator holds its expected memory from the shared budget while it runs
+ * and replaces it with the actual one once its environment is found. A calculator is started only when its memory
+ * fits into the budget, unless nothing else runs. Calculators are always started in the same order, a large one
+ * waits for memory instead of being overtaken by smaller ones.
+ */
+public class EnvironmentScheduler {
+    private final int threads;
+    private final long budget;
+    private final Logger logger;
+    private final List<Task> tasks = new ArrayList<Task>();
+
+    private long used;
+    private long peak;
+    private int running;
+    private long busyNanos;
+
+    private static class Task {
+        final String name;
+        final OneSequenceCalculator calc;
+        final Runnable after;
+        long cost;
+        long memory;
+
+        Task(String name, OneSequenceCalculator calc, Runnable after) {
+            this.name = name;
+            this.calc = calc;
+            this.after = after;
+        }
+    }
+
+    /**
+     * @param budget memory in bytes available for all calculators at once
+     */
+    public EnvironmentScheduler(int threads, long budget, Logger logger) {
+        this.threads = threads;
+        this.budget = budget;
+        this.logger = logger;
+    }
+
+    /**
+     * @param after action to run when the calculator finishes or null
+     */
+    public void add(String name, OneSequenceCalculator calc, Runnable after) {
+        tasks.add(new Task(name, calc, after));
+    }
+
+    public void run() throws InterruptedException {
+        for (Task task : tasks) {
+            try {
+                task.cost = task.calc.estimateCost();
+            } catch (RuntimeException e) {
+                task.cost = 0;  // the calculator reports the problem itself
+            }
+            task.memory = task.calc.estimateMemory();
+        }
+        List<Task> order = new ArrayList<Task>(tasks);
+        Collections.sort(order, new Comparator<Task>() {
+            @Override
+            public int compare(Task a, Task b) {
+                return Long.compare(b.cost, a.cost);
+            }
+        });
+        logger.info("Scheduling " + order.size() + " environments on " + threads + " threads with memory budget "
+                + megabytes(budget));
+        for (Task task : order) {
+            logger.debug("Environment " + task.name + ": cost " + task.cost + ", memory " + megabytes(task.memory));
+        }
+
+        long start = System.nanoTime();
+        ExecutorService execService = Executors.newFixedThreadPool(threads);
+        for (final Task task : order) {
+            admit(task);
+            execService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(task);
+                }
+            });
+        }
+        execService.shutdown();
+        execService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        long wall = Math.max(System.nanoTime() - start, 1);
+
+        logger.info(String.format("Scheduler: %d environments in %.1f s, threads utilisation %.0f%%, "
+                        + "peak memory %s of %s", order.size(), wall / 1e9,
+                busyNanos * 100.0 / wall / threads, megabytes(peak), megabytes(budget)));
+    }
+
+    private synchronized void admit(Task task) throws InterruptedException {
+        if (running > 0 && (running == threads || used + task.memory > budget)) {
+            if (running < threads) {
+                logger.debug("Environment " + task.name + " waits for memory: needs " + megabytes(task.memory)
+                        + ", " + megabytes(used) + " of " + megabytes(budget) + " is used");
+            }
+            while (running > 0 && (running == threads || used + task.memory > budget)) {
+                wait();
+            }
+        }
+        if (task.memory > budget) {
+            logger.info("Environment " + task.name + " is expected to need " + megabytes(task.memory)
+                    + ", more than the budget, running it alone");
+        }
+        running++;
+        used += task.memory;
+        peak = Math.max(peak, used);
+    }
+
+    private synchronized void update(long from, long to) {
+        used += to - from;
+        peak = Math.max(peak, used);
+        notifyAll();
+    }
+
+    private synchronized void release(long memory, long nanos) {
+        running--;
+        used -= memory;
+        busyNanos += nanos;
+        notifyAll();
+    }
+
+    private void execute(Task task) {
+        final long[] held = {task.memory};
+        task.calc.setMemoryReporter(bytes -> {
+            update(held[0], bytes);
+            held[0] = bytes;
+        });
+        long start = System.nanoTime();
+        try {
+            task.calc.run();
+            if (task.after != null) {
+                task.after.run();
+            }
+        } finally {
+            release(held[0], System.nanoTime() - start);
+        }
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f Mb", bytes / 1048576.0);
+    }
+}
@@ -0,0 +1,419 @@
+package algo;
+
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.utils.KmerUtils;
+import structures.BatchLookup;
+import structures.EdgeMasks;
+import structures.ExtensionIndex;
+import structures.KmerCounts;
+import structures.LongIntOpenMap;
+import structures.LongQueue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static utils.StringUtils.kmerToString;
+
+/**
+ * Breadth-first search over solid k-mers in 2-bit encoding, k <= 31.<br></br>
+ * <br></br>
+ *
+ * Visits k-mers in exactly the same order as string-based search in calculators:
+ * neighbours are generated in the order of <code>StringUtils.leftNeighbors/rightNeighbors/allNeighbors</code>.
+ * K-mers are converted to strings only when the result is requested.<br></br>
+ * <br></br>
+ *
+ * When the queue grows large, the whole frontier is expanded at once: solid neighbours of its k-mers are found
+ * in parallel, while the set of visited k-mers is only read, and then they are added in the queue order
+ * by one thread. So restrictions of the termination mode cut the search at exactly the same k-mers.<br></br>
+ * <br></br>
+ *
+ * Until some k-mer is rejected by restrictions of the termination mode, the search is the same for any weaker
+ * restrictions. So the state at that moment is kept, and the search saved with {@link #saveState} can be continued
+ * by {@link #resume} with weaker restrictions, giving exactly the same result as a new search.
+ */
+public class KmerBfs {
+    private final int k;
+    private final long kMask;
+    private final int highShift;
+    private final KmerCounts table;
+    private final int threshold;
+    private final ExtensionIndex edgeMasks;
+    private final TerminationMode termMode;
+
+    private final LongQueue queue = new LongQueue();
+    private final LongIntOpenMap distance = new LongIntOpenMap();
+    private final LongIntOpenMap lastKmers = new LongIntOpenMap();
+    private LongIntOpenMap retained;
+    private int parallelFrontier = PARALLEL_FRONTIER;
+    private int frontierPeak;
+
+    // first rejection by restrictions: position of k-mer in the queue, index of its neighbour and last k-mers before
+    private int stopIndex = -1;
+    private int stopNeighbor;
+    private long[] stopLastKmers;
+    // k-mer of resumed search whose neighbours starting from resumeNeighbor are not visited yet
+    private int resumeIndex = -1;
+    private int resumeNeighbor;
+    private TerminationMode.Budget budget;
+
+    private static final int STATE_VERSION = 2;
+    /**
+     * Approximate memory of visited k-mer in the queue and the maps
+     */
+    private static final int BYTES_PER_KMER = 40;
+
+    /**
+     * Frontier size starting from which it is expanded in parallel
+     */
+    public static final int PARALLEL_FRONTIER = 1 << 14;
+    private static final int CHUNK = 1 << 10;
+
+    /**
+     * @param threshold minimal count of solid k-mer
+     * @param edgeMasks extension index built for the same threshold or null
+     */
+    public KmerBfs(int k, KmerCounts table, int threshold, ExtensionIndex edgeMasks,
+                   TerminationMode termMode) {
+        this.k = k;
+        this.kMask = (1L << (2 * k)) - 1;
+        this.highShift = 2 * (k - 1);
+        this.table = table;
+        this.threshold = threshold;
+        this.edgeMasks = edgeMasks;
+        this.termMode = termMode;
+    }
+
+    /**
+     * Adds all solid k-mers of the sequence as starting ones
+     */
+    public void addSeeds(String sequence) {
+        int n = Math.max(sequence.length() - k + 1, 0);
+        long[] kmers = new long[n];
+        long kmer = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            kmer = ((kmer << 2) | DnaTools.fromChar(sequence.charAt(i))) & kMask;
+            if (i >= k - 1) {
+                kmers[i - k + 1] = kmer;
+            }
+        }
+        addSeeds(kmers, n);
+    }
+
+    /**
+     * Adds solid k-mers among first n k-mers in 2-bit encoding as starting ones, in their order
+     */
+    public void addSeeds(long[] kmers, int n) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = KmerUtils.getKmerKey(kmers[i], k);
+        }
+        short[] occs = new short[n];
+        BatchLookup.getMany(table, keys, n, occs);
+        for (int i = 0; i < n; i++) {
+            if (occs[i] >= threshold) {
+                queue.add(kmers[i]);
+                distance.put(kmers[i], 0);
+            }
+        }
+    }
+
+    public boolean hasSeeds() {
+        return queue.added() > 0;
+    }
+
+    /**
+     * @param parallelFrontier frontier size starting from which it is expanded in parallel,
+     *                         <code>Integer.MAX_VALUE</code> disables parallel expansion
+     */
+    public void setParallelFrontier(int parallelFrontier) {
+        this.parallelFrontier = parallelFrontier;
+    }
+
+    /**
+     * @param budget restrictions on time, lookups and memory of the search, it may be shared with other searches
+     *               for the same target
+     */
+    public void setBudget(TerminationMode.Budget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param dir -1 - backward, +1 - forward, 0 - both
+     */
+    public void run(int dir) {
+        long[] neighbors = new long[dir == 0 ? 8 : 4];
+        if (resumeIndex >= 0) {
+            long kmer = queue.get(resumeIndex);
+            neighbors(kmer, dir, neighbors);
+            int solid = solidNeighbors(kmer, dir, neighbors, false) & -(1 << resumeNeighbor);
+            visitNeighbors(resumeIndex, kmer, neighbors, solid);
+            resumeIndex = -1;
+        }
+        int lookupsPerKmer = edgeMasks != null ? 1 : neighbors.length;
+        int expanded = 0;
+        while (!queue.isEmpty()) {
+            frontierPeak = Math.max(frontierPeak, queue.size());
+            if (budget != null && budget.isExceeded((long) expanded * lookupsPerKmer, memory())) {
+                stopByBudget();
+                break;
+            }
+            if (queue.size() >= parallelFrontier) {
+                expanded = queue.size();
+                expandFrontier(dir, neighbors);
+                continue;
+            }
+            expanded = 1;
+            int index = queue.added() - queue.size();
+            long kmer = queue.poll();
+            neighbors(kmer, dir, neighbors);
+            visitNeighbors(index, kmer, neighbors, solidNeighbors(kmer, dir, neighbors, false));
+        }
+    }
+
+    private long memory() {
+        return (long) (queue.added() + lastKmers.size()) * BYTES_PER_KMER;
+    }
+
+    /**
+     * Leaves k-mers in the queue unexpanded, they are the last ones, as the search could go on from them
+     */
+    private void stopByBudget() {
+        if (stopIndex < 0) {
+            stopIndex = queue.added() - queue.size();
+            stopNeighbor = 0;
+            stopLastKmers = lastKmers.keys();
+        }
+        while (!queue.isEmpty()) {
+            lastKmers.add(queue.poll());
+        }
+    }
+
+    /**
+     * Expands all k-mers in the queue, solid neighbours are found in parallel
+     */
+    private void expandFrontier(int dir, long[] neighbors) {
+        int start = queue.added() - queue.size();
+        int size = queue.size();
+        byte[] solid = new byte[size];
+        IntStream.range(0, (size + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            long[] buffer = new long[neighbors.length];
+            for (int i = chunk * CHUNK, end = Math.min(i + CHUNK, size); i < end; i++) {
+                long kmer = queue.get(start + i);
+                neighbors(kmer, dir, buffer);
+                solid[i] = (byte) solidNeighbors(kmer, dir, buffer, true);
+            }
+        });
+        for (int i = 0; i < size; i++) {
+            long kmer = queue.poll();
+            neighbors(kmer, dir, neighbors);
+            visitNeighbors(start + i, kmer, neighbors, solid[i] & 0xff);
+        }
+    }
+
+    /**
+     * @param skipVisited whether visited neighbours can be reported without lookup, they are solid anyway
+     * @return mask of solid neighbours
+     */
+    private int solidNeighbors(long kmer, int dir, long[] neighbors, boolean skipVisited) {
+        int mask = edgeMasks != null ? edgeMasks.maskOf(kmer) : 0;
+        int result = 0;
+        for (int i = 0; i < neighbors.length; i++) {
+            long neighbor = neighbors[i];
+            boolean solid = edgeMasks != null
+                    ? (mask & EdgeMasks.neighborBit(dir, i)) != 0
+                    : (skipVisited && distance.containsKey(neighbor))
+                            || table.get(KmerUtils.getKmerKey(neighbor, k)) >= threshold;
+            if (solid) {
+                result |= 1 << i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param index position of k-mer in the queue
+     */
+    private void visitNeighbors(int index, long kmer, long[] neighbors, int solid) {
+        int d = distance.get(kmer, -1);
+        for (int i = 0; i < neighbors.length; i++) {
+            if ((solid & (1 << i)) != 0) {
+                long neighbor = neighbors[i];
+                boolean visited = distance.containsKey(neighbor);
+                if (termMode.allowsAddition(visited, distance.size(), d + 1)) {
+                    queue.add(neighbor);
+                    distance.put(neighbor, d + 1);
+                } else {
+                    if (!visited && stopIndex < 0) {
+                        stopIndex = index;
+                        stopNeighbor = i;
+                        stopLastKmers = lastKmers.keys();
+                    }
+                    lastKmers.add(kmer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leaves only k-mers from which some k-mer that stopped the search is reachable in direction dir
+     */
+    public void trimPaths(int dir) {
+        LongQueue trimQueue = new LongQueue();
+        LongIntOpenMap visited = new LongIntOpenMap(lastKmers.size());
+        for (long kmer : lastKmers.keys()) {
+            trimQueue.add(kmer);
+            visited.add(kmer);
+        }
+        long[] neighbors = new long[dir == 0 ? 8 : 4];
+        while (!trimQueue.isEmpty()) {
+            neighbors(trimQueue.poll(), -dir, neighbors);
+            for (long neighbor : neighbors) {
+                if (distance.containsKey(neighbor) && visited.add(neighbor)) {
+                    trimQueue.add(neighbor);
+                }
+            }
+        }
+        retained = visited;
+    }
+
+    /**
+     * Saves the search which has been run in direction dir: the queue with distances and the place where
+     * restrictions of the termination mode stopped it, if they did
+     */
+    public void saveState(DataOutputStream out, int dir) throws IOException {
+        out.writeInt(STATE_VERSION);
+        out.writeInt(k);
+        out.writeInt(dir);
+        out.writeInt(threshold);
+        out.writeLong(termMode.limit(TerminationMode.TerminationModeType.MAX_KMERS));
+        out.writeLong(termMode.limit(TerminationMode.TerminationModeType.MAX_RADIUS));
+        int added = queue.added();
+        out.writeInt(added);
+        for (int i = 0; i < added; i++) {
+            long kmer = queue.get(i);
+            out.writeLong(kmer);
+            out.writeInt(distance.get(kmer, -1));
+        }
+        out.writeInt(stopIndex);
+        out.writeInt(stopNeighbor);
+        long[] last = stopIndex >= 0 ? stopLastKmers : lastKmers.keys();
+        out.writeInt(last.length);
+        for (long kmer : last) {
+            out.writeLong(kmer);
+        }
+    }
+
+    /**
+     * Restores the search saved by {@link #saveState}, {@link #run} continues it under new restrictions
+     *
+     * @return null if the state is saved for other parameters or restrictions of termMode are stronger
+     */
+    public static KmerBfs resume(DataInputStream in, int k, KmerCounts table, int threshold,
+                                 ExtensionIndex edgeMasks, TerminationMode termMode, int dir) throws IOException {
+        if (in.readInt() != STATE_VERSION || in.readInt() != k || in.readInt() != dir
+                || in.readInt() != threshold) {
+            return null;
+        }
+        long maxKmers = in.readLong();
+        long maxRadius = in.readLong();
+        if (termMode.limit(TerminationMode.TerminationModeType.MAX_KMERS) < maxKmers
+                || termMode.limit(TerminationMode.TerminationModeType.MAX_RADIUS) < maxRadius) {
+            return null;
+        }
+        KmerBfs bfs = new KmerBfs(k, table, threshold, edgeMasks, termMode);
+        int added = in.readInt();
+        for (int i = 0; i < added; i++) {
+            long kmer = in.readLong();
+            bfs.queue.add(kmer);
+            bfs.distance.put(kmer, in.readInt());
+        }
+        int stopIndex = in.readInt();
+        int stopNeighbor = in.readInt();
+        int lastCount = in.readInt();
+        for (int i = 0; i < lastCount; i++) {
+            bfs.lastKmers.add(in.readLong());
+        }
+        // the search goes on from the neighbour which has been rejected
+        int polled = stopIndex >= 0 ? stopIndex + 1 : added;
+        for (int i = 0; i < polled; i++) {
+            bfs.queue.poll();
+        }
+        bfs.resumeIndex = stopIndex;
+        bfs.resumeNeighbor = stopNeighbor;
+        return bfs;
+    }
+
+    private void neighbors(long kmer, int dir, long[] out) {
+        neighbors(kmer, dir, kMask, highShift, out);
+    }
+
+    /**
+     * Writes neighbours of k-mer in the order of <code>StringUtils.leftNeighbors/rightNeighbors/allNeighbors</code>
+     */
+    static void neighbors(long kmer, int dir, long kMask, int highShift, long[] out) {
+        switch (dir) {
+            case -1:
+                for (int i = 0; i < 4; i++) {
+                    out[i] = ((long) i << highShift) | (kmer >>> 2);
+                }
+                break;
+            case 1:
+                for (int i = 0; i < 4; i++) {
+                    out[i] = ((kmer << 2) & kMask) | i;
+                }
+                break;
+            default:
+                for (int i = 0; i < 4; i++) {
+                    out[2 * i] = ((long) i << highShift) | (kmer >>> 2);
+                    out[2 * i + 1] = ((kmer << 2) & kMask) | i;
+                }
+        }
+    }
+
+    /**
+     * Found k-mers as strings. Map is filled in the order of search, so it iterates in exactly the same order
+     * as map of string k-mers filled by string-based search.
+     *
+     * @return map from k-mer to its index for {@link #keyAt(int)}
+     */
+    public Map<String, Integer> foundKmers() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (int i = 0; i < queue.added(); i++) {
+            result.put(kmerToString(queue.get(i), k), i);
+        }
+        if (retained != null) {
+            result.values().removeIf(i -> !retained.containsKey(queue.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * @return table key of k-mer with given index
+     */
+    public long keyAt(int index) {
+        return KmerUtils.getKmerKey(queue.get(index), k);
+    }
+
+    public int size() {
+        return retained != null ? retained.size() : distance.size();
+    }
+
+    /**
+     * @return number of k-mers visited by the search, before trimming
+     */
+    public int visited() {
+        return queue.added();
+    }
+
+    /**
+     * @return the largest number of k-mers in the queue during the search
+     */
+    public int frontierPeak() {
+        return frontierPeak;
+    }
+}
@@ -6,6 +6,8 @@ import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.KmerUtils;
+import structures.EdgeMasks;
+import structures.ExtensionIndex;
 import utils.HashFunction;
 
 import java.io.File;
@@ -31,9 +33,9 @@ public class KmerEnvCalculator implements Runnable {
     private final String name;
 
     private final Map<String, Integer> subgraph;
+    private ExtensionIndex edgeMasks;
 
-    private int size;
-    private SingleNode[] nodes;
+    private CompactGraph nodes;
 
     public KmerEnvCalculator(String kmer, int k, String outputPrefix, HashFunction hasher, BigLong2ShortHashMap graph,
                              Logger logger, Function<String, SingleNode.Color> getNodeColor, String name) {
@@ -65,8 +67,10 @@ public class KmerEnvCalculator implements Runnable {
         while (head < queue.size()) {
             String kmer = queue.get(head++);
             String[] neighbors = allNeighbors(kmer);
-            for (String neighbor : neighbors) {
-                if (graph.get(getKmerKey(neighbor)) > 0) {
+            int mask = edgeMasks != null ? edgeMask(kmer) : 0xFF;
+            for (int i = 0; i < neighbors.length; i++) {
+                String neighbor = neighbors[i];
+                if ((mask & EdgeMasks.neighborBit(0, i)) != 0 && graph.get(getKmerKey(neighbor)) > 0) {
                     queue.add(neighbor);
                 }
             }
@@ -75,6 +79,20 @@ public class KmerEnvCalculator implements Runnable {
         }
     }
 
+    /**
+     * Edge masks let BFS skip lookups of absent neighbours, they are used only if built for threshold 1.
+     * Counts of visited k-mers are zeroed, so neighbours from the mask are still checked in the graph
+     */
+    public void setEdgeMasks(ExtensionIndex edgeMasks) {
+        if (hasher == null && edgeMasks != null && edgeMasks.k() == k && edgeMasks.threshold() == 1) {
+            this.edgeMasks = edgeMasks;
+        }
+    }
+
+    private int edgeMask(String kmer) {
+        return edgeMasks.maskOf(DnaTools.toLong(new Dna(kmer)));
+    }
+
     private long getKmerKey(String s) {
         if (hasher != null) {
             s = normalizeDna(s);
@@ -92,7 +110,7 @@ public class KmerEnvCalculator implements Runnable {
         logger.debug("Initializing structures for creating picture ...");
         initializeStructures();
         logger.debug("Merging vertices for creating picture ...");
-        doMerge();
+        nodes.compact();
         logger.debug("Outputing merged vertices ...");
         outputNodeSequences(outputPrefix, nodes, name);
         logger.debug("Drawing image ...");
@@ -103,99 +121,27 @@ public class KmerEnvCalculator implements Runnable {
     }
 
     private void initializeStructures() {
-        Map<String, List<SingleNode>> nodeByKmer = new HashMap<>();
-        this.size = subgraph.size() * 2;
-        nodes = new SingleNode[size];
-        {
-            int id = 0;
-            Iterator<Map.Entry<String, Integer>> iter = subgraph.entrySet().iterator();
-            while (iter.hasNext()) {
-                String seq = iter.next().getKey();
-                String rc = DnaTools.reverseComplement(seq);
-                SingleNode.Color color = getNodeColor.apply(seq);
-                nodes[id] = new SingleNode(seq, id, color);
-                nodes[id + 1] = new SingleNode(rc, id + 1, color);
-                nodes[id].rc = nodes[id + 1];
-                nodes[id + 1].rc = nodes[id];
-
-                id += 2;
-            }
-        }
-        logger.debug("Nodes are created");
-        for (int i = 0; i < size; i++) {
-            String key = nodes[i].sequence.substring(0, k - 1);
-            if (!nodeByKmer.containsKey(key)) {
-                nodeByKmer.put(key, new ArrayList<>());
-            }
-            nodeByKmer.get(key).add(nodes[i]);
-        }
-        logger.debug("Nodes neighbors initialized");
-        for (int i = 0; i < size; i++) {
-            String lastK = nodes[i].sequence.substring(1);
-            if (nodeByKmer.containsKey(lastK)) {
-                nodes[i].rc.neighbors.addAll(nodeByKmer.get(lastK));
-            }
-        }
-        logger.debug("Nodes neighbors added");
-    }
-
-    private void doMerge() {
-        while (true) {
-            boolean acted = false;
-            for (int i = 0; i < size; i++) {
-                if (!nodes[i].deleted && nodes[i].neighbors.size() == 1) {
-                    SingleNode other = nodes[i].neighbors.get(0);
-                    if (other.neighbors.size() != 1 || nodes[i].color != other.color) {
-                        continue;
-                    }
-                    mergeNodes(nodes[i], other);
-                    acted = true;
-                }
-            }
-            if (!acted) {
-                break;
-            }
+        nodes = new CompactGraph(k, subgraph.keySet());
+        int kmerIndex = 0;
+        for (String seq : subgraph.keySet()) {
+            nodes.setAttributes(kmerIndex++, false, getNodeColor.apply(seq));
         }
+        logger.debug("Nodes and their neighbors are created");
     }
 
-    private void mergeNodes(SingleNode firstPlus, SingleNode secondMinus) {
-        // first k-1 symbols of firstPlus coincide with complement of first k-1 symbols of secondMinus
-        SingleNode firstMinus = firstPlus.rc, secondPlus = secondMinus.rc;
-        String newSeq = mergeLabels(secondPlus.sequence, firstPlus.sequence);
-        String newSeqRC = mergeLabels(firstMinus.sequence, secondMinus.sequence);
-
-        secondPlus.sequence = newSeq;
-        firstMinus.sequence = newSeqRC;
-        secondPlus.rc = firstMinus;
-        firstMinus.rc = secondPlus;
-
-        firstPlus.deleted = secondMinus.deleted = true;
-    }
-
-    private void checkLabels(String a, String b) {
-        if (!a.substring(a.length() - (k - 1)).equals(b.substring(0, k - 1))) {
-            throw new AssertionError("Labels should be merged, but can not: " + a + " and " + b);
-        }
-    }
-
-    private String mergeLabels(String a, String b) {
-        checkLabels(a, b);
-        return a + b.substring(k - 1);
-    }
-
-    private void outputNodeSequences(String outputPrefix, SingleNode[] nodes, String name) {
+    private void outputNodeSequences(String outputPrefix, CompactGraph nodes, String name) {
         try {
             File output = new File(outputPrefix + "/" + name + "_seqs.fasta");
             output.getParentFile().mkdirs();
             PrintWriter out = new PrintWriter(output);
-            for (int i = 0; i < nodes.length; i++) {
-                if (!nodes[i].deleted && nodes[i].id < nodes[i].rc.id && nodes[i].sequence.length() >= 1) {
+            for (int i = 0; i < nodes.size(); i++) {
+                if (!nodes.isDeleted(i) && i < nodes.rc(i) && nodes.labelLength(i) >= 1) {
                     out.print("> ");
-                    out.print("Id" + (nodes[i].id + 1) + " ");
-                    out.print("Length:" + nodes[i].sequence.length() + " ");
-                    out.print("Neighbors:" + getNeighborIds(nodes[i]));
+                    out.print("Id" + (i + 1) + " ");
+                    out.print("Length:" + nodes.labelLength(i) + " ");
+                    out.print("Neighbors:" + nodes.neighborIds(i));
                     out.println();
-                    out.println(nodes[i].sequence);
+                    out.println(nodes.label(i));
                 }
             }
             out.close();
@@ -203,16 +149,4 @@ public class KmerEnvCalculator implements Runnable {
             logger.info(e.getMessage());
         }
     }
-
-    private Set<Integer> getNeighborIds(SingleNode SingleNode) {
-        Set<Integer> result = new TreeSet<>();
-        for (SingleNode neighbour : SingleNode.neighbors) {
-            result.add(Math.min(neighbour.id, neighbour.rc.id) + 1);
-        }
-        for (SingleNode neighbour : SingleNode.rc.neighbors) {
-            result.add(Math.min(neighbour.id, neighbour.rc.id) + 1);
-        }
-        result.remove(Math.min(SingleNode.id, SingleNode.rc.id) + 1);
-        return result;
-    }
 }
@@ -0,0 +1,298 @@
+package algo;
+
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.utils.KmerUtils;
+import structures.BatchLookup;
+import structures.EdgeMasks;
+import structures.ExtensionIndex;
+import structures.KmerCounts;
+import structures.LongIntOpenMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static utils.StringUtils.kmerToString;
+
+/**
+ * Searches of {@link KmerBfs} for many target sequences over one shared graph, k <= 31.<br></br>
+ * <br></br>
+ *
+ * Targets are still searched one by one, exactly as a separate <code>KmerBfs</code> would do it, including
+ * the termination mode restrictions, only table lookups are shared. Every k-mer touched by some search becomes
+ * a node of the shared graph, its solid extensions are looked up only once, when it is expanded for the first
+ * time, so overlapping targets look up their common part once. Each search has its own label, it keeps labels
+ * and distances of the k-mers it visits.<br></br>
+ * <br></br>
+ *
+ * Searches are run by the calculators when they need them, one at a time, so targets taken from the cache
+ * or finished by the previous run aren't searched, and results are released as soon as they are taken.
+ */
+public class MultiKmerBfs {
+    private static final int NO_MASK = -1;
+
+    private final int k;
+    private final long kMask;
+    private final int highShift;
+    private final KmerCounts table;
+    private final int threshold;
+    private final ExtensionIndex edgeMasks;
+    private final TerminationMode termMode;
+    private final boolean trimPaths;
+
+    private final LongIntOpenMap nodeByKmer = new LongIntOpenMap();
+    private long[] kmers = new long[16];
+    private int[] masks = new int[16];
+    private int nodes;
+
+    // per node state of the current search
+    private int[] label = new int[16];
+    private int[] distance = new int[16];
+    private int[] lastLabel = new int[16];
+    private int[] trimLabel = new int[16];
+
+    private int[] queue = new int[16];
+    private int[] last = new int[16];
+    private int lastCount;
+    private int runs;
+    private long lookups;
+
+    /**
+     * @param threshold minimal count of solid k-mer
+     * @param edgeMasks extension index, it is used only if built for the same k and threshold
+     */
+    public MultiKmerBfs(int k, KmerCounts table, int threshold, ExtensionIndex edgeMasks,
+                       TerminationMode termMode, boolean trimPaths) {
+        this.k = k;
+        this.kMask = (1L << (2 * k)) - 1;
+        this.highShift = 2 * (k - 1);
+        this.table = table;
+        this.threshold = threshold;
+        this.edgeMasks = edgeMasks != null && edgeMasks.k() == k && edgeMasks.threshold() == threshold
+                ? edgeMasks : null;
+        this.termMode = termMode;
+        this.trimPaths = trimPaths;
+    }
+
+    /**
+     * Searches environment of the target in direction dir. Found k-mers are given as strings in the same order
+     * as {@link KmerBfs#foundKmers()} gives them.
+     *
+     * @param dir -1 - backward, +1 - forward, 0 - both
+     * @return map from k-mer to its table key or null if no k-mers of the target are solid
+     */
+    public synchronized Map<String, Long> search(String sequence, int dir) {
+        long[] neighbors = new long[dir == 0 ? 8 : 4];
+        // labels start from 1, 0 means 'not visited'
+        int run = ++runs;
+        int added = search(sequence, run, dir, neighbors);
+        if (added == 0) {
+            return null;
+        }
+        if (trimPaths) {
+            trim(run, dir, neighbors);
+        }
+        // trimmed k-mers are removed only after all are added, as in KmerBfs, so that the map iterates the same way
+        Map<String, Long> kmerToKey = new HashMap<String, Long>();
+        for (int i = 0; i < added; i++) {
+            kmerToKey.put(kmerToString(kmers[queue[i]], k), KmerUtils.getKmerKey(kmers[queue[i]], k));
+        }
+        if (trimPaths) {
+            for (int i = 0; i < added; i++) {
+                if (trimLabel[queue[i]] != run) {
+                    kmerToKey.remove(kmerToString(kmers[queue[i]], k));
+                }
+            }
+        }
+        return kmerToKey;
+    }
+
+    /**
+     * @return number of nodes added to the queue
+     */
+    private int search(String sequence, int run, int dir, long[] neighbors) {
+        int added = 0;
+        int visited = 0;
+        for (int node : seeds(sequence)) {
+            added = push(added, node);
+            if (label[node] != run) {
+                label[node] = run;
+                visited++;
+            }
+            distance[node] = 0;
+        }
+
+        int lastCount = 0;
+        for (int head = 0; head < added; head++) {
+            int node = queue[head];
+            int d = distance[node];
+            KmerBfs.neighbors(kmers[node], dir, kMask, highShift, neighbors);
+            int mask = maskOf(node);
+            for (int i = 0; i < neighbors.length; i++) {
+                if ((mask & EdgeMasks.neighborBit(dir, i)) == 0) {
+                    continue;
+                }
+                int neighbor = nodeOf(neighbors[i]);
+                if (termMode.allowsAddition(label[neighbor] == run, visited, d + 1)) {
+                    added = push(added, neighbor);
+                    label[neighbor] = run;
+                    distance[neighbor] = d + 1;
+                    visited++;
+                } else if (lastLabel[node] != run) {
+                    lastLabel[node] = run;
+                    if (lastCount == last.length) {
+                        last = Arrays.copyOf(last, last.length * 2);
+                    }
+                    last[lastCount++] = node;
+                }
+            }
+        }
+        this.lastCount = lastCount;
+        return added;
+    }
+
+    /**
+     * Marks nodes from which some node that stopped the search is reachable in direction dir
+     */
+    private void trim(int run, int dir, long[] neighbors) {
+        int[] trimQueue = new int[Math.max(lastCount, 16)];
+        int tail = 0;
+        for (int i = 0; i < lastCount; i++) {
+            trimLabel[last[i]] = run;
+            trimQueue[tail++] = last[i];
+        }
+        for (int head = 0; head < tail; head++) {
+            KmerBfs.neighbors(kmers[trimQueue[head]], -dir, kMask, highShift, neighbors);
+            for (long kmer : neighbors) {
+                int neighbor = nodeByKmer.get(kmer, -1);
+                if (neighbor >= 0 && label[neighbor] == run && trimLabel[neighbor] != run) {
+                    trimLabel[neighbor] = run;
+                    if (tail == trimQueue.length) {
+                        trimQueue = Arrays.copyOf(trimQueue, trimQueue.length * 2);
+                    }
+                    trimQueue[tail++] = neighbor;
+                }
+            }
+        }
+    }
+
+    private int push(int added, int node) {
+        if (added == queue.length) {
+            queue = Arrays.copyOf(queue, queue.length * 2);
+        }
+        queue[added] = node;
+        return added + 1;
+    }
+
+    /**
+     * @return nodes of solid k-mers of the sequence, in the order of their positions
+     */
+    private int[] seeds(String sequence) {
+        int n = Math.max(sequence.length() - k + 1, 0);
+        long[] windows = new long[n];
+        long kmer = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            kmer = ((kmer << 2) | DnaTools.fromChar(sequence.charAt(i))) & kMask;
+            if (i >= k - 1) {
+                windows[i - k + 1] = kmer;
+            }
+        }
+
+        long[] keys = new long[n];
+        boolean[] known = new boolean[n];
+        int unknown = 0;
+        for (int i = 0; i < n; i++) {
+            // taken before nodes of these windows are created, so every unknown window keeps its own lookup
+            known[i] = nodeByKmer.containsKey(windows[i]);
+            if (!known[i]) {
+                keys[unknown++] = KmerUtils.getKmerKey(windows[i], k);
+            }
+        }
+        short[] occs = new short[unknown];
+        BatchLookup.getMany(table, keys, unknown, occs);
+        lookups += unknown;
+
+        int[] result = new int[n];
+        int count = 0;
+        for (int i = 0, j = 0; i < n; i++) {
+            boolean solid = known[i] || occs[j++] >= threshold;
+            if (solid) {
+                result[count++] = nodeOf(windows[i]);
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return node of solid k-mer, it is created if absent
+     */
+    private int nodeOf(long kmer) {
+        int node = nodeByKmer.get(kmer, -1);
+        if (node >= 0) {
+            return node;
+        }
+        if (nodes == kmers.length) {
+            int capacity = nodes * 2;
+            kmers = Arrays.copyOf(kmers, capacity);
+            masks = Arrays.copyOf(masks, capacity);
+            label = Arrays.copyOf(label, capacity);
+            distance = Arrays.copyOf(distance, capacity);
+            lastLabel = Arrays.copyOf(lastLabel, capacity);
+            trimLabel = Arrays.copyOf(trimLabel, capacity);
+        }
+        node = nodes++;
+        kmers[node] = kmer;
+        masks[node] = NO_MASK;
+        nodeByKmer.put(kmer, node);
+        return node;
+    }
+
+    /**
+     * @return mask of solid extensions of node in terms of {@link EdgeMasks}, looked up once for every node
+     */
+    private int maskOf(int node) {
+        if (masks[node] == NO_MASK) {
+            long kmer = kmers[node];
+            int mask;
+            if (edgeMasks != null) {
+                mask = edgeMasks.maskOf(kmer);
+            } else {
+                mask = 0;
+                for (int i = 0; i < 4; i++) {
+                    long left = ((long) i << highShift) | (kmer >>> 2);
+                    long right = ((kmer << 2) & kMask) | i;
+                    if (isSolid(left)) {
+                        mask |= 1 << i;
+                    }
+                    if (isSolid(right)) {
+                        mask |= 1 << (4 + i);
+                    }
+                }
+            }
+            masks[node] = mask;
+        }
+        return masks[node];
+    }
+
+    private boolean isSolid(long kmer) {
+        if (nodeByKmer.containsKey(kmer)) {
+            return true;
+        }
+        lookups++;
+        return table.get(KmerUtils.getKmerKey(kmer, k)) >= threshold;
+    }
+
+    /**
+     * @return number of k-mers of the shared graph
+     */
+    public synchronized int size() {
+        return nodes;
+    }
+
+    /**
+     * @return number of table lookups done by all searches
+     */
+    public synchronized long lookups() {
+        return lookups;
+    }
+}
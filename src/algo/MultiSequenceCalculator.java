@@ -4,6 +4,7 @@ import io.writers.GFAWriter;
 import io.writers.GFAWriterMulti;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.DnaTools;
+import structures.GeneKmerSet;
 
 import java.io.File;
 import java.io.IOException;
@@ -58,6 +59,7 @@ public class MultiSequenceCalculator implements Runnable {
         }
         this.size = nodeByKmer.size();
         nodes = new MultiNode[size];
+        GeneKmerSet geneKmers = new GeneKmerSet(k, Collections.singletonList(sequence));
         {
             int ptr = 0;
             for (String kmer : nodeByKmer.keySet()) {
@@ -66,7 +68,7 @@ public class MultiSequenceCalculator implements Runnable {
                     continue;
                 }
 
-                boolean isGeneNode = sequence.contains(kmer) || sequence.contains(rc);
+                boolean isGeneNode = geneKmers.contains(kmer);
                 nodes[ptr] = new MultiNode(kmer, ptr, isGeneNode);
                 nodes[ptr + 1] = new MultiNode(rc, ptr + 1, isGeneNode);
                 nodes[ptr].rc = nodes[ptr + 1];
@@ -100,21 +102,47 @@ public class MultiSequenceCalculator implements Runnable {
     }
 
     private void doMerge() {
-        while (true) {
-            boolean acted = false;
-            for (int i = 0; i < size; i++) {
-                if (!nodes[i].deleted && nodes[i].neighbors.size() == 1) {
-                    MultiNode other = nodes[i].neighbors.get(0);
-                    if (canBeMerged(nodes[i], other)) {
-                        mergeNodes(nodes[i], other);
-                        acted = true;
-                    }
-                }
+        Unitigs.compact(new Unitigs.Graph() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public int rc(int node) {
+                return nodes[node].rc.id;
             }
-            if (!acted) {
-                break;
+
+            @Override
+            public boolean isDeleted(int node) {
+                return nodes[node].deleted;
             }
-        }
+
+            @Override
+            public int degree(int node) {
+                return nodes[node].neighbors.size();
+            }
+
+            @Override
+            public int neighbor(int node, int i) {
+                return nodes[node].neighbors.get(i).id;
+            }
+
+            @Override
+            public boolean canBeMerged(int first, int second) {
+                return MultiSequenceCalculator.this.canBeMerged(nodes[first], nodes[second]);
+            }
+
+            @Override
+            public void mergePath(int[] path, int length) {
+                MultiSequenceCalculator.this.mergePath(path, length);
+            }
+
+            @Override
+            public void mergeNodes(int firstPlus, int secondMinus) {
+                MultiSequenceCalculator.this.mergeNodes(nodes[firstPlus], nodes[secondMinus]);
+            }
+        });
     }
 
     private boolean canBeMerged(MultiNode first, MultiNode second) {
@@ -136,6 +164,31 @@ public class MultiSequenceCalculator implements Runnable {
         //firstMinus.mask = secondPlus.mask = firstPlus.mask;
     }
 
+    private void mergePath(int[] path, int length) {
+        MultiNode first = nodes[path[0]], last = nodes[path[length - 1]].rc;
+        StringBuilder newSeq = new StringBuilder(first.sequence);
+        StringBuilder newSeqRC = new StringBuilder(last.sequence);
+        for (int i = 1; i < length; i++) {
+            String next = nodes[path[i]].sequence;
+            newSeq.append(next, k - 1, next.length());
+            String nextRC = nodes[path[length - 1 - i]].rc.sequence;
+            newSeqRC.append(nextRC, k - 1, nextRC.length());
+        }
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                nodes[path[i]].deleted = true;
+            }
+            if (i < length - 1) {
+                nodes[path[i]].rc.deleted = true;
+            }
+        }
+
+        first.sequence = newSeq.toString();
+        last.sequence = newSeqRC.toString();
+        first.rc = last;
+        last.rc = first;
+    }
+
     private void outputNodeSequences() {
         try {
             File outputFile = new File(outputPrefix + "/seqs.fasta");
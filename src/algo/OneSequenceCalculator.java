@@ -1,13 +1,21 @@
 package algo;
 
+import io.EnvironmentCache;
+import io.SearchStateStore;
 import io.writers.GFAWriter;
 import io.writers.TSVWriter;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.DnaQ;
 import ru.ifmo.genetics.dna.DnaTools;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.KmerUtils;
+import structures.BatchLookup;
+import structures.EdgeMasks;
+import structures.ExtensionIndex;
+import structures.GeneKmerSet;
+import structures.KmerCounts;
+import structures.PackedSequence;
+import structures.UnitigIndex;
 import utils.HashFunction;
 
 import java.io.File;
@@ -15,11 +23,20 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.function.LongConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static io.writers.GFAWriter.GENE_LABEL_SUFFIX;
 import static utils.StringUtils.*;
 
 public class OneSequenceCalculator implements Runnable {
+    /**
+     * Number of k-mers of Hi-C sequences looked up at once
+     */
+    private static final int SEED_BATCH = 1 << 16;
+
     private final String sequence;
     private final List<DnaQ> sequences;
     private final String outputPrefix;
@@ -27,7 +44,7 @@ public class OneSequenceCalculator implements Runnable {
     private final int minOccurences;
     private final int k;
     private final HashFunction hasher;
-    private final BigLong2ShortHashMap reads;
+    private final KmerCounts reads;
     private final boolean bothDirections;
     private final Logger logger;
     private final int chunkLength;
@@ -36,15 +53,27 @@ public class OneSequenceCalculator implements Runnable {
     private final boolean doMerge;
 
     private final Map<String, Integer> subgraph;
-
-    private int size;
-    private SingleNode[] nodes;
+    private ExtensionIndex edgeMasks;
+    private GeneKmerSet geneKmers;
+    private MultiKmerBfs sharedSearch;
+    private EnvironmentCache cache;
+    private SearchStateStore states;
+    private UnitigIndex unitigs;
+    private TerminationMode.Budget budget;
+    private List<String> addedKmers;
+    private LongConsumer memoryReporter;
+    private double previewFraction = 1;
+    private final SearchStats stats = new SearchStats();
+
+    private CompactGraph graph;
     private boolean fail = false;
-    private Set<SingleNode> filtered;
-    private final List<DnaQ> hicSequences;
+    private BitSet filtered;
+    private BitSet visited;
+    private final Iterable<PackedSequence> hicSequences;
+    private int hicCount = -1;
 
     public OneSequenceCalculator(String sequence, int k, int minOccurences, String outputPrefix, String workPrefix,
-                                 HashFunction hasher, BigLong2ShortHashMap reads, Logger logger, boolean bothDirections,
+                                 HashFunction hasher, KmerCounts reads, Logger logger, boolean bothDirections,
                                  int chunkLength, TerminationMode termMode, boolean trimPaths) {
         this.sequence = sequence;
         this.sequences = null;
@@ -60,13 +89,14 @@ public class OneSequenceCalculator implements Runnable {
         this.termMode = termMode;
         this.trimPaths = trimPaths;
         this.doMerge = false;
-        this.hicSequences = new ArrayList<>();
+        this.hicSequences = Collections.emptyList();
         this.subgraph = new HashMap<String, Integer>();
     }
 
     public OneSequenceCalculator(List<DnaQ> sequences, int k, int minOccurences, String outputPrefix, String workPrefix,
-                                 HashFunction hasher, BigLong2ShortHashMap reads, Logger logger, boolean bothDirections,
-                                 int chunkLength, TerminationMode termMode, boolean trimPaths, List<DnaQ> hicSequences) {
+                                 HashFunction hasher, KmerCounts reads, Logger logger, boolean bothDirections,
+                                 int chunkLength, TerminationMode termMode, boolean trimPaths,
+                                 Iterable<PackedSequence> hicSequences) {
         this.sequence = null;
         this.sequences = sequences;
         this.k = k;
@@ -81,11 +111,120 @@ public class OneSequenceCalculator implements Runnable {
         this.termMode = termMode;
         this.trimPaths = trimPaths;
         this.doMerge = true;
-        this.hicSequences = hicSequences != null ? hicSequences : new ArrayList<>();
+        this.hicSequences = hicSequences != null ? hicSequences : Collections.<PackedSequence>emptyList();
 
         this.subgraph = new HashMap<String, Integer>();
     }
 
+    /**
+     * Edge masks let BFS skip lookups of absent neighbours, they are used only if built for the same threshold
+     */
+    public void setEdgeMasks(ExtensionIndex edgeMasks) {
+        if (hasher == null && edgeMasks != null && edgeMasks.k() == k && edgeMasks.threshold() == minOccurences) {
+            this.edgeMasks = edgeMasks;
+        }
+    }
+
+    /**
+     * Sets k-mers of target sequences which mark gene nodes, by default they are collected by the calculator itself
+     */
+    public void setGeneKmers(GeneKmerSet geneKmers) {
+        this.geneKmers = geneKmers;
+    }
+
+    /**
+     * Searches the environment of the sequence in the graph shared by many sequences instead of running own search
+     */
+    public void setSharedSearch(MultiKmerBfs sharedSearch) {
+        this.sharedSearch = sharedSearch;
+    }
+
+    /**
+     * Environment is taken from the cache if it has been found before and stored there otherwise
+     */
+    public void setCache(EnvironmentCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Searches are continued from the states saved by previous runs if possible, new states are saved
+     */
+    public void setSearchStates(SearchStateStore states) {
+        this.states = states;
+    }
+
+    /**
+     * @param unitigs index of the same k-mers as the table, environment is searched over its unitigs
+     */
+    public void setUnitigIndex(UnitigIndex unitigs) {
+        if (hasher == null && unitigs != null && unitigs.k() == k && unitigs.threshold() == minOccurences) {
+            this.unitigs = unitigs;
+        }
+    }
+
+    /**
+     * @param fraction fraction of reads the table is counted from, GFA of the environment is marked as approximate
+     */
+    public void setPreviewFraction(double fraction) {
+        this.previewFraction = fraction;
+    }
+
+    /**
+     * @param memoryReporter receives peak memory of the search and the environment in bytes once it is found
+     */
+    public void setMemoryReporter(LongConsumer memoryReporter) {
+        this.memoryReporter = memoryReporter;
+    }
+
+    /**
+     * Expected cost of the search: total coverage of solid k-mers of the target sequences
+     */
+    public long estimateCost() {
+        long cost = 0;
+        for (String s : targetSequences()) {
+            int n = Math.max(s.length() - k + 1, 0);
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = getKmerKey(s.substring(i, i + k));
+            }
+            short[] occs = new short[n];
+            BatchLookup.getMany(reads, keys, n, occs);
+            for (int i = 0; i < n; i++) {
+                if (occs[i] >= minOccurences) {
+                    cost += occs[i];
+                }
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Upper estimate of memory needed by the search and the graph, in bytes. Every pass visits at most max k-mers,
+     * without this restriction the environment is guessed from the targets and the radius.
+     */
+    public long estimateMemory() {
+        long windows = 0;
+        for (String s : targetSequences()) {
+            windows += Math.max(s.length() - k + 1, 0);
+        }
+        long radius = termMode.limit(TerminationMode.TerminationModeType.MAX_RADIUS);
+        long kmers = Math.min(termMode.limit(TerminationMode.TerminationModeType.MAX_KMERS),
+                windows + 8 * Math.min(radius, Integer.MAX_VALUE));
+        int passes = bothDirections ? 1 : 2;
+        return passes * kmers * bytesPerKmer();
+    }
+
+    /**
+     * Approximate size of k-mer in the search structures, the environment map and the graph
+     */
+    private int bytesPerKmer() {
+        return 256 + 2 * k;
+    }
+
+    private int edgeMask(String kmer) {
+        return edgeMasks.maskOf(DnaTools.toLong(new Dna(kmer)));
+    }
+
     private long getKmerKey(String s) {
         if (hasher != null) {
             s = normalizeDna(s);
@@ -97,20 +236,104 @@ public class OneSequenceCalculator implements Runnable {
 
     @Override
     public void run() {
+        if (findEnvironment()) {
+            long start = System.nanoTime();
+            //printGene();
+            printEnvironment();
+            createPicture();
+            stats.lap(SearchStats.Phase.WRITING, start);
+        }
+        File output = new File(outputPrefix + "/stats.json");
+        try {
+            stats.writeJson(output);
+        } catch (FileNotFoundException e) {
+            logger.info("Could not write statistics to " + output.getPath());
+        }
+    }
+
+    /**
+     * @return statistics of the search, they are complete after {@link #run} or {@link #findEnvironment}
+     */
+    public SearchStats stats() {
+        return stats;
+    }
+
+    /**
+     * Finds the environment and builds its compacted graph in memory, nothing is written except the cache
+     *
+     * @return false if no k-mers of the target sequences are found
+     */
+    public boolean findEnvironment() {
         if (!doMerge) {
             logger.info("Finding environment for sequence " + shortenLabel(sequence, k));
         } else {
             logger.info("Finding single environment for " + sequences.size() + " sequences");
         }
-        buildEnvironment();
+        String cacheKey = cache != null ? cache.key(cacheTargets(), searchParameters()) : null;
+        if (cacheKey != null && cache.load(cacheKey, k, subgraph)) {
+            logger.info("Environment of " + subgraph.size() + " k-mers is taken from cache");
+            stats.setStatus(SearchStats.Status.CACHED);
+        } else {
+            addedKmers = cacheKey != null ? new ArrayList<String>() : null;
+            buildEnvironment();
+            stats.setTruncation(budget.exceeded());
+            stats.setLookups(budget.lookups());
+            stats.updatePeakMemory(budget.peakMemory());
+            if (budget.exceeded() != null) {
+                logger.warn("Search is stopped by " + budget.exceeded() + " restriction, environment is truncated");
+            }
+            // truncated environments depend on time and aren't reused
+            if (cacheKey != null && !fail && budget.exceeded() == null) {
+                cache.store(cacheKey, k, addedKmers, subgraph);
+            }
+            addedKmers = null;
+        }
+        // search structures are freed by now, but the scheduler learns how much the search really took
+        long memory = (long) subgraph.size() * bytesPerKmer();
+        if (budget != null) {
+            memory = Math.max(memory, budget.peakMemory());
+        }
+        if (memoryReporter != null) {
+            memoryReporter.accept(memory);
+        }
+        stats.updatePeakMemory(memory);
         if (fail) {
             logger.info("Could not find any k-mers of the target gene in the input, halting.");
-            return;
+            stats.setStatus(SearchStats.Status.NOT_FOUND);
+            return false;
         }
+        long start = System.nanoTime();
         extendEnvironment();
-        //printGene();
-        printEnvironment();
-        createPicture();
+        start = stats.lap(SearchStats.Phase.EXTENSION, start);
+        // walks of the extension are charged to the same budget
+        stats.setTruncation(budget.exceeded());
+        stats.setLookups(budget.lookups());
+        initializeStructures();
+        graph.compact();
+        stats.lap(SearchStats.Phase.COMPACTION, start);
+        stats.setKmers(subgraph.size());
+        return true;
+    }
+
+    /**
+     * @return k-mers of the environment found by {@link #findEnvironment} with their counts
+     */
+    public Map<String, Integer> environment() {
+        return Collections.unmodifiableMap(subgraph);
+    }
+
+    /**
+     * @return compacted graph of the environment found by {@link #findEnvironment}
+     */
+    public CompactGraph graph() {
+        return graph;
+    }
+
+    /**
+     * @return restriction which stopped the search or null if the environment is complete
+     */
+    public TerminationMode.TerminationModeType truncation() {
+        return budget != null ? budget.exceeded() : null;
     }
 
     private void printGene() {
@@ -134,9 +357,62 @@ public class OneSequenceCalculator implements Runnable {
         }
     }
 
+    /**
+     * @return target sequences followed by Hi-C ones, which are read again on every iteration
+     */
+    private Iterable<String> cacheTargets() {
+        return () -> Stream.concat(targetSequences().stream(),
+                StreamSupport.stream(hicSequences.spliterator(), false).map(PackedSequence::toString)).iterator();
+    }
+
+    private int hicCount() {
+        if (hicCount < 0) {
+            int count = 0;
+            for (Iterator<PackedSequence> it = hicSequences.iterator(); it.hasNext(); it.next()) {
+                count++;
+            }
+            hicCount = count;
+        }
+        return hicCount;
+    }
+
+    /**
+     * Hands k-mers of Hi-C sequences to the search in batches as the sequences are read, they aren't kept
+     * in memory. The search shouldn't keep the arrays.
+     */
+    private void addHicSeeds(ObjIntConsumer<long[]> search) {
+        long[] batch = new long[SEED_BATCH];
+        int n = 0;
+        for (PackedSequence s : hicSequences) {
+            long[] kmers = s.kmers(k);
+            if (n + kmers.length > batch.length) {
+                search.accept(batch, n);
+                n = 0;
+            }
+            if (kmers.length > batch.length) {
+                search.accept(kmers, kmers.length);
+            } else {
+                System.arraycopy(kmers, 0, batch, n, kmers.length);
+                n += kmers.length;
+            }
+        }
+        if (n > 0) {
+            search.accept(batch, n);
+        }
+    }
+
+    private String searchParameters() {
+        return "k=" + k + ";minOccurences=" + minOccurences + ";bothDirections=" + bothDirections
+                + ";trimPaths=" + trimPaths + ";termMode=" + termMode + ";merge=" + doMerge
+                + ";hic=" + hicCount();
+    }
+
     private void buildEnvironment() {
+        budget = termMode.startBudget();
         if (bothDirections) {
             runBfs(0);
+        } else if (hasher == null && sharedSearch == null && states == null && unitigs == null) {
+            runBidirectionalBfs();
         } else {
             runBfs(-1);
             runBfs(1);
@@ -144,64 +420,88 @@ public class OneSequenceCalculator implements Runnable {
     }
 
     private void addToSubgraph(String kmer) {
-        subgraph.put(normalizeDna(kmer), (int) reads.get(getKmerKey(kmer)));
+        putToSubgraph(normalizeDna(kmer), (int) reads.get(getKmerKey(kmer)));
+    }
+
+    /**
+     * Order of new k-mers is recorded for the cache, the same order of insertions gives exactly the same map
+     */
+    private void putToSubgraph(String kmer, int count) {
+        if (subgraph.put(kmer, count) == null && addedKmers != null) {
+            addedKmers.add(kmer);
+        }
     }
 
     boolean isContainedInSubgraph(String kmer) {
         return subgraph.containsKey(normalizeDna(kmer));
     }
 
+    private void addSeeds(String sequence, List<String> queue, Map<String, Integer> distanceToKmer) {
+        int n = Math.max(sequence.length() - k + 1, 0);
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = getKmerKey(sequence.substring(i, i + k));
+        }
+        short[] occs = new short[n];
+        BatchLookup.getMany(reads, keys, n, occs);
+        for (int i = 0; i < n; i++) {
+            if (occs[i] >= minOccurences) {
+                String kmer = sequence.substring(i, i + k);
+                queue.add(kmer);
+                distanceToKmer.put(kmer, 0);
+            }
+        }
+    }
+
     private void runBfs(int dir) { // -1 - backward, +1 - forward, 0 - both
+        if (unitigs != null) {
+            runUnitigBfs(dir);
+            return;
+        }
+        if (hasher == null) {
+            runKmerBfs(dir);
+            return;
+        }
         List<String> queue = new ArrayList<String>();
         Map<String, Integer> distanceToKmer = new HashMap<String, Integer>();
         Set<String> lastKmers = new HashSet<String>();
 
+        long start = System.nanoTime();
         if (!doMerge) {
-            for (int i = 0; i + k <= sequence.length(); i++) {
-                String kmer = sequence.substring(i, i + k);
-                int occs = reads.get(getKmerKey(kmer));
-                if (occs >= minOccurences) {
-                    queue.add(kmer);
-                    distanceToKmer.put(kmer, 0);
-                }
-            }
+            addSeeds(sequence, queue, distanceToKmer);
         } else {
             for (DnaQ s : sequences) {
-                String sequence = s.toString();
-                for (int i = 0; i + k <= sequence.length(); i++) {
-                    String kmer = sequence.substring(i, i + k);
-                    int occs = reads.get(getKmerKey(kmer));
-                    if (occs >= minOccurences) {
-                        queue.add(kmer);
-                        distanceToKmer.put(kmer, 0);
-                    }
-                }
+                addSeeds(s.toString(), queue, distanceToKmer);
             }
-
-            for (DnaQ s : hicSequences) {
-                String sequence = s.toString();
-                for (int i = 0; i + k <= sequence.length(); i++) {
-                    String kmer = sequence.substring(i, i + k);
-                    int occs = reads.get(getKmerKey(kmer));
-                    if (occs >= minOccurences) {
-                        queue.add(kmer);
-                        distanceToKmer.put(kmer, 0);
-                    }
-                }
+            for (PackedSequence s : hicSequences) {
+                addSeeds(s.toString(), queue, distanceToKmer);
             }
         }
+        start = stats.lap(SearchStats.Phase.SEEDING, start);
         if (queue.size() == 0) {
             fail = true;
             return;
         }
         int head = 0;
+        int lookupsPerKmer = edgeMasks != null ? 1 : (dir == 0 ? 8 : 4);
+        long bytesPerKmer = 120 + 2 * k;
         while (head < queue.size()) {
+            stats.updateFrontierPeak(queue.size() - head);
+            if (budget.isExceeded(head > 0 ? lookupsPerKmer : 0, distanceToKmer.size() * bytesPerKmer)) {
+                // k-mers left in the queue are the last ones, as the search could go on from them
+                lastKmers.addAll(queue.subList(head, queue.size()));
+                break;
+            }
             String kmer = queue.get(head++);
             int distance = distanceToKmer.get(kmer);
             String[] neighbors = getNeighborsByDir(dir, kmer);
-            for (String neighbor : neighbors) {
-                int occs = reads.get(getKmerKey(neighbor));
-                if (occs >= minOccurences) {
+            int mask = edgeMasks != null ? edgeMask(kmer) : 0;
+            for (int i = 0; i < neighbors.length; i++) {
+                String neighbor = neighbors[i];
+                boolean solid = edgeMasks != null
+                        ? (mask & EdgeMasks.neighborBit(dir, i)) != 0
+                        : reads.get(getKmerKey(neighbor)) >= minOccurences;
+                if (solid) {
                     if (termMode.allowsAddition(distanceToKmer, neighbor, distance + 1)) {
                         queue.add(neighbor);
                         distanceToKmer.put(neighbor, distance + 1);
@@ -211,12 +511,146 @@ public class OneSequenceCalculator implements Runnable {
                 }
             }
         }
+        stats.addVisited(distanceToKmer.size());
+        start = stats.lap(SearchStats.Phase.BFS, start);
         if (trimPaths) {
             runTrimPaths(lastKmers, distanceToKmer, dir);
+            start = stats.lap(SearchStats.Phase.TRIM, start);
         }
         for (String kmer : distanceToKmer.keySet()) {
             addToSubgraph(kmer);
         }
+        stats.lap(SearchStats.Phase.BFS, start);
+    }
+
+    /**
+     * Same search on k-mers in 2-bit encoding, k-mers are converted to strings only for the result
+     */
+    private void runKmerBfs(int dir) {
+        if (sharedSearch != null) {
+            runSharedSearch(dir);
+            return;
+        }
+        long start = System.nanoTime();
+        String stateKey = states != null
+                ? states.key(cacheTargets(), "k=" + k + ";minOccurences=" + minOccurences + ";dir=" + dir
+                        + ";merge=" + doMerge + ";hic=" + hicCount())
+                : null;
+        KmerBfs bfs = stateKey != null
+                ? states.load(stateKey, k, reads, minOccurences, edgeMasks, termMode, dir)
+                : null;
+        if (bfs != null) {
+            logger.info("Growing environment from saved search state");
+        } else {
+            bfs = new KmerBfs(k, reads, minOccurences, edgeMasks, termMode);
+            if (!doMerge) {
+                bfs.addSeeds(sequence);
+            } else {
+                for (DnaQ s : sequences) {
+                    bfs.addSeeds(s.toString());
+                }
+                addHicSeeds(bfs::addSeeds);
+            }
+        }
+        start = stats.lap(SearchStats.Phase.SEEDING, start);
+        if (!bfs.hasSeeds()) {
+            fail = true;
+            return;
+        }
+        bfs.setBudget(budget);
+        bfs.run(dir);
+        if (stateKey != null) {
+            states.save(stateKey, bfs, dir);
+        }
+        stats.addVisited(bfs.visited());
+        stats.updateFrontierPeak(bfs.frontierPeak());
+        start = stats.lap(SearchStats.Phase.BFS, start);
+        if (trimPaths) {
+            bfs.trimPaths(dir);
+            start = stats.lap(SearchStats.Phase.TRIM, start);
+        }
+        for (Map.Entry<String, Integer> entry : bfs.foundKmers().entrySet()) {
+            putToSubgraph(normalizeDna(entry.getKey()), (int) reads.get(bfs.keyAt(entry.getValue())));
+        }
+        stats.lap(SearchStats.Phase.BFS, start);
+    }
+
+    private void runUnitigBfs(int dir) {
+        long start = System.nanoTime();
+        UnitigBfs bfs = new UnitigBfs(unitigs, termMode);
+        if (!doMerge) {
+            bfs.addSeeds(sequence);
+        } else {
+            for (DnaQ s : sequences) {
+                bfs.addSeeds(s.toString());
+            }
+            addHicSeeds(bfs::addSeeds);
+        }
+        if (!bfs.hasSeeds()) {
+            fail = true;
+            return;
+        }
+        start = stats.lap(SearchStats.Phase.SEEDING, start);
+        bfs.setBudget(budget);
+        int[] visited = bfs.run(dir);
+        stats.addVisited(visited.length);
+        stats.updateFrontierPeak(bfs.frontierPeak());
+        for (int index : visited) {
+            putToSubgraph(normalizeDna(unitigs.kmerString(index)), unitigs.countAt(index));
+        }
+        stats.lap(SearchStats.Phase.BFS, start);
+    }
+
+    /**
+     * Backward and forward searches of {@link #runKmerBfs} as one traversal, k-mers are added in the same order
+     */
+    private void runBidirectionalBfs() {
+        long start = System.nanoTime();
+        BidirectionalKmerBfs bfs = new BidirectionalKmerBfs(k, reads, minOccurences, edgeMasks, termMode);
+        if (!doMerge) {
+            bfs.addSeeds(sequence);
+        } else {
+            for (DnaQ s : sequences) {
+                bfs.addSeeds(s.toString());
+            }
+            addHicSeeds(bfs::addSeeds);
+        }
+        if (!bfs.hasSeeds()) {
+            fail = true;
+            return;
+        }
+        start = stats.lap(SearchStats.Phase.SEEDING, start);
+        bfs.setBudget(budget);
+        bfs.run();
+        stats.addVisited(bfs.visited());
+        stats.updateFrontierPeak(bfs.frontierPeak());
+        start = stats.lap(SearchStats.Phase.BFS, start);
+        if (trimPaths) {
+            bfs.trimPaths();
+            start = stats.lap(SearchStats.Phase.TRIM, start);
+        }
+        for (int dir = -1; dir <= 1; dir += 2) {
+            for (Map.Entry<String, Integer> entry : bfs.foundKmers(dir).entrySet()) {
+                // k-mers found by both searches are counted once, putting them again wouldn't change the map
+                String kmer = normalizeDna(entry.getKey());
+                if (!subgraph.containsKey(kmer)) {
+                    putToSubgraph(kmer, (int) reads.get(bfs.keyOf(entry.getValue())));
+                }
+            }
+        }
+        stats.lap(SearchStats.Phase.BFS, start);
+    }
+
+    private void runSharedSearch(int dir) {
+        stats.setStatus(SearchStats.Status.SHARED);
+        Map<String, Long> found = sharedSearch.search(sequence, dir);
+        if (found == null) {
+            fail = true;
+            return;
+        }
+        for (Map.Entry<String, Long> entry : found.entrySet()) {
+            putToSubgraph(normalizeDna(entry.getKey()), (int) reads.get(entry.getValue()));
+        }
     }
 
     private String[] getNeighborsByDir(int dir, String kmer) {
@@ -263,30 +697,14 @@ public class OneSequenceCalculator implements Runnable {
 
 
     private void extendEnvironment() {
-        Iterator<Map.Entry<String, Integer>> iter = subgraph.entrySet().iterator();
-        Set<String> additions = new HashSet<String>();
-        while (iter.hasNext()) {
-            String kmer = iter.next().getKey();
-            while (true) {
-                String[] neighbors = allNeighbors(kmer);
-                String cont = null;
-                for (String neighbor : neighbors) {
-                    if (!isContainedInSubgraph(neighbor) && reads.get(getKmerKey(neighbor)) >= minOccurences) {
-                        if (cont == null) {
-                            cont = kmer;
-                        } else {
-                            cont = "";
-                        }
-                    }
-                }
-                if (cont != null && !cont.equals("") && !additions.contains(cont)) {
-                    additions.add(cont);
-                    kmer = cont;
-                } else {
-                    break;
-                }
-            }
+        if (budget == null) {
+            // environment is taken from cache, only the extension is charged
+            budget = termMode.startBudget();
         }
+        List<String> additions = hasher == null
+                ? EnvironmentExtension.extend(subgraph.keySet(), k, reads, minOccurences, edgeMasks, termMode, budget)
+                : EnvironmentExtension.extend(subgraph.keySet(),
+                        kmer -> reads.get(getKmerKey(kmer)) >= minOccurences, termMode, budget);
 
         logger.info("Extending endings by " + additions.size() + " kmers");
         for (String kmer : additions) {
@@ -309,61 +727,54 @@ public class OneSequenceCalculator implements Runnable {
         }
     }
 
-    private void mergeNodes(SingleNode firstPlus, SingleNode secondMinus) {
-        // first k-1 symbols of firstPlus coincide with complement of first k-1 symbols of secondMinus
-        SingleNode firstMinus = firstPlus.rc, secondPlus = secondMinus.rc;
-        String newSeq = mergeLabels(secondPlus.sequence, firstPlus.sequence);
-        String newSeqRC = mergeLabels(firstMinus.sequence, secondMinus.sequence);
-
-        secondPlus.sequence = newSeq;
-        firstMinus.sequence = newSeqRC;
-        secondPlus.rc = firstMinus;
-        firstMinus.rc = secondPlus;
-
-        firstPlus.deleted = secondMinus.deleted = true;
-    }
-
     private void createPicture() {
-        initializeStructures();
-        doMerge();
-        outputNodeSequences(outputPrefix, nodes);
+        outputNodeSequences(outputPrefix, null);
 
         {
-            GFAWriter writer = new GFAWriter(k, outputPrefix, nodes, subgraph);
+            GFAWriter writer = new GFAWriter(k, outputPrefix, graph, subgraph);
+            if (budget != null && budget.exceeded() != null) {
+                writer.setTruncation(budget.exceeded().toString());
+            }
+            writer.setPreviewFraction(previewFraction);
             writer.print();
         }
         {
-            TSVWriter writer = new TSVWriter(k, outputPrefix, nodes, subgraph);
+            TSVWriter writer = new TSVWriter(k, outputPrefix, graph, subgraph);
             writer.print();
         }
     }
 
-    public void createFilteredPicture(SingleNode[] nodes) {
+    /**
+     * @param nodes ids of nodes returned by {@link #filter()}
+     */
+    public void createFilteredPicture(int[] nodes) {
         outputNodeSequences(outputPrefix + "/filtered", nodes);
 
         {
-            GFAWriter writer = new GFAWriter(k, outputPrefix + "/filtered", nodes, subgraph);
+            GFAWriter writer = new GFAWriter(k, outputPrefix + "/filtered", graph, nodes, subgraph, "graph");
             writer.print();
         }
         {
-            TSVWriter writer = new TSVWriter(k, outputPrefix + "/filtered", nodes, subgraph);
+            TSVWriter writer = new TSVWriter(k, outputPrefix + "/filtered", graph, nodes, subgraph);
             writer.print();
         }
     }
 
-    private void outputNodeSequences(String outputPrefix, SingleNode[] nodes) {
+    private void outputNodeSequences(String outputPrefix, int[] nodes) {
         try {
             File output = new File(outputPrefix + "/seqs.fasta");
             output.getParentFile().mkdirs();
             PrintWriter out = new PrintWriter(output);
-            for (int i = 0; i < nodes.length; i++) {
-                if (!nodes[i].deleted && nodes[i].id < nodes[i].rc.id && nodes[i].sequence.length() >= chunkLength) {
+            int count = nodes != null ? nodes.length : graph.size();
+            for (int i = 0; i < count; i++) {
+                int v = nodes != null ? nodes[i] : i;
+                if (!graph.isDeleted(v) && v < graph.rc(v) && graph.labelLength(v) >= chunkLength) {
                     out.print("> ");
-                    out.print("Id" + getNodeId(nodes[i]) + " ");
-                    out.print("Length:" + nodes[i].sequence.length() + " ");
-                    out.print("Neighbors:" + getNeighborIds(nodes[i]));
+                    out.print("Id" + getNodeId(v) + " ");
+                    out.print("Length:" + graph.labelLength(v) + " ");
+                    out.print("Neighbors:" + graph.neighborIds(v));
                     out.println();
-                    out.println(nodes[i].sequence);
+                    out.println(graph.label(v));
                 }
             }
             out.close();
@@ -372,121 +783,63 @@ public class OneSequenceCalculator implements Runnable {
         }
     }
 
-    private Set<Integer> getNeighborIds(SingleNode node) {
-        Set<Integer> result = new TreeSet<Integer>();
-        for (SingleNode neighbor : node.neighbors) {
-            result.add(Math.min(neighbor.id, neighbor.rc.id) + 1);
-        }
-        for (SingleNode neighbor : node.rc.neighbors) {
-            result.add(Math.min(neighbor.id, neighbor.rc.id) + 1);
-        }
-        result.remove(Math.min(node.id, node.rc.id) + 1);
-        return result;
-    }
-
     private void initializeStructures() {
-        Map<String, List<SingleNode>> nodeByKmer = new HashMap<String, List<SingleNode>>();
-        this.size = subgraph.size() * 2;
-        nodes = new SingleNode[size];
-        {
-            int id = 0;
-            Iterator<Map.Entry<String, Integer>> iter = subgraph.entrySet().iterator();
-            while (iter.hasNext()) {
-                String seq = iter.next().getKey();
-                String rc = DnaTools.reverseComplement(seq);
-                boolean isGeneNode = isGeneNode(seq, rc);
-                nodes[id] = new SingleNode(seq, id, isGeneNode ? SingleNode.Color.GREEN : null, isGeneNode);
-                nodes[id + 1] = new SingleNode(rc, id + 1, isGeneNode ? SingleNode.Color.GREEN : null, isGeneNode);
-                nodes[id].rc = nodes[id + 1];
-                nodes[id + 1].rc = nodes[id];
-
-                id += 2;
-            }
+        if (geneKmers == null || geneKmers.k() != k) {
+            geneKmers = new GeneKmerSet(k, targetSequences());
         }
-        for (int i = 0; i < size; i++) {
-            String key = nodes[i].sequence.substring(0, k - 1);
-            if (!nodeByKmer.containsKey(key)) {
-                nodeByKmer.put(key, new ArrayList<SingleNode>());
-            }
-            nodeByKmer.get(key).add(nodes[i]);
-        }
-        for (int i = 0; i < size; i++) {
-            String lastK = nodes[i].sequence.substring(1);
-            if (nodeByKmer.containsKey(lastK)) {
-                nodes[i].rc.neighbors.addAll(nodeByKmer.get(lastK));
-            }
+        graph = new CompactGraph(k, subgraph.keySet());
+        int kmerIndex = 0;
+        for (String seq : subgraph.keySet()) {
+            boolean isGeneNode = geneKmers.contains(seq);
+            graph.setAttributes(kmerIndex++, isGeneNode, isGeneNode ? SingleNode.Color.GREEN : null);
         }
     }
 
-    private boolean isGeneNode(String seq, String rc) {
+    private List<String> targetSequences() {
         if (!doMerge) {
-            return sequence.contains(seq) || sequence.contains(rc);
-        } else {
-            for (DnaQ s : sequences) {
-                if (s.toString().contains(seq) || s.toString().contains(rc)) {
-                    return true;
-                }
-            }
-            return false;
-        }
-    }
-
-    private void doMerge() {
-        while (true) {
-            boolean acted = false;
-            for (int i = 0; i < size; i++) {
-                if (!nodes[i].deleted && nodes[i].neighbors.size() == 1) {
-                    SingleNode other = nodes[i].neighbors.get(0);
-                    if (other.neighbors.size() != 1 || (nodes[i].isGeneNode != other.isGeneNode)) {
-                        continue;
-                    }
-                    mergeNodes(nodes[i], other);
-                    acted = true;
-                }
-            }
-            if (!acted) {
-                break;
-            }
+            return Collections.singletonList(sequence);
         }
-    }
-
-    private void checkLabels(String a, String b) {
-        if (!a.substring(a.length() - (k - 1)).equals(b.substring(0, k - 1))) {
-            throw new AssertionError("Labels should be merged, but can not: " + a + " and " + b);
+        List<String> result = new ArrayList<String>(sequences.size());
+        for (DnaQ s : sequences) {
+            result.add(s.toString());
         }
+        return result;
     }
 
-    private String mergeLabels(String a, String b) {
-        checkLabels(a, b);
-        return a + b.substring(k - 1);
-    }
-
-    private String getNodeId(SingleNode a) {
-        return (Math.min(a.rc.id, a.id) + 1) + (a.isGeneNode ? GENE_LABEL_SUFFIX : "");
+    private String getNodeId(int node) {
+        return (Math.min(graph.rc(node), node) + 1) + (graph.isGene(node) ? GENE_LABEL_SUFFIX : "");
     }
 
-    public SingleNode[] filter() {
+    /**
+     * @return ids of nodes connected to gene nodes after removing edges not confirmed by reads
+     */
+    public int[] filter() {
         int cnt = 0;
-        List<SingleNode> starts = new ArrayList<SingleNode>();
+        int size = graph.size();
+        BitSet changed = new BitSet(size);
+        List<Integer> starts = new ArrayList<Integer>();
         for (int i = 0; i < size; i++) {
-            if (!nodes[i].deleted && (nodes[i].neighbors.size() > 1 || (nodes[i].neighbors.size() == 1 && nodes[i].changed))) {
+            int degree = graph.degree(i);
+            if (!graph.isDeleted(i) && (degree > 1 || (degree == 1 && changed.get(i)))) {
                 try {
                     File output = new File(workPrefix + "db/" + cnt + ".fasta");
                     output.getParentFile().mkdirs();
                     PrintWriter out = new PrintWriter(output);
-                    int[] lengths = new int[nodes[i].neighbors.size()];
-                    for (int j = 0; j < nodes[i].neighbors.size(); j++) {
-                        out.println(">" + j + " " + getNodeId(nodes[i]) + "->" + getNodeId(nodes[i].neighbors.get(j)));
-                        String other = nodes[i].neighbors.get(j).rc.sequence;
+                    String sequence = graph.label(i);
+                    int[] lengths = new int[degree];
+                    for (int j = 0; j < degree; j++) {
+                        int neighbor = graph.neighbor(i, j);
+                        out.println(">" + j + " " + getNodeId(i) + "->" + getNodeId(neighbor));
+                        String other = graph.label(graph.rc(neighbor));
                         int len1 = Math.min(other.length(), 100);
-                        int len2 = Math.min(nodes[i].sequence.length(), 100);
+                        int len2 = Math.min(sequence.length(), 100);
                         lengths[j] = len1 + len2 - (k - 1);
-                        out.println(other.substring(other.length() - len1) + nodes[i].sequence.substring(k - 1, len2));
+                        out.println(other.substring(other.length() - len1) + sequence.substring(k - 1, len2));
                     }
                     out.close();
                     new Filter(workPrefix + "db", cnt, logger, 8).run();
                     Scanner filtered = new Scanner(new File(workPrefix + "db/" + cnt + ".out"));
-                    int[] res = new int[nodes[i].neighbors.size()];
+                    int[] res = new int[degree];
                     while (filtered.hasNextLine()) {
                         int query, len;
                         double pident;
@@ -498,15 +851,17 @@ public class OneSequenceCalculator implements Runnable {
                         }
                         filtered.nextLine();
                     }
-                    int sz = nodes[i].neighbors.size();
-                    List<SingleNode> neighbs = new ArrayList<SingleNode>(nodes[i].neighbors);
-                    for (int j = 0; j < sz; j++) {
-                        if (res[j] < minOccurences && !neighbs.get(j).isGeneNode) {
-                            SingleNode tmp = neighbs.get(j);
-                            nodes[i].neighbors.remove(tmp);
-                            tmp.neighbors.remove(nodes[i]);
-                            nodes[i].changed = true;
-                            tmp.changed = true;
+                    int[] neighbs = new int[degree];
+                    for (int j = 0; j < degree; j++) {
+                        neighbs[j] = graph.neighbor(i, j);
+                    }
+                    for (int j = 0; j < degree; j++) {
+                        if (res[j] < minOccurences && !graph.isGene(neighbs[j])) {
+                            int tmp = neighbs[j];
+                            graph.removeNeighbor(i, tmp);
+                            graph.removeNeighbor(tmp, i);
+                            changed.set(i);
+                            changed.set(tmp);
                         }
                     }
                     cnt++;
@@ -514,31 +869,33 @@ public class OneSequenceCalculator implements Runnable {
                     logger.info(e.getMessage());
                 }
             }
-            if (!nodes[i].deleted && nodes[i].isGeneNode) {
-                starts.add(nodes[i]);
+            if (!graph.isDeleted(i) && graph.isGene(i)) {
+                starts.add(i);
             }
         }
-        filtered = new HashSet<SingleNode>();
+        filtered = new BitSet(size);
+        visited = new BitSet(size);
 
-        for (SingleNode node : starts) {
-            if (!node.visited && !node.deleted) {
-                filtered.add(node);
-                filtered.add(node.rc);
+        for (int node : starts) {
+            if (!visited.get(node) && !graph.isDeleted(node)) {
+                filtered.set(node);
+                filtered.set(graph.rc(node));
                 walk(node);
-                walk(node.rc);
+                walk(graph.rc(node));
             }
         }
-        return filtered.toArray(new SingleNode[filtered.size()]);
+        return filtered.stream().toArray();
     }
 
-    private void walk(SingleNode node){
-        node.visited = true;
-        for (SingleNode n : node.neighbors) {
-            if (!n.visited && !n.deleted) {
-                filtered.add(n);
-                filtered.add(n.rc);
+    private void walk(int node){
+        visited.set(node);
+        for (int j = 0; j < graph.degree(node); j++) {
+            int n = graph.neighbor(node, j);
+            if (!visited.get(n) && !graph.isDeleted(n)) {
+                filtered.set(n);
+                filtered.set(graph.rc(n));
                 walk(n);
-                walk(n.rc);
+                walk(graph.rc(n));
             }
         }
     }
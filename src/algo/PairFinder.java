@@ -1,8 +1,8 @@
 package algo;
 
 import ru.ifmo.genetics.dna.LightDnaQ;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.pairs.UniPair;
+import structures.KmerCounts;
 import utils.HashFunction;
 
 import java.util.Queue;
@@ -16,7 +16,7 @@ public class PairFinder extends ReadsFinderInGraph implements Runnable {
     private final Queue<UniPair<LightDnaQ>> second_found;
     private final Queue<UniPair<LightDnaQ>> both_not_found;
 
-    public PairFinder(UniPair<LightDnaQ> pair, int k, BigLong2ShortHashMap graph, HashFunction hasher,
+    public PairFinder(UniPair<LightDnaQ> pair, int k, KmerCounts graph, HashFunction hasher,
                       Queue<UniPair<LightDnaQ>> both_found, Queue<UniPair<LightDnaQ>> first_found,
                       Queue<UniPair<LightDnaQ>> second_found, Queue<UniPair<LightDnaQ>> both_not_found, Boolean doCorrection,
                       double z, double found_threshold) {
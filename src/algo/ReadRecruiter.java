@@ -0,0 +1,209 @@
+package algo;
+
+import io.IOUtils;
+import io.ReadsWorker;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.KmerUtils;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+import structures.KmerCounts;
+import structures.LongIntOpenMap;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Table of k-mers of reads around target sequences, built without counting the whole sample.<br></br>
+ * <br></br>
+ *
+ * Every pass over reads recruits reads which share a k-mer with the bait and counts only their k-mers. The bait
+ * is k-mers of the targets and of their environments found in the table of the previous pass, together with all
+ * neighbours of the environments, so every pass grows the environments by about a read length. Passes stop when
+ * the environments are the same as after the previous pass, e.g. when they reach the restrictions of the
+ * termination mode, or after the maximum number of passes.<br></br>
+ * <br></br>
+ *
+ * In the last pass all reads containing environment k-mers or their neighbours are recruited, so counts of all
+ * k-mers the search looks up are exact and environments are the same as with the table of the whole sample.
+ */
+public class ReadRecruiter {
+    private final File[] files;
+    private final int k;
+    private final int threshold;
+    private final TerminationMode termMode;
+    private final boolean bothDirections;
+    private final int maxPasses;
+    private final int availableProcessors;
+    private final Logger logger;
+    private final long kMask;
+    private final int highShift;
+
+    public ReadRecruiter(File[] files, int k, int threshold, TerminationMode termMode, boolean bothDirections,
+                         int maxPasses, int availableProcessors, Logger logger) {
+        this.files = files;
+        this.k = k;
+        this.threshold = threshold;
+        this.termMode = termMode;
+        this.bothDirections = bothDirections;
+        this.maxPasses = maxPasses;
+        this.availableProcessors = availableProcessors;
+        this.logger = logger;
+        this.kMask = (1L << (2 * k)) - 1;
+        this.highShift = 2 * (k - 1);
+    }
+
+    /**
+     * @param targets groups of sequences, environment of every group is searched from all its sequences at once
+     * @return table of k-mers of recruited reads
+     */
+    public BigLong2ShortHashMap recruit(List<List<String>> targets) throws ExecutionFailedException {
+        if (k > 31) {
+            throw new ExecutionFailedException("Reads can be recruited only for k <= 31");
+        }
+        LongIntOpenMap seeds = new LongIntOpenMap();
+        for (List<String> group : targets) {
+            for (String sequence : group) {
+                addKmers(sequence, seeds);
+            }
+        }
+        LongIntOpenMap environment = new LongIntOpenMap();
+        BigLong2ShortHashMap table = null;
+        for (int pass = 1; pass <= maxPasses; pass++) {
+            LongIntOpenMap bait = new LongIntOpenMap(seeds.size() + 3 * environment.size());
+            for (long key : seeds.keys()) {
+                bait.add(key);
+            }
+            // neighbours outside of environments may have reads without environment k-mers,
+            // their counts decide where the search stops
+            long[] neighbors = new long[8];
+            for (long key : environment.keys()) {
+                bait.add(key);
+                KmerBfs.neighbors(key, 0, kMask, highShift, neighbors);
+                for (long neighbor : neighbors) {
+                    bait.add(KmerUtils.getKmerKey(neighbor, k));
+                }
+            }
+            Tool.info(logger, "Recruiting pass " + pass + ", bait of " + bait.size() + " k-mers");
+            table = recruitReads(bait);
+
+            LongIntOpenMap found = new LongIntOpenMap(environment.size());
+            for (List<String> group : targets) {
+                if (bothDirections) {
+                    search(table, group, 0, found);
+                } else {
+                    search(table, group, -1, found);
+                    search(table, group, 1, found);
+                }
+            }
+            Tool.info(logger, "Environments have " + found.size() + " k-mers after pass " + pass);
+            if (sameKeys(found, environment)) {
+                return table;
+            }
+            environment = found;
+        }
+        Tool.warn(logger, "Environments still grow after " + maxPasses + " passes over reads, "
+                + "they may be incomplete");
+        return table;
+    }
+
+    private static class RecruitWorker extends ReadsWorker {
+        RecruitWorker(BigLong2ShortHashMap hm, int k, LongIntOpenMap bait) {
+            this.hm = hm;
+            this.k = k;
+            this.bait = bait;
+        }
+
+        final BigLong2ShortHashMap hm;
+        final int k;
+        final LongIntOpenMap bait;
+        long[] kmers = new long[256];
+        int recruited = 0;
+
+        @Override
+        public void process(List<Dna> reads) {
+            for (Dna dna : reads) {
+                int n = 0;
+                boolean hit = false;
+                for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
+                    if (n == kmers.length) {
+                        kmers = Arrays.copyOf(kmers, 2 * n);
+                    }
+                    kmers[n] = kmer.toLong();
+                    hit |= bait.containsKey(kmers[n]);
+                    n++;
+                }
+                if (hit) {
+                    for (int i = 0; i < n; i++) {
+                        hm.addAndBound(kmers[i], (short) 1);
+                    }
+                    recruited++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts k-mers only of reads which share at least one k-mer with the bait
+     *
+     * @param bait canonical k-mers in 2-bit encoding, it isn't changed during the pass
+     */
+    private BigLong2ShortHashMap recruitReads(LongIntOpenMap bait) throws ExecutionFailedException {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
+                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+        RecruitWorker[] workers = new RecruitWorker[availableProcessors];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new RecruitWorker(hm, k, bait);
+        }
+        IOUtils.run(files, workers, null, logger);
+
+        long recruited = 0;
+        for (RecruitWorker worker : workers) {
+            recruited += worker.recruited;
+        }
+        Tool.info(logger, NumUtils.groupDigits(recruited) + " reads recruited, "
+                + NumUtils.groupDigits(hm.size()) + " k-mers counted");
+        return hm;
+    }
+
+    private void search(BigLong2ShortHashMap table, List<String> group, int dir, LongIntOpenMap found) {
+        KmerBfs bfs = new KmerBfs(k, KmerCounts.of(table), threshold, null, termMode);
+        for (String sequence : group) {
+            bfs.addSeeds(sequence);
+        }
+        if (!bfs.hasSeeds()) {
+            return;
+        }
+        bfs.run(dir);
+        for (int i = 0; i < bfs.size(); i++) {
+            found.add(bfs.keyAt(i));
+        }
+    }
+
+    private void addKmers(String sequence, LongIntOpenMap keys) {
+        long kmer = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            kmer = ((kmer << 2) | DnaTools.fromChar(sequence.charAt(i))) & kMask;
+            if (i >= k - 1) {
+                keys.add(KmerUtils.getKmerKey(kmer, k));
+            }
+        }
+    }
+
+    private static boolean sameKeys(LongIntOpenMap a, LongIntOpenMap b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (long key : a.keys()) {
+            if (!b.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -4,8 +4,9 @@ import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.DnaQ;
 import ru.ifmo.genetics.dna.LightDnaQ;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.pairs.UniPair;
+import structures.BatchLookup;
+import structures.KmerCounts;
 import utils.HashFunction;
 
 import java.util.ArrayList;
@@ -17,13 +18,13 @@ import java.util.List;
 public abstract class ReadsFinderInGraph {
     final UniPair<LightDnaQ> pair;
     final int k;
-    private final BigLong2ShortHashMap graph;
+    private final KmerCounts graph;
     private final HashFunction hasher;
     final boolean doCorrection;
     private final double z;
     private final double found_threshold;
 
-    ReadsFinderInGraph(UniPair<LightDnaQ> pair, int k, BigLong2ShortHashMap graph, HashFunction hasher, boolean doCorrection, double z, double found_threshold) {
+    ReadsFinderInGraph(UniPair<LightDnaQ> pair, int k, KmerCounts graph, HashFunction hasher, boolean doCorrection, double z, double found_threshold) {
         this.pair = pair;
         this.k = k;
         this.graph = graph;
@@ -48,25 +49,28 @@ public abstract class ReadsFinderInGraph {
     }
 
     List<Short> getCoverage(LightDnaQ dnaQ) {
-        List<Short> cov = new ArrayList<>();
+        int n = dnaQ.length() - k + 1;
+        long[] keys = new long[n];
         if (k > 31) {
             Dna dna = new Dna(dnaQ);
-            for (int i = 0; i + k <= dnaQ.length(); i++) {
-                long hash = hasher.hash(dna, i, i + k);
-                short tmp = graph.getWithZero(hash);
-                if (tmp < 0) {
-                    throw new RuntimeException("Kmer count < 0");
-                }
-                cov.add(tmp);
+            for (int i = 0; i < n; i++) {
+                keys[i] = hasher.hash(dna, i, i + k);
             }
         } else {
+            int i = 0;
             for (ShortKmer kmer : ShortKmer.kmersOf(dnaQ, k)) {
-                short tmp = graph.getWithZero(kmer.toLong());
-                if (tmp < 0) {
-                    throw new RuntimeException("Kmer count < 0");
-                }
-                cov.add(tmp);
+                keys[i++] = kmer.toLong();
+            }
+        }
+
+        short[] values = new short[n];
+        BatchLookup.getManyWithZero(graph, keys, n, values);
+        List<Short> cov = new ArrayList<>(n);
+        for (short tmp : values) {
+            if (tmp < 0) {
+                throw new RuntimeException("Kmer count < 0");
             }
+            cov.add(tmp);
         }
         return cov;
     }
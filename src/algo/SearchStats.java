@@ -0,0 +1,161 @@
+package algo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Execution statistics of environment search for one target: time of its phases, counts of the search and
+ * estimated peak memory. They are written as <code>stats.json</code> next to the graph and as rows of batch TSV.
+ */
+public class SearchStats {
+    public enum Phase {
+        SEEDING, BFS, TRIM, EXTENSION, COMPACTION, WRITING
+    }
+
+    public enum Status {
+        /**
+         * Environment is found by own search of the calculator
+         */
+        FOUND,
+        /**
+         * Environment is taken from the cache
+         */
+        CACHED,
+        /**
+         * Environment is taken from the search shared by many targets, counts of the search aren't known
+         */
+        SHARED,
+        /**
+         * No k-mers of the target are found
+         */
+        NOT_FOUND
+    }
+
+    private final long[] nanos = new long[Phase.values().length];
+    private Status status = Status.FOUND;
+    private TerminationMode.TerminationModeType truncation;
+    private long lookups;
+    private long visited;
+    private int frontierPeak;
+    private long peakMemory;
+    private long kmers;
+
+    /**
+     * Adds time from start till now to the phase
+     *
+     * @return now, the start of the next phase
+     */
+    public long lap(Phase phase, long start) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public void setTruncation(TerminationMode.TerminationModeType truncation) {
+        this.truncation = truncation;
+    }
+
+    public void setLookups(long lookups) {
+        this.lookups = lookups;
+    }
+
+    public void addVisited(long visited) {
+        this.visited += visited;
+    }
+
+    public void updateFrontierPeak(int frontier) {
+        frontierPeak = Math.max(frontierPeak, frontier);
+    }
+
+    public void updatePeakMemory(long bytes) {
+        peakMemory = Math.max(peakMemory, bytes);
+    }
+
+    public void setKmers(long kmers) {
+        this.kmers = kmers;
+    }
+
+    public Status status() {
+        return status;
+    }
+
+    public long nanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    public TerminationMode.TerminationModeType truncation() {
+        return truncation;
+    }
+
+    public long lookups() {
+        return lookups;
+    }
+
+    public long visited() {
+        return visited;
+    }
+
+    public int frontierPeak() {
+        return frontierPeak;
+    }
+
+    public long peakMemory() {
+        return peakMemory;
+    }
+
+    public long kmers() {
+        return kmers;
+    }
+
+    public void writeJson(File file) throws FileNotFoundException {
+        file.getParentFile().mkdirs();
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("{");
+            out.println("  \"status\": \"" + status.name().toLowerCase() + "\",");
+            out.println("  \"truncation\": " + (truncation != null ? "\"" + truncation + "\"" : "null") + ",");
+            out.println("  \"kmers\": " + kmers + ",");
+            out.println("  \"visited_kmers\": " + visited + ",");
+            out.println("  \"lookups\": " + lookups + ",");
+            out.println("  \"frontier_peak\": " + frontierPeak + ",");
+            out.println("  \"peak_memory_bytes\": " + peakMemory + ",");
+            out.println("  \"time_ms\": {");
+            for (Phase phase : Phase.values()) {
+                out.println("    \"" + phase.name().toLowerCase() + "\": " + millis(phase)
+                        + (phase.ordinal() + 1 < nanos.length ? "," : ""));
+            }
+            out.println("  }");
+            out.println("}");
+        }
+    }
+
+    public static String tsvHeader() {
+        StringBuilder sb = new StringBuilder("name\tstatus\ttruncation\tkmers\tvisited_kmers\tlookups\tfrontier_peak"
+                + "\tpeak_memory_bytes");
+        for (Phase phase : Phase.values()) {
+            sb.append('\t').append(phase.name().toLowerCase()).append("_ms");
+        }
+        return sb.toString();
+    }
+
+    public String tsvRow(String name) {
+        StringBuilder sb = new StringBuilder(name);
+        sb.append('\t').append(status.name().toLowerCase());
+        sb.append('\t').append(truncation != null ? truncation.toString() : "-");
+        sb.append('\t').append(kmers).append('\t').append(visited).append('\t').append(lookups);
+        sb.append('\t').append(frontierPeak).append('\t').append(peakMemory);
+        for (Phase phase : Phase.values()) {
+            sb.append('\t').append(millis(phase));
+        }
+        return sb.toString();
+    }
+
+    private String millis(Phase phase) {
+        return String.format(Locale.US, "%.3f", nanos[phase.ordinal()] / 1e6);
+    }
+}
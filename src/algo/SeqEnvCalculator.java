@@ -6,6 +6,10 @@ import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.KmerUtils;
+import structures.EdgeMasks;
+import structures.ExtensionIndex;
+import structures.GeneKmerSet;
+import structures.KmerCounts;
 import utils.HashFunction;
 
 import java.io.File;
@@ -27,7 +31,7 @@ public class SeqEnvCalculator implements Runnable {
     private final int k;
     private final String outputPrefix;
     private final HashFunction hasher;
-    private final BigLong2ShortHashMap graph;
+    private final KmerCounts graph;
     private final Logger logger;
     private final Function<String, SingleNode.Color> getNodeColor;
     private final String name;
@@ -35,9 +39,10 @@ public class SeqEnvCalculator implements Runnable {
 
 
     private final Map<String, Integer> subgraph;
+    private ExtensionIndex edgeMasks;
+    private final SearchStats stats = new SearchStats();
 
-    private int size;
-    private SingleNode[] nodes;
+    private CompactGraph nodes;
     private boolean fail = false;
 
     public SeqEnvCalculator(String sequence, int k, String outputPrefix, HashFunction hasher, BigLong2ShortHashMap graph,
@@ -46,7 +51,7 @@ public class SeqEnvCalculator implements Runnable {
         this.k = k;
         this.outputPrefix = outputPrefix;
         this.hasher = hasher;
-        this.graph = graph;
+        this.graph = KmerCounts.of(graph);
         this.logger = logger;
         this.getNodeColor = getNodeColor;
         this.name = name;
@@ -58,20 +63,48 @@ public class SeqEnvCalculator implements Runnable {
     @Override
     public void run() {
         logger.info("Finding environment for sequence " + shortenLabel(sequence, k));
-        runBfs();
+        TerminationMode.Budget budget = termMode.startBudget();
+        runBfs(budget);
+        if (!fail) {
+            long start = System.nanoTime();
+            extendEnvironment(budget);
+            stats.lap(SearchStats.Phase.EXTENSION, start);
+        }
+        stats.setTruncation(budget.exceeded());
+        stats.setLookups(budget.lookups());
+        stats.updatePeakMemory(budget.peakMemory());
         if (fail) {
             logger.info("Could not find any k-mers of the target gene in the input, halting.");
-            return;
+            stats.setStatus(SearchStats.Status.NOT_FOUND);
+        } else {
+            stats.setKmers(subgraph.size());
+
+            createPicture();
         }
-        extendEnvironment();
+        File output = new File(outputPrefix + "/" + name + "_stats.json");
+        try {
+            stats.writeJson(output);
+        } catch (IOException e) {
+            logger.info("Could not write statistics to " + output.getPath());
+        }
+    }
 
-        createPicture();
+    /**
+     * @return statistics of the search, they are complete after {@link #run}
+     */
+    public SearchStats stats() {
+        return stats;
     }
 
-    private void runBfs() {
+    private void runBfs(TerminationMode.Budget budget) {
+        if (hasher == null) {
+            runKmerBfs(budget);
+            return;
+        }
         List<String> queue = new ArrayList<String>();
         Map<String, Integer> distanceToKmer = new HashMap<String, Integer>();
 
+        long start = System.nanoTime();
         for (int i = 0; i + k <= sequence.length(); i++) {
             String kmer = sequence.substring(i, i + k);
             if (graph.getWithZero(getKmerKey(kmer)) > 0) {
@@ -79,17 +112,29 @@ public class SeqEnvCalculator implements Runnable {
                 distanceToKmer.put(kmer, 0);
             }
         }
+        start = stats.lap(SearchStats.Phase.SEEDING, start);
         if (queue.size() == 0) {
             fail = true;
             return;
         }
         int head = 0;
+        int lookupsPerKmer = edgeMasks != null ? 1 : 8;
+        long bytesPerKmer = 120 + 2 * k;
         while (head < queue.size()) {
+            stats.updateFrontierPeak(queue.size() - head);
+            if (budget.isExceeded(head > 0 ? lookupsPerKmer : 0, distanceToKmer.size() * bytesPerKmer)) {
+                break;
+            }
             String kmer = queue.get(head++);
             int distance = distanceToKmer.get(kmer);
             String[] neighbors = allNeighbors(kmer);
-            for (String neighbor : neighbors) {
-                if (graph.getWithZero(getKmerKey(neighbor)) > 0) {
+            int mask = edgeMasks != null ? edgeMask(kmer) : 0;
+            for (int i = 0; i < neighbors.length; i++) {
+                String neighbor = neighbors[i];
+                boolean solid = edgeMasks != null
+                        ? (mask & EdgeMasks.neighborBit(0, i)) != 0
+                        : graph.getWithZero(getKmerKey(neighbor)) > 0;
+                if (solid) {
                     if (termMode.allowsAddition(distanceToKmer, neighbor, distance + 1)) {
                         queue.add(neighbor);
                         distanceToKmer.put(neighbor, distance + 1);
@@ -98,9 +143,46 @@ public class SeqEnvCalculator implements Runnable {
             }
         }
 
+        stats.addVisited(distanceToKmer.size());
         for (String kmer : distanceToKmer.keySet()) {
             addToSubgraph(kmer);
         }
+        stats.lap(SearchStats.Phase.BFS, start);
+    }
+
+    /**
+     * Same search on k-mers in 2-bit encoding, k-mers are converted to strings only for the result
+     */
+    private void runKmerBfs(TerminationMode.Budget budget) {
+        long start = System.nanoTime();
+        KmerBfs bfs = new KmerBfs(k, graph, 1, edgeMasks, termMode);
+        bfs.addSeeds(sequence);
+        start = stats.lap(SearchStats.Phase.SEEDING, start);
+        if (!bfs.hasSeeds()) {
+            fail = true;
+            return;
+        }
+        bfs.setBudget(budget);
+        bfs.run(0);
+        stats.addVisited(bfs.visited());
+        stats.updateFrontierPeak(bfs.frontierPeak());
+        for (Map.Entry<String, Integer> entry : bfs.foundKmers().entrySet()) {
+            subgraph.put(normalizeDna(entry.getKey()), (int) graph.getWithZero(bfs.keyAt(entry.getValue())));
+        }
+        stats.lap(SearchStats.Phase.BFS, start);
+    }
+
+    /**
+     * Edge masks let BFS skip lookups of absent neighbours, they are used only if built for threshold 1
+     */
+    public void setEdgeMasks(ExtensionIndex edgeMasks) {
+        if (hasher == null && edgeMasks != null && edgeMasks.k() == k && edgeMasks.threshold() == 1) {
+            this.edgeMasks = edgeMasks;
+        }
+    }
+
+    private int edgeMask(String kmer) {
+        return edgeMasks.maskOf(DnaTools.toLong(new Dna(kmer)));
     }
 
     private long getKmerKey(String s) {
@@ -116,31 +198,11 @@ public class SeqEnvCalculator implements Runnable {
         subgraph.put(normalizeDna(kmer), (int) graph.getWithZero(getKmerKey(kmer)));
     }
 
-    private void extendEnvironment() {
-        Iterator<Map.Entry<String, Integer>> iter = subgraph.entrySet().iterator();
-        Set<String> additions = new HashSet<String>();
-        while (iter.hasNext()) {
-            String kmer = iter.next().getKey();
-            while (true) {
-                String[] neighbors = allNeighbors(kmer);
-                String cont = null;
-                for (String neighbor : neighbors) {
-                    if (!subgraph.containsKey(normalizeDna(neighbor)) && graph.getWithZero(getKmerKey(neighbor)) > 0) {
-                        if (cont == null) {
-                            cont = kmer;
-                        } else {
-                            cont = "";
-                        }
-                    }
-                }
-                if (cont != null && !cont.equals("") && !additions.contains(cont)) {
-                    additions.add(cont);
-                    kmer = cont;
-                } else {
-                    break;
-                }
-            }
-        }
+    private void extendEnvironment(TerminationMode.Budget budget) {
+        List<String> additions = hasher == null
+                ? EnvironmentExtension.extend(subgraph.keySet(), k, graph, 1, edgeMasks, termMode, budget)
+                : EnvironmentExtension.extend(subgraph.keySet(), kmer -> graph.getWithZero(getKmerKey(kmer)) > 0,
+                        termMode, budget);
 
         logger.info("Extending endings by " + additions.size() + " kmers");
         for (String kmer : additions) {
@@ -149,10 +211,12 @@ public class SeqEnvCalculator implements Runnable {
     }
 
     private void createPicture() {
+        long start = System.nanoTime();
         logger.debug("Initializing structures for creating picture ...");
         initializeStructures();
         logger.debug("Merging vertices for creating picture ...");
-        doMerge();
+        nodes.compact();
+        start = stats.lap(SearchStats.Phase.COMPACTION, start);
         logger.debug("Outputing merged vertices ...");
         outputNodeSequences(outputPrefix, nodes, name);
         logger.debug("Drawing image ...");
@@ -160,108 +224,32 @@ public class SeqEnvCalculator implements Runnable {
             GFAWriter writer = new GFAWriter(k, outputPrefix, nodes, subgraph, name);
             writer.print();
         }
+        stats.lap(SearchStats.Phase.WRITING, start);
     }
 
     private void initializeStructures() {
-        Map<String, List<SingleNode>> nodeByKmer = new HashMap<>();
-        this.size = subgraph.size() * 2;
-        nodes = new SingleNode[size];
-        {
-            int id = 0;
-            Iterator<Map.Entry<String, Integer>> iter = subgraph.entrySet().iterator();
-            Set<String> geneSeq = new HashSet<>();
-            for (int i = 0; i + k <= sequence.length(); i++) {
-                String kmer = sequence.substring(i, i + k);
-                geneSeq.add(kmer);
-            }
-            while (iter.hasNext()) {
-                String seq = iter.next().getKey();
-                String rc = DnaTools.reverseComplement(seq);
-                SingleNode.Color color = getNodeColor.apply(seq);
-                boolean isGeneNode = geneSeq.contains(seq) || geneSeq.contains(rc);
-                nodes[id] = new SingleNode(seq, id, color, isGeneNode);
-                nodes[id + 1] = new SingleNode(rc, id + 1, color, isGeneNode);
-                nodes[id].rc = nodes[id + 1];
-                nodes[id + 1].rc = nodes[id];
-
-                id += 2;
-            }
-        }
-        logger.debug("Nodes are created");
-        for (int i = 0; i < size; i++) {
-            String key = nodes[i].sequence.substring(0, k - 1);
-            if (!nodeByKmer.containsKey(key)) {
-                nodeByKmer.put(key, new ArrayList<>());
-            }
-            nodeByKmer.get(key).add(nodes[i]);
-        }
-        logger.debug("Nodes neighbors initialized");
-        for (int i = 0; i < size; i++) {
-            String lastK = nodes[i].sequence.substring(1);
-            if (nodeByKmer.containsKey(lastK)) {
-                nodes[i].rc.neighbors.addAll(nodeByKmer.get(lastK));
-            }
-        }
-        logger.debug("Nodes neighbors added");
-    }
-
-    private void doMerge() {
-        while (true) {
-            boolean acted = false;
-            for (int i = 0; i < size; i++) {
-                if (!nodes[i].deleted && nodes[i].neighbors.size() == 1) {
-                    SingleNode other = nodes[i].neighbors.get(0);
-                    if (other.neighbors.size() != 1 || nodes[i].color != other.color || nodes[i].isGeneNode != other.isGeneNode) {
-                        continue;
-                    }
-                    mergeNodes(nodes[i], other);
-                    acted = true;
-                }
-            }
-            if (!acted) {
-                break;
-            }
-        }
-    }
-
-    private void mergeNodes(SingleNode firstPlus, SingleNode secondMinus) {
-        // first k-1 symbols of firstPlus coincide with complement of first k-1 symbols of secondMinus
-        SingleNode firstMinus = firstPlus.rc, secondPlus = secondMinus.rc;
-        String newSeq = mergeLabels(secondPlus.sequence, firstPlus.sequence);
-        String newSeqRC = mergeLabels(firstMinus.sequence, secondMinus.sequence);
-
-        secondPlus.sequence = newSeq;
-        firstMinus.sequence = newSeqRC;
-        secondPlus.rc = firstMinus;
-        firstMinus.rc = secondPlus;
-
-        firstPlus.deleted = secondMinus.deleted = true;
-    }
-
-    private void checkLabels(String a, String b) {
-        if (!a.substring(a.length() - (k - 1)).equals(b.substring(0, k - 1))) {
-            throw new AssertionError("Labels should be merged, but can not: " + a + " and " + b);
+        nodes = new CompactGraph(k, subgraph.keySet());
+        GeneKmerSet geneKmers = new GeneKmerSet(k, Collections.singletonList(sequence));
+        int kmerIndex = 0;
+        for (String seq : subgraph.keySet()) {
+            nodes.setAttributes(kmerIndex++, geneKmers.contains(seq), getNodeColor.apply(seq));
         }
+        logger.debug("Nodes and their neighbors are created");
     }
 
-    private String mergeLabels(String a, String b) {
-        checkLabels(a, b);
-        return a + b.substring(k - 1);
-    }
-
-    private void outputNodeSequences(String outputPrefix, SingleNode[] nodes, String name) {
+    private void outputNodeSequences(String outputPrefix, CompactGraph nodes, String name) {
         try {
             File output = new File(outputPrefix + "/" + name + "_seqs.fasta");
             output.getParentFile().mkdirs();
             PrintWriter out = new PrintWriter(output);
-            for (int i = 0; i < nodes.length; i++) {
-                if (!nodes[i].deleted && nodes[i].id < nodes[i].rc.id && nodes[i].sequence.length() >= 1) {
+            for (int i = 0; i < nodes.size(); i++) {
+                if (!nodes.isDeleted(i) && i < nodes.rc(i) && nodes.labelLength(i) >= 1) {
                     out.print("> ");
-                    out.print("Id" + getNodeId(nodes[i]) + " ");
-                    out.print("Length:" + nodes[i].sequence.length() + " ");
-                    out.print("Neighbors:" + getNeighborIds(nodes[i]));
+                    out.print("Id" + getNodeId(i) + " ");
+                    out.print("Length:" + nodes.labelLength(i) + " ");
+                    out.print("Neighbors:" + nodes.neighborIds(i));
                     out.println();
-                    out.println(nodes[i].sequence);
+                    out.println(nodes.label(i));
                 }
             }
             out.close();
@@ -270,19 +258,7 @@ public class SeqEnvCalculator implements Runnable {
         }
     }
 
-    private String getNodeId(SingleNode node) {
-        return (Math.min(node.id, node.rc.id) + 1) + (node.isGeneNode ? GENE_LABEL_SUFFIX : "");
-    }
-
-    private Set<Integer> getNeighborIds(SingleNode SingleNode) {
-        Set<Integer> result = new TreeSet<>();
-        for (SingleNode neighbour : SingleNode.neighbors) {
-            result.add(Math.min(neighbour.id, neighbour.rc.id) + 1);
-        }
-        for (SingleNode neighbour : SingleNode.rc.neighbors) {
-            result.add(Math.min(neighbour.id, neighbour.rc.id) + 1);
-        }
-        result.remove(Math.min(SingleNode.id, SingleNode.rc.id) + 1);
-        return result;
+    private String getNodeId(int node) {
+        return (Math.min(node, nodes.rc(node)) + 1) + (nodes.isGene(node) ? GENE_LABEL_SUFFIX : "");
     }
 }
@@ -7,15 +7,27 @@ import java.util.Map;
 public class TerminationMode {
     public enum TerminationModeType {
         MAX_KMERS,
-        MAX_RADIUS
+        MAX_RADIUS,
+        /**
+         * Time of search for one target in milliseconds
+         */
+        MAX_TIME,
+        /**
+         * Lookups in the k-mer table during search for one target
+         */
+        MAX_LOOKUPS,
+        /**
+         * Memory of search structures in bytes
+         */
+        MAX_MEMORY
     }
 
     private final List<TerminationModeType> types;
-    private final List<Integer> thresholds;
+    private final List<Long> thresholds;
 
     public TerminationMode() {
         types = new ArrayList<TerminationModeType>();
-        thresholds = new ArrayList<Integer>();
+        thresholds = new ArrayList<Long>();
     }
 
     public TerminationMode(TerminationModeType type, int threshold) {
@@ -23,20 +35,30 @@ public class TerminationMode {
         addRestriction(type, threshold);
     }
 
-    public void addRestriction(TerminationModeType type, int threshold) {
+    public void addRestriction(TerminationModeType type, long threshold) {
         types.add(type);
         thresholds.add(threshold);
     }
 
     public boolean allowsAddition(Map<String, Integer> distanceToKmer, String kmer, int newDistance) {
-        if (distanceToKmer.containsKey(kmer)) {
+        return allowsAddition(distanceToKmer.containsKey(kmer), distanceToKmer.size(), newDistance);
+    }
+
+    /**
+     * Checks restrictions on the number of k-mers and the radius, other restrictions are checked by {@link Budget}
+     *
+     * @param visited      whether k-mer is already visited
+     * @param visitedCount number of visited k-mers
+     */
+    public boolean allowsAddition(boolean visited, int visitedCount, int newDistance) {
+        if (visited) {
             return false;
         }
         for (int i = 0; i < types.size(); i++) {
-            int threshold = thresholds.get(i);
+            long threshold = thresholds.get(i);
             switch (types.get(i)) {
                 case MAX_KMERS:
-                    if (distanceToKmer.size() >= threshold) return false;
+                    if (visitedCount >= threshold) return false;
                     break;
                 case MAX_RADIUS:
                     if (newDistance > threshold) return false;
@@ -45,4 +67,109 @@ public class TerminationMode {
         }
         return true;
     }
+
+    /**
+     * @return the strictest threshold of restrictions of given type or <code>Long.MAX_VALUE</code> if there are none
+     */
+    public long limit(TerminationModeType type) {
+        long result = Long.MAX_VALUE;
+        for (int i = 0; i < types.size(); i++) {
+            if (types.get(i) == type) {
+                result = Math.min(result, thresholds.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return whether there are restrictions on time, lookups or memory
+     */
+    public boolean hasBudget() {
+        return limit(TerminationModeType.MAX_TIME) != Long.MAX_VALUE
+                || limit(TerminationModeType.MAX_LOOKUPS) != Long.MAX_VALUE
+                || limit(TerminationModeType.MAX_MEMORY) != Long.MAX_VALUE;
+    }
+
+    /**
+     * Starts the clock for the search of one target
+     */
+    public Budget startBudget() {
+        return new Budget();
+    }
+
+    /**
+     * Restrictions on time, lookups and memory of the search for one target. They don't depend on a single k-mer,
+     * so the search checks them before expanding every k-mer and stops at once when one of them is exceeded.
+     */
+    public class Budget {
+        private static final int CLOCK_PERIOD = 256;
+
+        private final long deadline;
+        private final long maxLookups = limit(TerminationModeType.MAX_LOOKUPS);
+        private final long maxMemory = limit(TerminationModeType.MAX_MEMORY);
+        private long lookups;
+        private long peakMemory;
+        private int checks;
+        private TerminationModeType exceeded;
+
+        private Budget() {
+            long maxTime = limit(TerminationModeType.MAX_TIME);
+            deadline = maxTime == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + maxTime * 1000000;
+        }
+
+        /**
+         * The clock is checked only once in several calls
+         *
+         * @param newLookups lookups made since the previous check
+         * @param memory     current memory of search structures in bytes
+         */
+        public boolean isExceeded(long newLookups, long memory) {
+            peakMemory = Math.max(peakMemory, memory);
+            if (exceeded == null) {
+                lookups += newLookups;
+                if (lookups > maxLookups) {
+                    exceeded = TerminationModeType.MAX_LOOKUPS;
+                } else if (memory > maxMemory) {
+                    exceeded = TerminationModeType.MAX_MEMORY;
+                } else if (deadline != Long.MAX_VALUE && ++checks % CLOCK_PERIOD == 0
+                        && System.nanoTime() > deadline) {
+                    exceeded = TerminationModeType.MAX_TIME;
+                }
+            }
+            return exceeded != null;
+        }
+
+        /**
+         * @return restriction which stopped the search or null
+         */
+        public TerminationModeType exceeded() {
+            return exceeded;
+        }
+
+        /**
+         * @return lookups reported by the searches so far
+         */
+        public long lookups() {
+            return lookups;
+        }
+
+        /**
+         * @return the largest memory of search structures reported so far, in bytes
+         */
+        public long peakMemory() {
+            return peakMemory;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < types.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(types.get(i)).append('=').append(thresholds.get(i));
+        }
+        return sb.toString();
+    }
 }
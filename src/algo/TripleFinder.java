@@ -1,8 +1,8 @@
 package algo;
 
 import ru.ifmo.genetics.dna.LightDnaQ;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.pairs.UniPair;
+import structures.KmerCounts;
 import tools.TripleReadsClassifier;
 import utils.HashFunction;
 
@@ -17,7 +17,7 @@ public class TripleFinder extends ReadsFinderInGraph implements Runnable {
     private final Map<String, TripleReadsClassifier.FindResult> isFoundInGraphOne_2;
     private final double half_threshold;
 
-    public TripleFinder(UniPair<LightDnaQ> pair, int k, BigLong2ShortHashMap graph, HashFunction hasher,
+    public TripleFinder(UniPair<LightDnaQ> pair, int k, KmerCounts graph, HashFunction hasher,
                         Map<String, TripleReadsClassifier.FindResult> isFoundInGraphOne_1,
                         Map<String, TripleReadsClassifier.FindResult> isFoundInGraphOne_2, boolean doCorrection,
                         double z, double found_threshold, double half_threshold) {
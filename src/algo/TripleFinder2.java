@@ -1,8 +1,8 @@
 package algo;
 
 import ru.ifmo.genetics.dna.LightDnaQ;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.pairs.UniPair;
+import structures.KmerCounts;
 import tools.TripleReadsClassifier;
 import utils.HashFunction;
 
@@ -24,7 +24,7 @@ public class TripleFinder2 extends ReadsFinderInGraph implements Runnable {
     private final Queue<LightDnaQ> s_not_found;
     private final double half_threshold;
 
-    public TripleFinder2(UniPair<LightDnaQ> pair, int k, BigLong2ShortHashMap graph, HashFunction hasher,
+    public TripleFinder2(UniPair<LightDnaQ> pair, int k, KmerCounts graph, HashFunction hasher,
                          Map<String, TripleReadsClassifier.FindResult> isFoundInGraphOne_1,
                          Map<String, TripleReadsClassifier.FindResult> isFoundInGraphOne_2, boolean doCorrection,
                          Queue<UniPair<LightDnaQ>> both_found, Queue<UniPair<LightDnaQ>> both_half_found,
@@ -0,0 +1,223 @@
+package algo;
+
+import ru.ifmo.genetics.dna.DnaTools;
+import structures.UnitigIndex;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Breadth-first search of {@link KmerBfs} over unitigs of {@link UnitigIndex}.<br></br>
+ * <br></br>
+ *
+ * Seeds are found by the locator of the index. The search moves along unitigs by runs: a run visits consecutive
+ * k-mers of an oriented unitig in one direction, distance grows by one with every k-mer, and at the end of the unitig
+ * new runs are started in its neighbours. Runs are taken from the queue by distance and every run visits k-mers
+ * only while its distance isn't larger than distances of other runs, so k-mers are visited in the order of distance,
+ * as by <code>KmerBfs</code>. Restrictions on the number of k-mers and the radius are checked for every k-mer,
+ * so the search visits the same k-mers, only k-mers at the last distance may be chosen differently
+ * if the number of k-mers is restricted. Table isn't looked up at all.
+ */
+public class UnitigBfs {
+    /**
+     * Approximate memory of visited k-mer
+     */
+    private static final int BYTES_PER_KMER = 8;
+
+    private final UnitigIndex index;
+    private final TerminationMode termMode;
+    private TerminationMode.Budget budget;
+    private int frontierPeak;
+
+    private long[] seeds = new long[16];
+    private int seedCount;
+
+    private static class Run implements Comparable<Run> {
+        final int unitig;
+        final int step;
+        final long order;
+        int offset;
+        int distance;
+
+        Run(int unitig, int offset, int step, int distance, long order) {
+            this.unitig = unitig;
+            this.offset = offset;
+            this.step = step;
+            this.distance = distance;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Run o) {
+            return distance != o.distance ? Integer.compare(distance, o.distance) : Long.compare(order, o.order);
+        }
+    }
+
+    public UnitigBfs(UnitigIndex index, TerminationMode termMode) {
+        this.index = index;
+        this.termMode = termMode;
+    }
+
+    /**
+     * Adds all solid k-mers of the sequence as starting ones
+     */
+    public void addSeeds(String sequence) {
+        int k = index.k();
+        long kMask = (1L << (2 * k)) - 1;
+        long kmer = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            kmer = ((kmer << 2) | DnaTools.fromChar(sequence.charAt(i))) & kMask;
+            if (i >= k - 1) {
+                addSeed(kmer);
+            }
+        }
+    }
+
+    /**
+     * Adds solid k-mers among first n k-mers in 2-bit encoding as starting ones, in their order
+     */
+    public void addSeeds(long[] kmers, int n) {
+        for (int i = 0; i < n; i++) {
+            addSeed(kmers[i]);
+        }
+    }
+
+    private void addSeed(long kmer) {
+        long location = index.locate(kmer);
+        if (location >= 0) {
+            if (seedCount == seeds.length) {
+                seeds = Arrays.copyOf(seeds, seeds.length * 2);
+            }
+            seeds[seedCount++] = location;
+        }
+    }
+
+    public boolean hasSeeds() {
+        return seedCount > 0;
+    }
+
+    public void setBudget(TerminationMode.Budget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the largest number of runs along unitigs in the queue during the search
+     */
+    public int frontierPeak() {
+        return frontierPeak;
+    }
+
+    /**
+     * @param dir -1 - backward, +1 - forward, 0 - both
+     * @return indices of visited k-mers in the index, in the order of visiting
+     */
+    public int[] run(int dir) {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>();
+        Map<Integer, BitSet> visited = new HashMap<Integer, BitSet>();
+        int[] result = new int[16];
+        int count = 0;
+        long order = 0;
+
+        for (int i = 0; i < seedCount; i++) {
+            int unitig = (int) (seeds[i] >>> 32);
+            int offset = (int) seeds[i];
+            if (dir < 0) {
+                // backward search is the forward one on reverse complement k-mers
+                offset = index.length(unitig >> 1) - 1 - offset;
+                unitig ^= 1;
+            }
+            if (!visit(visited, unitig, offset)) {
+                continue;
+            }
+            result = add(result, count++, index.kmerIndex(unitig, offset));
+            queue.add(new Run(unitig, offset, 1, 0, order++));
+            if (dir == 0) {
+                queue.add(new Run(unitig, offset, -1, 0, order++));
+            }
+        }
+
+        // runs in the queue start from visited k-mers, the next k-mer of the run is at distance + 1
+        while (!queue.isEmpty()) {
+            frontierPeak = Math.max(frontierPeak, queue.size());
+            if (budget != null && budget.isExceeded(0, (long) count * BYTES_PER_KMER)) {
+                break;
+            }
+            Run run = queue.poll();
+            int horizon = queue.isEmpty() ? Integer.MAX_VALUE : queue.peek().distance;
+            int length = index.length(run.unitig >> 1);
+            while (true) {
+                int offset = run.offset;
+                if ((run.step > 0 && offset == length - 1) || (run.step < 0 && offset == 0)) {
+                    order = startNeighbors(queue, run.unitig, run.step, run.distance, order);
+                    break;
+                }
+                if (run.distance > horizon) {
+                    queue.add(run);
+                    break;
+                }
+                int next = offset + run.step;
+                if (isVisited(visited, run.unitig, next)
+                        || !termMode.allowsAddition(false, count, run.distance + 1)) {
+                    break;
+                }
+                visit(visited, run.unitig, next);
+                result = add(result, count++, index.kmerIndex(run.unitig, next));
+                run.offset = next;
+                run.distance++;
+                if (dir == 0 && next == (run.step > 0 ? 0 : length - 1)) {
+                    // the first k-mer of the unitig has other neighbours behind it
+                    queue.add(new Run(run.unitig, next, -run.step, run.distance, order++));
+                    horizon = Math.min(horizon, run.distance);
+                }
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Visits first k-mers of neighbours at the end of the run and starts new runs from them
+     *
+     * @return order for the next run
+     */
+    private long startNeighbors(PriorityQueue<Run> queue, int unitig, int step, int distance, long order) {
+        // the left end of oriented unitig is the right end of its reverse complement
+        int from = step > 0 ? unitig : unitig ^ 1;
+        for (int i = 0; i < index.successorCount(from); i++) {
+            int next = index.successor(from, i);
+            if (step > 0) {
+                queue.add(new Run(next, -1, 1, distance, order++));
+            } else {
+                queue.add(new Run(next ^ 1, index.length(next >> 1), -1, distance, order++));
+            }
+        }
+        return order;
+    }
+
+    /**
+     * K-mers are marked in oriented unitigs, as <code>KmerBfs</code> marks oriented k-mers
+     */
+    private static boolean isVisited(Map<Integer, BitSet> visited, int unitig, int offset) {
+        BitSet bits = visited.get(unitig);
+        return bits != null && bits.get(offset);
+    }
+
+    private static boolean visit(Map<Integer, BitSet> visited, int unitig, int offset) {
+        BitSet bits = visited.computeIfAbsent(unitig, u -> new BitSet());
+        if (bits.get(offset)) {
+            return false;
+        }
+        bits.set(offset);
+        return true;
+    }
+
+    private static int[] add(int[] array, int size, int value) {
+        if (size == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[size] = value;
+        return array;
+    }
+}
@@ -0,0 +1,167 @@
+package algo;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Single-pass merging of non-branching paths of a graph with reverse complement nodes.<br></br>
+ * <br></br>
+ *
+ * Gives exactly the same result as repeated scans merging nodes <code>v</code> and <code>u</code>
+ * when u is the only neighbour of v, v is the only neighbour of u and they can be merged.
+ * Such merges never change neighbours of remaining nodes, so every path is merged into its two outer nodes
+ * in whatever order it is done. Only components that are cycles or touch themselves depend on the order,
+ * they are merged by repeated scans over their own nodes. A node is never merged with its own reverse complement,
+ * so a cycle is kept as one node linked to itself.
+ */
+class Unitigs {
+    interface Graph {
+        int size();
+
+        int rc(int node);
+
+        boolean isDeleted(int node);
+
+        int degree(int node);
+
+        int neighbor(int node, int i);
+
+        boolean canBeMerged(int first, int second);
+
+        /**
+         * Merges the path into its outer nodes <code>path[0]</code> and <code>rc(path[length - 1])</code>.
+         * Each node of the path is followed by the next one, i.e. its last k-1 symbols are the first k-1 symbols
+         * of the next one.
+         */
+        void mergePath(int[] path, int length);
+
+        /**
+         * Merges firstPlus and its only neighbour secondMinus, both of them are deleted
+         */
+        void mergeNodes(int firstPlus, int secondMinus);
+    }
+
+    private Unitigs() {
+    }
+
+    public static void compact(Graph g) {
+        int size = g.size();
+        boolean[] done = new boolean[size];
+        int[] path = new int[16];
+        for (int v = 0; v < size; v++) {
+            if (done[v] || g.isDeleted(v)) {
+                continue;
+            }
+            boolean simple = g.rc(v) != v;
+
+            // going to the start of the path
+            int start = v;
+            for (int steps = 0; simple && junction(g, start); steps++) {
+                int next = g.neighbor(start, 0);
+                if (!isSimple(g, start, next) || steps > size) {
+                    simple = false;
+                    break;
+                }
+                start = g.rc(next);
+                if (start == v) {
+                    simple = false;
+                }
+            }
+
+            int length = 0;
+            if (simple) {
+                path[length++] = start;
+                int cur = g.rc(start);
+                while (junction(g, cur)) {
+                    int next = g.neighbor(cur, 0);
+                    if (!isSimple(g, cur, next) || length > size) {
+                        simple = false;
+                        break;
+                    }
+                    if (length == path.length) {
+                        path = Arrays.copyOf(path, path.length * 2);
+                    }
+                    path[length++] = next;
+                    cur = g.rc(next);
+                }
+            }
+
+            if (simple) {
+                for (int i = 0; i < length; i++) {
+                    done[path[i]] = done[g.rc(path[i])] = true;
+                }
+                if (length > 1) {
+                    g.mergePath(path, length);
+                }
+            } else {
+                mergeByScans(g, component(g, v, done));
+            }
+        }
+    }
+
+    private static boolean junction(Graph g, int node) {
+        if (g.degree(node) != 1) {
+            return false;
+        }
+        int other = g.neighbor(node, 0);
+        return g.degree(other) == 1 && g.canBeMerged(node, other);
+    }
+
+    private static boolean isSimple(Graph g, int node, int next) {
+        return next != node && next != g.rc(node) && g.rc(next) != next;
+    }
+
+    /**
+     * @return sorted nodes reachable from v by reverse complement and mergeable edges, they are marked as done
+     */
+    private static int[] component(Graph g, int v, boolean[] done) {
+        int[] nodes = new int[16];
+        int count = 0;
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        queue.add(v);
+        done[v] = true;
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            if (count == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            }
+            nodes[count++] = node;
+            int rc = g.rc(node);
+            if (!done[rc]) {
+                done[rc] = true;
+                queue.add(rc);
+            }
+            if (junction(g, node)) {
+                int other = g.neighbor(node, 0);
+                if (!done[other]) {
+                    done[other] = true;
+                    queue.add(other);
+                }
+            }
+        }
+        nodes = Arrays.copyOf(nodes, count);
+        Arrays.sort(nodes);
+        return nodes;
+    }
+
+    private static void mergeByScans(Graph g, int[] nodes) {
+        while (true) {
+            boolean acted = false;
+            for (int node : nodes) {
+                if (!g.isDeleted(node) && g.degree(node) == 1) {
+                    int other = g.neighbor(node, 0);
+                    // the last node of a cycle is adjacent to its own reverse complement, merging would delete both
+                    if (other == g.rc(node) || g.degree(other) != 1 || !g.canBeMerged(node, other)) {
+                        continue;
+                    }
+                    g.mergeNodes(node, other);
+                    acted = true;
+                }
+            }
+            if (!acted) {
+                break;
+            }
+        }
+    }
+}
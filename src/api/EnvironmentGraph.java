@@ -0,0 +1,193 @@
+package api;
+
+import algo.CompactGraph;
+import algo.SingleNode;
+import algo.TerminationMode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static utils.StringUtils.normalizeDna;
+
+/**
+ * Compacted de Bruijn graph of environment found by {@link EnvironmentQuery}, the same graph as in
+ * <code>graph.gfa</code> of <code>environment-finder</code>.
+ */
+public class EnvironmentGraph {
+    /**
+     * Unitig of the graph, id and coverage are the same as in GFA
+     */
+    public static class Node {
+        private final int id;
+        private final String sequence;
+        private final long coverage;
+        private final boolean gene;
+        private final SingleNode.Color color;
+
+        Node(int id, String sequence, long coverage, boolean gene, SingleNode.Color color) {
+            this.id = id;
+            this.sequence = sequence;
+            this.coverage = coverage;
+            this.gene = gene;
+            this.color = color;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public String sequence() {
+            return sequence;
+        }
+
+        /**
+         * @return total count of k-mers of the node, as <code>KC</code> tag of GFA
+         */
+        public long coverage() {
+            return coverage;
+        }
+
+        /**
+         * @return whether the node contains k-mers of the target sequences
+         */
+        public boolean isGene() {
+            return gene;
+        }
+
+        /**
+         * @return color of the node or null
+         */
+        public SingleNode.Color color() {
+            return color;
+        }
+    }
+
+    /**
+     * Overlap of k - 1 nucleotides, as <code>L</code> line of GFA, orientations are true for <code>+</code>
+     */
+    public static class Edge {
+        private final int from;
+        private final boolean fromForward;
+        private final int to;
+        private final boolean toForward;
+
+        Edge(int from, boolean fromForward, int to, boolean toForward) {
+            this.from = from;
+            this.fromForward = fromForward;
+            this.to = to;
+            this.toForward = toForward;
+        }
+
+        public int from() {
+            return from;
+        }
+
+        public boolean fromForward() {
+            return fromForward;
+        }
+
+        public int to() {
+            return to;
+        }
+
+        public boolean toForward() {
+            return toForward;
+        }
+    }
+
+    private final int k;
+    private final Map<String, Integer> kmers;
+    private final List<Node> nodes;
+    private final List<Edge> edges;
+    private final TerminationMode.TerminationModeType truncation;
+
+    private EnvironmentGraph(int k, Map<String, Integer> kmers, List<Node> nodes, List<Edge> edges,
+                             TerminationMode.TerminationModeType truncation) {
+        this.k = k;
+        this.kmers = kmers;
+        this.nodes = nodes;
+        this.edges = edges;
+        this.truncation = truncation;
+    }
+
+    /**
+     * Graph without nodes, when no k-mers of the target sequences are found
+     */
+    static EnvironmentGraph empty(int k) {
+        return new EnvironmentGraph(k, Collections.<String, Integer>emptyMap(), Collections.<Node>emptyList(),
+                Collections.<Edge>emptyList(), null);
+    }
+
+    /**
+     * Takes nodes and edges in the order of GFA writer
+     */
+    static EnvironmentGraph of(CompactGraph graph, Map<String, Integer> kmers,
+                               TerminationMode.TerminationModeType truncation) {
+        int k = graph.k();
+        List<Node> nodes = new ArrayList<Node>();
+        List<Edge> edges = new ArrayList<Edge>();
+        for (int v = 0; v < graph.size(); v++) {
+            if (!graph.isDeleted(v) && graph.compareLabels(v, graph.rc(v)) <= 0) {
+                String sequence = graph.label(v);
+                long coverage = 0;
+                for (int i = 0; i + k <= sequence.length(); i++) {
+                    coverage += kmers.get(normalizeDna(sequence.substring(i, i + k)));
+                }
+                coverage += (long) kmers.get(normalizeDna(sequence.substring(sequence.length() - k))) * (k - 1);
+                nodes.add(new Node(id(graph, v), sequence, coverage, graph.isGene(v), graph.color(v)));
+            }
+        }
+        for (int v = 0; v < graph.size(); v++) {
+            if (!graph.isDeleted(v)) {
+                for (int j = 0; j < graph.degree(v); j++) {
+                    int u = graph.neighbor(v, j);
+                    if (!graph.isDeleted(u)) {
+                        edges.add(new Edge(id(graph, v), graph.compareLabels(v, graph.rc(v)) >= 0,
+                                id(graph, u), graph.compareLabels(u, graph.rc(u)) <= 0));
+                    }
+                }
+            }
+        }
+        return new EnvironmentGraph(k, kmers, Collections.unmodifiableList(nodes),
+                Collections.unmodifiableList(edges), truncation);
+    }
+
+    private static int id(CompactGraph graph, int node) {
+        return Math.min(graph.rc(node), node) + 1;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    /**
+     * @return canonical k-mers of the environment with their counts
+     */
+    public Map<String, Integer> kmers() {
+        return kmers;
+    }
+
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    public List<Edge> edges() {
+        return edges;
+    }
+
+    /**
+     * @return whether no k-mers of the target sequences are found
+     */
+    public boolean isEmpty() {
+        return kmers.isEmpty();
+    }
+
+    /**
+     * @return restriction which stopped the search or null if the environment is complete
+     */
+    public TerminationMode.TerminationModeType truncation() {
+        return truncation;
+    }
+}
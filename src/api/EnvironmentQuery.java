@@ -0,0 +1,136 @@
+package api;
+
+import algo.OneSequenceCalculator;
+import algo.TerminationMode;
+import algo.TerminationMode.TerminationModeType;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.dna.DnaQ;
+import structures.PackedSequence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builder of environment search over {@link KmerTable}, e.g.
+ * <pre>
+ * EnvironmentGraph graph = new EnvironmentQuery(table).sequence(gene).maxKmers(100000).run();
+ * </pre>
+ * The search is the same as of <code>environment-finder</code>, but the graph is returned in memory and nothing
+ * is written to disk. Query objects aren't thread-safe, but different queries over one table may run concurrently.
+ */
+public class EnvironmentQuery {
+    private final KmerTable table;
+    private final List<String> sequences = new ArrayList<String>();
+    private final TerminationMode termMode = new TerminationMode();
+    private boolean limited;
+    private boolean bothDirections;
+    private boolean trimPaths;
+    private Logger logger = Logger.getLogger(EnvironmentQuery.class);
+
+    public EnvironmentQuery(KmerTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Adds target sequence, environment of several sequences is found as one graph
+     */
+    public EnvironmentQuery sequence(String sequence) {
+        sequences.add(sequence.toUpperCase());
+        return this;
+    }
+
+    /**
+     * @param maxKmers maximum number of k-mers in the environment
+     */
+    public EnvironmentQuery maxKmers(int maxKmers) {
+        termMode.addRestriction(TerminationModeType.MAX_KMERS, maxKmers);
+        limited = true;
+        return this;
+    }
+
+    /**
+     * @param maxRadius maximum distance in k-mers from target sequences
+     */
+    public EnvironmentQuery maxRadius(int maxRadius) {
+        termMode.addRestriction(TerminationModeType.MAX_RADIUS, maxRadius);
+        limited = true;
+        return this;
+    }
+
+    /**
+     * @param millis maximum time of search, the truncated environment is returned after it
+     */
+    public EnvironmentQuery maxTime(long millis) {
+        termMode.addRestriction(TerminationModeType.MAX_TIME, millis);
+        return this;
+    }
+
+    /**
+     * @param lookups maximum number of lookups in the table
+     */
+    public EnvironmentQuery maxLookups(long lookups) {
+        termMode.addRestriction(TerminationModeType.MAX_LOOKUPS, lookups);
+        return this;
+    }
+
+    /**
+     * @param bytes maximum memory of search structures
+     */
+    public EnvironmentQuery maxMemory(long bytes) {
+        termMode.addRestriction(TerminationModeType.MAX_MEMORY, bytes);
+        return this;
+    }
+
+    public EnvironmentQuery bothDirections(boolean bothDirections) {
+        this.bothDirections = bothDirections;
+        return this;
+    }
+
+    /**
+     * Trimming isn't supported over unitig index
+     */
+    public EnvironmentQuery trimPaths(boolean trimPaths) {
+        this.trimPaths = trimPaths;
+        return this;
+    }
+
+    public EnvironmentQuery logger(Logger logger) {
+        this.logger = logger;
+        return this;
+    }
+
+    /**
+     * @return graph of the environment, it is empty if no k-mers of the target sequences are in the table
+     */
+    public EnvironmentGraph run() {
+        if (sequences.isEmpty()) {
+            throw new IllegalStateException("No target sequences are given");
+        }
+        if (!limited) {
+            throw new IllegalStateException("At least one of max k-mers and max radius should be set");
+        }
+        if (trimPaths && table.unitigs() != null) {
+            throw new IllegalStateException("Paths can't be trimmed in search over unitig index");
+        }
+        OneSequenceCalculator calc;
+        if (sequences.size() == 1) {
+            calc = new OneSequenceCalculator(sequences.get(0), table.k(), table.threshold(), null, null,
+                    table.hasher(), table.table(), logger, bothDirections, 1, termMode, trimPaths);
+        } else {
+            List<DnaQ> dnas = new ArrayList<DnaQ>(sequences.size());
+            for (String s : sequences) {
+                dnas.add(new DnaQ(s, 0));
+            }
+            calc = new OneSequenceCalculator(dnas, table.k(), table.threshold(), null, null, table.hasher(),
+                    table.table(), logger, bothDirections, 1, termMode, trimPaths,
+                    Collections.<PackedSequence>emptyList());
+        }
+        calc.setEdgeMasks(table.edgeMasks());
+        calc.setUnitigIndex(table.unitigs());
+        if (!calc.findEnvironment()) {
+            return EnvironmentGraph.empty(table.k());
+        }
+        return EnvironmentGraph.of(calc.graph(), calc.environment(), calc.truncation());
+    }
+}
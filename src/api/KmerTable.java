@@ -0,0 +1,141 @@
+package api;
+
+import io.IOUtils;
+import io.LargeKIOUtils;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.utils.KmerUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import structures.ExtensionIndex;
+import structures.KmerCounts;
+import structures.TableCounts;
+import structures.UnitigIndex;
+import utils.HashFunction;
+import utils.PolynomialHash;
+
+import java.io.File;
+
+import static utils.StringUtils.normalizeDna;
+
+/**
+ * Counted k-mers of a sample, environments are found in it by {@link EnvironmentQuery}.<br></br>
+ * <br></br>
+ *
+ * The table isn't changed after loading, so any number of queries may run over it concurrently.
+ */
+public class KmerTable {
+    private final int k;
+    private final int threshold;
+    private final KmerCounts table;
+    private final HashFunction hasher;
+    private final ExtensionIndex edgeMasks;
+    private final UnitigIndex unitigs;
+
+    private KmerTable(int k, int threshold, KmerCounts table, HashFunction hasher,
+                      ExtensionIndex edgeMasks, UnitigIndex unitigs) {
+        this.k = k;
+        this.threshold = threshold;
+        this.table = table;
+        this.hasher = hasher;
+        this.edgeMasks = edgeMasks;
+        this.unitigs = unitigs;
+    }
+
+    /**
+     * Counts k-mers of reads or loads binary k-mers of <code>kmer-counter</code> if all files are
+     * <code>.kmers.bin</code>. K-mers longer than 31 are kept as polynomial hashes.
+     *
+     * @param threshold minimal count of k-mers in environments
+     */
+    public static KmerTable load(File[] files, int k, int threshold, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        if (k > 31) {
+            HashFunction hasher = new PolynomialHash();
+            LargeKIOUtils.hash = hasher;
+            return new KmerTable(k, threshold,
+                    KmerCounts.of(LargeKIOUtils.loadReads(files, k, 0, availableProcessors, logger)), hasher, null, null);
+        }
+        boolean kmersInput = files.length > 0;
+        for (File file : files) {
+            kmersInput &= file.getName().toLowerCase().endsWith("kmers.bin");
+        }
+        Long2ShortHashMapInterface table = kmersInput
+                ? IOUtils.loadKmers(files, 0, availableProcessors, logger)
+                : IOUtils.loadReads(files, k, 0, availableProcessors, logger);
+        return new KmerTable(k, threshold, KmerCounts.of(table), null, null, null);
+    }
+
+    /**
+     * Environments are searched along unitigs of the index, its k and threshold are used
+     */
+    public static KmerTable of(UnitigIndex unitigs) {
+        return new KmerTable(unitigs.k(), unitigs.threshold(), unitigs, null, null, unitigs);
+    }
+
+    /**
+     * Wraps table which keys are canonical k-mers in 2-bit encoding, k <= 31
+     */
+    public static KmerTable of(Long2ShortHashMapInterface table, int k, int threshold) {
+        if (k > 31) {
+            throw new IllegalArgumentException("Only k <= 31 is supported for tables of 2-bit k-mers, k = " + k);
+        }
+        return new KmerTable(k, threshold, KmerCounts.of(table), null, null, null);
+    }
+
+    /**
+     * @return the same table with edge masks, so searches need one lookup per visited k-mer
+     */
+    public KmerTable withEdgeMasks(int availableProcessors, Logger logger) throws ExecutionFailedException {
+        if (hasher != null || unitigs != null || edgeMasks != null) {
+            return this;
+        }
+        // without unitigs and hashing the table is always a wrapped hash table
+        return new KmerTable(k, threshold, table, null,
+                IOUtils.buildEdgeMasks(((TableCounts) table).table(), k, threshold, availableProcessors, logger), null);
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * @return number of distinct k-mers in the table, including those with count below the threshold
+     */
+    public long size() {
+        return table.size();
+    }
+
+    /**
+     * @return count of k-mer or its reverse complement
+     */
+    public int count(String kmer) {
+        if (kmer.length() != k) {
+            throw new IllegalArgumentException("Length of k-mer should be " + k + ": " + kmer);
+        }
+        long key = hasher != null ? hasher.hash(normalizeDna(kmer))
+                : KmerUtils.getKmerKey(DnaTools.toLong(new Dna(kmer)), k);
+        return table.getWithZero(key);
+    }
+
+    KmerCounts table() {
+        return table;
+    }
+
+    HashFunction hasher() {
+        return hasher;
+    }
+
+    ExtensionIndex edgeMasks() {
+        return edgeMasks;
+    }
+
+    UnitigIndex unitigs() {
+        return unitigs;
+    }
+}
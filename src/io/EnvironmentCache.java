@@ -0,0 +1,145 @@
+package io;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Environments found by previous runs, kept in the work directory.<br></br>
+ * <br></br>
+ *
+ * Every environment is stored in its own file named by hash of everything it depends on: fingerprint of the reads
+ * (names, sizes and modification times of the files and the table settings), the target sequences and the search
+ * parameters. K-mers are stored in the order they were first added to the environment, so the map filled back from
+ * the file is exactly the same as after the search, including its iteration order, and so is the graph.
+ */
+public class EnvironmentCache {
+    private static final int VERSION = 1;
+
+    private final File dir;
+    private final String sampleFingerprint;
+    private final Logger logger;
+
+    public EnvironmentCache(File dir, String sampleFingerprint, Logger logger) {
+        this.dir = dir;
+        this.sampleFingerprint = sampleFingerprint;
+        this.logger = logger;
+    }
+
+    /**
+     * @param settings parameters of the table which change k-mer counts, e.g. k and hash function
+     */
+    public static String fingerprint(File[] files, String settings) {
+        StringBuilder sb = new StringBuilder(settings);
+        for (File file : files) {
+            sb.append('\n').append(file.getAbsolutePath())
+                    .append('\t').append(file.length())
+                    .append('\t').append(file.lastModified());
+        }
+        return sha256(sb.toString());
+    }
+
+    /**
+     * @param parameters parameters of the search in some fixed format
+     */
+    public String key(Iterable<String> targets, String parameters) {
+        return sha256(sampleFingerprint + "\n" + parameters, targets);
+    }
+
+    /**
+     * Puts cached k-mers with their counts into empty map in the order they were added to the stored one
+     *
+     * @return false if there is no such environment in the cache
+     */
+    public boolean load(String key, int k, Map<String, Integer> subgraph) {
+        File file = new File(dir, key + ".env");
+        if (!file.exists()) {
+            return false;
+        }
+        List<String> kmers = new ArrayList<String>();
+        List<Integer> counts = new ArrayList<Integer>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION || in.readInt() != k) {
+                return false;
+            }
+            int size = in.readInt();
+            byte[] kmer = new byte[k];
+            for (int i = 0; i < size; i++) {
+                in.readFully(kmer);
+                kmers.add(new String(kmer, StandardCharsets.US_ASCII));
+                counts.add(in.readInt());
+            }
+        } catch (IOException e) {
+            logger.warn("Can't read cached environment " + file.getPath() + ": " + e.getMessage());
+            return false;
+        }
+        for (int i = 0; i < kmers.size(); i++) {
+            subgraph.put(kmers.get(i), counts.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * @param kmers all k-mers of the environment in the order they were first added to it
+     */
+    public void store(String key, int k, List<String> kmers, Map<String, Integer> subgraph) {
+        dir.mkdirs();
+        File file = new File(dir, key + ".env");
+        Path tmp = null;
+        try {
+            // temporary name is unique among all processes, so concurrent runs never read a partial file
+            tmp = Files.createTempFile(dir.toPath(), key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeInt(k);
+                out.writeInt(kmers.size());
+                for (String kmer : kmers) {
+                    out.write(kmer.getBytes(StandardCharsets.US_ASCII));
+                    out.writeInt(subgraph.get(kmer));
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Can't cache environment in " + file.getPath() + ": " + e.getMessage());
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+        }
+    }
+
+    static String sha256(String s) {
+        return sha256(s, Collections.<String>emptyList());
+    }
+
+    /**
+     * Hash of head followed by upper-case lines, each after a line break. Lines are hashed one by one,
+     * so they may be streamed from a file.
+     */
+    static String sha256(String head, Iterable<String> lines) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(head.getBytes(StandardCharsets.UTF_8));
+            for (String line : lines) {
+                md.update(("\n" + line.toUpperCase()).getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] digest = md.digest();
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
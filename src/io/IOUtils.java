@@ -2,18 +2,22 @@ package io;
 
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.LightDna;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.io.sources.Source;
 import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
+import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.ArrayLong2IntHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Tool;
+import structures.EdgeMasks;
 
 import java.io.*;
 import java.util.Iterator;
@@ -66,15 +70,39 @@ public class IOUtils {
 
 
 
+    /**
+     * Computes masks of existing extensions for all k-mers with count >= threshold, works only for k <= 31
+     */
+    public static EdgeMasks buildEdgeMasks(Long2ShortHashMapInterface table, int k, int threshold,
+                                           int availableProcessors, Logger logger) throws ExecutionFailedException {
+        if (k > 31 || !(table instanceof BigLong2ShortHashMap)) {
+            Tool.warn(logger, "Edge masks can be built only for exact k-mer table with k <= 31, continuing without them");
+            return null;
+        }
+        Timer t = new Timer();
+        EdgeMasks masks;
+        try {
+            masks = EdgeMasks.build((BigLong2ShortHashMap) table, k, threshold, availableProcessors);
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        }
+        long tableBytes = table.capacity() * (8 + 2);
+        Tool.info(logger, "Edge masks built, " + NumUtils.memoryAsString(masks.memoryInBytes()) + " ("
+                + String.format("%.1f", masks.memoryInBytes() * 100.0 / tableBytes) + "% of k-mer table), time = " + t);
+        return masks;
+    }
+
+
+
     // ---------------------------- for loading kmers ----------------------------------
 
     static class Kmers2HMWorker extends KmersLoadWorker {
-        Kmers2HMWorker(BigLong2ShortHashMap hm, int freqThreshold) {
-            this.hm = hm;
+        Kmers2HMWorker(KmerSink sink, int freqThreshold) {
+            this.sink = sink;
             this.freqThreshold = freqThreshold;
         }
 
-        final BigLong2ShortHashMap hm;
+        final KmerSink sink;
         final int freqThreshold;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
@@ -84,7 +112,7 @@ public class IOUtils {
             kmers++;
             freqSum += freq;
             if (freq > freqThreshold) {
-                hm.addAndBound(kmer, freq);
+                sink.add(kmer, freq);
                 kmersAdded++;
                 freqSumAdded += freq;
             }
@@ -96,13 +124,22 @@ public class IOUtils {
 
         BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
                 (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+        loadKmers(files, freqThreshold, hm::addAndBound, hm, availableProcessors, logger);
+        return hm;
+    }
 
+    /**
+     * @param hmForMonitoring table which size is printed while loading or null
+     */
+    public static void loadKmers(File[] files, int freqThreshold, KmerSink sink, BigLong2ShortHashMap hmForMonitoring,
+                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
         Kmers2HMWorker[] workers = new Kmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new Kmers2HMWorker(hm, freqThreshold);
+            workers[i] = new Kmers2HMWorker(sink, freqThreshold);
         }
 
-        run(files, workers, hm, logger);
+        run(files, workers, hmForMonitoring, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -120,9 +157,9 @@ public class IOUtils {
         Tool.debug(logger,
                 "Added/All kmers frequency sum = " + NumUtils.groupDigits(freqSumAdded) + "/" + NumUtils.groupDigits(freqSum)
                         + " (" + String.format("%.1f", freqSumAdded * 100.0 / freqSum) + "%)");
-        logger.debug("k-mers HM size = " + NumUtils.groupDigits(hm.size()));
-
-        return hm;
+        if (hmForMonitoring != null) {
+            logger.debug("k-mers HM size = " + NumUtils.groupDigits(hmForMonitoring.size()));
+        }
     }
 
 
@@ -185,15 +222,16 @@ public class IOUtils {
     // ---------------------------- for loading reads ----------------------------------
 
     static class ReadsLoadWorker extends ReadsWorker {
-        ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen) {
-            this.hm = hm;
+        ReadsLoadWorker(KmerSink sink, int k, int minDnaLen) {
+            this.sink = sink;
             this.k = k;
             this.minDnaLen = minDnaLen;
         }
 
-        final BigLong2ShortHashMap hm;
+        final KmerSink sink;
         final int k;
         final int minDnaLen;
+        double fraction = 1;
         int totalSeq = 0, goodSeq = 0;
         long totalLen = 0, goodLen = 0;
 
@@ -203,9 +241,9 @@ public class IOUtils {
                 totalSeq++;
                 totalLen += dna.length();
 
-                if (dna.length() >= minDnaLen) {
+                if (dna.length() >= minDnaLen && isSampled(dna, fraction)) {
                     for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                        hm.addAndBound(kmer.toLong(), (short) 1);
+                        sink.add(kmer.toLong(), (short) 1);
                     }
                     goodSeq++;
                     goodLen += dna.length();
@@ -217,15 +255,34 @@ public class IOUtils {
     public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
                                                  int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadReads(files, k, minSeqLen, 1, availableProcessors, logger);
+    }
+
+    /**
+     * @param fraction fraction of reads to count, they are chosen by {@link #isSampled}
+     */
+    public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen, double fraction,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
         BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
                 (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+        loadReads(files, k, minSeqLen, fraction, hm::addAndBound, hm, availableProcessors, logger);
+        return hm;
+    }
 
+    /**
+     * @param hmForMonitoring table which size is printed while loading or null
+     */
+    public static void loadReads(File[] files, int k, int minSeqLen, double fraction, KmerSink sink,
+                                 BigLong2ShortHashMap hmForMonitoring, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
         ReadsLoadWorker[] workers = new ReadsLoadWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen);
+            workers[i] = new ReadsLoadWorker(sink, k, minSeqLen);
+            workers[i].fraction = fraction;
         }
 
-        run(files, workers, hm, logger);
+        run(files, workers, hmForMonitoring, logger);
 
         // calculating statistics...
         int totalSeq = 0, goodSeq = 0;
@@ -242,9 +299,28 @@ public class IOUtils {
         Tool.debug(logger,
                 "Good/Total sequences length = " + NumUtils.groupDigits(goodLen) + "/" + NumUtils.groupDigits(totalLen)
                         + " (" + String.format("%.1f", goodLen * 100.0 / totalLen) + "%)");
-        logger.debug("k-mers HM size = " + NumUtils.groupDigits(hm.size()));
+        if (hmForMonitoring != null) {
+            logger.debug("k-mers HM size = " + NumUtils.groupDigits(hmForMonitoring.size()));
+        }
+    }
 
-        return hm;
+
+    /**
+     * Deterministic subsampling of reads: a read is chosen by hash of its nucleotides, so the same reads
+     * are chosen in every run and by any number of threads
+     */
+    public static boolean isSampled(LightDna dna, double fraction) {
+        if (fraction >= 1) {
+            return true;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < dna.length(); i++) {
+            hash = (hash ^ dna.nucAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) < fraction * (1L << 53);
     }
 
 
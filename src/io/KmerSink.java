@@ -0,0 +1,8 @@
+package io;
+
+/**
+ * Receiver of k-mers counted by loaders, it is called by all loading threads at once
+ */
+public interface KmerSink {
+    public void add(long key, short count);
+}
@@ -5,6 +5,7 @@ import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Tool;
@@ -22,17 +23,18 @@ public class  LargeKIOUtils {
     public static HashFunction hash;
 
     static class ReadsLoadWorker extends ReadsWorker {
-        ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen, HashFunction hasher) {
-            this.hm = hm;
+        ReadsLoadWorker(KmerSink sink, int k, int minDnaLen, HashFunction hasher) {
+            this.sink = sink;
             this.k = k;
             this.minDnaLen = minDnaLen;
             this.hasher = hasher;
         }
 
-        final BigLong2ShortHashMap hm;
+        final KmerSink sink;
         final int k;
         final int minDnaLen;
         final HashFunction hasher;
+        double fraction = 1;
         int totalSeq = 0, goodSeq = 0;
         long totalLen = 0, goodLen = 0;
 
@@ -42,10 +44,10 @@ public class  LargeKIOUtils {
                 totalSeq++;
                 totalLen += dna.length();
 
-                if (dna.length() >= minDnaLen) {
+                if (dna.length() >= minDnaLen && IOUtils.isSampled(dna, fraction)) {
                     for (int i = 0; i + k <= dna.length(); i++) {
                         long hash = hasher.hash(dna, i, i + k);
-                        hm.addAndBound(hash, (short) 1);
+                        sink.add(hash, (short) 1);
                     }
                     goodSeq++;
                     goodLen += dna.length();
@@ -57,15 +59,34 @@ public class  LargeKIOUtils {
     public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
                                                  int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadReads(files, k, minSeqLen, 1, availableProcessors, logger);
+    }
+
+    /**
+     * @param fraction fraction of reads to count, they are chosen by {@link IOUtils#isSampled}
+     */
+    public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen, double fraction,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
         BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
                 (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+        loadReads(files, k, minSeqLen, fraction, hm::addAndBound, hm, availableProcessors, logger);
+        return hm;
+    }
 
+    /**
+     * @param hmForMonitoring table which size is printed while loading or null
+     */
+    public static void loadReads(File[] files, int k, int minSeqLen, double fraction, KmerSink sink,
+                                 BigLong2ShortHashMap hmForMonitoring, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
         ReadsLoadWorker[] workers = new ReadsLoadWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen, hash != null ? hash : new PolynomialHash());
+            workers[i] = new ReadsLoadWorker(sink, k, minSeqLen, hash != null ? hash : new PolynomialHash());
+            workers[i].fraction = fraction;
         }
 
-        run(files, workers, hm, logger);
+        run(files, workers, hmForMonitoring, logger);
 
         // calculating statistics...
         int totalSeq = 0, goodSeq = 0;
@@ -82,9 +103,9 @@ public class  LargeKIOUtils {
         Tool.debug(logger,
                 "Good/Total sequences length = " + NumUtils.groupDigits(goodLen) + "/" + NumUtils.groupDigits(totalLen)
                         + " (" + String.format("%.1f", goodLen * 100.0 / totalLen) + "%)");
-        logger.debug("k-mers HM size = " + NumUtils.groupDigits(hm.size()));
-
-        return hm;
+        if (hmForMonitoring != null) {
+            logger.debug("k-mers HM size = " + NumUtils.groupDigits(hmForMonitoring.size()));
+        }
     }
 
     public static void run(File[] files, ReadsWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
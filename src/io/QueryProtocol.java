@@ -0,0 +1,182 @@
+package io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Protocol of environment server and its client over a local socket.<br></br>
+ * <br></br>
+ *
+ * Request is a list of lines <code>name value</code> ended by an empty line, e.g. <code>seq ACGT...</code>,
+ * <code>maxkmers 100000</code>, <code>format gfa</code>. Response is either line <code>OK length truncation</code>
+ * followed by <code>length</code> bytes of the result, where truncation is the restriction which stopped the search
+ * or <code>-</code>, or line <code>ERROR message</code>.<br></br>
+ * <br></br>
+ *
+ * Binary environment (format <code>bin</code>) is a list of k-mers with their counts: int version, int k,
+ * int number of k-mers, then every k-mer packed by 2 bits per nucleotide into <code>(k + 3) / 4</code> bytes,
+ * first nucleotide in the highest bits, followed by its int count.
+ */
+public class QueryProtocol {
+    public static final int DEFAULT_PORT = 7733;
+    public static final int BINARY_VERSION = 1;
+
+    private static final int MAX_LINE_LENGTH = 1 << 26;
+    private static final String NUCLEOTIDES = "ACGT";
+
+    private QueryProtocol() {
+    }
+
+    public static void writeRequest(OutputStream out, Map<String, String> request) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : request.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        sb.append('\n');
+        out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * @return parameters of the request in the order they were given
+     */
+    public static Map<String, String> readRequest(InputStream in) throws IOException {
+        Map<String, String> request = new LinkedHashMap<String, String>();
+        while (true) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Request isn't finished");
+            }
+            if (line.isEmpty()) {
+                return request;
+            }
+            int space = line.indexOf(' ');
+            if (space <= 0) {
+                throw new IOException("Malformed request line: " + shorten(line));
+            }
+            request.put(line.substring(0, space), line.substring(space + 1).trim());
+        }
+    }
+
+    /**
+     * @param truncation restriction which stopped the search or null
+     */
+    public static void writeResult(OutputStream out, byte[] data, String truncation) throws IOException {
+        String header = "OK " + data.length + " " + (truncation != null ? truncation : "-") + "\n";
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(data);
+        out.flush();
+    }
+
+    public static void writeError(OutputStream out, String message) throws IOException {
+        out.write(("ERROR " + message.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Result of the request
+     */
+    public static class Response {
+        public final byte[] data;
+        public final String truncation;
+
+        Response(byte[] data, String truncation) {
+            this.data = data;
+            this.truncation = truncation;
+        }
+    }
+
+    /**
+     * @throws IOException with message of the server if the request failed
+     */
+    public static Response readResponse(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            throw new EOFException("Server closed connection without response");
+        }
+        if (line.startsWith("ERROR ")) {
+            throw new IOException(line.substring("ERROR ".length()));
+        }
+        String[] tokens = line.split(" ");
+        if (tokens.length != 3 || !tokens[0].equals("OK")) {
+            throw new IOException("Malformed response: " + shorten(line));
+        }
+        byte[] data = new byte[Integer.parseInt(tokens[1])];
+        new DataInputStream(in).readFully(data);
+        return new Response(data, tokens[2].equals("-") ? null : tokens[2]);
+    }
+
+    /**
+     * Writes k-mers of the environment in binary format in the iteration order of the map
+     */
+    public static void writeEnvironment(DataOutputStream out, int k, Map<String, Integer> environment)
+            throws IOException {
+        out.writeInt(BINARY_VERSION);
+        out.writeInt(k);
+        out.writeInt(environment.size());
+        byte[] packed = new byte[(k + 3) / 4];
+        for (Map.Entry<String, Integer> entry : environment.entrySet()) {
+            String kmer = entry.getKey();
+            Arrays.fill(packed, (byte) 0);
+            for (int i = 0; i < k; i++) {
+                int code = NUCLEOTIDES.indexOf(Character.toUpperCase(kmer.charAt(i)));
+                if (code < 0) {
+                    throw new IOException("Not a nucleotide in k-mer " + kmer);
+                }
+                packed[i / 4] |= code << (2 * (3 - i % 4));
+            }
+            out.write(packed);
+            out.writeInt(entry.getValue());
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads environment written by {@link #writeEnvironment} into the map
+     *
+     * @return k
+     */
+    public static int readEnvironment(DataInputStream in, Map<String, Integer> environment) throws IOException {
+        int version = in.readInt();
+        if (version != BINARY_VERSION) {
+            throw new IOException("Unknown version of binary environment: " + version);
+        }
+        int k = in.readInt();
+        int size = in.readInt();
+        byte[] packed = new byte[(k + 3) / 4];
+        char[] kmer = new char[k];
+        for (int j = 0; j < size; j++) {
+            in.readFully(packed);
+            for (int i = 0; i < k; i++) {
+                kmer[i] = NUCLEOTIDES.charAt((packed[i / 4] >> (2 * (3 - i % 4))) & 3);
+            }
+            environment.put(new String(kmer), in.readInt());
+        }
+        return k;
+    }
+
+    /**
+     * @return line without line break or null at the end of stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString("UTF-8");
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line is too long");
+            }
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static String shorten(String line) {
+        return line.length() <= 50 ? line : line.substring(0, 50) + "...";
+    }
+}
@@ -1,17 +1,21 @@
 package io;
 
 import ru.ifmo.genetics.dna.DnaQ;
+import structures.PackedSequence;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Reads all records of FASTA file into memory, {@link StreamingFastaReader} reads them one by one
+ */
 public class RichFastaReader {
 
-    private BufferedReader br;
+    private final StreamingFastaReader reader;
 
     public RichFastaReader(File f) throws FileNotFoundException {
-        br = new BufferedReader(new FileReader(f));
+        reader = new StreamingFastaReader(f);
     }
 
     public RichFastaReader(String s) throws FileNotFoundException {
@@ -40,37 +44,14 @@ public class RichFastaReader {
         comments = new ArrayList<String>();
 
         try {
-            boolean lastComment = true;
-            StringBuilder curComment = new StringBuilder();
-            StringBuilder curDna = new StringBuilder();
-            while (br.ready()) {
-                String line = br.readLine();
-                if (line.startsWith(">") || line.startsWith(";")) {
-                    if (!lastComment) {
-                        dnas.add(new DnaQ(curDna.toString(), 0));
-                        curDna.setLength(0);
-                        curComment.setLength(0);
-                    }
-                    line = line.substring(1);
-                    curComment.append(line);
-                    lastComment = true;
-                } else {
-                    if (lastComment) {
-                        comments.add(curComment.toString());
-                        curDna.setLength(0);
-                        curComment.setLength(0);
-                    }
-                    curDna.append(line);
-                    lastComment = false;
+            while (reader.hasNext()) {
+                PackedSequence record = reader.next();
+                comments.add(record.name());
+                if (record.length() > 0) {
+                    dnas.add(new DnaQ(record.toString(), 0));
                 }
             }
-            if (curComment.length() > 0) {
-                comments.add(curComment.toString());
-            }
-            if (curDna.length() > 0) {
-                dnas.add(new DnaQ(curDna.toString(), 0));
-            }
-        } catch (IOException e) {
+        } catch (UncheckedIOException e) {
             e.printStackTrace();
         }
     }
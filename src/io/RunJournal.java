@@ -0,0 +1,147 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Journal of finished environments in the work directory, lets a run interrupted by a crash be continued.<br></br>
+ * <br></br>
+ *
+ * The first line describes the run: fingerprint of its input and parameters and the snapshot of the k-mer table,
+ * if it was saved. Every next line is the id of an environment, it is appended and forced to disk only after
+ * all output of the environment is written. A line cut by a crash has no line end and is ignored.
+ */
+public class RunJournal {
+    private static final String HEADER = "#run";
+    private static final String DONE = "done";
+    private static final String NO_SNAPSHOT = "-";
+
+    private final File snapshot;
+    private final Set<String> done;
+    private final FileOutputStream out;
+
+    private RunJournal(File file, File snapshot, Set<String> done) throws IOException {
+        this.snapshot = snapshot;
+        this.done = done;
+        this.out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Starts new journal, the previous one is discarded
+     *
+     * @param snapshot saved k-mer table or null
+     */
+    public static RunJournal start(File file, String fingerprint, File snapshot) throws ExecutionFailedException {
+        String header = HEADER + "\t" + fingerprint + "\t"
+                + (snapshot != null ? snapshot.getAbsolutePath() : NO_SNAPSHOT) + "\n";
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            Files.write(file.toPath(), header.getBytes(StandardCharsets.UTF_8));
+            return new RunJournal(file, snapshot, new HashSet<String>());
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Could not create run journal " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Continues the journal of previous run with the same fingerprint
+     *
+     * @return null if there is no such journal
+     */
+    public static RunJournal resume(File file, String fingerprint, Logger logger) throws ExecutionFailedException {
+        if (!file.exists()) {
+            logger.info("No run journal in " + file.getPath() + ", starting from scratch");
+            return null;
+        }
+        String content;
+        try {
+            content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Could not read run journal " + file.getPath(), e);
+        }
+        String[] lines = content.split("\n", -1);
+        // the last piece is either empty or a line cut by a crash
+        String[] header = lines.length > 1 ? lines[0].split("\t") : new String[0];
+        if (header.length != 3 || !header[0].equals(HEADER) || !header[1].equals(fingerprint)) {
+            logger.warn("Run journal " + file.getPath() + " is left by a run with other input or parameters, "
+                    + "starting from scratch");
+            return null;
+        }
+        File snapshot = header[2].equals(NO_SNAPSHOT) ? null : new File(header[2]);
+        if (snapshot != null && !snapshot.exists()) {
+            logger.warn("Table snapshot " + snapshot.getPath() + " is missing, k-mers will be counted again");
+            snapshot = null;
+        }
+        Set<String> done = new HashSet<String>();
+        for (int i = 1; i < lines.length - 1; i++) {
+            String[] fields = lines[i].split("\t");
+            if (fields.length == 2 && fields[0].equals(DONE)) {
+                done.add(fields[1]);
+            }
+        }
+        try {
+            if (!content.endsWith("\n")) {
+                // dropping the cut line, so that the next one starts from a new line
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(content.lastIndexOf('\n') + 1);
+                }
+            }
+            return new RunJournal(file, snapshot, done);
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Could not open run journal " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * @return id of environment with given name and target sequences
+     */
+    public static String targetId(String name, String... sequences) {
+        return targetId(name, Arrays.asList(sequences));
+    }
+
+    /**
+     * @param sequences sequences of the target, they are read once and may be streamed from a file
+     */
+    public static String targetId(String name, Iterable<String> sequences) {
+        return EnvironmentCache.sha256(name, sequences);
+    }
+
+    /**
+     * @return k-mer table saved by the run or null
+     */
+    public File snapshot() {
+        return snapshot;
+    }
+
+    public synchronized boolean isDone(String target) {
+        return done.contains(target);
+    }
+
+    public synchronized int doneCount() {
+        return done.size();
+    }
+
+    /**
+     * Records that all output of the environment is written
+     */
+    public synchronized void markDone(String target) throws IOException {
+        out.write((DONE + "\t" + target + "\n").getBytes(StandardCharsets.UTF_8));
+        out.getChannel().force(false);
+        done.add(target);
+    }
+
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing is lost, all lines are already forced to disk
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io;
+
+import algo.KmerBfs;
+import algo.TerminationMode;
+import org.apache.log4j.Logger;
+import structures.ExtensionIndex;
+import structures.KmerCounts;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * States of {@link KmerBfs} searches kept in a work directory, so that environments can be grown later.<br></br>
+ * <br></br>
+ *
+ * Every state is stored in its own file named by hash of the reads fingerprint, the target sequences and the search
+ * parameters except for the termination mode. States are loaded from the work directory of a previous run
+ * and saved to the work directory of the current one, which may be the same.
+ */
+public class SearchStateStore {
+    public static final String DIR_NAME = "bfs-state";
+
+    private final File saveDir;
+    private final File loadDir;
+    private final String sampleFingerprint;
+    private final Logger logger;
+
+    /**
+     * @param saveDir directory for new states or null
+     * @param loadDir directory with states of previous run or null
+     */
+    public SearchStateStore(File saveDir, File loadDir, String sampleFingerprint, Logger logger) {
+        this.saveDir = saveDir;
+        this.loadDir = loadDir;
+        this.sampleFingerprint = sampleFingerprint;
+        this.logger = logger;
+    }
+
+    /**
+     * @param parameters parameters of the search except for the termination mode in some fixed format
+     */
+    public String key(Iterable<String> targets, String parameters) {
+        return EnvironmentCache.sha256(sampleFingerprint + "\n" + parameters, targets);
+    }
+
+    /**
+     * @return saved search continued under restrictions of termMode or null if there is no state which
+     *         can be continued
+     */
+    public KmerBfs load(String key, int k, KmerCounts table, int threshold, ExtensionIndex edgeMasks,
+                        TerminationMode termMode, int dir) {
+        if (loadDir == null) {
+            return null;
+        }
+        File file = new File(loadDir, key + ".bfs");
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            KmerBfs bfs = KmerBfs.resume(in, k, table, threshold, edgeMasks, termMode, dir);
+            if (bfs == null) {
+                logger.info("Search state " + file.getPath() + " has stronger restrictions, searching from scratch");
+            }
+            return bfs;
+        } catch (IOException e) {
+            logger.warn("Can't read search state " + file.getPath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void save(String key, KmerBfs bfs, int dir) {
+        if (saveDir == null) {
+            return;
+        }
+        saveDir.mkdirs();
+        File file = new File(saveDir, key + ".bfs");
+        Path tmp = null;
+        try {
+            // temporary name is unique among all processes, the state is replaced atomically
+            tmp = Files.createTempFile(saveDir.toPath(), key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                bfs.saveState(out, dir);
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Can't save search state to " + file.getPath() + ": " + e.getMessage());
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io;
+
+import structures.PackedSequence;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads FASTA records one by one, only the current record is kept in memory and its sequence is packed
+ * by 2 bits per nucleotide as it is read. Files ending with <code>.gz</code> are read through gzip.<br></br>
+ * <br></br>
+ *
+ * Names of records are their header lines without <code>&gt;</code>, consecutive header and comment
+ * (<code>;</code>) lines are joined, as {@link RichFastaReader} does it. The file is closed when all records
+ * are read. Errors of reading are thrown as {@link UncheckedIOException}.
+ */
+public class StreamingFastaReader implements Iterator<PackedSequence>, Closeable {
+    private final InputStream stream;
+    private final boolean gzip;
+    private BufferedReader in;
+    private String pendingHeader;
+    private PackedSequence next;
+    private boolean done;
+
+    public StreamingFastaReader(File file) throws FileNotFoundException {
+        this.stream = new FileInputStream(file);
+        this.gzip = file.getName().toLowerCase().endsWith(".gz");
+    }
+
+    /**
+     * @return records of the file, every iteration reads the file again
+     */
+    public static Iterable<PackedSequence> records(File file) {
+        return () -> {
+            try {
+                return new StreamingFastaReader(file);
+            } catch (FileNotFoundException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = readRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public PackedSequence next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        PackedSequence result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * @return at most size next records, the list is empty when all records are read
+     */
+    public List<PackedSequence> nextBatch(int size) {
+        List<PackedSequence> batch = new ArrayList<PackedSequence>(Math.min(size, 1024));
+        while (batch.size() < size && hasNext()) {
+            batch.add(next());
+        }
+        return batch;
+    }
+
+    private PackedSequence readRecord() throws IOException {
+        if (in == null) {
+            // gzip header is read only here, so opening of the reader fails only on missing files
+            in = new BufferedReader(new InputStreamReader(gzip ? new GZIPInputStream(stream) : stream));
+        }
+        StringBuilder name = new StringBuilder();
+        boolean hasHeader = false;
+        if (pendingHeader != null) {
+            name.append(pendingHeader);
+            pendingHeader = null;
+            hasHeader = true;
+        }
+        PackedSequence.Builder sequence = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(">") || line.startsWith(";")) {
+                if (sequence != null) {
+                    pendingHeader = line.substring(1);
+                    break;
+                }
+                name.append(line.substring(1));
+                hasHeader = true;
+            } else {
+                if (sequence == null) {
+                    sequence = new PackedSequence.Builder();
+                }
+                sequence.append(line);
+            }
+        }
+        if (line == null) {
+            close();
+        }
+        if (sequence == null && !hasHeader) {
+            return null;
+        }
+        return (sequence != null ? sequence : new PackedSequence.Builder()).build(name.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        if (in != null) {
+            in.close();
+        } else {
+            stream.close();
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package io.writers;
 
-import algo.SingleNode;
+import algo.CompactGraph;
 import utils.StringUtils;
 
 import java.io.File;
@@ -13,28 +13,53 @@ public class GFAWriter {
 
     private final int k;
     private final String outputPrefix;
-    private SingleNode[] nodes;
+    private final CompactGraph graph;
+    private final int[] nodes;
     private final Map<String, Integer> subgraph;
     private final int size;
     private final String fileName;
+    private String truncation;
+    private double previewFraction = 1;
 
 
-    public GFAWriter(int k, String outputPrefix, SingleNode[] nodes, Map<String, Integer> subgraph, String fileName) {
+    /**
+     * @param nodes nodes of the graph to print or null to print all of them
+     */
+    public GFAWriter(int k, String outputPrefix, CompactGraph graph, int[] nodes, Map<String, Integer> subgraph,
+                     String fileName) {
         this.k = k;
         this.outputPrefix = outputPrefix;
+        this.graph = graph;
         this.nodes = nodes;
         this.subgraph = subgraph;
-        this.size = nodes.length;
+        this.size = nodes != null ? nodes.length : graph.size();
         this.fileName = fileName;
     }
 
-    public GFAWriter(int k, String outputPrefix, SingleNode[] nodes, Map<String, Integer> subgraph) {
-        this.k = k;
-        this.outputPrefix = outputPrefix;
-        this.nodes = nodes;
-        this.subgraph = subgraph;
-        this.size = nodes.length;
-        this.fileName = "graph";
+    public GFAWriter(int k, String outputPrefix, CompactGraph graph, Map<String, Integer> subgraph, String fileName) {
+        this(k, outputPrefix, graph, null, subgraph, fileName);
+    }
+
+    public GFAWriter(int k, String outputPrefix, CompactGraph graph, Map<String, Integer> subgraph) {
+        this(k, outputPrefix, graph, null, subgraph, "graph");
+    }
+
+    private int node(int i) {
+        return nodes != null ? nodes[i] : i;
+    }
+
+    /**
+     * Marks the graph as truncated by given restriction in the header
+     */
+    public void setTruncation(String restriction) {
+        this.truncation = restriction;
+    }
+
+    /**
+     * Marks the graph as approximate in the header, as it is built from given fraction of reads
+     */
+    public void setPreviewFraction(double fraction) {
+        this.previewFraction = fraction;
     }
 
     public void print() {
@@ -51,16 +76,23 @@ public class GFAWriter {
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
+        if (truncation != null || previewFraction < 1) {
+            out.println("H\tVN:Z:1.0" + (truncation != null ? "\ttr:Z:" + truncation : "")
+                    + (previewFraction < 1 ? "\tpf:f:" + previewFraction : ""));
+        }
         for (int i = 0; i < size; i++) {
-            if (!nodes[i].deleted && nodes[i].sequence.compareTo(nodes[i].rc.sequence) <= 0) {
-                printLabel(out, nodes[i]);
+            int v = node(i);
+            if (!graph.isDeleted(v) && graph.compareLabels(v, graph.rc(v)) <= 0) {
+                printLabel(out, v);
             }
         }
-        for (SingleNode i : nodes) {
-            if (!i.deleted) {
-                for (SingleNode j : i.neighbors) {
-                    if (!j.deleted) {
-                        printEdge(out, i, j);
+        for (int i = 0; i < size; i++) {
+            int v = node(i);
+            if (!graph.isDeleted(v)) {
+                for (int j = 0; j < graph.degree(v); j++) {
+                    int u = graph.neighbor(v, j);
+                    if (!graph.isDeleted(u)) {
+                        printEdge(out, v, u);
                     }
                 }
             }
@@ -68,33 +100,34 @@ public class GFAWriter {
         out.close();
     }
 
-    private void printEdge(PrintWriter out, SingleNode first, SingleNode second) {
+    private void printEdge(PrintWriter out, int first, int second) {
         out.print("L\t");
         out.print(getNodeId(first));
         out.print('\t');
-        out.print((first.sequence.compareTo(first.rc.sequence) >= 0 ? "+" : "-"));
+        out.print((graph.compareLabels(first, graph.rc(first)) >= 0 ? "+" : "-"));
         out.print('\t');
         out.print(getNodeId(second));
         out.print('\t');
-        out.print((second.sequence.compareTo(second.rc.sequence) <= 0 ? "+" : "-"));
+        out.print((graph.compareLabels(second, graph.rc(second)) <= 0 ? "+" : "-"));
         out.print('\t');
         out.println((k - 1) + "M");
     }
 
-    private String getNodeId(SingleNode node) {
-        return (Math.min(node.rc.id, node.id) + 1) + (node.isGeneNode ? GENE_LABEL_SUFFIX : "");
+    private String getNodeId(int node) {
+        return (Math.min(graph.rc(node), node) + 1) + (graph.isGene(node) ? GENE_LABEL_SUFFIX : "");
     }
 
-    private void printLabel(PrintWriter out, SingleNode node) {
-        out.print("S\t" + getNodeId(node) + "\t" + node.sequence);
+    private void printLabel(PrintWriter out, int node) {
+        String sequence = graph.label(node);
+        out.print("S\t" + getNodeId(node) + "\t" + sequence);
         long coverage = 0;
-        for (int i = 0; i + k <= node.sequence.length(); i++) {
-            String kmer = node.sequence.substring(i, i + k);
+        for (int i = 0; i + k <= sequence.length(); i++) {
+            String kmer = sequence.substring(i, i + k);
             coverage += subgraph.get(StringUtils.normalizeDna(kmer));
         }
-        coverage += subgraph.get(StringUtils.normalizeDna(node.sequence.substring(node.sequence.length()-k)))*(k-1);
+        coverage += subgraph.get(StringUtils.normalizeDna(sequence.substring(sequence.length()-k)))*(k-1);
 
-        out.println("\tLN:i:" + (node.sequence.length()) + "\tKC:i:" + coverage +
-                (node.color == null ? "" : ("\tCL:Z:" + node.color)));
+        out.println("\tLN:i:" + (sequence.length()) + "\tKC:i:" + coverage +
+                (graph.color(node) == null ? "" : ("\tCL:Z:" + graph.color(node))));
     }
 }
@@ -1,6 +1,6 @@
 package io.writers;
 
-import algo.SingleNode;
+import algo.CompactGraph;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -10,17 +10,17 @@ import java.util.Map;
 public class LastGraphWriter {
     private final int k;
     private final String outputPrefix;
-    private final SingleNode[] nodes;
+    private final CompactGraph graph;
     private final Map<String, Integer> subgraph;
     private final int size;
 
 
-    public LastGraphWriter(int k, String outputPrefix, SingleNode[] nodes, Map<String, Integer> subgraph) {
+    public LastGraphWriter(int k, String outputPrefix, CompactGraph graph, Map<String, Integer> subgraph) {
         this.k = k;
         this.outputPrefix = outputPrefix;
-        this.nodes = nodes;
+        this.graph = graph;
         this.subgraph = subgraph;
-        this.size = nodes.length;
+        this.size = graph.size();
     }
 
     public void print() {
@@ -39,48 +39,51 @@ public class LastGraphWriter {
         }
         int realNodes = 0;
         for (int i = 0; i < size; i++) {
-            if (!nodes[i].deleted) {
+            if (!graph.isDeleted(i)) {
                 realNodes++;
             }
         }
         out.println(realNodes + " 0 " + k + " " + 1);
         for (int i = 0; i < size; i++) {
-            if (!nodes[i].deleted && nodes[i].id < nodes[i].rc.id) {
-                printLabel(out, nodes[i]);
+            if (!graph.isDeleted(i) && i < graph.rc(i)) {
+                printLabel(out, i);
             }
         }
-        for (SingleNode i : nodes) {
-            if (!i.deleted) {
-                for (SingleNode j : i.neighbors) {
-                    printEdge(out, i, j);
+        for (int i = 0; i < size; i++) {
+            if (!graph.isDeleted(i)) {
+                for (int j = 0; j < graph.degree(i); j++) {
+                    printEdge(out, i, graph.neighbor(i, j));
                 }
             }
         }
         out.close();
     }
 
-    private void printEdge(PrintWriter out, SingleNode first, SingleNode second) {
+    private void printEdge(PrintWriter out, int first, int second) {
+        int firstRc = graph.rc(first), secondRc = graph.rc(second);
         out.print("ARC ");
-        out.print((first.id < first.rc.id ? "" : "-") + (Math.min(first.rc.id, first.id) + 1) + (first.isGeneNode ? "_oxa347" : ""));
+        out.print((first < firstRc ? "" : "-") + (Math.min(firstRc, first) + 1) + (graph.isGene(first) ? "_oxa347" : ""));
         out.print(' ');
-        out.print((second.id > second.rc.id ? "" : "-") + (Math.min(second.rc.id, second.id) + 1) + (second.isGeneNode ? "_oxa347" : ""));
+        out.print((second > secondRc ? "" : "-") + (Math.min(secondRc, second) + 1) + (graph.isGene(second) ? "_oxa347" : ""));
         out.println();
     }
 
-    private String getNodeId(SingleNode node) {
-        return (node.id < node.rc.id ? "" : "-") + (Math.min(node.rc.id, node.id) + 1) + (node.isGeneNode ? "_oxa347" : "");
+    private String getNodeId(int node) {
+        int rc = graph.rc(node);
+        return (node < rc ? "" : "-") + (Math.min(rc, node) + 1) + (graph.isGene(node) ? "_oxa347" : "");
     }
 
-    private void printLabel(PrintWriter out, SingleNode node) {
+    private void printLabel(PrintWriter out, int node) {
+        String sequence = graph.label(node);
         out.print("NODE " + getNodeId(node));
         long coverage = 0;
-        for (int i = 0; i + k <= node.sequence.length(); i++) {
-            String kmer = node.sequence.substring(i, i + k);
+        for (int i = 0; i + k <= sequence.length(); i++) {
+            String kmer = sequence.substring(i, i + k);
             coverage += subgraph.get(kmer);
         }
-        out.println(" " + (node.sequence.length()) + " " + coverage + " " + coverage + " 0 0");
+        out.println(" " + (sequence.length()) + " " + coverage + " " + coverage + " 0 0");
 
-        out.println(node.sequence);
-        out.println(node.rc.sequence);
+        out.println(sequence);
+        out.println(graph.label(graph.rc(node)));
     }
 }
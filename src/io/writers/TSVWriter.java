@@ -1,6 +1,6 @@
 package io.writers;
 
-import algo.SingleNode;
+import algo.CompactGraph;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -12,16 +12,29 @@ public class TSVWriter {
 
     private final int k;
     private final String outputPrefix;
-    SingleNode[] nodes;
+    private final CompactGraph graph;
+    private final int[] nodes;
     private final Map<String, Integer> subgraph;
     private final int size;
 
-    public TSVWriter(int k, String outputPrefix, SingleNode[] nodes, Map<String, Integer> subgraph) {
+    /**
+     * @param nodes nodes of the graph to print or null to print all of them
+     */
+    public TSVWriter(int k, String outputPrefix, CompactGraph graph, int[] nodes, Map<String, Integer> subgraph) {
         this.k = k;
         this.outputPrefix = outputPrefix;
+        this.graph = graph;
         this.nodes = nodes;
         this.subgraph = subgraph;
-        this.size = nodes.length;
+        this.size = nodes != null ? nodes.length : graph.size();
+    }
+
+    public TSVWriter(int k, String outputPrefix, CompactGraph graph, Map<String, Integer> subgraph) {
+        this(k, outputPrefix, graph, null, subgraph);
+    }
+
+    private int node(int i) {
+        return nodes != null ? nodes[i] : i;
     }
 
     public void print() {
@@ -41,8 +54,9 @@ public class TSVWriter {
         }
         out.println("id\tlength\tseq");
         for (int i = 0; i < size; i++) {
-            if (!nodes[i].deleted && nodes[i].sequence.compareTo(nodes[i].rc.sequence) <= 0) {
-                out.println((i + 1) + "\t" + nodes[i].sequence.length() + "\t" + nodes[i].sequence);
+            int v = node(i);
+            if (!graph.isDeleted(v) && graph.compareLabels(v, graph.rc(v)) <= 0) {
+                out.println((i + 1) + "\t" + graph.labelLength(v) + "\t" + graph.label(v));
             }
         }
         out.close();
@@ -57,11 +71,13 @@ public class TSVWriter {
         }
 
         out.println("source\ttarget");
-        for (SingleNode i : nodes) {
-            if (!i.deleted) {
-                for (SingleNode j : i.neighbors) {
-                    if (!j.deleted) {
-                        printEdge(out, i, j);
+        for (int i = 0; i < size; i++) {
+            int v = node(i);
+            if (!graph.isDeleted(v)) {
+                for (int j = 0; j < graph.degree(v); j++) {
+                    int u = graph.neighbor(v, j);
+                    if (!graph.isDeleted(u)) {
+                        printEdge(out, v, u);
                     }
                 }
             }
@@ -70,11 +86,11 @@ public class TSVWriter {
     }
 
 
-    private void printEdge(PrintWriter out, SingleNode first, SingleNode second) {
-        out.println(getNodeId(first.rc) + "\t" + getNodeId(second) + "\tpp");
+    private void printEdge(PrintWriter out, int first, int second) {
+        out.println(getNodeId(graph.rc(first)) + "\t" + getNodeId(second) + "\tpp");
     }
 
-    private String getNodeId(SingleNode node) {
-        return "" + (node.sequence.compareTo(node.rc.sequence) <= 0 ? node.id + 1 : "-" + (node.rc.id + 1)) + (node.isGeneNode ? GENE_LABEL_SUFFIX : "");
+    private String getNodeId(int node) {
+        return "" + (graph.compareLabels(node, graph.rc(node)) <= 0 ? node + 1 : "-" + (graph.rc(node) + 1)) + (graph.isGene(node) ? GENE_LABEL_SUFFIX : "");
     }
 }
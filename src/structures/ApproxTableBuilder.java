@@ -0,0 +1,238 @@
+package structures;
+
+import io.IOUtils;
+import io.LargeKIOUtils;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+import utils.HashFunction;
+import utils.PolynomialHash;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sizes {@link CountingCuckooFilter} by the number of distinct k-mers in the input and fills it from the input files.
+ */
+public class ApproxTableBuilder {
+    private static final long ESTIMATE_SAMPLE_KMERS = 1L << 25;
+    private static final int ESTIMATE_PRECISION = 14;
+
+    /**
+     * Upper estimate of distinct k-mers number in given files, used to size approximate tables.<br></br>
+     * <br></br>
+     *
+     * Distinct k-mers of reads are counted by HyperLogLog on a sample from the start of the files. Their number in
+     * the rest of the files is extrapolated by their growth over the second half of the sample: new k-mers get only
+     * rarer as more reads are seen, so the number isn't underestimated. K-mers in binary format are distinct already
+     * and are estimated by files size, as well as reads in formats other than FASTA and FASTQ.
+     */
+    public static long estimateKmersNumber(File[] files, int k) throws ExecutionFailedException {
+        long kmers = 0;
+        long readsBytes = 0;
+        List<File> reads = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName().toLowerCase();
+            long size = file.length();
+            if (name.endsWith(".gz")) {
+                size *= 4;
+                name = name.substring(0, name.length() - 3);
+            }
+            if (name.endsWith("kmers.bin")) {
+                kmers += size / 10;     // long key + short value
+            } else if (KmersSample.isFastq(name) || KmersSample.isFasta(name)) {
+                reads.add(file);
+                readsBytes += file.length();
+            } else {
+                kmers += size;
+            }
+        }
+        if (!reads.isEmpty()) {
+            KmersSample sample = new KmersSample(k);
+            for (File file : reads) {
+                try {
+                    if (!sample.read(file)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    throw new ExecutionFailedException("Can't read " + file.getPath() + ": " + e.getMessage(), e);
+                }
+            }
+            kmers += sample.extrapolate(readsBytes);
+        }
+        return Math.max(kmers, 1);
+    }
+
+    private static class KmersSample {
+        final int k;
+        final long kMask;
+        final HyperLogLog distinct = new HyperLogLog(ESTIMATE_PRECISION);
+        final HashFunction hash = new PolynomialHash();
+        long kmers;
+        long bytes;
+        long halfDistinct = -1;
+        long halfBytes;
+        boolean full;
+
+        // current window of the record
+        int valid;
+        long fw, rc;
+        final StringBuilder tail = new StringBuilder();
+
+        KmersSample(int k) {
+            this.k = k;
+            this.kMask = k <= 31 ? (1L << (2 * k)) - 1 : 0;
+        }
+
+        static boolean isFastq(String name) {
+            return name.endsWith(".fastq") || name.endsWith(".fq");
+        }
+
+        static boolean isFasta(String name) {
+            return name.endsWith(".fasta") || name.endsWith(".fa") || name.endsWith(".fna") || name.endsWith(".fas");
+        }
+
+        /**
+         * @return false if the sample is full
+         */
+        boolean read(File file) throws IOException {
+            String name = file.getName().toLowerCase();
+            boolean gzip = name.endsWith(".gz");
+            boolean fastq = isFastq(gzip ? name.substring(0, name.length() - 3) : name);
+            try (FileInputStream stream = new FileInputStream(file);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(
+                         gzip ? new GZIPInputStream(stream) : stream))) {
+                String line;
+                long lineNumber = 0;
+                while ((line = in.readLine()) != null) {
+                    boolean isSequence = fastq ? lineNumber % 4 == 1 : !line.startsWith(">") && !line.startsWith(";");
+                    lineNumber++;
+                    if (!isSequence) {
+                        continue;
+                    }
+                    if (fastq) {
+                        reset();
+                    }
+                    add(line);
+                    // position of the stream is in compressed bytes, as sizes of the files
+                    if (halfDistinct < 0 && kmers >= ESTIMATE_SAMPLE_KMERS / 2) {
+                        halfDistinct = distinct.estimate();
+                        halfBytes = bytes + stream.getChannel().position();
+                    }
+                    if (kmers >= ESTIMATE_SAMPLE_KMERS) {
+                        full = true;
+                        bytes += stream.getChannel().position();
+                        return false;
+                    }
+                }
+            }
+            reset();
+            bytes += file.length();
+            return true;
+        }
+
+        private void reset() {
+            valid = 0;
+            fw = 0;
+            rc = 0;
+            tail.setLength(0);
+        }
+
+        private void add(String line) {
+            for (int i = 0; i < line.length(); i++) {
+                char c = Character.toUpperCase(line.charAt(i));
+                int nuc = "ACGT".indexOf(c);
+                if (nuc < 0) {
+                    reset();
+                    continue;
+                }
+                valid++;
+                if (k <= 31) {
+                    fw = ((fw << 2) | nuc) & kMask;
+                    rc = (rc >>> 2) | ((long) (3 - nuc) << (2 * (k - 1)));
+                    if (valid >= k) {
+                        distinct.add(Math.min(fw, rc));
+                        kmers++;
+                    }
+                } else {
+                    tail.append(c);
+                    if (valid >= k) {
+                        distinct.add(hash.hash(tail.substring(tail.length() - k)));
+                        kmers++;
+                    }
+                    if (tail.length() >= 4 * k) {
+                        tail.delete(0, tail.length() - k + 1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param totalBytes size of all sampled files
+         */
+        long extrapolate(long totalBytes) {
+            long result = distinct.estimate();
+            if (full && bytes < totalBytes) {
+                double growth = (double) (result - halfDistinct) / Math.max(bytes - halfBytes, 1);
+                long all = (long) ((double) kmers * totalBytes / Math.max(bytes, 1));
+                result = Math.min(result + (long) (growth * (totalBytes - bytes)), all);
+            }
+            // three standard errors of the sketch
+            return (long) (result * (1 + 3 * 1.04 / Math.sqrt(1 << ESTIMATE_PRECISION)));
+        }
+    }
+
+    /**
+     * Creates approximate counter for k-mers from given files.
+     *
+     * @param fpRate        desired false-positive rate as a string, e.g. "0.01"
+     * @param expectedKmers expected number of distinct k-mers or null to estimate it from a sample of the files
+     */
+    public static CountingCuckooFilter create(File[] files, int k, String fpRate, Long expectedKmers,
+                                              int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        double fpr;
+        try {
+            fpr = Double.parseDouble(fpRate);
+        } catch (NumberFormatException e) {
+            throw new ExecutionFailedException("Can't parse false-positive rate " + fpRate, e);
+        }
+        if (fpr <= 0 || fpr >= 1) {
+            throw new ExecutionFailedException("False-positive rate should be in (0, 1), given " + fpRate);
+        }
+        long kmers = expectedKmers != null ? expectedKmers : estimateKmersNumber(files, k);
+
+        CountingCuckooFilter filter = new CountingCuckooFilter(kmers, fpr,
+                (int) (Math.log(availableProcessors) / Math.log(2)) + 4);
+        Tool.info(logger, "Using approximate k-mer counter for " + NumUtils.groupDigits(kmers) + " k-mers, "
+                + filter.fingerprintBits() + "-bit fingerprints (false-positive rate <= "
+                + String.format("%.2g", filter.expectedFpRate()) + "), "
+                + NumUtils.memoryAsString(filter.memoryInBytes()));
+        return filter;
+    }
+
+    /**
+     * Loads k-mers (or hashes of k-mers for k > 31) from reads or from k-mers in binary format
+     * into approximate counter
+     */
+    public static CountingCuckooFilter load(File[] files, int k, String fpRate, Long expectedKmers,
+                                            int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        CountingCuckooFilter filter = create(files, k, fpRate, expectedKmers, availableProcessors, logger);
+        if (files[0].getName().toLowerCase().endsWith("kmers.bin")) {
+            IOUtils.loadKmers(files, 0, filter::addAndBound, null, availableProcessors, logger);
+        } else if (k > 31) {
+            LargeKIOUtils.loadReads(files, k, 0, 1, filter::addAndBound, null, availableProcessors, logger);
+        } else {
+            IOUtils.loadReads(files, k, 0, 1, filter::addAndBound, null, availableProcessors, logger);
+        }
+        if (filter.spilledKeys() > 0) {
+            Tool.warn(logger, NumUtils.groupDigits(filter.spilledKeys()) + " k-mers didn't fit into approximate counter "
+                    + "and are stored exactly, consider increasing --approx-kmers");
+        }
+        return filter;
+    }
+}
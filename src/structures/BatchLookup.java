@@ -0,0 +1,176 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+
+import java.util.Arrays;
+
+/**
+ * Bulk lookups of many keys in k-mer table at once.<br></br>
+ * <br></br>
+ *
+ * For BigLong2ShortHashMap hashes of all keys are computed in one tight pass first,
+ * then keys are grouped by small map (counting sort) and each small map is probed with all its keys in a row,
+ * so its data stays in cache during the group. Results are written in the original order of keys.<br></br>
+ * <br></br>
+ *
+ * Methods use per-thread scratch buffers and can be called concurrently from many threads.
+ */
+public class BatchLookup {
+    /**
+     * Batches smaller than number of small maps divided by this value aren't grouped
+     */
+    private static final int MIN_KEYS_PER_SHARD_DIVISOR = 4;
+
+    private static class Buffers {
+        int[] shard = new int[0];
+        int[] order = new int[0];
+        int[] start = new int[0];
+        long[] passedKeys = new long[0];
+        short[] passedValues = new short[0];
+        int[] passedIndex = new int[0];
+
+        void ensurePassed(int n) {
+            if (passedKeys.length < n) {
+                int size = Math.max(n, passedKeys.length * 2);
+                passedKeys = new long[size];
+                passedValues = new short[size];
+                passedIndex = new int[size];
+            }
+        }
+
+        void ensure(int n, int shards) {
+            if (shard.length < n) {
+                shard = new int[Math.max(n, shard.length * 2)];
+                order = new int[shard.length];
+            }
+            if (start.length < shards + 1) {
+                start = new int[shards + 1];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+
+    /**
+     * Sets <code>out[i] = counts.get(keys[i])</code> for all i < n, i.e. -1 for absent keys
+     */
+    public static void getMany(KmerCounts counts, long[] keys, int n, short[] out) {
+        lookup(counts, keys, n, out, false);
+    }
+
+    /**
+     * Sets <code>out[i] = counts.getWithZero(keys[i])</code> for all i < n
+     */
+    public static void getManyWithZero(KmerCounts counts, long[] keys, int n, short[] out) {
+        lookup(counts, keys, n, out, true);
+    }
+
+    private static void lookup(KmerCounts counts, long[] keys, int n, short[] out, boolean withZero) {
+        if (counts instanceof PrefilteredTable) {
+            lookupPrefiltered((PrefilteredTable) counts, keys, n, out, withZero);
+            return;
+        }
+        Long2ShortHashMapInterface table = counts instanceof TableCounts ? ((TableCounts) counts).table() : null;
+        if (!(table instanceof BigLong2ShortHashMap)) {
+            for (int i = 0; i < n; i++) {
+                out[i] = withZero ? counts.getWithZero(keys[i]) : counts.get(keys[i]);
+            }
+            return;
+        }
+        lookupGrouped((BigLong2ShortHashMap) table, keys, n, out, withZero);
+    }
+
+    private static void lookupGrouped(BigLong2ShortHashMap table, long[] keys, int n, short[] out, boolean withZero) {
+        Long2ShortHashMap[] maps = table.maps;
+        int shards = maps.length;
+        int mask = shards - 1;
+        Buffers buf = buffers.get();
+        buf.ensure(n, shards);
+        int[] shard = buf.shard;
+
+        // the same shard function as in BigLong2ShortHashMap
+        for (int i = 0; i < n; i++) {
+            shard[i] = HashCommon.murmurHash3((int) keys[i]) & mask;
+        }
+
+        if (n * MIN_KEYS_PER_SHARD_DIVISOR < shards) {
+            for (int i = 0; i < n; i++) {
+                out[i] = withZero ? maps[shard[i]].getWithZero(keys[i]) : maps[shard[i]].get(keys[i]);
+            }
+            return;
+        }
+
+        int[] start = buf.start;
+        int[] order = buf.order;
+        Arrays.fill(start, 0, shards + 1, 0);
+        for (int i = 0; i < n; i++) {
+            start[shard[i] + 1]++;
+        }
+        for (int s = 0; s < shards; s++) {
+            start[s + 1] += start[s];
+        }
+        for (int i = 0; i < n; i++) {
+            order[start[shard[i]]++] = i;
+        }
+
+        // start[s] now points to the end of group s
+        int from = 0;
+        for (int s = 0; s < shards; s++) {
+            int to = start[s];
+            if (from == to) {
+                continue;
+            }
+            Long2ShortHashMap map = maps[s];
+            if (withZero) {
+                for (int j = from; j < to; j++) {
+                    int i = order[j];
+                    out[i] = map.getWithZero(keys[i]);
+                }
+            } else {
+                for (int j = from; j < to; j++) {
+                    int i = order[j];
+                    out[i] = map.get(keys[i]);
+                }
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * Only keys which pass Bloom filter are looked up in the table
+     */
+    private static void lookupPrefiltered(PrefilteredTable table, long[] keys, int n, short[] out, boolean withZero) {
+        Buffers buf = buffers.get();
+        buf.ensurePassed(n);
+        long[] passedKeys = buf.passedKeys;
+        short[] passedValues = buf.passedValues;
+        int[] passedIndex = buf.passedIndex;
+
+        short absent = withZero ? (short) 0 : (short) -1;
+        int passed = 0;
+        for (int i = 0; i < n; i++) {
+            if (table.filter.test(keys[i])) {
+                passedKeys[passed] = keys[i];
+                passedIndex[passed] = i;
+                passed++;
+            } else {
+                out[i] = absent;
+            }
+        }
+        table.filter.count(n, n - passed);
+
+        lookupGrouped(table.table, passedKeys, passed, passedValues, withZero);
+        for (int j = 0; j < passed; j++) {
+            out[passedIndex[j]] = passedValues[j];
+        }
+    }
+}
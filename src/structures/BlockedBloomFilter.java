@@ -0,0 +1,147 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Blocked Bloom filter: all bits of one key lie in one 512-bit block (one cache line),
+ * one bit in each of its 8 words. So a query costs exactly one random memory access.<br></br>
+ * <br></br>
+ *
+ * Filter answers "definitely absent" or "maybe present". If requested, it counts both kinds of answers;
+ * shared counters cost a write on every query, so they are off by default.
+ */
+public class BlockedBloomFilter {
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final long[] SALT = {
+            0x47b6137b44974d91L, 0x8824ad5ba2b7289dL, 0x705495c72df1424bL, 0x9efc49475c6bfb31L,
+            0x2f64b9c93be7b5a5L, 0xc8a6a4b1e07d8b1dL, 0x5b3c2f1e9a7d6c4bL, 0xe1f2a3b4c5d6e7f9L
+    };
+
+    private final AtomicLongArray bits;
+    private final long blocks;
+
+    private final LongAdder queries;
+    private final LongAdder rejected;
+
+
+    public BlockedBloomFilter(long expectedKeys, int bitsPerKey, boolean countQueries) {
+        long blocks = Math.max(1, (Math.max(expectedKeys, 1) * bitsPerKey + 511) / 512);
+        if (blocks * WORDS_PER_BLOCK > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many keys for Bloom filter: " + expectedKeys);
+        }
+        this.blocks = blocks;
+        this.bits = new AtomicLongArray((int) (blocks * WORDS_PER_BLOCK));
+        this.queries = countQueries ? new LongAdder() : null;
+        this.rejected = countQueries ? new LongAdder() : null;
+    }
+
+    private static long mix(long key) {
+        // table uses murmurHash3 of the key itself, so the filter uses another one
+        return HashCommon.murmurHash3(key + 0x61c8864680b583ebL);
+    }
+
+    private int blockStart(long h) {
+        return (int) (((h >>> 32) * blocks) >>> 32) * WORDS_PER_BLOCK;
+    }
+
+    public void add(long key) {
+        long h = mix(key);
+        int start = blockStart(h);
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            long mask = 1L << ((h * SALT[i]) >>> 58);
+            int pos = start + i;
+            long cur = bits.get(pos);
+            while ((cur & mask) == 0 && !bits.compareAndSet(pos, cur, cur | mask)) {
+                cur = bits.get(pos);
+            }
+        }
+    }
+
+    public boolean mightContain(long key) {
+        boolean result = test(key);
+        if (queries != null) {
+            queries.increment();
+            if (!result) {
+                rejected.increment();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Answers the query without counting it, callers which query in batches count them by {@link #count}
+     */
+    boolean test(long key) {
+        long h = mix(key);
+        int start = blockStart(h);
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            if ((bits.get(start + i) & (1L << ((h * SALT[i]) >>> 58))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void count(long queries, long rejected) {
+        if (this.queries != null) {
+            this.queries.add(queries);
+            this.rejected.add(rejected);
+        }
+    }
+
+    public long memoryInBytes() {
+        return 8L * bits.length();
+    }
+
+    public boolean countsQueries() {
+        return queries != null;
+    }
+
+    /**
+     * @return number of queries if they are counted, otherwise 0
+     */
+    public long queries() {
+        return queries == null ? 0 : queries.sum();
+    }
+
+    /**
+     * @return number of queries answered as "definitely absent"
+     */
+    public long rejected() {
+        return rejected == null ? 0 : rejected.sum();
+    }
+
+
+    /**
+     * Builds filter from all keys of the table, small maps are processed in parallel
+     */
+    public static BlockedBloomFilter buildFrom(BigLong2ShortHashMap table, int bitsPerKey, boolean countQueries,
+                                               int threads) throws InterruptedException {
+        final BlockedBloomFilter filter = new BlockedBloomFilter(table.size(), bitsPerKey, countQueries);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (final Long2ShortHashMap map : table.maps) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Iterator<MutableLongShortEntry> it = map.entryIterator();
+                    while (it.hasNext()) {
+                        filter.add(it.next().getKey());
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return filter;
+    }
+}
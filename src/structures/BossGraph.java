@@ -0,0 +1,769 @@
+package structures;
+
+import io.IOUtils;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.KmerUtils;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Succinct de Bruijn graph of solid k-mers (count >= threshold) in BOSS representation, k <= 31.<br></br>
+ * <br></br>
+ *
+ * Nodes are (k-1)-mers, edges are k-mers taken in both orientations. Edges are sorted by colexicographic order
+ * of their source node and then by label (last nucleotide of the edge). For every edge we keep:
+ * <ul>
+ *     <li>W - 4 bits: label and a flag which is set if some previous edge with the same label
+ *         goes to the same node;</li>
+ *     <li>L - 1 bit: edge is the last edge of its source node;</li>
+ *     <li>1 bit which marks edges that are canonical k-mers, the count of k-mer is stored for them only.</li>
+ * </ul>
+ * Nodes without incoming edges get chains of dummy nodes, padded with '$' from the left, and nodes without
+ * outgoing edges get a '$' edge, as in the original BOSS paper. Ranks over W and L are sampled every 512 edges.
+ * Counts are kept in one byte each, larger ones in a small side table. The whole index takes about
+ * 8-12 bits per edge instead of ~100 bits per k-mer of the hash table.<br></br>
+ * <br></br>
+ *
+ * Index is static and its lookups cost O(k) rank/select operations, i.e. they are several times slower
+ * than hash table lookups. Table can't be iterated, as k-mers aren't stored explicitly.
+ */
+public class BossGraph implements KmerCounts, ExtensionIndex {
+    private static final int SUPERBLOCK = 512;
+    /** unflagged labels A, G, C, T and flagged ones */
+    private static final int CLASSES = 8;
+    private static final int FLAG = 8;
+    private static final int MAX_BYTE_COUNT = 255;
+    /** nodes which share all characters except the first one */
+    private static final int MAX_NODES_IN_GROUP = 5;
+
+    private int k;
+    private int threshold;
+    private int edges;
+    private int nodes;
+    private long kmers;
+    /** first node which ends with symbol c: '$', A, G, C, T; f[5] = nodes */
+    private int[] f;
+    private long[] w;
+    private int[] wRanks;
+    private RankSelectBits last;
+    private RankSelectBits canonical;
+    private byte[] counts;
+    private int[] bigCountIndex;
+    private short[] bigCountValue;
+
+    private BossGraph() {
+    }
+
+
+    // --------------  Construction  ---------------
+
+    /**
+     * Builds graph from all k-mers of the table with count >= threshold
+     */
+    public static BossGraph fromTable(Long2ShortHashMapInterface table, int k, int threshold) {
+        Pairs kmers = new Pairs((int) Math.min(table.size(), Integer.MAX_VALUE - 8));
+        Iterator<MutableLongShortEntry> it = table.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            if (entry.getValue() >= threshold) {
+                kmers.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return build(kmers, k, threshold);
+    }
+
+    /**
+     * Builds graph from .kmers.bin files without loading them into a hash table.
+     * Counts of k-mers present in several files are summed up.
+     */
+    public static BossGraph fromKmersFiles(File[] files, int k, int threshold) throws IOException {
+        long records = 0;
+        for (File file : files) {
+            records += file.length() / 10;
+        }
+        Pairs kmers = new Pairs((int) Math.min(records, Integer.MAX_VALUE - 8));
+        for (File file : files) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 24));
+            try {
+                while (true) {
+                    long kmer;
+                    try {
+                        kmer = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    kmers.add(kmer, in.readShort());
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return build(kmers, k, threshold);
+    }
+
+    /**
+     * Builds graph of k-mers with count >= threshold from reads or from k-mers in binary format.
+     * K-mers in binary format are read directly, reads are counted in hash table first.
+     */
+    public static BossGraph fromFiles(File[] files, int k, int threshold, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        if (k > 31) {
+            throw new ExecutionFailedException("Succinct graph can be built only for k <= 31");
+        }
+        Timer t = new Timer();
+        BossGraph graph;
+        boolean kmersInput = files.length > 0;
+        for (File file : files) {
+            kmersInput &= file.getName().toLowerCase().endsWith("kmers.bin");
+        }
+        if (kmersInput) {
+            try {
+                graph = fromKmersFiles(files, k, threshold);
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't load k-mers from files", e);
+            }
+        } else {
+            BigLong2ShortHashMap table = IOUtils.loadReads(files, k, 0, availableProcessors, logger);
+            graph = fromTable(table, k, threshold);
+        }
+        Tool.info(logger, "Succinct graph built: " + NumUtils.groupDigits(graph.size()) + " k-mers, "
+                + NumUtils.groupDigits(graph.edges()) + " edges, " + NumUtils.memoryAsString(graph.memoryInBytes())
+                + " (" + String.format("%.1f", graph.bitsPerEdge()) + " bits per edge), time = " + t);
+        return graph;
+    }
+
+    private static BossGraph build(Pairs input, int k, int threshold) {
+        if (k < 2 || k > 31) {
+            throw new IllegalArgumentException("Succinct graph supports only 2 <= k <= 31, given k = " + k);
+        }
+        Pairs kmers = mergeCounts(input, threshold);
+        int n = kmers.size;
+
+        long nodeMask = (1L << (2 * (k - 1))) - 1;
+        int realEdges = 0;
+        for (int i = 0; i < n; i++) {
+            realEdges += kmers.a[i] == KmerUtils.reverseComplement(kmers.a[i], k) ? 1 : 2;
+        }
+        long[] prefixes = new long[realEdges];
+        long[] suffixes = new long[realEdges];
+        Pairs edgeList = new Pairs(realEdges + realEdges / 8);
+        for (int i = 0, j = 0; i < n; i++) {
+            long kmer = kmers.a[i];
+            long rc = KmerUtils.reverseComplement(kmer, k);
+            for (long e : (kmer == rc ? new long[]{kmer} : new long[]{kmer, rc})) {
+                prefixes[j] = e >>> 2;
+                suffixes[j] = e & nodeMask;
+                edgeList.add(aligned(e >>> 2, k - 1, k), meta(k - 1, (int) (e & 3) + 1));
+                j++;
+            }
+        }
+        int pn = sortUnique(prefixes);
+        int sn = sortUnique(suffixes);
+
+        // nodes without outgoing edges get '$' edge
+        for (int i = 0, j = 0; i < sn; i++) {
+            while (j < pn && prefixes[j] < suffixes[i]) {
+                j++;
+            }
+            if (j == pn || prefixes[j] != suffixes[i]) {
+                edgeList.add(aligned(suffixes[i], k - 1, k), meta(k - 1, 0));
+            }
+        }
+        // nodes without incoming edges get chain of dummy nodes $^j + v[0..k-2-j]
+        for (int i = 0, j = 0; i < pn; i++) {
+            while (j < sn && suffixes[j] < prefixes[i]) {
+                j++;
+            }
+            if (j == sn || suffixes[j] != prefixes[i]) {
+                long v = prefixes[i];
+                for (int d = 1; d <= k - 1; d++) {
+                    int len = k - 1 - d;
+                    int label = (int) ((v >>> (2 * (d - 1))) & 3) + 1;
+                    edgeList.add(aligned(v >>> (2 * d), len, k), meta(len, label));
+                }
+            }
+        }
+        prefixes = null;
+        suffixes = null;
+
+        sortPairs(edgeList.a, edgeList.b, 0, edgeList.size);
+        int m = 0;
+        for (int i = 0; i < edgeList.size; i++) {
+            if (m == 0 || edgeList.a[i] != edgeList.a[m - 1] || edgeList.b[i] != edgeList.b[m - 1]) {
+                edgeList.a[m] = edgeList.a[i];
+                edgeList.b[m] = edgeList.b[i];
+                m++;
+            }
+        }
+
+        BossGraph g = new BossGraph();
+        g.k = k;
+        g.threshold = threshold;
+        g.kmers = n;
+        g.fill(edgeList.a, edgeList.b, m, kmers);
+        return g;
+    }
+
+    private void fill(long[] aligned, short[] meta, int m, Pairs kmers) {
+        edges = m;
+        w = new long[(m + 15) >>> 4];
+        wRanks = new int[((m + SUPERBLOCK - 1) / SUPERBLOCK + 1) * CLASSES];
+        long[] lastBits = RankSelectBits.newBits(m);
+        long[] canonicalBits = RankSelectBits.newBits(m);
+        counts = new byte[kmers.size];
+        Pairs bigCounts = new Pairs(16);
+
+        int[] nodesBySymbol = new int[5];
+        int[] running = new int[CLASSES];
+        long groupAligned = -1;
+        int groupLen = -1;
+        int seen = 0;
+        int countIndex = 0;
+
+        for (int i = 0; i < m; i++) {
+            if (i % SUPERBLOCK == 0) {
+                System.arraycopy(running, 0, wRanks, (i / SUPERBLOCK) * CLASSES, CLASSES);
+            }
+            long a = aligned[i];
+            int len = meta[i] >>> 3;
+            int label = meta[i] & 7;
+
+            if (i == 0 || a != aligned[i - 1] || len != (meta[i - 1] >>> 3)) {
+                nodesBySymbol[len == 0 ? 0 : (int) ((a >>> (2 * (k - 2))) & 3) + 1]++;
+            }
+            if (i == m - 1 || a != aligned[i + 1] || len != (meta[i + 1] >>> 3)) {
+                RankSelectBits.set(lastBits, i);
+            }
+
+            // the first char of node is the lowest one in colex key
+            long sa = len == k - 1 ? a & ~3L : a;
+            int sl = Math.min(len, k - 2);
+            if (sa != groupAligned || sl != groupLen) {
+                groupAligned = sa;
+                groupLen = sl;
+                seen = 0;
+            }
+            int nibble = label;
+            if (label != 0) {
+                if ((seen & (1 << label)) != 0) {
+                    nibble |= FLAG;
+                    running[4 + label - 1]++;
+                } else {
+                    seen |= 1 << label;
+                    running[label - 1]++;
+                }
+            }
+            w[i >>> 4] |= (long) nibble << ((i & 15) << 2);
+
+            if (len == k - 1 && label != 0) {
+                long kmer = (reverse(a, k - 1) << 2) | (label - 1);
+                if (kmer <= KmerUtils.reverseComplement(kmer, k)) {
+                    RankSelectBits.set(canonicalBits, i);
+                    int count = kmers.b[Arrays.binarySearch(kmers.a, 0, kmers.size, kmer)];
+                    if (count >= MAX_BYTE_COUNT) {
+                        counts[countIndex] = (byte) MAX_BYTE_COUNT;
+                        bigCounts.add(countIndex, (short) count);
+                    } else {
+                        counts[countIndex] = (byte) count;
+                    }
+                    countIndex++;
+                }
+            }
+        }
+        System.arraycopy(running, 0, wRanks, wRanks.length - CLASSES, CLASSES);
+
+        f = new int[6];
+        for (int c = 0; c < 5; c++) {
+            f[c + 1] = f[c] + nodesBySymbol[c];
+        }
+        nodes = f[5];
+        last = new RankSelectBits(lastBits, m);
+        canonical = new RankSelectBits(canonicalBits, m);
+        bigCountIndex = new int[bigCounts.size];
+        bigCountValue = Arrays.copyOf(bigCounts.b, bigCounts.size);
+        for (int i = 0; i < bigCounts.size; i++) {
+            bigCountIndex[i] = (int) bigCounts.a[i];
+        }
+    }
+
+    /**
+     * Sorts k-mers, sums counts of equal ones and drops ones with count < threshold
+     */
+    private static Pairs mergeCounts(Pairs kmers, int threshold) {
+        sortPairs(kmers.a, kmers.b, 0, kmers.size);
+        int n = 0;
+        for (int i = 0; i < kmers.size; ) {
+            long key = kmers.a[i];
+            int count = 0;
+            for (; i < kmers.size && kmers.a[i] == key; i++) {
+                count = Math.min(count + kmers.b[i], Short.MAX_VALUE);
+            }
+            if (count >= threshold) {
+                kmers.a[n] = key;
+                kmers.b[n] = (short) count;
+                n++;
+            }
+        }
+        kmers.size = n;
+        return kmers;
+    }
+
+    /**
+     * Colex key of node $^(k-1-len) + real: reversed real part aligned to the highest of 2(k-1) bits.
+     * Together with len it gives colex order as '$' is less than any nucleotide.
+     */
+    private static long aligned(long real, int len, int k) {
+        if (len == 0) {
+            return 0;
+        }
+        return reverse(real, len) << (2 * (k - 1 - len));
+    }
+
+    private static long reverse(long s, int len) {
+        return KmerUtils.reverseComplement(s, len) ^ ((1L << (2 * len)) - 1);
+    }
+
+    private static short meta(int len, int label) {
+        return (short) ((len << 3) | label);
+    }
+
+    private static int sortUnique(long[] a) {
+        Arrays.sort(a);
+        int n = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (n == 0 || a[i] != a[n - 1]) {
+                a[n++] = a[i];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Sorts pairs (a[i], b[i]) from range [from, to) lexicographically
+     */
+    private static void sortPairs(long[] a, short[] b, int from, int to) {
+        while (to - from > 16) {
+            int mid = (from + to) >>> 1;
+            int p = medianOf3(a, b, from, mid, to - 1);
+            long pa = a[p];
+            short pb = b[p];
+            int i = from, j = to - 1;
+            while (i <= j) {
+                while (compare(a[i], b[i], pa, pb) < 0) {
+                    i++;
+                }
+                while (compare(a[j], b[j], pa, pb) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, b, i++, j--);
+                }
+            }
+            if (j + 1 - from < to - i) {
+                sortPairs(a, b, from, j + 1);
+                from = i;
+            } else {
+                sortPairs(a, b, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && compare(a[j - 1], b[j - 1], a[j], b[j]) > 0; j--) {
+                swap(a, b, j - 1, j);
+            }
+        }
+    }
+
+    private static int medianOf3(long[] a, short[] b, int x, int y, int z) {
+        if (compare(a[x], b[x], a[y], b[y]) < 0) {
+            if (compare(a[y], b[y], a[z], b[z]) < 0) {
+                return y;
+            }
+            return compare(a[x], b[x], a[z], b[z]) < 0 ? z : x;
+        }
+        if (compare(a[x], b[x], a[z], b[z]) < 0) {
+            return x;
+        }
+        return compare(a[y], b[y], a[z], b[z]) < 0 ? z : y;
+    }
+
+    private static int compare(long a1, short b1, long a2, short b2) {
+        return a1 != a2 ? Long.compare(a1, a2) : Short.compare(b1, b2);
+    }
+
+    private static void swap(long[] a, short[] b, int i, int j) {
+        long ta = a[i];
+        a[i] = a[j];
+        a[j] = ta;
+        short tb = b[i];
+        b[i] = b[j];
+        b[j] = tb;
+    }
+
+    private static class Pairs {
+        long[] a;
+        short[] b;
+        int size;
+
+        Pairs(int capacity) {
+            a = new long[Math.max(capacity, 16)];
+            b = new short[a.length];
+        }
+
+        void add(long x, short y) {
+            if (size == a.length) {
+                int newLength = (int) Math.min(a.length * 3L / 2, Integer.MAX_VALUE - 8);
+                if (newLength == a.length) {
+                    throw new IllegalStateException("Too many edges for succinct graph");
+                }
+                a = Arrays.copyOf(a, newLength);
+                b = Arrays.copyOf(b, newLength);
+            }
+            a[size] = x;
+            b[size] = y;
+            size++;
+        }
+    }
+
+
+    // --------------  Rank/select over W  ---------------
+
+    private int nibble(int i) {
+        return (int) (w[i >>> 4] >>> ((i & 15) << 2)) & 0xF;
+    }
+
+    /**
+     * @return number of edges with unflagged label sym in [0, pos)
+     */
+    private int rankUnflagged(int sym, int pos) {
+        int block = pos / SUPERBLOCK;
+        int r = wRanks[block * CLASSES + sym - 1];
+        for (int i = block * SUPERBLOCK; i < pos; i++) {
+            if (nibble(i) == sym) {
+                r++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return number of edges with label sym (flagged or not) in [0, pos)
+     */
+    private int rankAny(int sym, int pos) {
+        int block = pos / SUPERBLOCK;
+        int r = wRanks[block * CLASSES + sym - 1] + wRanks[block * CLASSES + 4 + sym - 1];
+        for (int i = block * SUPERBLOCK; i < pos; i++) {
+            if ((nibble(i) & 7) == sym) {
+                r++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return position of j-th (from 0) edge with label sym, flagged ones are counted iff withFlagged
+     */
+    private int select(int sym, int j, boolean withFlagged) {
+        int lo = 0, hi = wRanks.length / CLASSES - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (blockRank(mid, sym, withFlagged) <= j) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        int r = blockRank(lo, sym, withFlagged);
+        for (int i = lo * SUPERBLOCK; i < edges; i++) {
+            int x = nibble(i);
+            if (x == sym || (withFlagged && x == (sym | FLAG))) {
+                if (r == j) {
+                    return i;
+                }
+                r++;
+            }
+        }
+        throw new IllegalStateException("No edge " + j + " with label " + sym);
+    }
+
+    private int blockRank(int block, int sym, boolean withFlagged) {
+        int r = wRanks[block * CLASSES + sym - 1];
+        return withFlagged ? r + wRanks[block * CLASSES + 4 + sym - 1] : r;
+    }
+
+
+    // --------------  Navigation  ---------------
+
+    private int edgesStart(int node) {
+        return node == 0 ? 0 : (int) last.select1(node - 1) + 1;
+    }
+
+    private int edgesEnd(int node) {
+        return (int) last.select1(node);
+    }
+
+    private int target(int edge, int sym) {
+        return f[sym] + rankUnflagged(sym, edge + 1) - 1;
+    }
+
+    private int edgeOf(int node, int sym) {
+        for (int e = edgesStart(node), end = edgesEnd(node); e <= end; e++) {
+            if ((nibble(e) & 7) == sym) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    public long nodes() {
+        return nodes;
+    }
+
+    public long edges() {
+        return edges;
+    }
+
+    /**
+     * @param label (k-1)-mer in 2-bit encoding
+     * @return index of its node or -1 if there is no such node
+     */
+    public int node(long label) {
+        if (nodes == 0) {
+            return -1;
+        }
+        int lo = 0, hi = nodes - 1;
+        for (int t = 0; t < k - 1; t++) {
+            int sym = (int) ((label >>> (2 * (k - 2 - t))) & 3) + 1;
+            int r1 = rankAny(sym, edgesStart(lo));
+            int r2 = rankAny(sym, edgesEnd(hi) + 1);
+            if (r1 == r2) {
+                return -1;
+            }
+            lo = target(select(sym, r1, true), sym);
+            hi = target(select(sym, r2 - 1, true), sym);
+        }
+        return lo;
+    }
+
+    /**
+     * @return node reached from the given one by appending NUCLEOTIDES[nuc] or -1 if there is no such edge
+     */
+    public int successor(int node, int nuc) {
+        int e = edgeOf(node, nuc + 1);
+        return e == -1 ? -1 : target(e, nuc + 1);
+    }
+
+    /**
+     * @return all nodes with an edge to the given one, dummy '$'-padded nodes included
+     */
+    public int[] predecessors(int node) {
+        int sym = 0;
+        while (f[sym + 1] <= node) {
+            sym++;
+        }
+        if (sym == 0) {
+            return new int[0];
+        }
+        int e = select(sym, node - f[sym], false);
+        int[] result = new int[MAX_NODES_IN_GROUP];
+        int size = 0;
+        result[size++] = last.rank1(e);
+        // other edges to this node are flagged and lie in the same group of nodes
+        int passedNodes = last.get(e) ? 1 : 0;
+        for (int i = e + 1; i < edges && passedNodes < MAX_NODES_IN_GROUP; i++) {
+            int x = nibble(i);
+            if (x == sym) {
+                break;
+            }
+            if (x == (sym | FLAG)) {
+                result[size++] = last.rank1(i);
+            }
+            if (last.get(i)) {
+                passedNodes++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @param kmer k-mer in 2-bit encoding in any orientation
+     * @return mask with bit i set if <code>kmer[1..k-1] + NUCLEOTIDES[i]</code> is solid
+     */
+    public int outgoingMask(long kmer) {
+        int node = node(kmer & ((1L << (2 * (k - 1))) - 1));
+        if (node == -1) {
+            return 0;
+        }
+        int mask = 0;
+        for (int e = edgesStart(node), end = edgesEnd(node); e <= end; e++) {
+            int sym = nibble(e) & 7;
+            if (sym != 0) {
+                mask |= 1 << (sym - 1);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param kmer k-mer in 2-bit encoding in any orientation
+     * @return mask with bit i set if <code>NUCLEOTIDES[i] + kmer[0..k-2]</code> is solid
+     */
+    public int incomingMask(long kmer) {
+        // left extension x of kmer is right extension complement(x) of its reverse complement
+        int rcMask = outgoingMask(KmerUtils.reverseComplement(kmer, k));
+        int mask = 0;
+        for (int nuc = 0; nuc < 4; nuc++) {
+            if ((rcMask & (1 << (nuc ^ 3))) != 0) {
+                mask |= 1 << nuc;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Unlike {@link EdgeMasks#maskOf(long)} the mask is computed for absent k-mers too
+     */
+    @Override
+    public int maskOf(long kmer) {
+        return incomingMask(kmer) | (outgoingMask(kmer) << 4);
+    }
+
+    @Override
+    public int k() {
+        return k;
+    }
+
+    @Override
+    public int threshold() {
+        return threshold;
+    }
+
+    public long memoryInBytes() {
+        return 8L * w.length + 4L * wRanks.length + last.memoryInBytes() + canonical.memoryInBytes()
+                + counts.length + 6L * bigCountIndex.length;
+    }
+
+    public double bitsPerEdge() {
+        return memoryInBytes() * 8.0 / Math.max(edges, 1);
+    }
+
+
+    // --------------  Counts  ---------------
+
+    private int canonicalIndex(long key) {
+        key = KmerUtils.getKmerKey(key, k);
+        int node = node(key >>> 2);
+        if (node == -1) {
+            return -1;
+        }
+        int e = edgeOf(node, (int) (key & 3) + 1);
+        return e == -1 ? -1 : canonical.rank1(e);
+    }
+
+    private short countAt(int index) {
+        int count = counts[index] & 0xFF;
+        if (count < MAX_BYTE_COUNT) {
+            return (short) count;
+        }
+        return bigCountValue[Arrays.binarySearch(bigCountIndex, index)];
+    }
+
+    @Override
+    public short get(long key) {
+        int index = canonicalIndex(key);
+        return index == -1 ? -1 : countAt(index);
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        int index = canonicalIndex(key);
+        return index == -1 ? 0 : countAt(index);
+    }
+
+    @Override
+    public long size() {
+        return kmers;
+    }
+
+
+    // --------------  Serialization  ---------------
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(k);
+        out.writeInt(threshold);
+        out.writeInt(edges);
+        out.writeLong(kmers);
+        for (int x : f) {
+            out.writeInt(x);
+        }
+        out.writeInt(w.length);
+        for (long x : w) {
+            out.writeLong(x);
+        }
+        out.writeInt(wRanks.length);
+        for (int x : wRanks) {
+            out.writeInt(x);
+        }
+        last.write(out);
+        canonical.write(out);
+        out.writeInt(counts.length);
+        out.write(counts);
+        out.writeInt(bigCountIndex.length);
+        for (int i = 0; i < bigCountIndex.length; i++) {
+            out.writeInt(bigCountIndex[i]);
+            out.writeShort(bigCountValue[i]);
+        }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        k = in.readInt();
+        threshold = in.readInt();
+        edges = in.readInt();
+        kmers = in.readLong();
+        f = new int[6];
+        for (int i = 0; i < f.length; i++) {
+            f[i] = in.readInt();
+        }
+        nodes = f[5];
+        w = new long[in.readInt()];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = in.readLong();
+        }
+        wRanks = new int[in.readInt()];
+        for (int i = 0; i < wRanks.length; i++) {
+            wRanks[i] = in.readInt();
+        }
+        last = new RankSelectBits(in);
+        canonical = new RankSelectBits(in);
+        counts = new byte[in.readInt()];
+        in.readFully(counts);
+        bigCountIndex = new int[in.readInt()];
+        bigCountValue = new short[bigCountIndex.length];
+        for (int i = 0; i < bigCountIndex.length; i++) {
+            bigCountIndex[i] = in.readInt();
+            bigCountValue[i] = in.readShort();
+        }
+    }
+
+    public static BossGraph read(DataInput in) throws IOException {
+        BossGraph g = new BossGraph();
+        g.readFields(in);
+        return g;
+    }
+}
@@ -0,0 +1,369 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Approximate k-mer counter with bounded memory and configurable false-positive rate.<br></br>
+ * <br></br>
+ *
+ * Keys are reduced to short fingerprints stored together with a small counter in buckets of 4 slots
+ * (counting cuckoo filter). A key which is absent is reported as present with probability about
+ * <code>8 / 2^fingerprintBits</code>, counts of present keys can only be overestimated.
+ * Counters that overflow are continued in an exact side table, keys that can't be placed are kept exactly too.<br></br>
+ * <br></br>
+ *
+ * Table is split into independently locked segments, so it can be filled by many ingest workers at once.
+ * Reading methods don't take locks and are safe only after loading is finished. Keys themselves aren't stored,
+ * so the counter can't enumerate them and is used only for lookups.
+ */
+public class CountingCuckooFilter implements KmerCounts {
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_KICKS = 500;
+    private static final double MAX_LOAD_FACTOR = 0.93;
+
+    private final int fpBits;
+    private final int countBits;
+    private final int countMask;
+    private final int segmentBits;
+    private final int bucketsPerSegment;
+
+    private final int[][] slots;
+    private final long[] segmentSize;
+    private final ReentrantLock[] locks;
+    private final Random[] randoms;
+
+    /** extra counts of keys with saturated slot counter */
+    private final BigLong2ShortHashMap saturated;
+    /** exact counts of keys that couldn't be placed into the filter */
+    private final BigLong2ShortHashMap spilled;
+
+
+    /**
+     * @param expectedKeys expected number of distinct keys
+     * @param fpRate       desired probability to report an absent key as present
+     * @param logSegmentNumber log of number of independently locked segments
+     */
+    public CountingCuckooFilter(long expectedKeys, double fpRate, int logSegmentNumber) {
+        if (fpRate <= 0 || fpRate >= 1) {
+            throw new IllegalArgumentException("False-positive rate should be in (0, 1), given " + fpRate);
+        }
+        int bits = (int) Math.ceil(Math.log(2 * BUCKET_SIZE / fpRate) / Math.log(2));
+        this.fpBits = Math.max(8, Math.min(24, bits));
+        this.countBits = 32 - fpBits;
+        this.countMask = (1 << countBits) - 1;
+        this.segmentBits = Math.max(0, Math.min(8, logSegmentNumber));
+
+        int segments = 1 << segmentBits;
+        long buckets = (long) Math.ceil(Math.max(expectedKeys, 1) / (MAX_LOAD_FACTOR * BUCKET_SIZE * segments));
+        if (buckets * BUCKET_SIZE > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many keys for " + segments + " segments: " + expectedKeys);
+        }
+        this.bucketsPerSegment = (int) Math.max(buckets, 1);
+
+        slots = new int[segments][bucketsPerSegment * BUCKET_SIZE];
+        segmentSize = new long[segments];
+        locks = new ReentrantLock[segments];
+        randoms = new Random[segments];
+        for (int i = 0; i < segments; i++) {
+            locks[i] = new ReentrantLock();
+            randoms[i] = new Random(i);
+        }
+        saturated = new BigLong2ShortHashMap(segmentBits, 10);
+        spilled = new BigLong2ShortHashMap(segmentBits, 10);
+    }
+
+    public int fingerprintBits() {
+        return fpBits;
+    }
+
+    /**
+     * @return upper bound of false-positive rate for absent keys
+     */
+    public double expectedFpRate() {
+        return 2.0 * BUCKET_SIZE / (1L << fpBits);
+    }
+
+    public long memoryInBytes() {
+        return 4L * slots.length * slots[0].length;
+    }
+
+    public long spilledKeys() {
+        return spilled.size();
+    }
+
+
+    private static long mix(long key) {
+        return HashCommon.murmurHash3(key ^ 0x9E3779B97F4A7C15L);
+    }
+
+    private int fingerprint(long h) {
+        int fp = (int) (h >>> (64 - fpBits));
+        return fp == 0 ? 1 : fp;
+    }
+
+    private int firstBucket(long h) {
+        return (int) (((h >>> segmentBits) & 0xFFFFFFFFL) % bucketsPerSegment);
+    }
+
+    // alt(alt(i)) == i, so any number of buckets can be used
+    private int altBucket(int bucket, int fp) {
+        int hfp = (HashCommon.murmurHash3(fp) & 0x7FFFFFFF) % bucketsPerSegment;
+        int alt = (hfp - bucket) % bucketsPerSegment;
+        return alt < 0 ? alt + bucketsPerSegment : alt;
+    }
+
+    private int findSlot(int[] table, int bucket, int fp) {
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            if (table[i] != 0 && (table[i] >>> countBits) == fp) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findEmpty(int[] table, int bucket) {
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            if (table[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    public short addAndBound(long key, short incValue) {
+        long h = mix(key);
+        int seg = (int) (h & ((1 << segmentBits) - 1));
+        int fp = fingerprint(h);
+        int[] table = slots[seg];
+
+        locks[seg].lock();
+        try {
+            if (spilled.contains(key)) {
+                return spilled.addAndBound(key, incValue);
+            }
+            int b1 = firstBucket(h), b2 = altBucket(b1, fp);
+            int pos = findSlot(table, b1, fp);
+            if (pos == -1) {
+                pos = findSlot(table, b2, fp);
+            }
+            if (pos != -1) {
+                int count = table[pos] & countMask;
+                short prev = count == countMask ? bound(count + saturated.getWithZero(key)) : (short) count;
+                long newCount = (long) count + incValue;
+                if (newCount >= countMask) {
+                    table[pos] = (fp << countBits) | countMask;
+                    saturated.addAndBound(key, (short) Math.min(newCount - countMask, Short.MAX_VALUE));
+                } else {
+                    table[pos] = (fp << countBits) | (int) Math.max(newCount, 1);
+                }
+                return prev;
+            }
+
+            int value = (fp << countBits) | Math.min(Math.max(incValue, 1), countMask);
+            if (incValue >= countMask) {
+                saturated.addAndBound(key, (short) (incValue - countMask));
+            }
+            if (!insertNew(seg, table, b1, b2, value)) {
+                spilled.addAndBound(key, incValue);
+            } else {
+                segmentSize[seg]++;
+            }
+            return 0;
+        } finally {
+            locks[seg].unlock();
+        }
+    }
+
+    private boolean insertNew(int seg, int[] table, int b1, int b2, int value) {
+        int pos = findEmpty(table, b1);
+        if (pos == -1) {
+            pos = findEmpty(table, b2);
+        }
+        if (pos != -1) {
+            table[pos] = value;
+            return true;
+        }
+
+        // looking for a path of displacements first, table is changed only if it was found
+        Random random = randoms[seg];
+        int[] path = new int[MAX_KICKS];
+        int bucket = random.nextBoolean() ? b1 : b2;
+        for (int step = 0; step < MAX_KICKS; step++) {
+            int slot = bucket * BUCKET_SIZE + random.nextInt(BUCKET_SIZE);
+            for (int i = 0; i < step; i++) {
+                if (path[i] == slot) {
+                    return false;
+                }
+            }
+            path[step] = slot;
+            int next = altBucket(bucket, table[slot] >>> countBits);
+            int empty = findEmpty(table, next);
+            if (empty != -1) {
+                table[empty] = table[path[step]];
+                for (int i = step; i > 0; i--) {
+                    table[path[i]] = table[path[i - 1]];
+                }
+                table[path[0]] = value;
+                return true;
+            }
+            bucket = next;
+        }
+        return false;
+    }
+
+    private static short bound(long value) {
+        return (short) Math.min(value, Short.MAX_VALUE);
+    }
+
+    public short put(long key, short value) {
+        short prev = get(key);
+        addAndBound(key, (short) (value - Math.max(prev, (short) 0)));
+        return prev;
+    }
+
+    @Override
+    public short get(long key) {
+        short exact = spilled.get(key);
+        if (exact != -1) {
+            return exact;
+        }
+        long h = mix(key);
+        int seg = (int) (h & ((1 << segmentBits) - 1));
+        int fp = fingerprint(h);
+        int[] table = slots[seg];
+        int b1 = firstBucket(h);
+        int pos = findSlot(table, b1, fp);
+        if (pos == -1) {
+            pos = findSlot(table, altBucket(b1, fp), fp);
+        }
+        if (pos == -1) {
+            return -1;
+        }
+        int count = table[pos] & countMask;
+        return count == countMask ? bound(count + saturated.getWithZero(key)) : (short) count;
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        short value = get(key);
+        return value == -1 ? 0 : value;
+    }
+
+    public boolean contains(long key) {
+        return get(key) != -1;
+    }
+
+    @Override
+    public long size() {
+        long size = spilled.size();
+        for (long s : segmentSize) {
+            size += s;
+        }
+        return size;
+    }
+
+    public long capacity() {
+        return (long) slots.length * slots[0].length + spilled.capacity();
+    }
+
+    public void reset() {
+        for (int i = 0; i < slots.length; i++) {
+            Arrays.fill(slots[i], 0);
+            segmentSize[i] = 0;
+        }
+        saturated.reset();
+        spilled.reset();
+    }
+
+
+    /**
+     * Compares approximate counts with exact ones on a sample of present keys and on random absent keys.
+     *
+     * @param keyBits number of meaningful bits in keys (2 * k for k-mers, 64 for hashes)
+     */
+    public static String measureError(BigLong2ShortHashMap exact, KmerCounts approx,
+                                      int sampleSize, int keyBits) {
+        long size = exact.size();
+        long step = Math.max(1, size / Math.max(sampleSize, 1));
+        long checked = 0, wrong = 0, absDiff = 0;
+        long index = 0;
+        Iterator<MutableLongShortEntry> it = exact.entryIterator();
+        while (it.hasNext() && checked < sampleSize) {
+            MutableLongShortEntry entry = it.next();
+            if (index++ % step != 0) {
+                continue;
+            }
+            short value = approx.getWithZero(entry.getKey());
+            if (value != entry.getValue()) {
+                wrong++;
+                absDiff += Math.abs(value - entry.getValue());
+            }
+            checked++;
+        }
+
+        Random random = new Random(239);
+        long keyMask = keyBits >= 64 ? -1L : (1L << keyBits) - 1;
+        long absent = 0, falsePositives = 0;
+        for (int tries = 0; absent < sampleSize && tries < 4 * sampleSize; tries++) {
+            long key = random.nextLong() & keyMask;
+            if (exact.contains(key)) {
+                continue;
+            }
+            absent++;
+            if (approx.get(key) != -1) {
+                falsePositives++;
+            }
+        }
+
+        return "present keys with wrong count = " + NumUtils.groupDigits(wrong) + "/" + NumUtils.groupDigits(checked)
+                + " (" + String.format("%.3f", wrong * 100.0 / Math.max(checked, 1)) + "%)"
+                + ", mean overestimation = " + String.format("%.3f", absDiff * 1.0 / Math.max(checked, 1))
+                + ", false positives on absent keys = " + NumUtils.groupDigits(falsePositives) + "/" + NumUtils.groupDigits(absent)
+                + " (" + String.format("%.3f", falsePositives * 100.0 / Math.max(absent, 1)) + "%)";
+    }
+
+
+    // --------------  Serialization  ---------------
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(fpBits);
+        out.writeInt(segmentBits);
+        out.writeInt(bucketsPerSegment);
+        for (int s = 0; s < slots.length; s++) {
+            out.writeLong(segmentSize[s]);
+            for (int value : slots[s]) {
+                out.writeInt(value);
+            }
+        }
+        saturated.write(out);
+        spilled.write(out);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        if (in.readInt() != fpBits || in.readInt() != segmentBits || in.readInt() != bucketsPerSegment) {
+            throw new IOException("Filter was saved with different parameters");
+        }
+        for (int s = 0; s < slots.length; s++) {
+            segmentSize[s] = in.readLong();
+            for (int i = 0; i < slots[s].length; i++) {
+                slots[s][i] = in.readInt();
+            }
+        }
+        saturated.readFields(in);
+        spilled.readFields(in);
+    }
+}
@@ -0,0 +1,157 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.utils.KmerUtils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Masks of existing extensions for all solid k-mers (with count >= threshold) of the table, k <= 31.<br></br>
+ * <br></br>
+ *
+ * Mask is stored in byte array next to every small map of the table, at the same position as k-mer itself.
+ * For canonical k-mer c bit i (0..3) is set if k-mer <code>NUCLEOTIDES[i] + c[0..k-2]</code> is solid,
+ * bit 4 + i is set if k-mer <code>c[1..k-1] + NUCLEOTIDES[i]</code> is solid.<br></br>
+ * <br></br>
+ *
+ * Masks are valid while no new keys are added to the table.
+ */
+public class EdgeMasks implements ExtensionIndex {
+    private final BigLong2ShortHashMap table;
+    private final byte[][] masks;
+    private final int k;
+    private final int threshold;
+    private final int shardMask;
+
+    private EdgeMasks(BigLong2ShortHashMap table, int k, int threshold) {
+        this.table = table;
+        this.k = k;
+        this.threshold = threshold;
+        this.masks = new byte[table.maps.length][];
+        this.shardMask = table.maps.length - 1;
+    }
+
+    @Override
+    public int k() {
+        return k;
+    }
+
+    @Override
+    public int threshold() {
+        return threshold;
+    }
+
+    public long memoryInBytes() {
+        long bytes = 0;
+        for (byte[] m : masks) {
+            bytes += m.length;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Computes masks for all solid k-mers, small maps are processed in parallel
+     */
+    public static EdgeMasks build(final BigLong2ShortHashMap table, int k, int threshold, int threads)
+            throws InterruptedException {
+        final EdgeMasks edgeMasks = new EdgeMasks(table, k, threshold);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < table.maps.length; i++) {
+            final int shard = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    edgeMasks.buildShard(shard);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return edgeMasks;
+    }
+
+    private void buildShard(int shard) {
+        Long2ShortHashMap map = table.maps[shard];
+        byte[] m = new byte[(int) map.maxPosition() + 1];
+        long kMask = (1L << (2 * k)) - 1;
+        int highShift = 2 * (k - 1);
+        for (int pos = 0; pos < m.length; pos++) {
+            if (!map.containsAt(pos) || map.valueAt(pos) < threshold) {
+                continue;
+            }
+            long kmer = map.keyAt(pos);
+            int mask = 0;
+            for (int nuc = 0; nuc < 4; nuc++) {
+                if (isSolid((kmer >>> 2) | ((long) nuc << highShift))) {
+                    mask |= 1 << nuc;
+                }
+                if (isSolid(((kmer << 2) & kMask) | nuc)) {
+                    mask |= 1 << (4 + nuc);
+                }
+            }
+            m[pos] = (byte) mask;
+        }
+        masks[shard] = m;
+    }
+
+    private boolean isSolid(long kmer) {
+        return table.get(KmerUtils.getKmerKey(kmer, k)) >= threshold;
+    }
+
+
+    /**
+     * @param kmer k-mer in 2-bit encoding in any orientation, should be solid
+     * @return mask of extensions in terms of the given orientation, i.e. bit i (4 + i) is set
+     *         if prepending (appending) NUCLEOTIDES[i] gives solid k-mer; 0 if k-mer isn't in the table
+     */
+    @Override
+    public int maskOf(long kmer) {
+        long rc = KmerUtils.reverseComplement(kmer, k);
+        long key = Math.min(kmer, rc);
+        int shard = HashCommon.murmurHash3((int) key) & shardMask;
+        long pos = table.maps[shard].getPosition(key);
+        if (pos == -1) {
+            return 0;
+        }
+        int mask = masks[shard][(int) pos] & 0xFF;
+        return kmer == key ? mask : reverseMask(mask);
+    }
+
+    /**
+     * For reverse complement k-mer right extension x corresponds to left extension complement(x) and vice versa
+     */
+    static int reverseMask(int mask) {
+        int result = 0;
+        for (int nuc = 0; nuc < 4; nuc++) {
+            int compl = nuc ^ 3;
+            if ((mask & (1 << compl)) != 0) {
+                result |= 1 << (4 + nuc);
+            }
+            if ((mask & (1 << (4 + compl))) != 0) {
+                result |= 1 << nuc;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param dir -1 for left neighbours, 1 for right ones, 0 for both interleaved as in StringUtils.allNeighbors
+     * @param i   index of neighbour in array returned by StringUtils for this direction
+     * @return bit of the mask which corresponds to this neighbour
+     */
+    public static int neighborBit(int dir, int i) {
+        switch (dir) {
+            case -1:
+                return 1 << i;
+            case 1:
+                return 1 << (4 + i);
+            default:
+                return (i & 1) == 0 ? 1 << (i >> 1) : 1 << (4 + (i >> 1));
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package structures;
+
+/**
+ * Index which answers which extensions of a k-mer are solid (have count >= threshold), k <= 31.
+ */
+public interface ExtensionIndex {
+    public int k();
+
+    public int threshold();
+
+    /**
+     * @param kmer k-mer in 2-bit encoding in any orientation
+     * @return mask of extensions in terms of the given orientation, i.e. bit i (4 + i) is set
+     *         if prepending (appending) NUCLEOTIDES[i] gives solid k-mer
+     */
+    public int maskOf(long kmer);
+}
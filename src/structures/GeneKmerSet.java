@@ -0,0 +1,112 @@
+package structures;
+
+import utils.StringUtils;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Set of canonical k-mers of target sequences.<br></br>
+ * <br></br>
+ *
+ * <code>contains(kmer)</code> is the same as checking whether some sequence contains kmer or its reverse complement
+ * as a substring. K-mers are kept in 2-bit encoding for k <= 31 and as strings otherwise.
+ * The set isn't changed after creation, so it can be shared between threads.
+ */
+public class GeneKmerSet {
+    private final int k;
+    private final LongIntOpenMap keys;
+    private final Set<String> largeKmers;
+
+    public GeneKmerSet(int k, Collection<String> sequences) {
+        this.k = k;
+        if (k <= 31) {
+            int expected = 0;
+            for (String s : sequences) {
+                expected += Math.max(s.length() - k + 1, 0);
+            }
+            keys = new LongIntOpenMap(expected);
+            largeKmers = null;
+            long mask = (1L << (2 * k)) - 1;
+            int shift = 2 * (k - 1);
+            for (String s : sequences) {
+                long kmer = 0, rc = 0;
+                int valid = 0;
+                for (int i = 0; i < s.length(); i++) {
+                    int c = code(s.charAt(i));
+                    if (c < 0) {
+                        valid = 0;
+                        continue;
+                    }
+                    kmer = ((kmer << 2) | c) & mask;
+                    rc = (rc >>> 2) | ((long) (c ^ 3) << shift);
+                    if (++valid >= k) {
+                        keys.add(Math.min(kmer, rc));
+                    }
+                }
+            }
+        } else {
+            keys = null;
+            largeKmers = new HashSet<String>();
+            for (String s : sequences) {
+                int valid = 0;
+                for (int i = 0; i < s.length(); i++) {
+                    valid = code(s.charAt(i)) < 0 ? 0 : valid + 1;
+                    if (valid >= k) {
+                        largeKmers.add(StringUtils.normalizeDna(s.substring(i - k + 1, i + 1)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return code of nucleotide as in <code>DnaTools.NUCLEOTIDES</code> or -1 for other symbols,
+     *         which can't occur in k-mers
+     */
+    private static int code(char c) {
+        switch (c) {
+            case 'A': return 0;
+            case 'G': return 1;
+            case 'C': return 2;
+            case 'T': return 3;
+            default: return -1;
+        }
+    }
+
+    /**
+     * @return whether kmer or its reverse complement occurs in some of the sequences
+     */
+    public boolean contains(String kmer) {
+        if (kmer.length() != k) {
+            return false;
+        }
+        if (largeKmers != null) {
+            for (int i = 0; i < k; i++) {
+                if (code(kmer.charAt(i)) < 0) {
+                    return false;
+                }
+            }
+            return largeKmers.contains(StringUtils.normalizeDna(kmer));
+        }
+        long fw = 0, rc = 0;
+        for (int i = 0; i < k; i++) {
+            int c = code(kmer.charAt(i));
+            if (c < 0) {
+                return false;
+            }
+            fw = (fw << 2) | c;
+            rc |= (long) (c ^ 3) << (2 * i);
+        }
+        return keys.containsKey(Math.min(fw, rc));
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public int size() {
+        return largeKmers != null ? largeKmers.size() : keys.size();
+    }
+}
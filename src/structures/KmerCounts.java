@@ -0,0 +1,25 @@
+package structures;
+
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+
+/**
+ * Read-only counts of k-mers, all that searches and classifiers look up in a table. Compact structures which can't
+ * enumerate or modify their k-mers implement only this, hash tables are wrapped by {@link #of}.
+ */
+public interface KmerCounts {
+    /**
+     * @return count of the key or -1 if it is absent
+     */
+    public short get(long key);
+
+    /**
+     * @return count of the key or 0 if it is absent
+     */
+    public short getWithZero(long key);
+
+    public long size();
+
+    public static KmerCounts of(Long2ShortHashMapInterface table) {
+        return new TableCounts(table);
+    }
+}
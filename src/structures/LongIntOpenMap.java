@@ -0,0 +1,113 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from non-negative long keys to ints with linear probing.
+ * Can be used as a set of longs too.
+ */
+public class LongIntOpenMap {
+    private static final long FREE = -1;
+    private static final double LOAD_FACTOR = 0.5;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public LongIntOpenMap() {
+        this(16);
+    }
+
+    public LongIntOpenMap(int expectedSize) {
+        allocate(Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 8) - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE);
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private int find(long key) {
+        int pos = (int) HashCommon.murmurHash3(key) & mask;
+        while (keys[pos] != FREE && keys[pos] != key) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    public int get(long key, int defaultValue) {
+        int pos = find(key);
+        return keys[pos] == FREE ? defaultValue : values[pos];
+    }
+
+    public boolean containsKey(long key) {
+        return keys[find(key)] != FREE;
+    }
+
+    public void put(long key, int value) {
+        int pos = find(key);
+        if (keys[pos] == FREE) {
+            keys[pos] = key;
+            size++;
+        }
+        values[pos] = value;
+        if (size > keys.length * LOAD_FACTOR) {
+            rehash();
+        }
+    }
+
+    /**
+     * Adds key with value 0 if it's absent
+     *
+     * @return true if key was added
+     */
+    public boolean add(long key) {
+        int pos = find(key);
+        if (keys[pos] != FREE) {
+            return false;
+        }
+        keys[pos] = key;
+        values[pos] = 0;
+        size++;
+        if (size > keys.length * LOAD_FACTOR) {
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int pos = find(oldKeys[i]);
+                keys[pos] = oldKeys[i];
+                values[pos] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return all keys in arbitrary order
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int j = 0;
+        for (long key : keys) {
+            if (key != FREE) {
+                result[j++] = key;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+package structures;
+
+import java.util.Arrays;
+
+/**
+ * FIFO queue of longs. Polled elements aren't discarded, so the queue also keeps the order of all additions.
+ */
+public class LongQueue {
+    private long[] data;
+    private int head;
+    private int tail;
+
+    public LongQueue() {
+        this(16);
+    }
+
+    public LongQueue(int capacity) {
+        data = new long[Math.max(capacity, 16)];
+    }
+
+    public void add(long value) {
+        if (tail == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[tail++] = value;
+    }
+
+    public long poll() {
+        return data[head++];
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * @return number of elements waiting in the queue
+     */
+    public int size() {
+        return tail - head;
+    }
+
+    /**
+     * @return number of elements added since creation
+     */
+    public int added() {
+        return tail;
+    }
+
+    /**
+     * @return i-th added element
+     */
+    public long get(int i) {
+        return data[i];
+    }
+}
@@ -0,0 +1,110 @@
+package structures;
+
+import ru.ifmo.genetics.dna.DnaTools;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Named nucleotide sequence packed by 2 bits per nucleotide, 32 nucleotides in a long.<br></br>
+ * <br></br>
+ *
+ * Characters other than A, C, G and T are kept as ambiguous positions and are printed as N. The sequence isn't
+ * changed after it is built.
+ */
+public class PackedSequence {
+    private final String name;
+    private final long[] words;
+    private final int length;
+    private final BitSet ambiguous;
+
+    private PackedSequence(String name, long[] words, int length, BitSet ambiguous) {
+        this.name = name;
+        this.words = words;
+        this.length = length;
+        this.ambiguous = ambiguous;
+    }
+
+    /**
+     * Packs sequence while it is being read, without keeping its characters
+     */
+    public static class Builder {
+        private long[] words = new long[4];
+        private int length;
+        private BitSet ambiguous;
+
+        public Builder append(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = Character.toUpperCase(s.charAt(i));
+                long nuc = 0;
+                if (c == 'A' || c == 'C' || c == 'G' || c == 'T') {
+                    nuc = DnaTools.fromChar(c);
+                } else {
+                    if (ambiguous == null) {
+                        ambiguous = new BitSet();
+                    }
+                    ambiguous.set(length);
+                }
+                if ((length >>> 5) == words.length) {
+                    words = Arrays.copyOf(words, words.length * 2);
+                }
+                words[length >>> 5] |= nuc << (2 * (length & 31));
+                length++;
+            }
+            return this;
+        }
+
+        public PackedSequence build(String name) {
+            return new PackedSequence(name, Arrays.copyOf(words, (length + 31) >>> 5), length, ambiguous);
+        }
+    }
+
+    public static PackedSequence of(String name, String sequence) {
+        return new Builder().append(sequence).build(name);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int nucAt(int i) {
+        return (int) (words[i >>> 5] >>> (2 * (i & 31))) & 3;
+    }
+
+    public boolean isAmbiguous(int i) {
+        return ambiguous != null && ambiguous.get(i);
+    }
+
+    /**
+     * @return k-mers in 2-bit encoding of all windows without ambiguous positions, in the order of windows,
+     *         k <= 31
+     */
+    public long[] kmers(int k) {
+        long kMask = (1L << (2 * k)) - 1;
+        long[] result = new long[Math.max(length - k + 1, 0)];
+        int count = 0;
+        long kmer = 0;
+        int valid = 0;
+        for (int i = 0; i < length; i++) {
+            kmer = ((kmer << 2) | nucAt(i)) & kMask;
+            valid = isAmbiguous(i) ? 0 : valid + 1;
+            if (valid >= k) {
+                result[count++] = kmer;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    @Override
+    public String toString() {
+        char[] s = new char[length];
+        for (int i = 0; i < length; i++) {
+            s[i] = isAmbiguous(i) ? 'N' : DnaTools.NUCLEOTIDES[nucAt(i)];
+        }
+        return new String(s);
+    }
+}
@@ -0,0 +1,84 @@
+package structures;
+
+import io.IOUtils;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+/**
+ * Read-only view of k-mer table which consults Bloom filter before every lookup,
+ * so absent keys don't cost a probe into the table.
+ */
+public class PrefilteredTable implements KmerCounts {
+    private static final int BITS_PER_KMER = 12;
+
+    final BigLong2ShortHashMap table;
+    final BlockedBloomFilter filter;
+
+    public PrefilteredTable(BigLong2ShortHashMap table, BlockedBloomFilter filter) {
+        this.table = table;
+        this.filter = filter;
+    }
+
+    /**
+     * Puts Bloom filter in front of exact k-mer table to answer lookups of absent k-mers without probing the table
+     *
+     * @param countLookups whether filter counts its answers for {@link #report}
+     */
+    public static PrefilteredTable build(BigLong2ShortHashMap table, boolean countLookups,
+                                         int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        Timer t = new Timer();
+        BlockedBloomFilter filter;
+        try {
+            filter = BlockedBloomFilter.buildFrom(table, BITS_PER_KMER, countLookups, availableProcessors);
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        }
+        Tool.info(logger, "Pre-filter built, " + NumUtils.memoryAsString(filter.memoryInBytes()) + ", time = " + t);
+        return new PrefilteredTable(table, filter);
+    }
+
+    /**
+     * Prints hit and miss rates of pre-filter since it was built, if counts are pre-filtered and filter counts lookups
+     */
+    public static void report(KmerCounts counts, Logger logger) {
+        if (!(counts instanceof PrefilteredTable)) {
+            return;
+        }
+        BlockedBloomFilter filter = ((PrefilteredTable) counts).filter;
+        if (!filter.countsQueries()) {
+            return;
+        }
+        long queries = filter.queries(), rejected = filter.rejected();
+        Tool.info(logger, "Pre-filter: " + NumUtils.groupDigits(queries) + " lookups, "
+                + IOUtils.withP(rejected, Math.max(queries, 1), "rejected as absent", "misses") + ", "
+                + IOUtils.withP(queries - rejected, Math.max(queries, 1), "passed to table", "hits"));
+    }
+
+    public BigLong2ShortHashMap table() {
+        return table;
+    }
+
+    public BlockedBloomFilter filter() {
+        return filter;
+    }
+
+    @Override
+    public short get(long key) {
+        return filter.mightContain(key) ? table.get(key) : -1;
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        return filter.mightContain(key) ? table.getWithZero(key) : 0;
+    }
+
+    @Override
+    public long size() {
+        return table.size();
+    }
+}
@@ -0,0 +1,121 @@
+package structures;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Static bit vector with rank and select support.<br></br>
+ * Ranks are sampled every 512 bits, which costs 1/16 of the vector size.
+ */
+public class RankSelectBits {
+    private static final int WORDS_PER_BLOCK = 8;
+
+    private long[] bits;
+    private int[] ranks;
+    private long size;
+
+    public RankSelectBits(long[] bits, long size) {
+        this.bits = bits;
+        this.size = size;
+        buildRanks();
+    }
+
+    public RankSelectBits(DataInput in) throws IOException {
+        size = in.readLong();
+        bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        buildRanks();
+    }
+
+    public static long[] newBits(long size) {
+        return new long[(int) ((size + 63) >>> 6)];
+    }
+
+    public static void set(long[] bits, long pos) {
+        bits[(int) (pos >>> 6)] |= 1L << (pos & 63);
+    }
+
+    private void buildRanks() {
+        ranks = new int[bits.length / WORDS_PER_BLOCK + 2];
+        int count = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (i % WORDS_PER_BLOCK == 0) {
+                ranks[i / WORDS_PER_BLOCK] = count;
+            }
+            count += Long.bitCount(bits[i]);
+        }
+        for (int b = (bits.length + WORDS_PER_BLOCK - 1) / WORDS_PER_BLOCK; b < ranks.length; b++) {
+            ranks[b] = count;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long ones() {
+        return ranks[ranks.length - 1];
+    }
+
+    public boolean get(long pos) {
+        return (bits[(int) (pos >>> 6)] & (1L << (pos & 63))) != 0;
+    }
+
+    /**
+     * @return number of ones in [0, pos)
+     */
+    public int rank1(long pos) {
+        int word = (int) (pos >>> 6);
+        int block = word / WORDS_PER_BLOCK;
+        int r = ranks[block];
+        for (int i = block * WORDS_PER_BLOCK; i < word; i++) {
+            r += Long.bitCount(bits[i]);
+        }
+        int rest = (int) (pos & 63);
+        if (rest != 0) {
+            r += Long.bitCount(bits[word] & ((1L << rest) - 1));
+        }
+        return r;
+    }
+
+    /**
+     * @return position of j-th one (from 0)
+     */
+    public long select1(int j) {
+        int lo = 0, hi = ranks.length - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (ranks[mid] <= j) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        int r = ranks[lo];
+        int word = lo * WORDS_PER_BLOCK;
+        while (r + Long.bitCount(bits[word]) <= j) {
+            r += Long.bitCount(bits[word]);
+            word++;
+        }
+        long w = bits[word];
+        for (int i = r; i < j; i++) {
+            w &= w - 1;
+        }
+        return ((long) word << 6) + Long.numberOfTrailingZeros(w);
+    }
+
+    public long memoryInBytes() {
+        return 8L * bits.length + 4L * ranks.length;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(size);
+        out.writeInt(bits.length);
+        for (long w : bits) {
+            out.writeLong(w);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package structures;
+
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+
+/**
+ * Counts of k-mers kept in a hash table, the table itself is available for batched lookups
+ */
+public class TableCounts implements KmerCounts {
+    private final Long2ShortHashMapInterface table;
+
+    TableCounts(Long2ShortHashMapInterface table) {
+        this.table = table;
+    }
+
+    public Long2ShortHashMapInterface table() {
+        return table;
+    }
+
+    @Override
+    public short get(long key) {
+        return table.get(key);
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        return table.getWithZero(key);
+    }
+
+    @Override
+    public long size() {
+        return table.size();
+    }
+}
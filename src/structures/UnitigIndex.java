@@ -0,0 +1,585 @@
+package structures;
+
+import io.IOUtils;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.KmerUtils;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static utils.StringUtils.kmerToString;
+
+/**
+ * Compacted de Bruijn graph of solid k-mers (count >= threshold), k <= 31.<br></br>
+ * <br></br>
+ *
+ * Maximal non-branching paths of k-mers are merged into unitigs, which are kept as packed nucleotide sequences
+ * with counts of their k-mers and mean coverage. Oriented unitig is <code>2 * unitig + strand</code>, strand 1 is
+ * the reverse complement, and for every oriented unitig its successors are kept, i.e. oriented unitigs whose first
+ * k-mer is a right neighbour of its last k-mer. K-mers of unitig u have indices from <code>start[u]</code>,
+ * the locator is the sorted array of canonical keys with index of k-mer for each of them.<br></br>
+ * <br></br>
+ *
+ * K-mer y continues k-mer x if y is the only solid right neighbour of x and x is the only solid left neighbour of y.
+ * Reverse complement and palindromic k-mers never continue, so no unitig contains a k-mer in both orientations.
+ * Paths are walked from their starts in parallel, cycles without starts are walked afterwards.
+ * Index is static and takes about 15 bytes per k-mer, its lookups are binary searches over the locator.
+ */
+public class UnitigIndex implements KmerCounts {
+    private static final int CHUNK = 1 << 14;
+
+    private int k;
+    private int threshold;
+    private int unitigs;
+    /** index of the first k-mer of every unitig, start[unitigs] is the number of k-mers */
+    private int[] start;
+    /** nucleotides of all unitigs, 32 per long from the highest bits */
+    private long[] packed;
+    private short[] counts;
+    private float[] coverage;
+    /** successors of oriented unitig ou are succ[succStart[ou]..succStart[ou + 1]) */
+    private int[] succStart;
+    private int[] succ;
+    /** locator: sorted canonical keys and indices of their k-mers */
+    private long[] keys;
+    private int[] position;
+
+    private UnitigIndex() {
+    }
+
+
+    // --------------  Construction  ---------------
+
+    /**
+     * Compacts all k-mers of the table with count >= threshold
+     */
+    public static UnitigIndex build(Long2ShortHashMapInterface table, int k, int threshold) {
+        if (k < 2 || k > 31) {
+            throw new IllegalArgumentException("Unitig index can be built only for 2 <= k <= 31, k = " + k);
+        }
+        if (table.size() > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many k-mers for unitig index: " + table.size());
+        }
+        long[] keys = new long[(int) table.size()];
+        int n = 0;
+        Iterator<MutableLongShortEntry> it = table.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            if (entry.getValue() >= threshold) {
+                keys[n++] = entry.getKey();
+            }
+        }
+        keys = Arrays.copyOf(keys, n);
+        Arrays.parallelSort(keys);
+
+        Builder builder = new Builder(table, k, threshold, keys);
+        List<long[]> paths = new ArrayList<long[]>();
+        int solid = n;
+        int chunks = (solid + CHUNK - 1) / CHUNK;
+        Object[] found = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> builder.walkStarts(chunk * CHUNK, Math.min(solid, (chunk + 1) * CHUNK)))
+                .toArray();
+        for (Object chunkPaths : found) {
+            @SuppressWarnings("unchecked")
+            List<long[]> list = (List<long[]>) chunkPaths;
+            paths.addAll(list);
+        }
+
+        UnitigIndex index = new UnitigIndex();
+        index.k = k;
+        index.threshold = threshold;
+        index.keys = keys;
+        index.position = new int[n];
+        Arrays.fill(index.position, -1);
+        index.locate(paths, 0, 0);
+        int kmers = 0;
+        for (long[] path : paths) {
+            kmers += path.length;
+        }
+        // the rest of k-mers lie on cycles
+        for (int j = 0; j < n; j++) {
+            if (index.position[j] == -1) {
+                long[] cycle = builder.walkCycle(keys[j], index.position);
+                paths.add(cycle);
+                index.locate(paths, paths.size() - 1, kmers);
+                kmers += cycle.length;
+            }
+        }
+        index.fill(paths, table);
+        return index;
+    }
+
+    /**
+     * Builds unitig index of k-mers with count >= threshold from reads or from k-mers in binary format,
+     * they are counted in hash table first
+     */
+    public static UnitigIndex fromFiles(File[] files, int k, int threshold, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        if (k > 31) {
+            throw new ExecutionFailedException("Unitig index can be built only for k <= 31");
+        }
+        boolean kmersInput = files.length > 0;
+        for (File file : files) {
+            kmersInput &= file.getName().toLowerCase().endsWith("kmers.bin");
+        }
+        BigLong2ShortHashMap table = kmersInput
+                ? IOUtils.loadKmers(files, 0, availableProcessors, logger)
+                : IOUtils.loadReads(files, k, 0, availableProcessors, logger);
+        Timer t = new Timer();
+        UnitigIndex index = build(table, k, threshold);
+        Tool.info(logger, "Unitig index built: " + NumUtils.groupDigits(index.size()) + " k-mers in "
+                + NumUtils.groupDigits(index.unitigs()) + " unitigs, "
+                + NumUtils.memoryAsString(index.memoryInBytes()) + ", time = " + t);
+        return index;
+    }
+
+    /**
+     * Sets positions of k-mers of paths starting from given one in the locator, in parallel
+     */
+    private void locate(List<long[]> paths, int from, int firstIndex) {
+        int[] starts = new int[paths.size() - from];
+        for (int p = from, index = firstIndex; p < paths.size(); p++) {
+            starts[p - from] = index;
+            index += paths.get(p).length;
+        }
+        IntStream.range(from, paths.size()).parallel().forEach(p -> {
+            long[] path = paths.get(p);
+            for (int i = 0; i < path.length; i++) {
+                position[Arrays.binarySearch(keys, KmerUtils.getKmerKey(path[i], k))] = starts[p - from] + i;
+            }
+        });
+    }
+
+    private void fill(List<long[]> paths, Long2ShortHashMapInterface table) {
+        unitigs = paths.size();
+        start = new int[unitigs + 1];
+        for (int u = 0; u < unitigs; u++) {
+            start[u + 1] = start[u] + paths.get(u).length;
+        }
+        packed = new long[(int) ((sequenceStart(unitigs) + 31) >>> 5)];
+        for (int u = 0; u < unitigs; u++) {
+            long[] path = paths.get(u);
+            long p = sequenceStart(u);
+            for (int i = k - 1; i >= 0; i--) {
+                setNucleotide(p++, (int) (path[0] >>> (2 * i)) & 3);
+            }
+            for (int i = 1; i < path.length; i++) {
+                setNucleotide(p++, (int) path[i] & 3);
+            }
+        }
+
+        counts = new short[start[unitigs]];
+        coverage = new float[unitigs];
+        IntStream.range(0, unitigs).parallel().forEach(u -> {
+            long[] path = paths.get(u);
+            long sum = 0;
+            for (int i = 0; i < path.length; i++) {
+                short count = table.get(KmerUtils.getKmerKey(path[i], k));
+                counts[start[u] + i] = count;
+                sum += count;
+            }
+            coverage[u] = (float) sum / path.length;
+        });
+
+        // at most 4 successors of every oriented unitig
+        int[] next = new int[8 * unitigs];
+        long kMask = (1L << (2 * k)) - 1;
+        IntStream.range(0, 2 * unitigs).parallel().forEach(ou -> {
+            long last = lastKmer(ou);
+            for (int c = 0; c < 4; c++) {
+                long location = locate(((last << 2) & kMask) | c);
+                next[4 * ou + c] = location >= 0 && (int) location == 0 ? (int) (location >>> 32) : -1;
+            }
+        });
+        succStart = new int[2 * unitigs + 1];
+        int edges = 0;
+        for (int x : next) {
+            edges += x >= 0 ? 1 : 0;
+        }
+        succ = new int[edges];
+        for (int ou = 0, e = 0; ou < 2 * unitigs; ou++) {
+            succStart[ou] = e;
+            for (int c = 0; c < 4; c++) {
+                if (next[4 * ou + c] >= 0) {
+                    succ[e++] = next[4 * ou + c];
+                }
+            }
+            succStart[ou + 1] = e;
+        }
+    }
+
+    /**
+     * Walks of non-branching paths over k-mers of the table
+     */
+    private static class Builder {
+        private final Long2ShortHashMapInterface table;
+        private final int k;
+        private final int threshold;
+        private final long kMask;
+        private final int highShift;
+        private final long[] keys;
+
+        Builder(Long2ShortHashMapInterface table, int k, int threshold, long[] keys) {
+            this.table = table;
+            this.k = k;
+            this.threshold = threshold;
+            this.kMask = (1L << (2 * k)) - 1;
+            this.highShift = 2 * (k - 1);
+            this.keys = keys;
+        }
+
+        /**
+         * @return paths starting from k-mers with keys[from..to) in some orientation, each path is given
+         *         by one of its two orientations
+         */
+        List<long[]> walkStarts(int from, int to) {
+            List<long[]> result = new ArrayList<long[]>();
+            for (int j = from; j < to; j++) {
+                long kmer = keys[j];
+                long rc = KmerUtils.reverseComplement(kmer, k);
+                for (long x : rc == kmer ? new long[]{kmer} : new long[]{kmer, rc}) {
+                    if (!isStart(x)) {
+                        continue;
+                    }
+                    long[] path = walk(x);
+                    // the same path is also walked from the reverse complement of its last k-mer
+                    if (x <= KmerUtils.reverseComplement(path[path.length - 1], k)) {
+                        result.add(path);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private long[] walk(long x) {
+            long[] path = new long[16];
+            int length = 0;
+            for (long y = x; y != -1; y = next(y)) {
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, path.length * 2);
+                }
+                path[length++] = y;
+            }
+            return Arrays.copyOf(path, length);
+        }
+
+        /**
+         * Walks a cycle of k-mers without starts until it comes back to some located k-mer
+         */
+        long[] walkCycle(long x, int[] position) {
+            long[] path = new long[16];
+            int length = 0;
+            long y = x;
+            do {
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, path.length * 2);
+                }
+                path[length++] = y;
+                // marks k-mer as taken, its real position is set afterwards
+                position[Arrays.binarySearch(keys, KmerUtils.getKmerKey(y, k))] = Integer.MAX_VALUE;
+                y = next(y);
+            } while (y != -1 && position[Arrays.binarySearch(keys, KmerUtils.getKmerKey(y, k))] == -1);
+            return Arrays.copyOf(path, length);
+        }
+
+        private boolean isStart(long x) {
+            long single = -1;
+            int count = 0;
+            for (int c = 0; c < 4; c++) {
+                long left = ((long) c << highShift) | (x >>> 2);
+                if (isSolid(left)) {
+                    count++;
+                    single = left;
+                }
+            }
+            return count != 1 || next(single) != x;
+        }
+
+        /**
+         * @return k-mer which continues x or -1
+         */
+        private long next(long x) {
+            long rc = KmerUtils.reverseComplement(x, k);
+            if (rc == x) {
+                return -1;
+            }
+            long y = -1;
+            int count = 0;
+            for (int c = 0; c < 4; c++) {
+                long right = ((x << 2) & kMask) | c;
+                if (isSolid(right)) {
+                    count++;
+                    y = right;
+                }
+            }
+            if (count != 1 || y == x || y == rc || y == KmerUtils.reverseComplement(y, k)) {
+                return -1;
+            }
+            for (int c = 0; c < 4; c++) {
+                long left = ((long) c << highShift) | (y >>> 2);
+                if (left != x && isSolid(left)) {
+                    return -1;
+                }
+            }
+            return y;
+        }
+
+        private boolean isSolid(long kmer) {
+            return table.get(KmerUtils.getKmerKey(kmer, k)) >= threshold;
+        }
+    }
+
+
+    // --------------  Graph  ---------------
+
+    public int k() {
+        return k;
+    }
+
+    public int threshold() {
+        return threshold;
+    }
+
+    public int unitigs() {
+        return unitigs;
+    }
+
+    /**
+     * @return number of k-mers of the unitig
+     */
+    public int length(int unitig) {
+        return start[unitig + 1] - start[unitig];
+    }
+
+    /**
+     * @return mean count of k-mers of the unitig
+     */
+    public float coverage(int unitig) {
+        return coverage[unitig];
+    }
+
+    public int successorCount(int orientedUnitig) {
+        return succStart[orientedUnitig + 1] - succStart[orientedUnitig];
+    }
+
+    /**
+     * @return i-th oriented unitig whose first k-mer is a right neighbour of the last k-mer of given one
+     */
+    public int successor(int orientedUnitig, int i) {
+        return succ[succStart[orientedUnitig] + i];
+    }
+
+    /**
+     * @return oriented unitig and offset of k-mer in it as <code>(orientedUnitig << 32) | offset</code>
+     *         or -1 if k-mer isn't solid
+     */
+    public long locate(long kmer) {
+        int index = indexOf(kmer);
+        if (index == -1) {
+            return -1;
+        }
+        int u = unitigOf(index);
+        int offset = index - start[u];
+        if (kmerAt(u, offset) == kmer) {
+            return ((long) (2 * u) << 32) | offset;
+        }
+        return ((long) (2 * u + 1) << 32) | (length(u) - 1 - offset);
+    }
+
+    /**
+     * @return index of k-mer at offset of oriented unitig, it is the same for both orientations
+     */
+    public int kmerIndex(int orientedUnitig, int offset) {
+        int u = orientedUnitig >> 1;
+        return start[u] + ((orientedUnitig & 1) == 0 ? offset : length(u) - 1 - offset);
+    }
+
+    /**
+     * @return k-mer with given index as it is read along its unitig
+     */
+    public long kmerAt(int index) {
+        int u = unitigOf(index);
+        return kmerAt(u, index - start[u]);
+    }
+
+    public String kmerString(int index) {
+        return kmerToString(kmerAt(index), k);
+    }
+
+    public short countAt(int index) {
+        return counts[index];
+    }
+
+    /**
+     * @return index of k-mer or -1 if it isn't solid
+     */
+    public int indexOf(long kmer) {
+        int j = Arrays.binarySearch(keys, KmerUtils.getKmerKey(kmer, k));
+        return j < 0 ? -1 : position[j];
+    }
+
+    private int unitigOf(int index) {
+        int u = Arrays.binarySearch(start, 0, unitigs, index);
+        return u >= 0 ? u : -u - 2;
+    }
+
+    private long kmerAt(int unitig, int offset) {
+        long p = sequenceStart(unitig) + offset;
+        int word = (int) (p >>> 5);
+        int shift = 2 * (int) (p & 31);
+        long bits = packed[word] << shift;
+        if (shift > 0 && shift + 2 * k > 64) {
+            bits |= packed[word + 1] >>> (64 - shift);
+        }
+        return bits >>> (64 - 2 * k);
+    }
+
+    private long lastKmer(int orientedUnitig) {
+        int u = orientedUnitig >> 1;
+        return (orientedUnitig & 1) == 0
+                ? kmerAt(u, length(u) - 1)
+                : KmerUtils.reverseComplement(kmerAt(u, 0), k);
+    }
+
+    private long sequenceStart(int unitig) {
+        return start[unitig] + (long) unitig * (k - 1);
+    }
+
+    private void setNucleotide(long p, int c) {
+        packed[(int) (p >>> 5)] |= (long) c << (2 * (31 - (int) (p & 31)));
+    }
+
+    public long memoryInBytes() {
+        return 4L * start.length + 8L * packed.length + 2L * counts.length + 4L * coverage.length
+                + 4L * succStart.length + 4L * succ.length + 8L * keys.length + 4L * position.length;
+    }
+
+
+    // --------------  Counts  ---------------
+
+    @Override
+    public short get(long key) {
+        int index = indexOf(key);
+        return index == -1 ? -1 : counts[index];
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        int index = indexOf(key);
+        return index == -1 ? 0 : counts[index];
+    }
+
+    @Override
+    public long size() {
+        return counts.length;
+    }
+
+
+    // --------------  Serialization  ---------------
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(k);
+        out.writeInt(threshold);
+        out.writeInt(unitigs);
+        for (int x : start) {
+            out.writeInt(x);
+        }
+        out.writeInt(packed.length);
+        for (long x : packed) {
+            out.writeLong(x);
+        }
+        for (short x : counts) {
+            out.writeShort(x);
+        }
+        for (float x : coverage) {
+            out.writeFloat(x);
+        }
+        for (int x : succStart) {
+            out.writeInt(x);
+        }
+        for (int x : succ) {
+            out.writeInt(x);
+        }
+        for (int j = 0; j < keys.length; j++) {
+            out.writeLong(keys[j]);
+            out.writeInt(position[j]);
+        }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        k = in.readInt();
+        threshold = in.readInt();
+        unitigs = in.readInt();
+        start = new int[unitigs + 1];
+        for (int i = 0; i < start.length; i++) {
+            start[i] = in.readInt();
+        }
+        packed = new long[in.readInt()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = in.readLong();
+        }
+        counts = new short[start[unitigs]];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readShort();
+        }
+        coverage = new float[unitigs];
+        for (int i = 0; i < coverage.length; i++) {
+            coverage[i] = in.readFloat();
+        }
+        succStart = new int[2 * unitigs + 1];
+        for (int i = 0; i < succStart.length; i++) {
+            succStart[i] = in.readInt();
+        }
+        succ = new int[succStart[2 * unitigs]];
+        for (int i = 0; i < succ.length; i++) {
+            succ[i] = in.readInt();
+        }
+        keys = new long[counts.length];
+        position = new int[counts.length];
+        for (int j = 0; j < keys.length; j++) {
+            keys[j] = in.readLong();
+            position[j] = in.readInt();
+        }
+    }
+
+    public static UnitigIndex read(DataInput in) throws IOException {
+        UnitigIndex index = new UnitigIndex();
+        index.readFields(in);
+        return index;
+    }
+
+    public static UnitigIndex load(File file, Logger logger) throws ExecutionFailedException {
+        Timer t = new Timer();
+        UnitigIndex index;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 24));
+            try {
+                index = read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't load unitig index from " + file.getPath(), e);
+        }
+        Tool.info(logger, "Unitig index loaded: " + NumUtils.groupDigits(index.size()) + " k-mers in "
+                + NumUtils.groupDigits(index.unitigs()) + " unitigs, time = " + t);
+        return index;
+    }
+}
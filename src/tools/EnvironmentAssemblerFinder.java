@@ -8,11 +8,11 @@ import io.IOUtils;
 import io.LargeKIOUtils;
 import ru.ifmo.genetics.dna.DnaQ;
 import ru.ifmo.genetics.io.ReadersUtils;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+import structures.KmerCounts;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
@@ -121,7 +121,7 @@ public class EnvironmentAssemblerFinder extends Tool{
             //.withDefaultValue("")
             .create());
 
-    private BigLong2ShortHashMap reads;
+    private KmerCounts reads;
     private List<DnaQ> sequences;
     private HashFunction hasher;
 
@@ -129,11 +129,11 @@ public class EnvironmentAssemblerFinder extends Tool{
         if (k.get() > 31 || forceHashing.get()) {
             logger.info("Reading hashes of k-mers instead");
             this.hasher = LargeKIOUtils.hash = determineHashFunction();
-            this.reads = LargeKIOUtils.loadReads(readsFiles.get(), k.get(), 0,
-                    availableProcessors.get(), logger);
+            this.reads = KmerCounts.of(LargeKIOUtils.loadReads(readsFiles.get(), k.get(), 0,
+                    availableProcessors.get(), logger));
         } else {
-            this.reads = IOUtils.loadReads(readsFiles.get(), k.get(), 0,
-                    availableProcessors.get(), logger);
+            this.reads = KmerCounts.of(IOUtils.loadReads(readsFiles.get(), k.get(), 0,
+                    availableProcessors.get(), logger));
         }
         logger.info("Hashtable size: " + this.reads.size() + " kmers");
         try {
@@ -2,25 +2,49 @@ package tools;
 
 import algo.*;
 import algo.TerminationMode.TerminationModeType;
+import io.EnvironmentCache;
 import io.IOUtils;
 import io.LargeKIOUtils;
 import io.RichFastaReader;
+import io.RunJournal;
+import io.SearchStateStore;
+import io.StreamingFastaReader;
 import ru.ifmo.genetics.dna.DnaQ;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+import structures.BossGraph;
+import structures.ExtensionIndex;
+import structures.GeneKmerSet;
+import structures.KmerCounts;
+import structures.PackedSequence;
+import structures.UnitigIndex;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 public class EnvironmentFinderMain extends Tool {
@@ -66,6 +90,19 @@ public class EnvironmentFinderMain extends Tool {
             .withDescription("maximum distance in k-mers from starting gene")
             .create());
 
+    public final Parameter<Integer> maxTime = addParameter(new IntParameterBuilder("max-time")
+            .withDescription("maximum time of search for one sequence in seconds, longer searches are stopped "
+                    + "and their environments are marked as truncated")
+            .create());
+
+    public final Parameter<Long> maxLookups = addParameter(new LongParameterBuilder("max-lookups")
+            .withDescription("maximum number of k-mer table lookups in search for one sequence")
+            .create());
+
+    public final Parameter<Integer> maxMemory = addParameter(new IntParameterBuilder("max-memory")
+            .withDescription("maximum memory of search structures for one sequence in Mb")
+            .create());
+
     public final Parameter<Integer> minCoverage = addParameter(new IntParameterBuilder("coverage")
             .withDescription("minimum depth of k-mers to consider")
             .withDefaultValue(1)
@@ -104,6 +141,91 @@ public class EnvironmentFinderMain extends Tool {
             .create()
     );
 
+    public final Parameter<Boolean> batch = addParameter(new BoolParameterBuilder("batch")
+            .withDescription("search environments of all sequences over one shared graph sharing k-mer lookups (k <= 31 only)")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<Boolean> cache = addParameter(new BoolParameterBuilder("cache")
+            .withDescription("reuse environments found by previous runs on the same reads with the same search "
+                    + "parameters, they are kept in the work directory")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<Boolean> resume = addParameter(new BoolParameterBuilder("resume")
+            .withDescription("continue interrupted run from its journal in the work directory, "
+                    + "environments finished by it are skipped")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<Boolean> snapshot = addParameter(new BoolParameterBuilder("snapshot")
+            .withDescription("save k-mer table in the work directory, so that run continued with --resume "
+                    + "doesn't count k-mers again")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<Boolean> saveState = addParameter(new BoolParameterBuilder("save-state")
+            .withDescription("save search states in the work directory, so that environments can be grown "
+                    + "later with --grow-from (k <= 31 only)")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<File> growFrom = addParameter(new FileParameterBuilder("grow-from")
+            .withDescription("work directory of previous run with --save-state, its searches are continued "
+                    + "under weaker --maxkmers and --maxradius restrictions instead of searching from scratch")
+            .create()
+    );
+
+    public final Parameter<Boolean> edgeMasks = addParameter(new BoolParameterBuilder("edge-masks")
+            .withDescription("precompute existing extensions of all k-mers to speed up graph search (k <= 31 only)")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<Boolean> succinct = addParameter(new BoolParameterBuilder("succinct")
+            .withDescription("keep k-mers in succinct de Bruijn graph instead of hash table: "
+                    + "several times less memory, slower search (k <= 31 only)")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<File> unitigIndex = addParameter(new FileParameterBuilder("unitig-index")
+            .withDescription("unitig index built by unitig-index tool for the same k and coverage, "
+                    + "environments are searched over its unitigs and reads aren't counted (k <= 31 only)")
+            .create()
+    );
+
+    public final Parameter<Boolean> recruit = addParameter(new BoolParameterBuilder("recruit")
+            .withDescription("count k-mers only of reads recruited around the sequences in repeated passes "
+                    + "over reads instead of the whole sample (k <= 31 only)")
+            .withDefaultValue(false)
+            .create()
+    );
+
+    public final Parameter<Integer> recruitPasses = addParameter(new IntParameterBuilder("recruit-passes")
+            .withDescription("maximum number of passes over reads with --recruit, every pass grows environments "
+                    + "by about a read length")
+            .withDefaultValue(50)
+            .create()
+    );
+
+    public final Parameter<String> previewFraction = addParameter(new StringParameterBuilder("preview-fraction")
+            .withDescription("count k-mers only of this fraction of reads chosen by their hash and scale coverage "
+                    + "threshold by it, environments are approximate and marked so in GFA (0..1]")
+            .create()
+    );
+
+    public final Parameter<File> compareOutput = addParameter(new FileParameterBuilder("compare-output")
+            .withDescription("output directory of full run, sizes of preview environments are compared "
+                    + "with it in preview.tsv")
+            .create()
+    );
+
     /*
     public final Parameter<Integer> percentFiltration = addParameter(new IntParameterBuilder("procfiltration")
             .mandatory()
@@ -118,23 +240,41 @@ public class EnvironmentFinderMain extends Tool {
             .create());
     */
 
-    private BigLong2ShortHashMap reads;
+    private KmerCounts reads;
+    private BigLong2ShortHashMap table;
     private List<DnaQ> sequences;
-    private List<DnaQ> hicSequences;
+    private Iterable<PackedSequence> hicSequences;
     private List<String> comments;
     private HashFunction hasher;
+    private ExtensionIndex masks;
+    private EnvironmentCache environmentCache;
+    private RunJournal journal;
+    private SearchStateStore searchStates;
+    private UnitigIndex unitigs;
+    private double fraction = 1;
+    private int threshold;
+    private final Map<String, SearchStats> targetStats = new LinkedHashMap<String, SearchStats>();
 
     public void loadInput() throws ExecutionFailedException {
-        if (k.get() > 31 || forceHashing.get()) {
-            info("Reading hashes of k-mers instead");
-            this.hasher = LargeKIOUtils.hash = determineHashFunction();
-            this.reads = LargeKIOUtils.loadReads(readsFiles.get(), k.get(), 0,
-                    availableProcessors.get(), logger);
-        } else {
-            this.reads = IOUtils.loadReads(readsFiles.get(), k.get(), 0,
-                    availableProcessors.get(), logger);
+        if (previewFraction.get() != null) {
+            try {
+                fraction = Double.parseDouble(previewFraction.get());
+            } catch (NumberFormatException e) {
+                throw new ExecutionFailedException("Preview fraction should be a number: " + previewFraction.get());
+            }
+            if (!(fraction > 0 && fraction <= 1)) {
+                throw new ExecutionFailedException("Preview fraction should be in (0, 1]: " + previewFraction.get());
+            }
+            if (unitigIndex.get() != null || succinct.get() || recruit.get()) {
+                throw new ExecutionFailedException("Preview can't be used with unitig index, succinct graph "
+                        + "and recruited reads");
+            }
+        }
+        threshold = Math.max(1, (int) Math.round(minCoverage.get() * fraction));
+        if (fraction < 1) {
+            info("Preview from " + fraction + " of reads with coverage threshold " + threshold
+                    + ", environments are approximate");
         }
-        info("Hashtable size: " + this.reads.size() + " kmers");
         try {
             RichFastaReader reader = new RichFastaReader(seqsFile.get());
             this.sequences = reader.getDnas();
@@ -142,17 +282,180 @@ public class EnvironmentFinderMain extends Tool {
         } catch (IOException e) {
             throw new ExecutionFailedException("Could not load sequences from " + seqsFile.get().getPath());
         }
-        try {
-            if (hicSeqsFile.get() != null) {
-                RichFastaReader reader = new RichFastaReader(hicSeqsFile.get());
-                this.hicSequences = reader.getDnas();
-                this.comments = reader.getComments();
+        if (hicSeqsFile.get() != null) {
+            // Hi-C sequences are streamed from the file by searches, here it is only checked to exist
+            try {
+                new StreamingFastaReader(hicSeqsFile.get()).close();
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Could not load Hi-C sequences from "
+                        + hicSeqsFile.get().getPath());
+            }
+            this.hicSequences = StreamingFastaReader.records(hicSeqsFile.get());
+        }
+        File journalFile = new File(workDir.get(), "journal.tsv");
+        String runFingerprint = EnvironmentCache.fingerprint(tableFiles(), tableSettings() + ";" + runSettings());
+        journal = resume.get() ? RunJournal.resume(journalFile, runFingerprint, logger) : null;
+        File tableSnapshot = journal != null && !succinct.get() && unitigIndex.get() == null && !recruit.get()
+                ? journal.snapshot() : null;
+        if (recruit.get() && (unitigIndex.get() != null || succinct.get() || snapshot.get())) {
+            throw new ExecutionFailedException("Reads can't be recruited with unitig index, succinct graph "
+                    + "and table snapshot");
+        }
+        if (unitigIndex.get() != null) {
+            if (k.get() > 31 || forceHashing.get() || succinct.get()) {
+                throw new ExecutionFailedException("Unitig index can be used only for k <= 31 without hashing "
+                        + "and succinct graph");
             }
+            if (trimPaths.get()) {
+                throw new ExecutionFailedException("Paths can't be trimmed in search over unitig index");
+            }
+            this.unitigs = UnitigIndex.load(unitigIndex.get(), logger);
+            if (unitigs.k() != k.get() || unitigs.threshold() != minCoverage.get()) {
+                throw new ExecutionFailedException("Unitig index is built for k = " + unitigs.k() + " and coverage = "
+                        + unitigs.threshold() + ", but k = " + k.get() + " and coverage = " + minCoverage.get()
+                        + " are given");
+            }
+            this.reads = unitigs;
+        } else if (recruit.get()) {
+            if (k.get() > 31 || forceHashing.get()) {
+                throw new ExecutionFailedException("Reads can be recruited only for k <= 31 without hashing");
+            }
+            this.table = new ReadRecruiter(readsFiles.get(), k.get(), minCoverage.get(), getTerminationMode(),
+                    bothDirections.get(), recruitPasses.get(), availableProcessors.get(), logger)
+                    .recruit(recruitTargets());
+        } else if (succinct.get()) {
+            if (k.get() > 31 || forceHashing.get()) {
+                throw new ExecutionFailedException("Succinct graph can be used only for k <= 31 without hashing");
+            }
+            BossGraph graph = BossGraph.fromFiles(readsFiles.get(), k.get(), minCoverage.get(),
+                    availableProcessors.get(), logger);
+            this.reads = graph;
+            this.masks = graph;
+        } else if (k.get() > 31 || forceHashing.get()) {
+            info("Reading hashes of k-mers instead");
+            this.hasher = LargeKIOUtils.hash = determineHashFunction();
+            this.table = tableSnapshot != null ? loadSnapshot(tableSnapshot)
+                    : LargeKIOUtils.loadReads(readsFiles.get(), k.get(), 0, fraction,
+                            availableProcessors.get(), logger);
+        } else {
+            this.table = tableSnapshot != null ? loadSnapshot(tableSnapshot)
+                    : IOUtils.loadReads(readsFiles.get(), k.get(), 0, fraction,
+                            availableProcessors.get(), logger);
+        }
+        if (table != null) {
+            this.reads = KmerCounts.of(table);
+        }
+        info("Hashtable size: " + this.reads.size() + " kmers");
+        if (journal == null) {
+            File newSnapshot = snapshot.get() ? saveSnapshot() : null;
+            journal = RunJournal.start(journalFile, runFingerprint, newSnapshot);
+        } else {
+            info("Resuming run, " + journal.doneCount() + " environments are already finished");
+        }
+        if (edgeMasks.get() && hasher == null && masks == null && unitigs == null) {
+            this.masks = IOUtils.buildEdgeMasks(table, k.get(), threshold, availableProcessors.get(), logger);
+        }
+        if (saveState.get() || growFrom.get() != null) {
+            if (hasher != null || unitigs != null) {
+                throw new ExecutionFailedException("Search states can be used only for k <= 31 without hashing "
+                        + "and unitig index");
+            }
+            this.searchStates = new SearchStateStore(
+                    saveState.get() ? new File(workDir.get(), SearchStateStore.DIR_NAME) : null,
+                    growFrom.get() != null ? new File(growFrom.get(), SearchStateStore.DIR_NAME) : null,
+                    EnvironmentCache.fingerprint(tableFiles(), tableSettings()), logger);
+        }
+        if (cache.get()) {
+            this.environmentCache = new EnvironmentCache(new File(workDir.get(), "env-cache"),
+                    EnvironmentCache.fingerprint(tableFiles(), tableSettings()), logger);
+        }
+    }
+
+
+    /**
+     * @return files which the table of k-mers is made of
+     */
+    private File[] tableFiles() {
+        if (unitigIndex.get() == null) {
+            return readsFiles.get();
+        }
+        File[] files = Arrays.copyOf(readsFiles.get(), readsFiles.get().length + 1);
+        files[files.length - 1] = unitigIndex.get();
+        return files;
+    }
+
+    /**
+     * Parameters which change k-mer counts in the table
+     */
+    private String tableSettings() {
+        boolean hashing = k.get() > 31 || forceHashing.get();
+        return "k=" + k.get() + ";hash=" + (hashing ? hashFunction.get().toLowerCase() : "")
+                + ";succinct=" + succinct.get() + ";unitigs=" + (unitigIndex.get() != null)
+                + ";recruit=" + recruit.get() + ";preview=" + fraction;
+    }
+
+    /**
+     * Parameters which change output of environments
+     */
+    private String runSettings() {
+        return "coverage=" + minCoverage.get() + ";maxkmers=" + maxKmers.get() + ";maxradius=" + maxRadius.get()
+                + ";maxtime=" + maxTime.get() + ";maxlookups=" + maxLookups.get() + ";maxmemory=" + maxMemory.get()
+                + ";bothdirs=" + bothDirections.get() + ";trim=" + trimPaths.get() + ";merge=" + doMerge.get()
+                + ";chunklength=" + chunkLength.get() + ";output=" + outputDir.get().getAbsolutePath();
+    }
+
+    private File saveSnapshot() {
+        if (table == null) {
+            warn("Only hash table of k-mers can be saved, k-mers will be counted again on resume");
+            return null;
+        }
+        File file = new File(workDir.get(), "table.kmers.bin");
+        info("Saving k-mer table to " + file.getPath());
+        try {
+            IOUtils.printKmers(table, 0, file, new File(workDir.get(), "table.stat.txt"));
+            return file;
         } catch (IOException e) {
-            throw new ExecutionFailedException("Could not load Hi-C sequences from " + hicSeqsFile.get().getPath());
+            warn("Could not save k-mer table: " + e.getMessage());
+            return null;
         }
     }
 
+    /**
+     * @return groups of sequences searched together: all of them when merged, every one alone otherwise
+     */
+    private List<List<String>> recruitTargets() {
+        List<List<String>> targets = new ArrayList<List<String>>();
+        if (doMerge.get()) {
+            List<String> group = new ArrayList<String>();
+            for (DnaQ sequence : sequences) {
+                group.add(sequence.toString());
+            }
+            if (hicSequences != null) {
+                for (PackedSequence sequence : hicSequences) {
+                    group.add(sequence.toString());
+                }
+            }
+            targets.add(group);
+        } else {
+            for (DnaQ sequence : sequences) {
+                targets.add(Collections.singletonList(sequence.toString()));
+            }
+        }
+        return targets;
+    }
+
+    private BigLong2ShortHashMap loadSnapshot(File file) throws ExecutionFailedException {
+        info("Loading k-mer table from " + file.getPath());
+        return IOUtils.loadKmers(new File[]{file}, 0, availableProcessors.get(), logger);
+    }
+
+    private void markDone(String target) {
+        try {
+            journal.markDone(target);
+        } catch (IOException e) {
+            warn("Could not record finished environment in run journal: " + e.getMessage());
+        }
+    }
 
     private HashFunction determineHashFunction() {
         if (k.get() <= 31 && !forceHashing.get()) {
@@ -179,13 +482,21 @@ public class EnvironmentFinderMain extends Tool {
         if (maxRadius.get() != null) {
             termMode.addRestriction(TerminationModeType.MAX_RADIUS, maxRadius.get());
         }
+        if (maxTime.get() != null) {
+            termMode.addRestriction(TerminationModeType.MAX_TIME, maxTime.get() * 1000L);
+        }
+        if (maxLookups.get() != null) {
+            termMode.addRestriction(TerminationModeType.MAX_LOOKUPS, maxLookups.get());
+        }
+        if (maxMemory.get() != null) {
+            termMode.addRestriction(TerminationModeType.MAX_MEMORY, maxMemory.get() * (1L << 20));
+        }
         return termMode;
     }
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
         loadInput();
-        ExecutorService execService = Executors.newFixedThreadPool(availableProcessors.get());
         /* Obsolete code which filters environment based on reads coverage. Needs redesign
         if (sequences.size() == 1) {
             String outputPrefix = getOutputPrefix(0);
@@ -209,37 +520,260 @@ public class EnvironmentFinderMain extends Tool {
                 logger.info("Creating database of reads!");
                 new ReadsCoverage(outputPrefix, workPrefix, readsFiles.get().length, logger).run();
                 logger.info("Starting branch filtration!");
-                SingleNode[] nodes = calc.filter();
+                int[] nodes = calc.filter();
                 calc.createFilteredPicture(nodes);
                 logger.info("Branch filtration by reads done!");
             }
         }*/
 
         if (!doMerge.get()) {
-            for (int i = 0; i < sequences.size(); i++) {
-                String outputPrefix = getOutputPrefix(i);
-                String workPrefix = workDir.get().getPath() + "/";
-                execService.execute(new OneSequenceCalculator(sequences.get(i).toString(), k.get(),
-                        minCoverage.get(), outputPrefix, workPrefix, this.hasher, reads, logger,
-                        bothDirections.get(), chunkLength.get(), getTerminationMode(), trimPaths.get()));
-            }
+            runSeparately();
         } else {
-            info("hicSequences = " + (hicSequences == null ? 0 : hicSequences.size()));
+            ExecutorService execService = Executors.newFixedThreadPool(availableProcessors.get());
+            if (hicSequences != null) {
+                info("Hi-C sequences are read from " + hicSeqsFile.get().getPath() + " by the search");
+            }
             String outputPrefix = outputDir.get().getPath() + "/merged/";
             String workPrefix = workDir.get().getPath() + "/";
-            execService.execute(new OneSequenceCalculator(sequences, k.get(),
-                    minCoverage.get(), outputPrefix, workPrefix, this.hasher, reads, logger,
-                    bothDirections.get(), chunkLength.get(), getTerminationMode(), trimPaths.get(), hicSequences));
+            OneSequenceCalculator calc = new OneSequenceCalculator(sequences, k.get(),
+                    threshold, outputPrefix, workPrefix, this.hasher, reads, logger,
+                    bothDirections.get(), chunkLength.get(), getTerminationMode(), trimPaths.get(), hicSequences);
+            calc.setEdgeMasks(masks);
+            calc.setUnitigIndex(unitigs);
+            calc.setPreviewFraction(fraction);
+            calc.setGeneKmers(buildGeneKmers());
+            calc.setCache(environmentCache);
+            calc.setSearchStates(searchStates);
+            String target;
+            try {
+                target = mergedTargetId();
+            } catch (UncheckedIOException e) {
+                throw new ExecutionFailedException("Could not load Hi-C sequences from "
+                        + hicSeqsFile.get().getPath() + ": " + e.getCause().getMessage());
+            }
+            targetStats.put("merged", calc.stats());
+            if (journal.isDone(target)) {
+                info("Merged environment is already finished");
+            } else {
+                execService.execute(() -> {
+                    calc.run();
+                    markDone(target);
+                });
+            }
+            execService.shutdown();
+            try {
+                execService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new ExecutionFailedException("Error while building graphic environment: " + e.toString());
+            }
+        }
+
+        info("Finished processing all sequences!");
+        writeStatsTable();
+        if (compareOutput.get() != null) {
+            comparePreview();
+        }
+    }
+
+    /**
+     * Writes statistics of environments searched in this run to <code>stats.tsv</code>, one row per target
+     */
+    private void writeStatsTable() {
+        File file = new File(outputDir.get(), "stats.tsv");
+        file.getParentFile().mkdirs();
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println(SearchStats.tsvHeader());
+            for (Map.Entry<String, SearchStats> entry : targetStats.entrySet()) {
+                out.println(entry.getValue().tsvRow(entry.getKey()));
+            }
+        } catch (IOException e) {
+            warn("Could not write statistics of environments to " + file.getPath());
+        }
+    }
+
+    /**
+     * Writes sizes of environments in k-mers in this run and in the full run to <code>preview.tsv</code>
+     */
+    private void comparePreview() throws ExecutionFailedException {
+        List<String> names = new ArrayList<String>();
+        if (doMerge.get()) {
+            names.add("merged");
+        } else {
+            for (String name : comments) {
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        File report = new File(outputDir.get(), "preview.tsv");
+        try (PrintWriter out = new PrintWriter(report)) {
+            out.println("name\tpreview_kmers\tfull_kmers\tratio");
+            for (String name : names) {
+                long preview = environmentSize(new File(outputDir.get(), name));
+                long full = environmentSize(new File(compareOutput.get(), name));
+                out.println(name + "\t" + sizeString(preview) + "\t" + sizeString(full) + "\t"
+                        + (preview >= 0 && full > 0 ? String.format(Locale.US, "%.3f", (double) preview / full)
+                        : "-"));
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Could not write preview report to " + report.getPath());
+        }
+        info("Sizes of environments compared with full run in " + report.getPath());
+    }
+
+    /**
+     * @return number of k-mers in <code>graph.txt</code> of the environment or -1 if it isn't found
+     */
+    private static long environmentSize(File dir) {
+        File file = new File(dir, "graph.txt");
+        if (!file.isFile()) {
+            return -1;
+        }
+        try (Stream<String> lines = Files.lines(file.toPath())) {
+            return lines.count();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static String sizeString(long size) {
+        return size >= 0 ? Long.toString(size) : "-";
+    }
+
+    /**
+     * Hi-C sequences are read from the file once for the id
+     */
+    private String mergedTargetId() {
+        List<String> targets = new ArrayList<String>();
+        for (DnaQ s : sequences) {
+            targets.add(s.toString());
+        }
+        targets.add("hic");
+        if (hicSequences == null) {
+            return RunJournal.targetId("merged", targets);
+        }
+        return RunJournal.targetId("merged", () -> Stream.concat(targets.stream(),
+                StreamSupport.stream(hicSequences.spliterator(), false).map(PackedSequence::toString)).iterator());
+    }
+
+    /**
+     * Finds environments of all sequences separately. Identical sequences are searched once and output
+     * of the first one is copied to the others.
+     */
+    private void runSeparately() throws ExecutionFailedException {
+        List<Integer> distinct = new ArrayList<Integer>();
+        Map<String, Integer> firstBySequence = new HashMap<String, Integer>();
+        Map<Integer, List<Integer>> duplicates = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < sequences.size(); i++) {
+            Integer first = firstBySequence.putIfAbsent(sequences.get(i).toString().toUpperCase(), i);
+            if (first == null) {
+                distinct.add(i);
+            } else {
+                duplicates.computeIfAbsent(first, f -> new ArrayList<Integer>()).add(i);
+                debug("Sequence " + comments.get(i) + " is the same as " + comments.get(first));
+            }
+        }
+        if (distinct.size() < sequences.size()) {
+            info((sequences.size() - distinct.size()) + " duplicate sequences, their environments are copied");
+        }
+        int before = distinct.size();
+        distinct.removeIf(i -> journal.isDone(targetId(i)));
+        if (distinct.size() < before) {
+            info("Skipping " + (before - distinct.size()) + " environments finished by the previous run");
         }
 
-        execService.shutdown();
+        MultiKmerBfs search = batch.get() ? createSharedSearch() : null;
+        Runtime runtime = Runtime.getRuntime();
+        long budget = (runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) / 5 * 4;
+        EnvironmentScheduler scheduler = new EnvironmentScheduler(availableProcessors.get(), budget, logger);
+        for (final int i : distinct) {
+            String outputPrefix = getOutputPrefix(i);
+            String workPrefix = workDir.get().getPath() + "/";
+            OneSequenceCalculator calc = new OneSequenceCalculator(sequences.get(i).toString(), k.get(),
+                    threshold, outputPrefix, workPrefix, this.hasher, reads, logger,
+                    bothDirections.get(), chunkLength.get(), getTerminationMode(), trimPaths.get());
+            calc.setEdgeMasks(masks);
+            calc.setPreviewFraction(fraction);
+            calc.setUnitigIndex(unitigs);
+            calc.setCache(environmentCache);
+            calc.setSearchStates(searchStates);
+            if (search != null) {
+                calc.setSharedSearch(search);
+            }
+            targetStats.put(comments.get(i), calc.stats());
+            final List<Integer> copies = duplicates.get(i);
+            scheduler.add(comments.get(i), calc, () -> {
+                if (copies != null) {
+                    copyOutput(i, copies);
+                }
+                markDone(targetId(i));
+            });
+        }
         try {
-            execService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            scheduler.run();
         } catch (InterruptedException e) {
             throw new ExecutionFailedException("Error while building graphic environment: " + e.toString());
         }
+        if (search != null) {
+            info("Shared search visited " + search.size() + " k-mers with " + search.lookups() + " lookups");
+        }
+    }
 
-        info("Finished processing all sequences!");
+    /**
+     * @return id of environment of sequence in run journal, it also covers copies to its duplicates
+     */
+    private String targetId(int i) {
+        return RunJournal.targetId(comments.get(i), sequences.get(i).toString());
+    }
+
+    private void copyOutput(int from, List<Integer> to) {
+        Path source = new File(getOutputPrefix(from)).toPath().toAbsolutePath();
+        if (!Files.isDirectory(source)) {
+            return;
+        }
+        for (int i : to) {
+            Path target = new File(getOutputPrefix(i)).toPath().toAbsolutePath();
+            if (target.equals(source)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(source)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Path copy = target.resolve(source.relativize(file));
+                    if (Files.isDirectory(file)) {
+                        Files.createDirectories(copy);
+                    } else {
+                        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            } catch (IOException e) {
+                warn("Could not copy environment from " + source + " to " + target + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return search shared by the calculators, each of them searches its sequence when it is run
+     */
+    private MultiKmerBfs createSharedSearch() throws ExecutionFailedException {
+        if (hasher != null || unitigs != null) {
+            throw new ExecutionFailedException("Batch search can be used only for k <= 31 without hashing "
+                    + "and unitig index");
+        }
+        if (getTerminationMode().hasBudget()) {
+            throw new ExecutionFailedException("Batch search can't be used with --max-time, --max-lookups "
+                    + "and --max-memory restrictions");
+        }
+        return new MultiKmerBfs(k.get(), reads, threshold, masks, getTerminationMode(), trimPaths.get());
+    }
+
+    private GeneKmerSet buildGeneKmers() {
+        List<String> targets = new ArrayList<String>(sequences.size());
+        for (DnaQ s : sequences) {
+            targets.add(s.toString());
+        }
+        GeneKmerSet geneKmers = new GeneKmerSet(k.get(), targets);
+        debug("Gene k-mers: " + geneKmers.size());
+        return geneKmers;
     }
 
     private String getOutputPrefix(int i) {
@@ -250,7 +784,13 @@ public class EnvironmentFinderMain extends Tool {
 
     @Override
     protected void cleanImpl() {
-
+        masks = null;
+        environmentCache = null;
+        searchStates = null;
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
     }
 
     public EnvironmentFinderMain() {
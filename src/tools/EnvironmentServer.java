@@ -0,0 +1,299 @@
+package tools;
+
+import algo.OneSequenceCalculator;
+import algo.TerminationMode;
+import algo.TerminationMode.TerminationModeType;
+import io.IOUtils;
+import io.LargeKIOUtils;
+import io.QueryProtocol;
+import io.graph.DeBruijnGraphUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+import structures.KmerCounts;
+import structures.UnitigIndex;
+import utils.FNV1AHash;
+import utils.HashFunction;
+import utils.PolynomialHash;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps k-mer table of a sample in memory and finds environments of sequences sent by {@link QueryClient}.<br></br>
+ * <br></br>
+ *
+ * The server listens on the loopback interface only. Requests are run by a fixed number of threads, those which
+ * don't fit into the waiting queue are refused at once. Search time of every request is limited, the search is stopped
+ * by the time restriction and the truncated environment is returned.
+ */
+public class EnvironmentServer extends Tool {
+    public static final String NAME = "serve";
+    public static final String DESCRIPTION = "Keeps k-mer table in memory and answers environment requests "
+            + "on a local socket";
+
+    private static final Pattern DNA = Pattern.compile("[ACGTacgt]+");
+
+    public final Parameter<Integer> k = addParameter(new IntParameterBuilder("k")
+            .mandatory()
+            .withShortOpt("k")
+            .withDescription("k-mer size")
+            .create());
+
+    public final Parameter<File[]> readsFiles = addParameter(new FileMVParameterBuilder("reads")
+            .withShortOpt("i")
+            .withDescription("FASTQ, BINQ, FASTA reads or .kmers.bin files of k-mer counter")
+            .withDefaultValue(new File[]{})
+            .create());
+
+    public final Parameter<File> unitigIndex = addParameter(new FileParameterBuilder("unitig-index")
+            .withDescription("unitig index built by unitig-index tool to search over instead of reads (k <= 31 only)")
+            .create());
+
+    public final Parameter<Integer> minCoverage = addParameter(new IntParameterBuilder("coverage")
+            .withDescription("minimum depth of k-mers to consider")
+            .withDefaultValue(1)
+            .create());
+
+    public final Parameter<String> hashFunction = addParameter(new StringParameterBuilder("hash")
+            .withDescription("hash function to use for k > 31: poly or fnv1a")
+            .withDefaultValue("poly")
+            .create());
+
+    public final Parameter<Integer> port = addParameter(new IntParameterBuilder("port")
+            .withDescription("port on the loopback interface to listen on")
+            .withDefaultValue(QueryProtocol.DEFAULT_PORT)
+            .create());
+
+    public final Parameter<Integer> queueSize = addParameter(new IntParameterBuilder("queue")
+            .withDescription("number of requests waiting for a free thread, further requests are refused")
+            .withDefaultValue(64)
+            .create());
+
+    public final Parameter<Integer> timeout = addParameter(new IntParameterBuilder("timeout")
+            .withDescription("maximum time of search for one request in seconds, requests may set lower values")
+            .withDefaultValue(600)
+            .create());
+
+    private KmerCounts reads;
+    private HashFunction hasher;
+    private UnitigIndex unitigs;
+    private final AtomicLong requests = new AtomicLong();
+
+    @Override
+    protected void runImpl() throws ExecutionFailedException {
+        loadTable();
+        File requestsDir = new File(workDir.get(), "requests");
+        int threads = availableProcessors.get();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize.get()));
+        try (ServerSocket server = new ServerSocket(port.get(), queueSize.get(), InetAddress.getLoopbackAddress())) {
+            info("Listening on " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort()
+                    + ", " + threads + " threads");
+            while (true) {
+                Socket socket = server.accept();
+                long id = requests.incrementAndGet();
+                try {
+                    pool.execute(() -> serve(socket, new File(requestsDir, String.valueOf(id))));
+                } catch (RejectedExecutionException e) {
+                    refuse(socket, "Server is busy, " + queueSize.get() + " requests are waiting");
+                }
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Server failed: " + e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void loadTable() throws ExecutionFailedException {
+        if (unitigIndex.get() != null) {
+            unitigs = UnitigIndex.load(unitigIndex.get(), logger);
+            if (unitigs.k() != k.get() || unitigs.threshold() != minCoverage.get()) {
+                throw new ExecutionFailedException("Unitig index is built for k = " + unitigs.k() + " and coverage = "
+                        + unitigs.threshold() + ", but k = " + k.get() + " and coverage = " + minCoverage.get()
+                        + " are given");
+            }
+            reads = unitigs;
+            return;
+        }
+        if (readsFiles.get().length == 0) {
+            throw new ExecutionFailedException("Either --reads or --unitig-index should be set");
+        }
+        if (k.get() > 31) {
+            hasher = LargeKIOUtils.hash = hashFunction.get().equalsIgnoreCase("fnv1a")
+                    ? new FNV1AHash() : new PolynomialHash();
+            reads = KmerCounts.of(LargeKIOUtils.loadReads(readsFiles.get(), k.get(), 0, availableProcessors.get(),
+                    logger));
+        } else {
+            boolean kmersInput = true;
+            for (File file : readsFiles.get()) {
+                kmersInput &= file.getName().toLowerCase().endsWith("kmers.bin");
+            }
+            reads = KmerCounts.of(kmersInput ? IOUtils.loadKmers(readsFiles.get(), 0, availableProcessors.get(), logger)
+                    : IOUtils.loadReads(readsFiles.get(), k.get(), 0, availableProcessors.get(), logger));
+        }
+        info("Hashtable size: " + reads.size() + " kmers");
+    }
+
+    /**
+     * Reads the request, finds the environment in its own directory and sends the result back
+     */
+    private void serve(Socket socket, File dir) {
+        try (Socket s = socket) {
+            s.setSoTimeout(timeout.get() * 1000);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            Map<String, String> request;
+            try {
+                request = QueryProtocol.readRequest(in);
+            } catch (IOException e) {
+                QueryProtocol.writeError(out, "Can't read request: " + e.getMessage());
+                return;
+            }
+            try {
+                File result = findEnvironment(request, dir);
+                String truncation = truncation(new File(dir, "graph.gfa"));
+                QueryProtocol.writeResult(out, Files.readAllBytes(result.toPath()), truncation);
+            } catch (IllegalArgumentException e) {
+                QueryProtocol.writeError(out, e.getMessage());
+            }
+        } catch (Exception e) {
+            warn("Request " + dir.getName() + " failed: " + e.getMessage());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * @return file with the result in requested format
+     * @throws IllegalArgumentException if the request is malformed or the environment isn't found
+     */
+    private File findEnvironment(Map<String, String> request, File dir) throws IOException {
+        String sequence = request.get("seq");
+        if (sequence == null || !DNA.matcher(sequence).matches()) {
+            throw new IllegalArgumentException("Request should have seq of nucleotides ACGT");
+        }
+        if (sequence.length() < k.get()) {
+            throw new IllegalArgumentException("Sequence is shorter than k = " + k.get());
+        }
+        String format = request.containsKey("format") ? request.get("format") : "gfa";
+        if (!format.equals("gfa") && !format.equals("txt") && !format.equals("fasta") && !format.equals("bin")) {
+            throw new IllegalArgumentException("Unknown format " + format + ", use gfa, txt, fasta or bin");
+        }
+        Integer maxKmers = intValue(request, "maxkmers");
+        Integer maxRadius = intValue(request, "maxradius");
+        if (maxKmers == null && maxRadius == null) {
+            throw new IllegalArgumentException("At least one of maxkmers and maxradius should be set");
+        }
+        Integer requestTimeout = intValue(request, "timeout");
+        TerminationMode termMode = new TerminationMode();
+        if (maxKmers != null) {
+            termMode.addRestriction(TerminationModeType.MAX_KMERS, maxKmers);
+        }
+        if (maxRadius != null) {
+            termMode.addRestriction(TerminationModeType.MAX_RADIUS, maxRadius);
+        }
+        int seconds = requestTimeout != null ? Math.min(requestTimeout, timeout.get()) : timeout.get();
+        termMode.addRestriction(TerminationModeType.MAX_TIME, seconds * 1000L);
+        boolean bothDirections = Boolean.parseBoolean(request.get("bothdirs"));
+        Integer chunkLength = intValue(request, "chunklength");
+
+        OneSequenceCalculator calc = new OneSequenceCalculator(sequence.toUpperCase(), k.get(), minCoverage.get(),
+                dir.getPath() + "/", workDir.get().getPath() + "/", hasher, reads, logger, bothDirections,
+                chunkLength != null ? chunkLength : 1, termMode, false);
+        calc.setUnitigIndex(unitigs);
+        calc.run();
+        if (!new File(dir, "graph.gfa").exists()) {
+            throw new IllegalArgumentException("No k-mers of the sequence are found in the sample");
+        }
+        switch (format) {
+            case "gfa":
+                return new File(dir, "graph.gfa");
+            case "txt":
+                return new File(dir, "graph.txt");
+            case "fasta":
+                return new File(dir, "seqs.fasta");
+            default:
+                File result = new File(dir, "graph.bin");
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(result)))) {
+                    Map<String, Integer> environment;
+                    try {
+                        environment = DeBruijnGraphUtils.loadGraph(new File(dir, "graph.txt"));
+                    } catch (ExecutionFailedException e) {
+                        throw new IOException(e.getMessage(), e);
+                    }
+                    QueryProtocol.writeEnvironment(out, k.get(), environment);
+                }
+                return result;
+        }
+    }
+
+    private static Integer intValue(Map<String, String> request, String name) {
+        String value = request.get(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Value of " + name + " should be an integer: " + value);
+        }
+    }
+
+    /**
+     * @return restriction from the header of GFA file or null if the graph isn't truncated
+     */
+    private static String truncation(File gfa) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(gfa))) {
+            String header = reader.readLine();
+            int tag = header != null && header.startsWith("H\t") ? header.indexOf("tr:Z:") : -1;
+            return tag >= 0 ? header.substring(tag + "tr:Z:".length()).split("\t")[0] : null;
+        }
+    }
+
+    private void refuse(Socket socket, String message) {
+        try (Socket s = socket) {
+            QueryProtocol.writeError(s.getOutputStream(), message);
+        } catch (IOException e) {
+            debug("Can't refuse request: " + e.getMessage());
+        }
+    }
+
+    private static void delete(File dir) {
+        if (!dir.exists()) {
+            return;
+        }
+        try (Stream<File> files = Files.walk(dir.toPath()).sorted(Comparator.reverseOrder()).map(p -> p.toFile())) {
+            files.forEach(File::delete);
+        } catch (IOException e) {
+            // leftovers are removed with the work directory
+        }
+    }
+
+    @Override
+    protected void cleanImpl() {
+    }
+
+    public static void main(String[] args) {
+        new EnvironmentServer().mainImpl(args);
+    }
+
+    public EnvironmentServer() {
+        super(NAME, DESCRIPTION);
+    }
+}
@@ -1,5 +1,6 @@
 package tools;
 
+import algo.CompactGraph;
 import algo.SingleNode;
 import io.IOUtils;
 import io.LargeKIOUtils;
@@ -87,10 +88,9 @@ public class FMTVisualiser extends Tool {
 
     private BigLong2ShortHashMap graph, settle, not_settle, stay, gone, from_donor, from_both, from_before, itself;
     private HashFunction hasher;
-    private SingleNode[] nodes;
+    private CompactGraph nodes;
     private String outputPrefix;
     private Map<String, Integer> subgraph;
-    private int size;
 
     private long getKmerKey(String s) {
         if (hasher != null) {
@@ -288,7 +288,7 @@ public class FMTVisualiser extends Tool {
         logger.debug("Initializing structures for creating picture ...");
         initializeStructures(getNodeColor);
         logger.debug("Merging vertices for creating picture ...");
-        doMerge();
+        nodes.compact();
         logger.debug("Outputing merged vertices ...");
         outputNodeSequences(outputPrefix, nodes, name);
         logger.debug("Drawing image ...");
@@ -300,90 +300,28 @@ public class FMTVisualiser extends Tool {
     }
 
     private void initializeStructures(Function<String, SingleNode.Color> getNodeColor) {
-        Map<String, List<SingleNode>> nodeByKmer = new HashMap<>();
-        this.size = subgraph.size() * 2;
-        logger.debug("Number of k-mers: " + this.size);
-        nodes = new SingleNode[size];
-        {
-            int id = 0;
-            Iterator<Map.Entry<String, Integer>> iter = subgraph.entrySet().iterator();
-            while (iter.hasNext()) {
-                String seq = iter.next().getKey();
-                String rc = DnaTools.reverseComplement(seq);
-                SingleNode.Color color = getNodeColor.apply(seq);
-                nodes[id] = new SingleNode(seq, id, color);
-                nodes[id + 1] = new SingleNode(rc, id + 1, color);
-                nodes[id].rc = nodes[id + 1];
-                nodes[id + 1].rc = nodes[id];
-
-                id += 2;
-            }
-        }
-        logger.debug("Nodes are created");
-        for (int i = 0; i < size; i++) {
-            String key = nodes[i].sequence.substring(0, k.get() - 1);
-            if (!nodeByKmer.containsKey(key)) {
-                nodeByKmer.put(key, new ArrayList<>());
-            }
-            nodeByKmer.get(key).add(nodes[i]);
+        logger.debug("Number of k-mers: " + subgraph.size() * 2);
+        nodes = new CompactGraph(k.get(), subgraph.keySet());
+        int kmerIndex = 0;
+        for (String seq : subgraph.keySet()) {
+            nodes.setAttributes(kmerIndex++, false, getNodeColor.apply(seq));
         }
-        logger.debug("Nodes neighbors initialized");
-        for (int i = 0; i < size; i++) {
-            String lastK = nodes[i].sequence.substring(1);
-            if (nodeByKmer.containsKey(lastK)) {
-                nodes[i].rc.neighbors.addAll(nodeByKmer.get(lastK));
-            }
-        }
-        logger.debug("Nodes neighbors added");
-    }
-
-    private void doMerge() {
-        while (true) {
-            boolean acted = false;
-            for (int i = 0; i < size; i++) {
-                if (!nodes[i].deleted && nodes[i].neighbors.size() == 1) {
-                    SingleNode other = nodes[i].neighbors.get(0);
-                    if (other.neighbors.size() != 1 || nodes[i].color != other.color) {
-                        continue;
-                    }
-                    mergeNodes(nodes[i], other);
-                    acted = true;
-                }
-            }
-            if (!acted) {
-                break;
-            }
-        }
-    }
-
-    private void mergeNodes(SingleNode firstPlus, SingleNode secondMinus) {
-        // first k-1 symbols of firstPlus coincide with complement of first k-1 symbols of secondMinus
-        SingleNode firstMinus = firstPlus.rc, secondPlus = secondMinus.rc;
-        String newSeq = mergeLabels(secondPlus.sequence, firstPlus.sequence);
-        String newSeqRC = mergeLabels(firstMinus.sequence, secondMinus.sequence);
-
-        secondPlus.sequence = newSeq;
-        firstMinus.sequence = newSeqRC;
-        secondPlus.rc = firstMinus;
-        firstMinus.rc = secondPlus;
-
-        firstPlus.deleted = secondMinus.deleted = true;
+        logger.debug("Nodes and their neighbors are created");
     }
 
-
-    private void outputNodeSequences(String outputPrefix, SingleNode[] nodes, String name) {
+    private void outputNodeSequences(String outputPrefix, CompactGraph nodes, String name) {
         try {
             File output = new File(outputPrefix + "/" + name + "_seqs.fasta");
             output.getParentFile().mkdirs();
             PrintWriter out = new PrintWriter(output);
-            for (int i = 0; i < nodes.length; i++) {
-                if (!nodes[i].deleted && nodes[i].id < nodes[i].rc.id && nodes[i].sequence.length() >= 1) {
+            for (int i = 0; i < nodes.size(); i++) {
+                if (!nodes.isDeleted(i) && i < nodes.rc(i) && nodes.labelLength(i) >= 1) {
                     out.print("> ");
-                    out.print("Id" + (nodes[i].id + 1) + " ");
-                    out.print("Length:" + nodes[i].sequence.length() + " ");
-                    out.print("Neighbors:" + getNeighborIds(nodes[i]));
+                    out.print("Id" + (i + 1) + " ");
+                    out.print("Length:" + nodes.labelLength(i) + " ");
+                    out.print("Neighbors:" + nodes.neighborIds(i));
                     out.println();
-                    out.println(nodes[i].sequence);
+                    out.println(nodes.label(i));
                 }
             }
             out.close();
@@ -392,29 +330,6 @@ public class FMTVisualiser extends Tool {
         }
     }
 
-    private Set<Integer> getNeighborIds(SingleNode SingleNode) {
-        Set<Integer> result = new TreeSet<>();
-        for (SingleNode neighbour : SingleNode.neighbors) {
-            result.add(Math.min(neighbour.id, neighbour.rc.id) + 1);
-        }
-        for (SingleNode neighbour : SingleNode.rc.neighbors) {
-            result.add(Math.min(neighbour.id, neighbour.rc.id) + 1);
-        }
-        result.remove(Math.min(SingleNode.id, SingleNode.rc.id) + 1);
-        return result;
-    }
-
-    private void checkLabels(String a, String b) {
-        if (!a.substring(a.length() - (k.get() - 1)).equals(b.substring(0, k.get() - 1))) {
-            throw new AssertionError("Labels should be merged, but can not: " + a + " and " + b);
-        }
-    }
-
-    private String mergeLabels(String a, String b) {
-        checkLabels(a, b);
-        return a + b.substring(k.get() - 1);
-    }
-
     public FMTVisualiser() {
         super(NAME, DESCRIPTION);
     }
@@ -13,10 +13,12 @@ import ru.ifmo.genetics.utils.KmerUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+import structures.EdgeMasks;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
@@ -84,8 +86,14 @@ public class FMTVisualizer extends Tool {
             .withDescription("extension of output files of reads_classifier.sh FMT classification script")
             .create());
 
+    public final Parameter<Boolean> edgeMasks = addParameter(new BoolParameterBuilder("edge-masks")
+            .withDescription("precompute existing extensions of all k-mers to speed up graph search (k <= 31 only)")
+            .withDefaultValue(false)
+            .create());
+
 
     private BigLong2ShortHashMap graph, settle, not_settle, stay, gone, from_donor, from_both, from_before, itself;
+    private EdgeMasks masks;
     private HashFunction hasher;
     private List<DnaQ> sequences;
     private String outputPrefix;
@@ -180,6 +188,7 @@ public class FMTVisualizer extends Tool {
     @Override
     protected void cleanImpl() {
         graph = null;
+        masks = null;
         hasher = null;
         settle = null;
         not_settle = null;
@@ -235,6 +244,9 @@ public class FMTVisualizer extends Tool {
                     new File(inputPrefix + "not_settle_2." + extension.get()),
                     new File(inputPrefix + "not_settle_s." + extension.get())};
             loadDonorGraphs(settle_files, not_settle_files);
+            if (edgeMasks.get() && hasher == null) {
+                masks = IOUtils.buildEdgeMasks(graph, k.get(), 1, availableProcessors.get(), logger);
+            }
 
             logger.info("Creating donor image ...");
             long comp = 0;
@@ -243,8 +255,10 @@ public class FMTVisualizer extends Tool {
                 for (int i = 0; i + k.get() <= seq.length(); i++) {
                     String kmer = seq.substring(i, i + k.get());
                     if (graph.get(getKmerKey(kmer)) > 0) {
-                        new KmerEnvCalculator(kmer, k.get(), outputPrefix + "/donor", this.hasher, graph, logger,
-                                getDonorColorNode(), "comp" + comp).run();
+                        KmerEnvCalculator calc = new KmerEnvCalculator(kmer, k.get(), outputPrefix + "/donor", this.hasher, graph, logger,
+                                getDonorColorNode(), "comp" + comp);
+                        calc.setEdgeMasks(masks);
+                        calc.run();
                         comp++;
                     }
 
@@ -263,6 +277,9 @@ public class FMTVisualizer extends Tool {
                     new File(inputPrefix + "gone_2." + extension.get()),
                     new File(inputPrefix + "gone_s." + extension.get())};
             loadBeforeGraphs(stay_files, gone_files);
+            if (edgeMasks.get() && hasher == null) {
+                masks = IOUtils.buildEdgeMasks(graph, k.get(), 1, availableProcessors.get(), logger);
+            }
 
             logger.info("Creating before image ...");
             long comp = 0;
@@ -271,8 +288,10 @@ public class FMTVisualizer extends Tool {
                 for (int i = 0; i + k.get() <= seq.length(); i++) {
                     String kmer = seq.substring(i, i + k.get());
                     if (graph.get(getKmerKey(kmer)) > 0) {
-                        new KmerEnvCalculator(kmer, k.get(), outputPrefix + "/before", this.hasher, graph, logger,
-                                getBeforeColorNode(), "comp" + comp).run();
+                        KmerEnvCalculator calc = new KmerEnvCalculator(kmer, k.get(), outputPrefix + "/before", this.hasher, graph, logger,
+                                getBeforeColorNode(), "comp" + comp);
+                        calc.setEdgeMasks(masks);
+                        calc.run();
                         comp++;
                     }
 
@@ -297,6 +316,9 @@ public class FMTVisualizer extends Tool {
                     new File(inputPrefix + "came_itself_2." + extension.get()),
                     new File(inputPrefix + "came_itself_s." + extension.get())};
             loadAfterGraphs(from_donor_files, from_before_files, from_both_files, itself_files);
+            if (edgeMasks.get() && hasher == null) {
+                masks = IOUtils.buildEdgeMasks(graph, k.get(), 1, availableProcessors.get(), logger);
+            }
 
             logger.info("Creating after image ...");
             long comp = 0;
@@ -305,8 +327,10 @@ public class FMTVisualizer extends Tool {
                 for (int i = 0; i + k.get() <= seq.length(); i++) {
                     String kmer = seq.substring(i, i + k.get());
                     if (graph.get(getKmerKey(kmer)) > 0) {
-                        new KmerEnvCalculator(kmer, k.get(), outputPrefix + "/after", this.hasher, graph, logger,
-                                getAfterColorNode(), "comp" + comp).run();
+                        KmerEnvCalculator calc = new KmerEnvCalculator(kmer, k.get(), outputPrefix + "/after", this.hasher, graph, logger,
+                                getAfterColorNode(), "comp" + comp);
+                        calc.setEdgeMasks(masks);
+                        calc.run();
                         comp++;
                     }
 
@@ -13,7 +13,10 @@ import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.LongParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+import structures.ApproxTableBuilder;
+import structures.CountingCuckooFilter;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
@@ -50,6 +53,18 @@ public class KmersCounter extends Tool {
             .withDefaultValue(workDir.append("kmers"))
             .create());
 
+    public final Parameter<String> approxFpr = addParameter(new StringParameterBuilder("approx-fpr")
+            .optional()
+            .withDescription("also build approximate k-mer counter with given false-positive rate and report its error")
+            .create());
+
+    public final Parameter<Long> approxKmers = addParameter(new LongParameterBuilder("approx-kmers")
+            .optional()
+            .withDescription("expected number of distinct k-mers for approximate counter (number of counted k-mers by default)")
+            .create());
+
+    static final int APPROX_ERROR_SAMPLE = 1000000;
+
 
 
     private BigLong2ShortHashMap graph;
@@ -118,6 +133,20 @@ public class KmersCounter extends Tool {
         }
 
         info("k-mers printed to " + outFile.getPath());
+
+        if (approxFpr.get() != null) {
+            checkApproxTable();
+        }
+    }
+
+    private void checkApproxTable() throws ExecutionFailedException {
+        Timer t = new Timer();
+        info("Building approximate k-mer counter...");
+        CountingCuckooFilter approx = ApproxTableBuilder.load(inputFiles.get(), k.get(), approxFpr.get(),
+                approxKmers.get() != null ? approxKmers.get() : graph.size(), availableProcessors.get(), logger);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+        info("Approximate counter uses " + NumUtils.memoryAsString(approx.memoryInBytes()) + ", error on sample: "
+                + CountingCuckooFilter.measureError(graph, approx, APPROX_ERROR_SAMPLE, k.get() > 31 ? 64 : 2 * k.get()));
     }
 
     @Override
@@ -0,0 +1,165 @@
+package tools;
+
+import io.QueryProtocol;
+import io.RichFastaReader;
+import ru.ifmo.genetics.dna.DnaQ;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends sequences to {@link EnvironmentServer} one by one and saves their environments
+ * to <code>&lt;output&gt;/&lt;name&gt;.&lt;format&gt;</code>, where name is the id of the sequence in FASTA file
+ * (see {@link #fileName}).
+ */
+public class QueryClient extends Tool {
+    public static final String NAME = "query";
+    public static final String DESCRIPTION = "Requests environments of sequences from running serve tool";
+
+    public final Parameter<File> seqsFile = addParameter(new FileParameterBuilder("seq")
+            .mandatory()
+            .withDescription("FASTA file with sequences")
+            .create());
+
+    public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output")
+            .mandatory()
+            .withShortOpt("o")
+            .withDescription("output directory")
+            .create());
+
+    public final Parameter<Integer> port = addParameter(new IntParameterBuilder("port")
+            .withDescription("port of the server on the loopback interface")
+            .withDefaultValue(QueryProtocol.DEFAULT_PORT)
+            .create());
+
+    public final Parameter<Integer> maxKmers = addParameter(new IntParameterBuilder("maxkmers")
+            .withDescription("maximum number of k-mers in created subgraph")
+            .create());
+
+    public final Parameter<Integer> maxRadius = addParameter(new IntParameterBuilder("maxradius")
+            .withDescription("maximum distance in k-mers from starting gene")
+            .create());
+
+    public final Parameter<Boolean> bothDirections = addParameter(new BoolParameterBuilder("bothdirs")
+            .withDescription("run graph search in both directions from starting sequence")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Integer> chunkLength = addParameter(new IntParameterBuilder("chunklength")
+            .withDescription("minimum node length for FASTA output")
+            .withDefaultValue(1)
+            .create());
+
+    public final Parameter<Integer> timeout = addParameter(new IntParameterBuilder("timeout")
+            .withDescription("maximum time of search for one sequence in seconds, the server may limit it further")
+            .create());
+
+    public final Parameter<String> format = addParameter(new StringParameterBuilder("format")
+            .withDescription("result format: gfa (graph), txt (k-mers with counts), fasta (graph nodes) "
+                    + "or bin (binary k-mers with counts)")
+            .withDefaultValue("gfa")
+            .create());
+
+    private static final int MAX_NAME_LENGTH = 100;
+
+    @Override
+    protected void runImpl() throws ExecutionFailedException {
+        if (maxKmers.get() == null && maxRadius.get() == null) {
+            throw new ExecutionFailedException("At least one of --maxkmers and --maxradius parameters should be set");
+        }
+        List<DnaQ> sequences;
+        List<String> comments;
+        try {
+            RichFastaReader reader = new RichFastaReader(seqsFile.get());
+            sequences = reader.getDnas();
+            comments = reader.getComments();
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Could not load sequences from " + seqsFile.get().getPath());
+        }
+        outputDir.get().mkdirs();
+        int failed = 0;
+        Set<String> used = new HashSet<String>();
+        for (int i = 0; i < sequences.size(); i++) {
+            File output = new File(outputDir.get(), fileName(comments.get(i), i, used) + "." + format.get());
+            try {
+                QueryProtocol.Response response = query(sequences.get(i).toString());
+                try (OutputStream out = new FileOutputStream(output)) {
+                    out.write(response.data);
+                }
+                info(comments.get(i) + ": " + (response.truncation != null
+                        ? "truncated by " + response.truncation + ", " : "") + "saved to " + output.getPath());
+            } catch (IOException e) {
+                warn(comments.get(i) + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            throw new ExecutionFailedException(failed + " of " + sequences.size() + " requests failed");
+        }
+    }
+
+    /**
+     * @return id of the sequence, i.e. its name up to the first whitespace, with characters other than letters,
+     *         digits, <code>.</code>, <code>-</code> and <code>_</code> replaced by <code>_</code>. Empty id is
+     *         replaced by the number of the sequence from 1, repeated ones get suffixes <code>_2</code>,
+     *         <code>_3</code> and so on
+     */
+    private static String fileName(String name, int index, Set<String> used) {
+        String id = name.trim().split("\\s+", 2)[0].replaceAll("[^A-Za-z0-9._-]", "_");
+        if (id.length() > MAX_NAME_LENGTH) {
+            id = id.substring(0, MAX_NAME_LENGTH);
+        }
+        if (id.isEmpty() || id.equals(".") || id.equals("..")) {
+            id = String.valueOf(index + 1);
+        }
+        String result = id;
+        // file systems may ignore case
+        for (int copy = 2; !used.add(result.toLowerCase()); copy++) {
+            result = id + "_" + copy;
+        }
+        return result;
+    }
+
+    private QueryProtocol.Response query(String sequence) throws IOException {
+        Map<String, String> request = new LinkedHashMap<String, String>();
+        request.put("seq", sequence);
+        if (maxKmers.get() != null) {
+            request.put("maxkmers", maxKmers.get().toString());
+        }
+        if (maxRadius.get() != null) {
+            request.put("maxradius", maxRadius.get().toString());
+        }
+        if (timeout.get() != null) {
+            request.put("timeout", timeout.get().toString());
+        }
+        request.put("bothdirs", bothDirections.get().toString());
+        request.put("chunklength", chunkLength.get().toString());
+        request.put("format", format.get());
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port.get())) {
+            QueryProtocol.writeRequest(new BufferedOutputStream(socket.getOutputStream()), request);
+            return QueryProtocol.readResponse(new BufferedInputStream(socket.getInputStream()));
+        }
+    }
+
+    @Override
+    protected void cleanImpl() {
+    }
+
+    public static void main(String[] args) {
+        new QueryClient().mainImpl(args);
+    }
+
+    public QueryClient() {
+        super(NAME, DESCRIPTION);
+    }
+}
@@ -8,6 +8,7 @@ import ru.ifmo.genetics.dna.LightDnaQ;
 import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.io.sources.PairSource;
 import ru.ifmo.genetics.io.writers.WritersUtils;
+import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.tools.io.LazyDnaQReaderTool;
 import ru.ifmo.genetics.utils.pairs.UniPair;
@@ -15,6 +16,9 @@ import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+import structures.ApproxTableBuilder;
+import structures.KmerCounts;
+import structures.PrefilteredTable;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
@@ -88,8 +92,30 @@ public class ReadsClassifier extends Tool {
             .withDefaultValue(90)
             .create());
 
+    public final Parameter<String> approxFpr = addParameter(new StringParameterBuilder("approx-fpr")
+            .optional()
+            .withDescription("use approximate k-mer counter with given false-positive rate (e.g. 0.01) instead of exact hashtable")
+            .create());
+
+    public final Parameter<Long> approxKmers = addParameter(new LongParameterBuilder("approx-kmers")
+            .optional()
+            .withDescription("expected number of distinct k-mers for approximate counter (estimated from a sample of the input by default)")
+            .create());
 
-    private BigLong2ShortHashMap graph;
+    public final Parameter<Boolean> prefilter = addParameter(new BoolParameterBuilder("prefilter")
+            .optional()
+            .withDescription("build Bloom filter in front of k-mer table to skip lookups of absent k-mers")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> prefilterStats = addParameter(new BoolParameterBuilder("prefilter-stats")
+            .optional()
+            .withDescription("count lookups rejected by pre-filter and print them (slows lookups down)")
+            .withDefaultValue(false)
+            .create());
+
+
+    private KmerCounts graph;
     private HashFunction hasher;
 
     public void loadGraph() throws ExecutionFailedException, IOException {
@@ -97,20 +123,35 @@ public class ReadsClassifier extends Tool {
             this.hasher = LargeKIOUtils.hash = determineHashFunction();
         }
         String fileFormat = inputFiles.get()[0].getName().toLowerCase();
-        if (fileFormat.endsWith("kmers.bin")) {
-            this.graph = IOUtils.loadKmers(inputFiles.get(), 0, availableProcessors.get(), logger);
+        BigLong2ShortHashMap table = null;
+        if (approxFpr.get() != null) {
+            this.graph = ApproxTableBuilder.load(inputFiles.get(), k.get(), approxFpr.get(), approxKmers.get(),
+                    availableProcessors.get(), logger);
+        }
+        else if (fileFormat.endsWith("kmers.bin")) {
+            table = IOUtils.loadKmers(inputFiles.get(), 0, availableProcessors.get(), logger);
         }
         else {
             if (k.get() > 31) {
                 logger.info("Reading hashes of k-mers instead");
-                this.graph = LargeKIOUtils.loadReads(inputFiles.get(), k.get(), 0,
+                table = LargeKIOUtils.loadReads(inputFiles.get(), k.get(), 0,
                         availableProcessors.get(), logger);
             } else {
-                this.graph = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
+                table = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
                         availableProcessors.get(), logger);
             }
         }
+        if (table != null) {
+            this.graph = KmerCounts.of(table);
+        }
         logger.info("Hashtable size: " + this.graph.size() + " kmers");
+        if (prefilter.get()) {
+            if (table == null) {
+                warn("Pre-filter can be built only for exact k-mer table, continuing without it");
+            } else {
+                this.graph = PrefilteredTable.build(table, prefilterStats.get(), availableProcessors.get(), logger);
+            }
+        }
     }
 
 
@@ -155,6 +196,7 @@ public class ReadsClassifier extends Tool {
         Queue<UniPair<LightDnaQ>> both_not_found = new ConcurrentLinkedQueue<>();
 
         info(doCorrection.get() ? "Searching for corrected reads in graph..." : "Searching for reads in graph...");
+        Timer t = new Timer();
         ExecutorService executorService = Executors.newFixedThreadPool(availableProcessors.get());
 
         if (sources.size() == 2) {
@@ -185,6 +227,8 @@ public class ReadsClassifier extends Tool {
         } catch (InterruptedException e) {
             throw new ExecutionFailedException("Error while searching reads in graph: " + e.toString());
         }
+        info("Reads searched in " + t);
+        PrefilteredTable.report(graph, logger);
 
         FoundStats stats = new FoundStats(both_found.size(), first_found.size(), second_found.size(), both_not_found.size());
 
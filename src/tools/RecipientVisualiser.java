@@ -12,16 +12,20 @@ import ru.ifmo.genetics.utils.KmerUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+import structures.EdgeMasks;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -91,8 +95,14 @@ public class RecipientVisualiser extends Tool {
             .withDescription("extension of output files of reads_classifier.sh FMT classification script")
             .create());
 
+    public final Parameter<Boolean> edgeMasks = addParameter(new BoolParameterBuilder("edge-masks")
+            .withDescription("precompute existing extensions of all k-mers to speed up graph search (k <= 31 only)")
+            .withDefaultValue(false)
+            .create());
+
 
     private BigLong2ShortHashMap graph, from_donor, from_both, from_before, itself;
+    private EdgeMasks masks;
     private HashFunction hasher;
     private List<DnaQ> sequences;
 
@@ -146,6 +156,7 @@ public class RecipientVisualiser extends Tool {
     @Override
     protected void cleanImpl() {
         graph = null;
+        masks = null;
         hasher = null;
         sequences = null;
         from_donor = null;
@@ -204,13 +215,20 @@ public class RecipientVisualiser extends Tool {
                     new File(inputPrefix + "came_itself_2." + extension.get()),
                     new File(inputPrefix + "came_itself_s." + extension.get())};
             loadAfterGraphs(from_donor_files, from_before_files, from_both_files, itself_files);
+            if (edgeMasks.get() && hasher == null) {
+                masks = IOUtils.buildEdgeMasks(graph, k.get(), 1, availableProcessors.get(), logger);
+            }
 
             logger.info("Creating after images ...");
 
+            List<SearchStats> stats = new ArrayList<SearchStats>();
             for (int i = 0; i < sequences.size(); i++) {
-                execService.execute(new SeqEnvCalculator(sequences.get(i).toString(), k.get(),
+                SeqEnvCalculator calc = new SeqEnvCalculator(sequences.get(i).toString(), k.get(),
                         outputPrefix + "/after", this.hasher, graph, logger,
-                        getAfterColorNode(), "comp_" + i, getTerminationMode()));
+                        getAfterColorNode(), "comp_" + i, getTerminationMode());
+                calc.setEdgeMasks(masks);
+                stats.add(calc.stats());
+                execService.execute(calc);
             }
             execService.shutdown();
             try {
@@ -219,6 +237,14 @@ public class RecipientVisualiser extends Tool {
                 e.printStackTrace();
             }
             logger.info("Finished processing all sequences!");
+            File statsFile = new File(outputPrefix + "/after/stats.tsv");
+            statsFile.getParentFile().mkdirs();
+            try (PrintWriter out = new PrintWriter(statsFile)) {
+                out.println(SearchStats.tsvHeader());
+                for (int i = 0; i < stats.size(); i++) {
+                    out.println(stats.get(i).tsvRow("comp_" + i));
+                }
+            }
         }
     }
 
@@ -6,12 +6,14 @@ import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.LightDnaQ;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.sources.NamedSource;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.tools.io.LazyDnaQReaderTool;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+import structures.ApproxTableBuilder;
+import structures.BatchLookup;
+import structures.KmerCounts;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
@@ -72,8 +74,18 @@ public class SequenceCoverage extends Tool {
             .withDefaultValue("poly")
             .create());
 
+    public final Parameter<String> approxFpr = addParameter(new StringParameterBuilder("approx-fpr")
+            .optional()
+            .withDescription("use approximate k-mer counter with given false-positive rate (e.g. 0.01) instead of exact hashtable")
+            .create());
+
+    public final Parameter<Long> approxKmers = addParameter(new LongParameterBuilder("approx-kmers")
+            .optional()
+            .withDescription("expected number of distinct k-mers for approximate counter (estimated from a sample of the input by default)")
+            .create());
 
-    private BigLong2ShortHashMap donor, before, both, itself;
+
+    private KmerCounts donor, before, both, itself;
     private HashFunction hasher;
 
     public SequenceCoverage() {
@@ -84,16 +96,21 @@ public class SequenceCoverage extends Tool {
         new SequenceCoverage().mainImpl(args);
     }
 
-    public BigLong2ShortHashMap loadGraph(File[] inputFiles) throws ExecutionFailedException {
-        BigLong2ShortHashMap graph;
+    public KmerCounts loadGraph(File[] inputFiles) throws ExecutionFailedException {
+        KmerCounts graph;
         if (k.get() > 31) {
-            logger.info("Reading hashes of k-mers instead");
             this.hasher = LargeKIOUtils.hash = determineHashFunction();
-            graph = LargeKIOUtils.loadReads(inputFiles, k.get(), 0,
+        }
+        if (approxFpr.get() != null) {
+            graph = ApproxTableBuilder.load(inputFiles, k.get(), approxFpr.get(), approxKmers.get(),
                     availableProcessors.get(), logger);
+        } else if (k.get() > 31) {
+            logger.info("Reading hashes of k-mers instead");
+            graph = KmerCounts.of(LargeKIOUtils.loadReads(inputFiles, k.get(), 0,
+                    availableProcessors.get(), logger));
         } else {
-            graph = IOUtils.loadReads(inputFiles, k.get(), 0,
-                    availableProcessors.get(), logger);
+            graph = KmerCounts.of(IOUtils.loadReads(inputFiles, k.get(), 0,
+                    availableProcessors.get(), logger));
         }
         logger.info("Hashtable size: " + graph.size() + " kmers");
         return graph;
@@ -147,10 +164,12 @@ public class SequenceCoverage extends Tool {
         for (LightDnaQ seq : source) {
             Dna dna = new Dna(seq);
             printer.print(dna.toString());
-            printSeqBin(donor, dna, k, printer);
-            printSeqBin(before, dna, k, printer);
-            printSeqBin(both, dna, k, printer);
-            printSeqBin(itself, dna, k, printer);
+            long[] keys = kmerKeys(dna, k);
+            short[] values = new short[keys.length];
+            printSeqBin(donor, keys, values, printer);
+            printSeqBin(before, keys, values, printer);
+            printSeqBin(both, keys, values, printer);
+            printSeqBin(itself, keys, values, printer);
             printer.println();
         }
 
@@ -159,28 +178,33 @@ public class SequenceCoverage extends Tool {
 
     }
 
-    private void printSeqBin(BigLong2ShortHashMap graph, Dna seq, int k, PrintWriter printer) {
-        long depth = 0, breadth = 0;
-
+    private long[] kmerKeys(Dna seq, int k) {
+        long[] keys = new long[Math.max(seq.length() - k + 1, 0)];
         if (k > 31) {
-            for (int i = 0; i + k <= seq.length(); i++) {
-                long hash = hasher.hash(seq, i, i + k);
-                short value = graph.getWithZero(hash);
-                if (value > 0) {
-                    breadth++;
-                }
-                depth += value;
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = hasher.hash(seq, i, i + k);
             }
         } else {
+            int i = 0;
             for (ShortKmer kmer : ShortKmer.kmersOf(seq, k)) {
-                short value = graph.getWithZero(kmer.toLong());
-                if (value > 0) {
-                    breadth++;
-                }
-                depth += value;
+                keys[i++] = kmer.toLong();
+            }
+        }
+        return keys;
+    }
+
+    private void printSeqBin(KmerCounts graph, long[] keys, short[] values, PrintWriter printer) {
+        long depth = 0, breadth = 0;
+
+        BatchLookup.getManyWithZero(graph, keys, keys.length, values);
+        for (int i = 0; i < keys.length; i++) {
+            short value = values[i];
+            if (value > 0) {
+                breadth++;
             }
+            depth += value;
         }
 
-        printer.print(", " + depth * 1. / (seq.length() - k + 1) + ", " + breadth * 1. / (seq.length() - k + 1));
+        printer.print(", " + depth * 1. / keys.length + ", " + breadth * 1. / keys.length);
     }
 }
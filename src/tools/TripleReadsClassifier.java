@@ -8,6 +8,7 @@ import ru.ifmo.genetics.dna.LightDnaQ;
 import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.io.sources.PairSource;
 import ru.ifmo.genetics.io.writers.WritersUtils;
+import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.tools.io.LazyDnaQReaderTool;
 import ru.ifmo.genetics.utils.Misc;
@@ -16,6 +17,9 @@ import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+import structures.ApproxTableBuilder;
+import structures.KmerCounts;
+import structures.PrefilteredTable;
 import utils.FNV1AHash;
 import utils.HashFunction;
 import utils.PolynomialHash;
@@ -108,8 +112,30 @@ public class TripleReadsClassifier extends Tool {
             .withDefaultValue(40)
             .create());
 
+    public final Parameter<String> approxFpr = addParameter(new StringParameterBuilder("approx-fpr")
+            .optional()
+            .withDescription("use approximate k-mer counter with given false-positive rate (e.g. 0.01) instead of exact hashtable")
+            .create());
+
+    public final Parameter<Long> approxKmers = addParameter(new LongParameterBuilder("approx-kmers")
+            .optional()
+            .withDescription("expected number of distinct k-mers for approximate counter (estimated from a sample of the input by default)")
+            .create());
 
-    private BigLong2ShortHashMap graph;
+    public final Parameter<Boolean> prefilter = addParameter(new BoolParameterBuilder("prefilter")
+            .optional()
+            .withDescription("build Bloom filter in front of k-mer table to skip lookups of absent k-mers")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> prefilterStats = addParameter(new BoolParameterBuilder("prefilter-stats")
+            .optional()
+            .withDescription("count lookups rejected by pre-filter and print them (slows lookups down)")
+            .withDefaultValue(false)
+            .create());
+
+
+    private KmerCounts graph;
     private HashFunction hasher;
 
     public TripleReadsClassifier() {
@@ -130,20 +156,37 @@ public class TripleReadsClassifier extends Tool {
         if (k > 31) {
             this.hasher = LargeKIOUtils.hash = determineHashFunction(k);
         }
-        if (inputKmers.get() != null && inputKmers.get()[0].getName().toLowerCase().endsWith("kmers.bin")) {
-            this.graph = IOUtils.loadKmers(inputKmers.get(), 0, availableProcessors.get(), logger);
+        BigLong2ShortHashMap table = null;
+        if (approxFpr.get() != null) {
+            File[] files = inputKmers.get() != null && inputKmers.get()[0].getName().toLowerCase().endsWith("kmers.bin")
+                    ? inputKmers.get() : inputFiles.get();
+            this.graph = ApproxTableBuilder.load(files, k, approxFpr.get(), approxKmers.get(),
+                    availableProcessors.get(), logger);
+        }
+        else if (inputKmers.get() != null && inputKmers.get()[0].getName().toLowerCase().endsWith("kmers.bin")) {
+            table = IOUtils.loadKmers(inputKmers.get(), 0, availableProcessors.get(), logger);
         }
         else {
             if (k > 31) {
                 logger.info("Reading hashes of k-mers instead");
-                this.graph = LargeKIOUtils.loadReads(inputFiles.get(), k, 0,
+                table = LargeKIOUtils.loadReads(inputFiles.get(), k, 0,
                         availableProcessors.get(), logger);
             } else {
-                this.graph = IOUtils.loadReads(inputFiles.get(), k, 0,
+                table = IOUtils.loadReads(inputFiles.get(), k, 0,
                         availableProcessors.get(), logger);
             }
         }
+        if (table != null) {
+            this.graph = KmerCounts.of(table);
+        }
         logger.info("Hashtable size: " + this.graph.size() + " kmers");
+        if (prefilter.get()) {
+            if (table == null) {
+                warn("Pre-filter can be built only for exact k-mer table, continuing without it");
+            } else {
+                this.graph = PrefilteredTable.build(table, prefilterStats.get(), availableProcessors.get(), logger);
+            }
+        }
     }
 
     private HashFunction determineHashFunction(int k) {
@@ -183,6 +226,7 @@ public class TripleReadsClassifier extends Tool {
         info("Building graph with k = " + k.get() + " ...");
         loadGraph(k.get(), inputKmers1);
         info(doCorrection.get() ? "Searching for corrected reads in graph..." : "Searching for reads in graph...");
+        Timer t = new Timer();
 
         Map<String, FindResult> isFoundInGraphOne_1 = new ConcurrentHashMap<>();
         Map<String, FindResult> isFoundInGraphOne_2 = new ConcurrentHashMap<>();
@@ -198,11 +242,14 @@ public class TripleReadsClassifier extends Tool {
         } catch (InterruptedException e) {
             throw new ExecutionFailedException("Error while searching reads in graph: " + e.toString());
         }
+        info("Reads searched in " + t);
+        PrefilteredTable.report(graph, logger);
 
         cleanImpl();
         info("Building graph with k = " + k2.get() + " ...");
         loadGraph(k2.get(), inputKmers2);
         info(doCorrection.get() ? "Searching for corrected reads in graph..." : "Searching for reads in graph...");
+        t.start();
 
         Queue<UniPair<LightDnaQ>> both_found = new ConcurrentLinkedQueue<>();
         Queue<UniPair<LightDnaQ>> both_half_found = new ConcurrentLinkedQueue<>();
@@ -225,6 +272,8 @@ public class TripleReadsClassifier extends Tool {
         } catch (InterruptedException e) {
             throw new ExecutionFailedException("Error while searching reads in graph: " + e.toString());
         }
+        info("Reads searched in " + t);
+        PrefilteredTable.report(graph, logger);
 
         FoundStats stats = new FoundStats(both_found.size(), both_half_found.size(), both_not_found.size(),
                 s_found.size(), s_half_found.size(), s_not_found.size());
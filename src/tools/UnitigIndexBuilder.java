@@ -0,0 +1,88 @@
+package tools;
+
+import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.utils.Misc;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import structures.UnitigIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Compacts the whole graph of solid k-mers of a sample once, environment-finder searches over the index
+ * with --unitig-index.
+ */
+public class UnitigIndexBuilder extends Tool {
+    public static final String NAME = "unitig-index";
+    public static final String DESCRIPTION = "Build compacted de Bruijn graph of solid k-mers for fast environment search";
+
+    public final Parameter<Integer> k = addParameter(new IntParameterBuilder("k")
+            .mandatory()
+            .withShortOpt("k")
+            .withDescription("k-mer size, k <= 31")
+            .create());
+
+    public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("reads")
+            .withShortOpt("i")
+            .mandatory()
+            .withDescription("FASTQ, BINQ, FASTA reads or .kmers.bin files of k-mer counter")
+            .create());
+
+    public final Parameter<Integer> minCoverage = addParameter(new IntParameterBuilder("coverage")
+            .withDescription("minimum depth of k-mers to consider, the same value should be used for search")
+            .withDefaultValue(1)
+            .create());
+
+    public final Parameter<File> outputFile = addParameter(new FileParameterBuilder("output")
+            .withShortOpt("o")
+            .withDescription("output file")
+            .withDefaultValue(workDir.append("unitigs.bin"))
+            .create());
+
+    @Override
+    protected void runImpl() throws ExecutionFailedException, IOException {
+        if (k.get() > 31) {
+            throw new ExecutionFailedException("Unitig index can be built only for k <= 31");
+        }
+        Timer t = new Timer();
+        UnitigIndex index = UnitigIndex.fromFiles(inputFiles.get(), k.get(), minCoverage.get(),
+                availableProcessors.get(), logger);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+        if (index.size() == 0) {
+            warn("No solid k-mers found! Perhaps --coverage is too high or reads are empty");
+        }
+
+        File file = outputFile.get();
+        if (file.getAbsoluteFile().getParentFile() != null) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 24));
+        try {
+            index.write(out);
+        } finally {
+            out.close();
+        }
+        info("Unitig index saved to " + file.getPath() + ", mean unitig length = "
+                + String.format("%.1f", (double) index.size() / Math.max(index.unitigs(), 1)) + " k-mers");
+    }
+
+    @Override
+    protected void cleanImpl() {
+    }
+
+    public static void main(String[] args) {
+        new UnitigIndexBuilder().mainImpl(args);
+    }
+
+    public UnitigIndexBuilder() {
+        super(NAME, DESCRIPTION);
+    }
+}
@@ -31,6 +31,18 @@ public class StringUtils {
         return neighbors;
     }
 
+    /**
+     * @return nucleotides of k-mer in 2-bit encoding, the first one is in the highest bits
+     */
+    public static String kmerToString(long kmer, int k) {
+        char[] s = new char[k];
+        for (int i = k - 1; i >= 0; i--) {
+            s[i] = NUCLEOTIDES[(int) (kmer & 3)];
+            kmer >>>= 2;
+        }
+        return new String(s);
+    }
+
     public static String normalizeDna(String s) {
         String rc = reverseComplement(s);
         if (s.compareTo(rc) < 0) {
@@ -0,0 +1,99 @@
+import algo.CompactGraph;
+import org.junit.Test;
+import ru.ifmo.genetics.dna.DnaTools;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class CompactGraphTest {
+    @Test
+    public void testBranch() {
+        // both sequences share TTACAGG, they differ at the start and at the end
+        CompactGraph graph = compacted(5, "GATTACAGGC", "CTTACAGGTT");
+
+        Map<String, Set<String>> expected = new TreeMap<String, Set<String>>();
+        String shared = canonical("TTACAGG");
+        expected.put(canonical("GATTAC"), set(shared));
+        expected.put(canonical("CTTAC"), set(shared));
+        expected.put(canonical("CAGGC"), set(shared));
+        expected.put(canonical("CAGGTT"), set(shared));
+        expected.put(shared, set(canonical("GATTAC"), canonical("CTTAC"), canonical("CAGGC"), canonical("CAGGTT")));
+        assertEquals(expected, unitigs(graph));
+    }
+
+    @Test
+    public void testCycle() {
+        String cycle = "AGGTCCATTG";
+        CompactGraph graph = compacted(5, cycle + cycle.substring(0, 4));
+
+        Map<String, Set<String>> unitigs = unitigs(graph);
+        assertEquals(1, unitigs.size());
+        String label = unitigs.keySet().iterator().next();
+        assertEquals(set(label), unitigs.get(label));
+        // any rotation of the cycle, closed by k - 1 repeated chars
+        assertEquals(cycle.length() + 4, label.length());
+        assertEquals(label.substring(0, 4), label.substring(label.length() - 4));
+        assertEquals(kmers(5, cycle + cycle.substring(0, 4)), kmers(5, label));
+    }
+
+    @Test
+    public void testPalindrome() {
+        // ACGT is its own reverse complement, the path turns back at it
+        CompactGraph graph = compacted(4, "TTACGTAA");
+
+        Map<String, Set<String>> expected = new TreeMap<String, Set<String>>();
+        expected.put("ACGT", set(canonical("TTACG")));
+        expected.put(canonical("TTACG"), set("ACGT"));
+        assertEquals(expected, unitigs(graph));
+    }
+
+    private static CompactGraph compacted(int k, String... sequences) {
+        return compacted(k, kmers(k, sequences));
+    }
+
+    private static CompactGraph compacted(int k, Collection<String> kmers) {
+        CompactGraph graph = new CompactGraph(k, kmers);
+        graph.compact();
+        return graph;
+    }
+
+    /**
+     * @return canonical labels of remaining nodes with canonical labels of their neighbours from both sides
+     */
+    private static Map<String, Set<String>> unitigs(CompactGraph graph) {
+        Map<String, Set<String>> result = new TreeMap<String, Set<String>>();
+        for (int v = 0; v < graph.size(); v++) {
+            if (graph.isDeleted(v)) {
+                continue;
+            }
+            assertTrue(!graph.isDeleted(graph.rc(v)));
+            Set<String> links = result.computeIfAbsent(canonical(graph.label(v)), l -> new TreeSet<String>());
+            for (int i = 0; i < graph.degree(v); i++) {
+                links.add(canonical(graph.label(graph.neighbor(v, i))));
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> kmers(int k, String... sequences) {
+        Set<String> result = new TreeSet<String>();
+        for (String s : sequences) {
+            for (int i = 0; i + k <= s.length(); i++) {
+                result.add(canonical(s.substring(i, i + k)));
+            }
+        }
+        return result;
+    }
+
+    private static String canonical(String s) {
+        String rc = DnaTools.reverseComplement(s);
+        return s.compareTo(rc) <= 0 ? s : rc;
+    }
+
+    private static Set<String> set(String... labels) {
+        return new TreeSet<String>(Arrays.asList(labels));
+    }
+}
@@ -0,0 +1,79 @@
+import io.EnvironmentCache;
+import org.apache.log4j.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+
+public class EnvironmentCacheTest {
+    private static final Logger logger = Logger.getLogger(EnvironmentCacheTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File dir = new File(folder.getRoot(), "cache");
+        EnvironmentCache cache = new EnvironmentCache(dir, "sample", logger);
+        String key = cache.key(Collections.singletonList("ACGTACGTTT"), "k=5");
+        List<String> kmers = Arrays.asList("TTTAC", "ACGTA", "CGTAC", "AAACG");
+        Map<String, Integer> subgraph = new HashMap<String, Integer>();
+        for (int i = 0; i < kmers.size(); i++) {
+            subgraph.put(kmers.get(i), 10 + i);
+        }
+        cache.store(key, 5, kmers, subgraph);
+        assertArrayEquals(new String[]{key + ".env"}, dir.list());
+
+        Map<String, Integer> loaded = new LinkedHashMap<String, Integer>();
+        assertTrue(new EnvironmentCache(dir, "sample", logger).load(key, 5, loaded));
+        assertEquals(kmers, new ArrayList<String>(loaded.keySet()));
+        assertEquals(subgraph, loaded);
+
+        assertFalse(cache.load(key, 7, new LinkedHashMap<String, Integer>()));
+        assertFalse(cache.load(cache.key(Collections.singletonList("ACGTACGTTT"), "k=7"), 5,
+                new LinkedHashMap<String, Integer>()));
+    }
+
+    @Test
+    public void testKeys() {
+        EnvironmentCache cache = new EnvironmentCache(folder.getRoot(), "sample", logger);
+        List<String> targets = Arrays.asList("ACGT", "TTGA");
+        String key = cache.key(targets, "k=5");
+        assertEquals(key, cache.key(Arrays.asList("acgt", "ttga"), "k=5"));
+        assertFalse(key.equals(cache.key(Arrays.asList("TTGA", "ACGT"), "k=5")));
+        assertFalse(key.equals(cache.key(targets, "k=7")));
+        assertFalse(key.equals(new EnvironmentCache(folder.getRoot(), "other", logger).key(targets, "k=5")));
+    }
+
+    @Test
+    public void testTruncatedFile() throws Exception {
+        File dir = new File(folder.getRoot(), "cache");
+        EnvironmentCache cache = new EnvironmentCache(dir, "sample", logger);
+        String key = cache.key(Collections.singletonList("ACGTACGTTT"), "k=5");
+        List<String> kmers = Arrays.asList("TTTAC", "ACGTA", "CGTAC");
+        Map<String, Integer> subgraph = new HashMap<String, Integer>();
+        for (String kmer : kmers) {
+            subgraph.put(kmer, 3);
+        }
+        cache.store(key, 5, kmers, subgraph);
+
+        File file = new File(dir, key + ".env");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+        Map<String, Integer> loaded = new LinkedHashMap<String, Integer>();
+        assertFalse(cache.load(key, 5, loaded));
+        assertTrue(loaded.isEmpty());
+
+        // the entry is written again by the next search
+        cache.store(key, 5, kmers, subgraph);
+        assertTrue(cache.load(key, 5, loaded));
+        assertEquals(kmers, new ArrayList<String>(loaded.keySet()));
+    }
+}
@@ -1,17 +1,20 @@
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
-import ru.ifmo.genetics.dna.DnaQ;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
+import structures.PackedSequence;
 import tools.EnvironmentFinderMain;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 
@@ -38,7 +41,11 @@ public class EnvironmentFinderMainTest {
         assert (main.hicSeqsFile != null);
         Field hicSequences = EnvironmentFinderMain.class.getDeclaredField("hicSequences");
         hicSequences.setAccessible(true);
-        assertEquals (1047, ((List<DnaQ>) hicSequences.get(main)).size());
+        int hicCount = 0;
+        for (PackedSequence s : (Iterable<PackedSequence>) hicSequences.get(main)) {
+            hicCount++;
+        }
+        assertEquals (1047, hicCount);
         File graph = new File(outputPath + "/merged/graph.gfa");
         assert (graph.exists());
         assert (checkGraph(outputPath + "/merged/graph.gfa", 19, 22));
@@ -93,6 +100,45 @@ public class EnvironmentFinderMainTest {
         }
     }
 
+    @Test
+    public void testBatchRepeatedKmer() throws Exception {
+        Random random = new Random(1);
+        StringBuilder genome = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            genome.append("ACGT".charAt(random.nextInt(4)));
+        }
+        File reads = folder.newFile("reads.fastq");
+        try (PrintWriter out = new PrintWriter(reads)) {
+            for (int i = 0; i + 100 <= genome.length(); i += 5) {
+                out.println("@r" + i);
+                out.println(genome.substring(i, i + 100));
+                out.println("+");
+                out.println(String.format("%100s", "").replace(' ', 'I'));
+            }
+        }
+        // first k-mers of the target are repeated before k-mers of another part of the genome
+        String target = genome.substring(1000, 1100) + genome.substring(1000, 1040) + genome.substring(3000, 3100);
+        File seq = folder.newFile("target.fasta");
+        try (PrintWriter out = new PrintWriter(seq)) {
+            out.println(">repeated");
+            out.println(target);
+        }
+
+        String[] graphs = new String[2];
+        for (int i = 0; i < 2; i++) {
+            String outputPath = folder.getRoot().getPath() + "/output" + i;
+            String[] args = {"--k", "31", "--coverage", "5",
+                    "--reads", reads.getPath(),
+                    "--seq", seq.getPath(),
+                    "--output", outputPath,
+                    "--work-dir", folder.getRoot().getPath() + "/workDir" + i,
+                    "--maxradius", "20", "--batch", i == 0 ? "false" : "true"};
+            new EnvironmentFinderMain().mainImpl(args);
+            graphs[i] = new String(Files.readAllBytes(new File(outputPath + "/repeated/graph.gfa").toPath()));
+        }
+        assertEquals(graphs[0], graphs[1]);
+    }
+
     private boolean checkGraph(String graphGFAPath, int expectedNodesCount, int expectedEdgesCount) throws Exception {
         BufferedReader reader;
         int actualNodesCount = 0;
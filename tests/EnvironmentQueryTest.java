@@ -0,0 +1,98 @@
+import api.EnvironmentGraph;
+import api.EnvironmentQuery;
+import api.KmerTable;
+import org.junit.Test;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.KmerUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+
+public class EnvironmentQueryTest {
+    private static final int K = 21;
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        Random random = new Random(7);
+        StringBuilder genome = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            genome.append(DnaTools.NUCLEOTIDES[random.nextInt(4)]);
+        }
+        // repeats make branches in the graph
+        for (int i = 0; i < 20; i++) {
+            int start = random.nextInt(genome.length() - 100);
+            genome.append(genome, start, start + 30 + random.nextInt(70));
+            for (int j = 0; j < 200; j++) {
+                genome.append(DnaTools.NUCLEOTIDES[random.nextInt(4)]);
+            }
+        }
+        BigLong2ShortHashMap counts = new BigLong2ShortHashMap(4, 14);
+        long mask = (1L << (2 * K)) - 1, kmer = 0;
+        for (int i = 0; i < genome.length(); i++) {
+            kmer = ((kmer << 2) | DnaTools.fromChar(genome.charAt(i))) & mask;
+            if (i >= K - 1) {
+                counts.addAndBound(KmerUtils.getKmerKey(kmer, K), (short) (1 + random.nextInt(4)));
+            }
+        }
+        KmerTable table = KmerTable.of(counts, K, 2);
+
+        List<String> targets = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            int start = random.nextInt(genome.length() - 1000);
+            targets.add(genome.substring(start, start + 100 + random.nextInt(900)));
+        }
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < targets.size(); i++) {
+            expected.add(describe(query(table, targets.get(i), i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < targets.size(); i += 2) {
+                    CyclicBarrier start = new CyclicBarrier(2);
+                    List<Future<String>> results = new ArrayList<Future<String>>();
+                    for (int j = i; j < i + 2; j++) {
+                        final int target = j;
+                        results.add(executor.submit(() -> {
+                            start.await();
+                            return describe(query(table, targets.get(target), target));
+                        }));
+                    }
+                    for (int j = i; j < i + 2; j++) {
+                        assertEquals("target " + j, expected.get(j), results.get(j - i).get(1, TimeUnit.MINUTES));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static EnvironmentGraph query(KmerTable table, String target, int i) {
+        EnvironmentQuery query = new EnvironmentQuery(table).sequence(target).bothDirections(i % 2 == 0);
+        return (i % 4 < 2 ? query.maxKmers(3000) : query.maxRadius(40)).trimPaths(i % 3 == 0).run();
+    }
+
+    /**
+     * @return k-mers, nodes and links of the graph in their order
+     */
+    private static String describe(EnvironmentGraph graph) {
+        assertFalse(graph.isEmpty());
+        StringBuilder sb = new StringBuilder();
+        sb.append(graph.truncation()).append('\n').append(graph.kmers()).append('\n');
+        for (EnvironmentGraph.Node node : graph.nodes()) {
+            sb.append(node.id()).append(' ').append(node.sequence()).append(' ').append(node.coverage())
+                    .append(' ').append(node.isGene()).append(' ').append(node.color()).append('\n');
+        }
+        for (EnvironmentGraph.Edge edge : graph.edges()) {
+            sb.append(edge.from()).append(edge.fromForward() ? '+' : '-')
+                    .append(edge.to()).append(edge.toForward() ? '+' : '-').append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,112 @@
+import io.QueryProtocol;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class QueryProtocolTest {
+    @Test
+    public void testRequestRoundTrip() throws Exception {
+        Map<String, String> request = new LinkedHashMap<String, String>();
+        request.put("seq", "ACGTTGCAAC");
+        request.put("maxkmers", "100000");
+        request.put("format", "gfa");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        QueryProtocol.writeRequest(out, request);
+        QueryProtocol.writeRequest(out, new LinkedHashMap<String, String>());
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        Map<String, String> read = QueryProtocol.readRequest(in);
+        assertEquals(request, read);
+        assertEquals(new ArrayList<String>(request.keySet()), new ArrayList<String>(read.keySet()));
+        assertTrue(QueryProtocol.readRequest(in).isEmpty());
+    }
+
+    @Test
+    public void testMalformedRequest() throws Exception {
+        assertFails(() -> QueryProtocol.readRequest(stream("seq ACGT\nmaxkmers\n\n")), "Malformed request line");
+        assertFails(() -> QueryProtocol.readRequest(stream("seq ACGT\n")), "Request isn't finished");
+    }
+
+    @Test
+    public void testResponseRoundTrip() throws Exception {
+        byte[] data = "H\tVN:Z:1.0\nS\t1\tACGT\n".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        QueryProtocol.writeResult(out, data, "MAX_KMERS");
+        QueryProtocol.writeResult(out, new byte[0], null);
+        QueryProtocol.writeError(out, "Sequence is\nshorter than k");
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        QueryProtocol.Response response = QueryProtocol.readResponse(in);
+        assertArrayEquals(data, response.data);
+        assertEquals("MAX_KMERS", response.truncation);
+        response = QueryProtocol.readResponse(in);
+        assertEquals(0, response.data.length);
+        assertNull(response.truncation);
+        assertFails(() -> QueryProtocol.readResponse(in), "Sequence is shorter than k");
+        assertFails(() -> QueryProtocol.readResponse(in), "Server closed connection without response");
+        assertFails(() -> QueryProtocol.readResponse(stream("DONE\n")), "Malformed response");
+    }
+
+    @Test
+    public void testEnvironmentRoundTrip() throws Exception {
+        for (int k : new int[]{4, 5, 31, 33}) {
+            Map<String, Integer> environment = new LinkedHashMap<String, Integer>();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < k + 20; i++) {
+                sb.append("ACGT".charAt((i * 7 + i / 3) % 4));
+            }
+            for (int i = 0; i + k <= sb.length(); i += 3) {
+                environment.put(sb.substring(i, i + k), 1000 * i + k);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            QueryProtocol.writeEnvironment(new DataOutputStream(out), k, environment);
+            assertEquals(12 + environment.size() * ((k + 3) / 4 + 4), out.size());
+
+            Map<String, Integer> read = new LinkedHashMap<String, Integer>();
+            assertEquals(k, QueryProtocol.readEnvironment(
+                    new DataInputStream(new ByteArrayInputStream(out.toByteArray())), read));
+            assertEquals(environment, read);
+            assertEquals(new ArrayList<String>(environment.keySet()), new ArrayList<String>(read.keySet()));
+        }
+    }
+
+    @Test
+    public void testBadEnvironment() throws Exception {
+        Map<String, Integer> environment = new LinkedHashMap<String, Integer>();
+        environment.put("ACNT", 1);
+        assertFails(() -> QueryProtocol.writeEnvironment(new DataOutputStream(new ByteArrayOutputStream()), 4,
+                environment), "Not a nucleotide");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(QueryProtocol.BINARY_VERSION + 1);
+        data.writeInt(4);
+        data.writeInt(0);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertFails(() -> QueryProtocol.readEnvironment(in, new LinkedHashMap<String, Integer>()), "Unknown version");
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private static void assertFails(IOAction action, String message) {
+        try {
+            action.run();
+            fail("IOException is expected: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage() != null && e.getMessage().contains(message));
+        }
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII));
+    }
+}
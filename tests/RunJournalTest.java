@@ -0,0 +1,78 @@
+import io.RunJournal;
+import org.apache.log4j.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+
+public class RunJournalTest {
+    private static final Logger logger = Logger.getLogger(RunJournalTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = new File(folder.getRoot(), "work/journal.tsv");
+        File snapshot = folder.newFile("kmers.bin");
+        RunJournal journal = RunJournal.start(file, "fingerprint", snapshot);
+        String first = RunJournal.targetId("first", "ACGT");
+        String second = RunJournal.targetId("second", "ACGT", "TTGA");
+        journal.markDone(first);
+        journal.markDone(second);
+        journal.close();
+
+        RunJournal resumed = RunJournal.resume(file, "fingerprint", logger);
+        assertNotNull(resumed);
+        assertEquals(snapshot.getAbsoluteFile(), resumed.snapshot());
+        assertEquals(2, resumed.doneCount());
+        assertTrue(resumed.isDone(first));
+        assertTrue(resumed.isDone(second));
+        assertFalse(resumed.isDone(RunJournal.targetId("first", "ACGA")));
+        resumed.close();
+
+        assertNull(RunJournal.resume(file, "other fingerprint", logger));
+        assertNull(RunJournal.resume(new File(folder.getRoot(), "missing.tsv"), "fingerprint", logger));
+    }
+
+    @Test
+    public void testTruncatedLine() throws Exception {
+        File file = new File(folder.getRoot(), "journal.tsv");
+        RunJournal journal = RunJournal.start(file, "fingerprint", null);
+        journal.markDone("a");
+        journal.close();
+        // line cut by a crash
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("done\tb".getBytes(StandardCharsets.UTF_8));
+        }
+
+        RunJournal resumed = RunJournal.resume(file, "fingerprint", logger);
+        assertNotNull(resumed);
+        assertNull(resumed.snapshot());
+        assertTrue(resumed.isDone("a"));
+        assertFalse(resumed.isDone("b"));
+        resumed.markDone("c");
+        resumed.close();
+
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(content, content.endsWith("\ndone\ta\ndone\tc\n"));
+        RunJournal again = RunJournal.resume(file, "fingerprint", logger);
+        assertEquals(2, again.doneCount());
+        assertTrue(again.isDone("c"));
+        again.close();
+    }
+
+    @Test
+    public void testTruncatedHeader() throws Exception {
+        File file = new File(folder.getRoot(), "journal.tsv");
+        Files.write(file.toPath(), "#run\tfinger".getBytes(StandardCharsets.UTF_8));
+        assertNull(RunJournal.resume(file, "fingerprint", logger));
+    }
+}
@@ -0,0 +1,144 @@
+package algo;
+
+import org.junit.Test;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.KmerUtils;
+import structures.KmerCounts;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static utils.StringUtils.normalizeDna;
+
+
+public class EnvironmentExtensionTest {
+    private static final int K = 11;
+
+    @Test
+    public void testOneExit() {
+        String genome = randomDna(1, 300);
+        List<String> environment = kmers(genome.substring(100, 200));
+        Set<String> expected = new HashSet<String>(kmers(genome));
+        expected.removeAll(environment);
+
+        checkBothWalks(environment, expected, genome);
+    }
+
+    @Test
+    public void testBranchStop() {
+        String genome = randomDna(2, 300);
+        int fork = 150;
+        // shares k-1 chars before the fork with the genome, so k-mer ending at the fork has two successors
+        String branch = genome.substring(fork - (K - 1), fork) + randomDna(3, 50);
+        List<String> environment = kmers(genome.substring(0, 100));
+        Set<String> expected = new HashSet<String>(kmers(genome.substring(100 - (K - 1), fork)));
+        expected.removeAll(environment);
+
+        checkBothWalks(environment, expected, genome, branch);
+    }
+
+    @Test
+    public void testCycle() {
+        String cycle = randomDna(4, 200);
+        String closed = cycle + cycle.substring(0, K - 1);
+        List<String> environment = kmers(closed.substring(50, 120));
+        Set<String> expected = new HashSet<String>(kmers(closed));
+        expected.removeAll(environment);
+
+        checkBothWalks(environment, expected, closed);
+    }
+
+    @Test
+    public void testKmersCap() {
+        String genome = randomDna(1, 300);
+        List<String> environment = kmers(genome.substring(100, 200));
+        // the first boundary walks to the left and takes all k-mers allowed
+        Set<String> expected = new HashSet<String>(kmers(genome.substring(93, 99 + K)));
+        TerminationMode termMode = new TerminationMode(TerminationMode.TerminationModeType.MAX_KMERS,
+                environment.size() + 7);
+
+        checkBothWalks(termMode, null, environment, expected, genome);
+    }
+
+    @Test
+    public void testRadiusCap() {
+        String genome = randomDna(1, 300);
+        List<String> environment = kmers(genome.substring(100, 200));
+        Set<String> expected = new HashSet<String>(kmers(genome.substring(95, 99 + K)));
+        expected.addAll(kmers(genome.substring(190, 194 + K)));
+        TerminationMode termMode = new TerminationMode(TerminationMode.TerminationModeType.MAX_RADIUS, 5);
+
+        checkBothWalks(termMode, null, environment, expected, genome);
+    }
+
+    @Test
+    public void testLookupsCap() {
+        String genome = randomDna(1, 300);
+        List<String> environment = kmers(genome.substring(100, 200));
+        TerminationMode termMode = new TerminationMode(TerminationMode.TerminationModeType.MAX_LOOKUPS, 0);
+
+        checkBothWalks(termMode, TerminationMode.TerminationModeType.MAX_LOOKUPS,
+                environment, new HashSet<String>(), genome);
+    }
+
+    private static void checkBothWalks(List<String> environment, Set<String> expected, String... sequences) {
+        checkBothWalks(new TerminationMode(), null, environment, expected, sequences);
+    }
+
+    /**
+     * Extends environment in the graph of the sequences by 2-bit and string walks
+     *
+     * @param truncation restriction which should stop the walks or null
+     * @param expected   normalized k-mers which should be added
+     */
+    private static void checkBothWalks(TerminationMode termMode, TerminationMode.TerminationModeType truncation,
+                                       List<String> environment, Set<String> expected, String... sequences) {
+        Set<String> solid = new HashSet<String>();
+        BigLong2ShortHashMap table = new BigLong2ShortHashMap(4, 10);
+        for (String s : sequences) {
+            for (String kmer : kmers(s)) {
+                solid.add(kmer);
+                table.addAndBound(KmerUtils.getKmerKey(DnaTools.toLong(new Dna(kmer)), K), (short) 5);
+            }
+        }
+
+        TerminationMode.Budget packedBudget = termMode.startBudget();
+        List<String> packed = EnvironmentExtension.extend(environment, K, KmerCounts.of(table), 2, null,
+                termMode, packedBudget);
+        TerminationMode.Budget stringsBudget = termMode.startBudget();
+        List<String> strings = EnvironmentExtension.extend(environment, kmer -> solid.contains(normalizeDna(kmer)),
+                termMode, stringsBudget);
+        assertEquals(truncation, packedBudget.exceeded());
+        assertEquals(truncation, stringsBudget.exceeded());
+        for (List<String> additions : Arrays.asList(packed, strings)) {
+            Set<String> normalized = new HashSet<String>();
+            for (String kmer : additions) {
+                normalized.add(normalizeDna(kmer));
+            }
+            assertEquals("k-mers are added once", additions.size(), normalized.size());
+            assertEquals(expected, normalized);
+        }
+    }
+
+    /**
+     * @return normalized k-mers of the sequence in the order of positions
+     */
+    private static List<String> kmers(String s) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i + K <= s.length(); i++) {
+            result.add(normalizeDna(s.substring(i, i + K)));
+        }
+        return result;
+    }
+
+    private static String randomDna(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(DnaTools.NUCLEOTIDES[random.nextInt(4)]);
+        }
+        return sb.toString();
+    }
+}